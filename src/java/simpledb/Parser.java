@@ -5,6 +5,8 @@ import java.io.*;
 import java.lang.reflect.InvocationTargetException;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import jline.ArgumentCompletor;
 import jline.ConsoleReader;
@@ -212,8 +214,9 @@ public class Parser {
         // validity
         @SuppressWarnings("unchecked")
         List<ZSelectItem> selectList = q.getSelect();
-        String aggField = null;
-        String aggFun = null;
+        // 每个聚合的字段和函数，按在 SELECT 中出现的顺序
+        List<String> aggFields = new ArrayList<>();
+        List<String> aggFuns = new ArrayList<>();
 
         for (int i = 0; i < selectList.size(); i++) {
             ZSelectItem si = selectList.get(i);
@@ -223,13 +226,11 @@ public class Parser {
                         "Expressions in SELECT list are not supported.");
             }
             if (si.getAggregate() != null) {
-                if (aggField != null) {
-                    throw new simpledb.ParsingException(
-                            "Aggregates over multiple fields not supported.");
-                }
-                aggField = ((ZConstant) ((ZExpression) si.getExpression())
+                String aggField = ((ZConstant) ((ZExpression) si.getExpression())
                         .getOperand(0)).getValue();
-                aggFun = si.getAggregate();
+                String aggFun = si.getAggregate();
+                aggFields.add(aggField);
+                aggFuns.add(aggFun);
                 System.out.println("Aggregate field is " + aggField
                         + ", agg fun is : " + aggFun);
                 lp.addProjectField(aggField, aggFun);
@@ -246,30 +247,27 @@ public class Parser {
             }
         }
 
-        if (groupByField != null && aggFun == null) {
+        if (groupByField != null && aggFuns.isEmpty()) {
             throw new simpledb.ParsingException("GROUP BY without aggregation.");
         }
 
-        if (aggFun != null) {
-            lp.addAggregate(aggFun, aggField, groupByField);
+        for (int i = 0; i < aggFuns.size(); i++) {
+            lp.addAggregate(aggFuns.get(i), aggFields.get(i), groupByField);
         }
         // sort the data
 
         if (q.getOrderBy() != null) {
             @SuppressWarnings("unchecked")
             List<ZOrderBy> obys = q.getOrderBy();
-            if (obys.size() > 1) {
-                throw new simpledb.ParsingException(
-                        "Multi-attribute ORDER BY is not supported.");
-            }
-            ZOrderBy oby = obys.get(0);
-            if (!(oby.getExpression() instanceof ZConstant)) {
-                throw new simpledb.ParsingException(
-                        "Complex ORDER BY's are not supported");
-            }
-            ZConstant f = (ZConstant) oby.getExpression();
+            for (ZOrderBy oby : obys) {
+                if (!(oby.getExpression() instanceof ZConstant)) {
+                    throw new simpledb.ParsingException(
+                            "Complex ORDER BY's are not supported");
+                }
+                ZConstant f = (ZConstant) oby.getExpression();
 
-            lp.addOrderBy(f.getValue(), oby.getAscOrder());
+                lp.addOrderBy(f.getValue(), oby.getAscOrder());
+            }
 
         }
         return lp;
@@ -281,9 +279,22 @@ public class Parser {
     public Query handleQueryStatement(ZQuery s, TransactionId tId)
             throws IOException,
             simpledb.ParsingException, Zql.ParseException {
+        return handleQueryStatement(s, tId, -1);
+    }
+
+    /**
+     * Plan and return a query, keeping only its first limit result tuples
+     * if limit is not negative.
+     */
+    public Query handleQueryStatement(ZQuery s, TransactionId tId, int limit)
+            throws IOException,
+            simpledb.ParsingException, Zql.ParseException {
         Query query = new Query(tId);
 
         LogicalPlan lp = parseQueryLogicalPlan(tId, s);
+        if (limit >= 0) {
+            lp.setLimit(limit);
+        }
         OpIterator physicalPlan = lp.physicalPlan(tId,
                 TableStats.getStatsMap(), explain);
         query.setPhysicalPlan(physicalPlan);
@@ -463,14 +474,110 @@ public class Parser {
         }
     }
 
+    // ZQL 不认识 LIMIT：紧挨在语句结尾的 ';' 之前的 "LIMIT n" 由这里先取出来
+    private static final Pattern LIMIT = Pattern.compile(
+            "\\blimit\\s+(\\d+)\\s*(;?)\\s*$", Pattern.CASE_INSENSITIVE);
+
+    /**
+     * @return the index of the first ';' of s that is not inside a quoted
+     * string, i.e. the end of the first statement, or -1 if there is none
+     */
+    static int statementEnd(String s) {
+        char quote = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                }
+            } else if (c == '\'' || c == '"') {
+                quote = c;
+            } else if (c == ';') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /** @return the first statement of s, up to and including its ';' */
+    static String firstStatement(String s) {
+        int end = statementEnd(s);
+        return end < 0 ? s : s.substring(0, end + 1);
+    }
+
+    // 从流中读出第一条语句，读到它结尾的 ';' 为止，后面的内容留在流中
+    private static String readStatement(InputStream is) throws IOException {
+        ByteArrayOutputStream text = new ByteArrayOutputStream();
+        byte quote = 0;
+        int b;
+        // 引号和 ';' 都是 ASCII，按字节判断对 UTF-8 也成立
+        while ((b = is.read()) >= 0) {
+            text.write(b);
+            if (quote != 0) {
+                if (b == quote) {
+                    quote = 0;
+                }
+            } else if (b == '\'' || b == '"') {
+                quote = (byte) b;
+            } else if (b == ';') {
+                break;
+            }
+        }
+        return new String(text.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    // 以 SELECT 开头的语句
+    private static final Pattern QUERY = Pattern.compile("^\\s*select\\b", Pattern.CASE_INSENSITIVE);
+
+    /**
+     * @return the n of a "LIMIT n" right before the ';' that ends the first
+     * statement in s, or -1 if there is none
+     * @throws simpledb.ParsingException if that statement is not a SELECT
+     * but ends with a LIMIT
+     */
+    static int parseLimit(String s) throws simpledb.ParsingException {
+        String statement = firstStatement(s);
+        Matcher m = LIMIT.matcher(statement);
+        if (!m.find()) {
+            return -1;
+        }
+        // INSERT 和 DELETE 不能忽略 LIMIT 执行
+        if (!QUERY.matcher(statement).find()) {
+            throw new simpledb.ParsingException("LIMIT is only supported on SELECT");
+        }
+        try {
+            return Integer.parseInt(m.group(1));
+        } catch (NumberFormatException e) {
+            throw new simpledb.ParsingException("LIMIT " + m.group(1) + " is too large");
+        }
+    }
+
+    /**
+     * @return the first statement of s without the "LIMIT n" found by
+     * {@link #parseLimit}; a statement other than a SELECT is left as it is
+     */
+    static String stripLimit(String s) {
+        String statement = firstStatement(s);
+        Matcher m = LIMIT.matcher(statement);
+        if (!m.find() || !QUERY.matcher(statement).find()) {
+            return statement;
+        }
+        return statement.substring(0, m.start()) + m.group(2);
+    }
+
     public LogicalPlan generateLogicalPlan(TransactionId tid, String s)
             throws simpledb.ParsingException, IOException {
-        ByteArrayInputStream bis = new ByteArrayInputStream(s.getBytes());
+        int limit = parseLimit(s);
+        ByteArrayInputStream bis = new ByteArrayInputStream(stripLimit(s).getBytes());
         ZqlParser p = new ZqlParser(bis);
         try {
             ZStatement stmt = p.readStatement();
             if (stmt instanceof ZQuery) {
-                return parseQueryLogicalPlan(tid, (ZQuery) stmt);
+                LogicalPlan lp = parseQueryLogicalPlan(tid, (ZQuery) stmt);
+                if (limit >= 0) {
+                    lp.setLimit(limit);
+                }
+                return lp;
             }
         } catch (Zql.ParseException e) {
             throw new simpledb.ParsingException(
@@ -495,7 +602,10 @@ public class Parser {
 
     public void processNextStatement(InputStream is) {
         try {
-            ZqlParser p = new ZqlParser(is);
+            String statement = readStatement(is);
+            int limit = parseLimit(statement);
+            ZqlParser p = new ZqlParser(new ByteArrayInputStream(
+                    stripLimit(statement).getBytes(StandardCharsets.UTF_8)));
             ZStatement s = p.readStatement();
 
             Query query = null;
@@ -517,7 +627,7 @@ public class Parser {
                                 curtrans.getId());
                     else if (s instanceof ZQuery)
                         query = handleQueryStatement((ZQuery) s,
-                                curtrans.getId());
+                                curtrans.getId(), limit);
                     else {
                         System.out
                                 .println("Can't parse "
@@ -567,7 +677,7 @@ public class Parser {
     // Basic SQL completions
     public static final String[] SQL_COMMANDS = { "select", "from", "where",
             "group by", "max(", "min(", "avg(", "count", "rollback", "commit",
-            "insert", "delete", "values", "into" };
+            "insert", "delete", "values", "into", "order by", "limit" };
 
     public static void main(String[] argv) throws IOException {
 
@@ -3,6 +3,7 @@ package simpledb.execution;
 import simpledb.common.DbException;
 import simpledb.common.Type;
 import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
 import simpledb.storage.TupleDesc;
 import simpledb.transaction.TransactionAbortedException;
 
@@ -12,9 +13,12 @@ import java.util.NoSuchElementException;
 
 
 /**
- * The Aggregation operator that computes an aggregate (e.g., sum, avg, max,
- * min). Note that we only support aggregates over a single column, grouped by a
- * single column.
+ * The Aggregation operator that computes aggregates (e.g., sum, avg, max,
+ * min) grouped by a single column.  Any number of aggregates over any
+ * columns are computed in one pass over the child.
+ * <p>
+ * The groups are kept by a {@link HashAggregator}, which spills the tuples
+ * of new groups to disk once it holds the memory budget of groups.
  */
 public class Aggregate extends Operator {
 
@@ -22,19 +26,21 @@ public class Aggregate extends Operator {
 
     // 需要聚合的 tuples
     private OpIterator child;
-    // 聚合字段
-    private final int afield;
+    // 每个聚合的字段
+    private final int[] afields;
     // 分组字段
     private final int gfield;
-    // 运算符
-    private Aggregator.Op aop;
+    // 每个聚合的运算符
+    private final Aggregator.Op[] aops;
 
     // 进行聚合操作的类
-    private Aggregator aggregator;
+    private HashAggregator aggregator;
     // 聚合结果的迭代器
     private OpIterator opIterator;
     // 聚合结果的属性行
     private TupleDesc tupleDesc;
+    // 内存中最多保存的分组数
+    private int memoryBudget = HashAggregator.MAX_GROUPS;
 
 
     /**
@@ -52,37 +58,52 @@ public class Aggregate extends Operator {
      */
     public Aggregate(OpIterator child, int afield, int gfield, Aggregator.Op aop) {
         // some code goes here
+        this(child, new int[]{afield}, gfield, new Aggregator.Op[]{aop});
+    }
+
+    /**
+     * Constructor for several aggregates over the same groups.
+     *
+     * @param child   The OpIterator that is feeding us tuples.
+     * @param afields The column of each aggregate.
+     * @param gfield  The column over which we are grouping the result, or -1
+     *                if there is no grouping
+     * @param aops    The aggregation operator of each aggregate
+     */
+    public Aggregate(OpIterator child, int[] afields, int gfield, Aggregator.Op[] aops) {
+        if (afields.length == 0 || afields.length != aops.length) {
+            throw new IllegalArgumentException("need one operator per aggregate field");
+        }
         this.child = child;
-        this.afield = afield;
+        this.afields = afields.clone();
         this.gfield = gfield;
-        this.aop = aop;
-        // 判断是否分组
-        Type gfieldtype = gfield == -1 ? null : child.getTupleDesc().getFieldType(gfield);
-
-        // 创建聚合器
-        if (child.getTupleDesc().getFieldType(afield) == Type.STRING_TYPE) {
-            this.aggregator = new StringAggregator(gfield, gfieldtype, afield, aop);
-        } else {
-            this.aggregator = new IntegerAggregator(gfield, gfieldtype, afield, aop);
-        }
+        this.aops = aops.clone();
+        // 创建聚合器，同时检查运算符和字段类型
+        this.aggregator = newAggregator();
+        this.tupleDesc = buildTupleDesc();
+    }
 
-        // 组建 TupleDesc
+    // 组建 TupleDesc：分组字段，然后每个聚合一列（SUM_COUNT 多一列计数）
+    private TupleDesc buildTupleDesc() {
+        TupleDesc childTd = this.child.getTupleDesc();
         List<Type> typeList = new ArrayList<>();
         List<String> nameList = new ArrayList<>();
 
-        if (gfieldtype != null) {
-            typeList.add(gfieldtype);
-            nameList.add(child.getTupleDesc().getFieldName(gfield));
+        if (this.gfield != Aggregator.NO_GROUPING) {
+            typeList.add(childTd.getFieldType(this.gfield));
+            nameList.add(childTd.getFieldName(this.gfield));
         }
 
-        typeList.add(child.getTupleDesc().getFieldType(afield));
-        nameList.add(child.getTupleDesc().getFieldName(afield));
-
-        if (aop.equals(Aggregator.Op.SUM_COUNT)) {
+        for (int i = 0; i < this.afields.length; i++) {
+            // 所有聚合的结果都是 int
             typeList.add(Type.INT_TYPE);
-            nameList.add("COUNT");
+            nameList.add(childTd.getFieldName(this.afields[i]));
+            if (this.aops[i].equals(Aggregator.Op.SUM_COUNT)) {
+                typeList.add(Type.INT_TYPE);
+                nameList.add("COUNT");
+            }
         }
-        this.tupleDesc = new TupleDesc(typeList.toArray(new Type[typeList.size()]), nameList.toArray(new String[nameList.size()]));
+        return new TupleDesc(typeList.toArray(new Type[typeList.size()]), nameList.toArray(new String[nameList.size()]));
     }
 
     /**
@@ -102,8 +123,15 @@ public class Aggregate extends Operator {
      */
     public String groupFieldName() {
         // some code goes here
+        if (this.gfield == Aggregator.NO_GROUPING) {
+            return null;
+        }
+        return this.tupleDesc.getFieldName(0);
+    }
 
-        return this.child.getTupleDesc().getFieldName(this.gfield);
+    /** @return the number of aggregates computed */
+    public int numAggregates() {
+        return this.afields.length;
     }
 
     /**
@@ -111,7 +139,14 @@ public class Aggregate extends Operator {
      */
     public int aggregateField() {
         // some code goes here
-        return this.afield;
+        return this.afields[0];
+    }
+
+    /**
+     * @return the field of the i-th aggregate
+     */
+    public int aggregateField(int i) {
+        return this.afields[i];
     }
 
     /**
@@ -120,10 +155,19 @@ public class Aggregate extends Operator {
      */
     public String aggregateFieldName() {
         // some code goes here
-        if (this.gfield == -1) {
-            return this.tupleDesc.getFieldName(0);
+        return aggregateFieldName(0);
+    }
+
+    /**
+     * @return the name of the column of the i-th aggregate in the
+     * <b>OUTPUT</b> tuples
+     */
+    public String aggregateFieldName(int i) {
+        int column = this.gfield == Aggregator.NO_GROUPING ? 0 : 1;
+        for (int k = 0; k < i; k++) {
+            column += this.aops[k].equals(Aggregator.Op.SUM_COUNT) ? 2 : 1;
         }
-        return this.tupleDesc.getFieldName(1);
+        return this.tupleDesc.getFieldName(column);
     }
 
     /**
@@ -131,7 +175,48 @@ public class Aggregate extends Operator {
      */
     public Aggregator.Op aggregateOp() {
         // some code goes here
-        return this.aop;
+        return this.aops[0];
+    }
+
+    /**
+     * @return the operator of the i-th aggregate
+     */
+    public Aggregator.Op aggregateOp(int i) {
+        return this.aops[i];
+    }
+
+    /**
+     * Set the number of groups held in memory before the aggregate spills
+     * to disk.  Takes effect at the next open().
+     */
+    public void setMemoryBudget(int groups) {
+        this.memoryBudget = groups;
+        this.aggregator.setMemoryBudget(groups);
+    }
+
+    /** @return the number of groups held in memory before spilling */
+    public int getMemoryBudget() {
+        return this.memoryBudget;
+    }
+
+    /**
+     * @return a new, empty HashAggregator for the fields and operators of
+     * this Aggregate over the tuples of the child
+     */
+    protected HashAggregator newAggregator() {
+        return new HashAggregator(this.child.getTupleDesc(), this.gfield, this.afields, this.aops);
+    }
+
+    /**
+     * Open the child and merge every tuple of it into aggregator.
+     * Subclasses may read the input differently, e.g. with several threads.
+     */
+    protected void aggregate(HashAggregator aggregator) throws DbException, TransactionAbortedException {
+        this.child.open();
+        TupleBatch batch;
+        while ((batch = this.child.nextBatch()) != null) {
+            aggregator.mergeBatchIntoGroup(batch);
+        }
     }
 
     public static String nameOfAggregatorOp(Aggregator.Op aop) {
@@ -142,11 +227,9 @@ public class Aggregate extends Operator {
     public void open() throws NoSuchElementException, DbException,
             TransactionAbortedException {
         // some code goes here
-        // 聚合所有的tuple
-        this.child.open();
-        while (this.child.hasNext()) {
-            this.aggregator.mergeTupleIntoGroup(this.child.next());
-        }
+        // 按批聚合所有的tuple
+        this.aggregator.close();
+        aggregate(this.aggregator);
         // 获取聚合后的迭代器
         this.opIterator = this.aggregator.iterator();
         // 查询
@@ -157,10 +240,10 @@ public class Aggregate extends Operator {
 
     /**
      * Returns the next tuple. If there is a group by field, then the first
-     * field is the field by which we are grouping, and the second field is the
-     * result of computing the aggregate. If there is no group by field, then
-     * the result tuple should contain one field representing the result of the
-     * aggregate. Should return null if there are no more tuples.
+     * field is the field by which we are grouping, and the following fields
+     * are the results of the aggregates in the order given. If there is no
+     * group by field, then the result tuple contains only the aggregates.
+     * Should return null if there are no more tuples.
      */
     @Override
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
@@ -174,15 +257,15 @@ public class Aggregate extends Operator {
     @Override
     public void rewind() throws DbException, TransactionAbortedException {
         // some code goes here
-        this.child.rewind();
+        // 聚合结果已经在聚合器中，不用重新读取子节点
         this.opIterator.rewind();
     }
 
     /**
      * Returns the TupleDesc of this Aggregate. If there is no group by field,
      * this will have one field - the aggregate column. If there is a group by
-     * field, the first field will be the group by field, and the second will be
-     * the aggregate value column.
+     * field, the first field will be the group by field, and the others will be
+     * the aggregate value columns.
      * <p>
      * The name of an aggregate column should be informative. For example:
      * "aggName(aop) (child_td.getFieldName(afield))" where aop and afield are
@@ -200,7 +283,11 @@ public class Aggregate extends Operator {
         // some code goes here
         super.close();
         this.child.close();
-        this.opIterator.close();
+        if (this.opIterator != null) {
+            this.opIterator.close();
+            this.opIterator = null;
+        }
+        this.aggregator.close();
     }
 
     @Override
@@ -213,27 +300,8 @@ public class Aggregate extends Operator {
     public void setChildren(OpIterator[] children) {
         // some code goes here
         this.child = children[0];
-        Type gfieldtype = this.child.getTupleDesc().getFieldType(this.gfield);
-
-        // 组建 TupleDesc
-        List<Type> typeList = new ArrayList<>();
-        List<String> nameList = new ArrayList<>();
-
-        // 加入分组后的字段
-        if (gfieldtype != null) {
-            typeList.add(gfieldtype);
-            nameList.add(this.child.getTupleDesc().getFieldName(this.gfield));
-        }
-
-        // 加入聚合字段
-        typeList.add(this.child.getTupleDesc().getFieldType(this.afield));
-        nameList.add(this.child.getTupleDesc().getFieldName(this.afield));
-
-        if (this.aop.equals(Aggregator.Op.SUM_COUNT)) {
-            typeList.add(Type.INT_TYPE);
-            nameList.add("COUNT");
-        }
-
-        this.tupleDesc = new TupleDesc(typeList.toArray(new Type[typeList.size()]), nameList.toArray(new String[nameList.size()]));
+        this.aggregator = newAggregator();
+        this.aggregator.setMemoryBudget(this.memoryBudget);
+        this.tupleDesc = buildTupleDesc();
     }
 }
@@ -0,0 +1,57 @@
+package simpledb.execution;
+
+import simpledb.storage.TupleBatch;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Broadcast is the {@link Exchange} that sends every tuple of its children
+ * to each of its outputs, e.g. to give the small input of a join to every
+ * worker that joins a part of the large one.  The outputs are created
+ * together by {@link #create}.
+ */
+public class Broadcast extends Exchange {
+
+    private static final long serialVersionUID = 1L;
+
+    private Broadcast(ExchangeProducers producers, int output) {
+        super(producers, output);
+    }
+
+    /**
+     * Create the outputs of a broadcast.
+     *
+     * @param children the plans whose tuples are sent, each run by one thread
+     * @param outputs  the number of outputs
+     * @return the outputs, each returning every tuple of the children
+     */
+    public static List<Broadcast> create(List<? extends OpIterator> children, int outputs) {
+        if (outputs < 1) {
+            throw new IllegalArgumentException("a broadcast needs at least one output");
+        }
+        ExchangeProducers producers = new ExchangeProducers(checkChildren(children), outputs, Broadcast::route);
+        List<Broadcast> result = new ArrayList<>();
+        for (int i = 0; i < outputs; i++) {
+            result.add(new Broadcast(producers, i));
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    // 每个仍在读的输出各得到一份拷贝
+    private static boolean route(TupleBatch batch, ExchangeQueue[] queues) throws InterruptedException {
+        boolean live = false;
+        for (ExchangeQueue q : queues) {
+            if (!q.isCancelled() && q.put(batch.copy())) {
+                live = true;
+            }
+        }
+        return live;
+    }
+
+    @Override
+    public String getName() {
+        return "broadcast " + (getOutput() + 1) + "/" + numOutputs();
+    }
+}
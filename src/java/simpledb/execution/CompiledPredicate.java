@@ -0,0 +1,230 @@
+package simpledb.execution;
+
+import simpledb.common.Type;
+import simpledb.storage.Field;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
+import simpledb.storage.TupleDesc;
+
+import java.util.List;
+
+/**
+ * CompiledPredicate is a conjunction of {@link Predicate}s compiled once,
+ * when an operator opens, instead of being interpreted for every tuple.
+ * A comparison against an integer constant becomes a test of whether the
+ * int value of the field lies in a range, or outside it for NOT_EQUALS, so
+ * evaluating it neither switches on the operator nor boxes values, and a
+ * batch is filtered by one loop over the int column of the field.
+ * <p>
+ * All integer tests are instances of the same lambda, so the call that
+ * evaluates the predicates of a conjunction one after another sees few
+ * different classes.  A single predicate is called directly.
+ * <p>
+ * Predicates over other types fall back to {@link Field#compare}.
+ */
+public final class CompiledPredicate {
+
+    /** Tests a single tuple. */
+    @FunctionalInterface
+    public interface TupleTest {
+        boolean test(Tuple t);
+    }
+
+    /** Tests a pair of tuples, as a join does. */
+    @FunctionalInterface
+    public interface JoinTest {
+        boolean test(Tuple t1, Tuple t2);
+    }
+
+    // 缩小批的选择向量
+    @FunctionalInterface
+    private interface BatchTest {
+        void filter(TupleBatch batch);
+    }
+
+    private final TupleTest tupleTest;
+    private final BatchTest[] batchTests;
+
+    private CompiledPredicate(TupleTest tupleTest, BatchTest[] batchTests) {
+        this.tupleTest = tupleTest;
+        this.batchTests = batchTests;
+    }
+
+    /**
+     * Compile the conjunction of the given predicates.
+     *
+     * @param predicates the predicates that must all be true; must not be
+     *                   empty
+     */
+    public static CompiledPredicate compile(List<Predicate> predicates) {
+        if (predicates.isEmpty()) {
+            throw new IllegalArgumentException("no predicates to compile");
+        }
+        TupleTest[] tupleTests = new TupleTest[predicates.size()];
+        BatchTest[] batchTests = new BatchTest[predicates.size()];
+        for (int i = 0; i < predicates.size(); i++) {
+            tupleTests[i] = compileTuple(predicates.get(i));
+            batchTests[i] = compileBatch(predicates.get(i));
+        }
+        TupleTest tupleTest = tupleTests.length == 1 ? tupleTests[0] : tup -> {
+            for (TupleTest t : tupleTests) {
+                if (!t.test(tup)) {
+                    return false;
+                }
+            }
+            return true;
+        };
+        return new CompiledPredicate(tupleTest, batchTests);
+    }
+
+    /**
+     * @return true if t satisfies every predicate
+     */
+    public boolean test(Tuple t) {
+        return this.tupleTest.test(t);
+    }
+
+    /**
+     * Keep only the rows of batch that satisfy every predicate in the
+     * batch's selection.  Each predicate only looks at the rows that passed
+     * the ones before it.
+     */
+    public void filter(TupleBatch batch) {
+        for (BatchTest b : this.batchTests) {
+            if (batch.numRows() == 0) {
+                return;
+            }
+            b.filter(batch);
+        }
+    }
+
+    // 整数比较化成区间 [lo, hi]：值落在区间内（negate 时落在区间外）为真
+    private static final class IntRange {
+        final int lo;
+        final int hi;
+        final boolean negate;
+
+        IntRange(int lo, int hi, boolean negate) {
+            this.lo = lo;
+            this.hi = hi;
+            this.negate = negate;
+        }
+    }
+
+    // 没有值能满足时（大于最大值或小于最小值）返回 null
+    private static IntRange intRange(Predicate.Op op, int v) {
+        switch (op) {
+            case EQUALS:
+            case LIKE:
+                return new IntRange(v, v, false);
+            case NOT_EQUALS:
+                return new IntRange(v, v, true);
+            case GREATER_THAN:
+                return v == Integer.MAX_VALUE ? null : new IntRange(v + 1, Integer.MAX_VALUE, false);
+            case GREATER_THAN_OR_EQ:
+                return new IntRange(v, Integer.MAX_VALUE, false);
+            case LESS_THAN:
+                return v == Integer.MIN_VALUE ? null : new IntRange(Integer.MIN_VALUE, v - 1, false);
+            case LESS_THAN_OR_EQ:
+                return new IntRange(Integer.MIN_VALUE, v, false);
+            default:
+                throw new IllegalStateException("unknown operator " + op);
+        }
+    }
+
+    private static TupleTest compileTuple(Predicate p) {
+        int f = p.getFieldNo();
+        Predicate.Op op = p.getOp();
+        Field operand = p.getOperand();
+        if (!(operand instanceof IntField)) {
+            return t -> t.getField(f).compare(op, operand);
+        }
+        IntRange r = intRange(op, ((IntField) operand).getValue());
+        if (r == null) {
+            return t -> false;
+        }
+        int lo = r.lo;
+        int hi = r.hi;
+        boolean negate = r.negate;
+        return t -> {
+            int x = ((IntField) t.getField(f)).getValue();
+            return (x >= lo && x <= hi) != negate;
+        };
+    }
+
+    private static BatchTest compileBatch(Predicate p) {
+        int f = p.getFieldNo();
+        Predicate.Op op = p.getOp();
+        Field operand = p.getOperand();
+        if (!(operand instanceof IntField)) {
+            return batch -> {
+                int n = batch.numRows();
+                int[] sel = batch.selectionVector();
+                int kept = 0;
+                for (int i = 0; i < n; i++) {
+                    int row = batch.row(i);
+                    if (batch.getField(f, row).compare(op, operand)) {
+                        sel[kept++] = row;
+                    }
+                }
+                batch.setSelection(kept);
+            };
+        }
+        IntRange r = intRange(op, ((IntField) operand).getValue());
+        if (r == null) {
+            return batch -> batch.setSelection(0);
+        }
+        return batch -> selectInts(batch, f, r.lo, r.hi, r.negate);
+    }
+
+    // 保留第 f 列的值落在 [lo, hi] 内（negate 时落在区间外）的行
+    private static void selectInts(TupleBatch batch, int f, int lo, int hi, boolean negate) {
+        int n = batch.numRows();
+        int[] col = batch.intColumn(f);
+        int[] sel = batch.selectionVector();
+        int kept = 0;
+        for (int i = 0; i < n; i++) {
+            int row = batch.row(i);
+            int x = col[row];
+            if ((x >= lo && x <= hi) != negate) {
+                sel[kept++] = row;
+            }
+        }
+        batch.setSelection(kept);
+    }
+
+    /**
+     * Compile a join predicate over tuples of the given schemas.  When both
+     * fields are integers the test compares their int values directly.
+     *
+     * @param p   the join predicate
+     * @param td1 the schema of the first (outer) tuples
+     * @param td2 the schema of the second (inner) tuples
+     */
+    public static JoinTest compileJoin(JoinPredicate p, TupleDesc td1, TupleDesc td2) {
+        int f1 = p.getField1();
+        int f2 = p.getField2();
+        Predicate.Op op = p.getOperator();
+        if (td1.getFieldType(f1) != Type.INT_TYPE || td2.getFieldType(f2) != Type.INT_TYPE) {
+            return (t1, t2) -> t1.getField(f1).compare(op, t2.getField(f2));
+        }
+        switch (op) {
+            case EQUALS:
+            case LIKE:
+                return (t1, t2) -> ((IntField) t1.getField(f1)).getValue() == ((IntField) t2.getField(f2)).getValue();
+            case NOT_EQUALS:
+                return (t1, t2) -> ((IntField) t1.getField(f1)).getValue() != ((IntField) t2.getField(f2)).getValue();
+            case GREATER_THAN:
+                return (t1, t2) -> ((IntField) t1.getField(f1)).getValue() > ((IntField) t2.getField(f2)).getValue();
+            case GREATER_THAN_OR_EQ:
+                return (t1, t2) -> ((IntField) t1.getField(f1)).getValue() >= ((IntField) t2.getField(f2)).getValue();
+            case LESS_THAN:
+                return (t1, t2) -> ((IntField) t1.getField(f1)).getValue() < ((IntField) t2.getField(f2)).getValue();
+            case LESS_THAN_OR_EQ:
+                return (t1, t2) -> ((IntField) t1.getField(f1)).getValue() <= ((IntField) t2.getField(f2)).getValue();
+            default:
+                throw new IllegalStateException("unknown operator " + op);
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.List;
+
+/**
+ * An Exchange moves tuples between threads, so that parts of a query plan
+ * run concurrently.  Its children are run by worker threads, one thread
+ * per child, and the batches they produce are passed through bounded
+ * queues to one or more outputs.  Each output is an Exchange operator that
+ * is read like any other operator by the thread of the plan above it.
+ * <ul>
+ * <li>{@link Gather} merges the tuples of all children into one output.</li>
+ * <li>{@link HashRepartition} sends each tuple to the output chosen by the
+ * hash of one of its fields.</li>
+ * <li>{@link Broadcast} sends every tuple to every output.</li>
+ * </ul>
+ * The workers start when the first output is opened.  A worker that fails,
+ * e.g. with a TransactionAbortedException, stops the others, and the
+ * exception is thrown to the readers of the outputs.  Closing every output
+ * stops the workers, including those of the exchanges further down the
+ * children; the outputs of one exchange are rewound together by closing
+ * and reopening all of them.  The tuples of an output come in no
+ * particular order.
+ */
+public abstract class Exchange extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final ExchangeProducers producers;
+    private final int output;
+    private final TupleDesc td;
+
+    private transient ExchangeQueue queue;
+    // 正在逐行返回的批次
+    private transient TupleBatch current;
+    private transient int pos;
+
+    /**
+     * @param producers the workers that feed this exchange
+     * @param output    the output of the exchange this operator reads
+     */
+    Exchange(ExchangeProducers producers, int output) {
+        this.producers = producers;
+        this.output = output;
+        this.td = producers.getChildren()[0].getTupleDesc();
+    }
+
+    // 所有子计划的输出必须是同一个模式
+    static OpIterator[] checkChildren(List<? extends OpIterator> children) {
+        if (children.isEmpty()) {
+            throw new IllegalArgumentException("an exchange needs at least one child");
+        }
+        OpIterator[] cs = children.toArray(new OpIterator[0]);
+        for (OpIterator c : cs) {
+            if (!c.getTupleDesc().equals(cs[0].getTupleDesc())) {
+                throw new IllegalArgumentException("the children of an exchange must have the same schema");
+            }
+        }
+        return cs;
+    }
+
+    /** @return a short description of this exchange for query plans */
+    public abstract String getName();
+
+    /** @return the output of the exchange this operator reads */
+    public int getOutput() {
+        return this.output;
+    }
+
+    /** @return the number of outputs of the exchange */
+    public int numOutputs() {
+        return this.producers.numOutputs();
+    }
+
+    // 停止这个交换的工作线程，不等它们结束
+    void cancel() {
+        this.producers.cancel();
+    }
+
+    @Override
+    public void open() throws DbException, TransactionAbortedException {
+        this.queue = this.producers.open(this.output);
+        this.current = null;
+        this.pos = 0;
+        super.open();
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        if (this.queue != null) {
+            this.queue = null;
+            this.producers.close(this.output);
+        }
+        this.current = null;
+    }
+
+    @Override
+    public void rewind() throws DbException, TransactionAbortedException {
+        close();
+        open();
+    }
+
+    @Override
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+        while (this.current == null || this.pos >= this.current.numRows()) {
+            this.current = this.queue.take();
+            this.pos = 0;
+            if (this.current == null) {
+                return null;
+            }
+        }
+        return this.current.getTuple(this.current.row(this.pos++));
+    }
+
+    @Override
+    protected TupleBatch fetchNextBatch() throws DbException, TransactionAbortedException {
+        // 逐行返回了一部分的批次只返回剩下的行
+        if (this.current != null && this.pos < this.current.numRows()) {
+            TupleBatch b = new TupleBatch(this.td);
+            while (this.pos < this.current.numRows()) {
+                b.addRow(this.current, this.current.row(this.pos++));
+            }
+            this.current = null;
+            return b;
+        }
+        this.current = null;
+        return this.queue.take();
+    }
+
+    @Override
+    public TupleDesc getTupleDesc() {
+        return this.td;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return this.producers.getChildren();
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.producers.setChildren(children);
+    }
+}
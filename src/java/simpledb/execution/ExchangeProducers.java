@@ -0,0 +1,191 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.TupleBatch;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * ExchangeProducers is the sending side of an exchange.  It runs each child
+ * plan on a thread of the {@link WorkerPool} and routes the batches the
+ * children produce to the {@link ExchangeQueue}s of the exchange's
+ * outputs.  Each output is read by one {@link Exchange} operator.
+ * <p>
+ * The producers start when the first output is opened and stop when every
+ * output has been closed, so a plan above the exchange rewinds it by
+ * closing and reopening all of its outputs.  An output that is closed
+ * early gets no more batches; the others are not affected.
+ */
+final class ExchangeProducers {
+
+    /** Sends a batch produced by a child to the output queues. */
+    interface Router {
+        /**
+         * @param batch  a non-empty batch, only valid during the call
+         * @param queues the queue of each output
+         * @return false if no output wants more batches
+         */
+        boolean route(TupleBatch batch, ExchangeQueue[] queues) throws InterruptedException;
+    }
+
+    // 每个输出队列为每个生产者留的批次数
+    private static final int BATCHES_PER_PRODUCER = 2;
+
+    private OpIterator[] children;
+    private final int outputs;
+    private final Router router;
+
+    // 当前一轮的队列和生产者线程，null 表示没有在运行
+    private volatile ExchangeQueue[] queues;
+    private List<Future<?>> running;
+    private boolean[] closed;           // 这一轮中已经关闭的输出
+    private volatile boolean cancelled; // 这一轮被上层取消
+    private int openOutputs = 0;
+    private int closedOutputs = 0;
+
+    /**
+     * @param children the plans that produce the tuples, each run by one thread
+     * @param outputs  the number of outputs
+     * @param router   sends each batch to the outputs
+     */
+    ExchangeProducers(OpIterator[] children, int outputs, Router router) {
+        this.children = children;
+        this.outputs = outputs;
+        this.router = router;
+    }
+
+    OpIterator[] getChildren() {
+        return this.children;
+    }
+
+    void setChildren(OpIterator[] children) {
+        this.children = children;
+    }
+
+    int numOutputs() {
+        return this.outputs;
+    }
+
+    /**
+     * Open an output, starting the producers if they are not running.
+     *
+     * @return the queue the output reads
+     */
+    synchronized ExchangeQueue open(int output) throws DbException {
+        if (this.queues != null && this.openOutputs == 0 && (this.closed[output] || this.cancelled)) {
+            // 上一轮被取消或这个输出已经读过：等上一轮的线程结束后重新开始
+            stop();
+        }
+        if (this.queues == null) {
+            start();
+        }
+        if (this.closed[output]) {
+            throw new DbException("output " + output + " of the exchange was closed while other outputs"
+                    + " are open; close all outputs before reopening them");
+        }
+        this.openOutputs++;
+        return this.queues[output];
+    }
+
+    /** Close an output; the producers stop once every output is closed. */
+    synchronized void close(int output) {
+        if (this.queues == null) {
+            return;
+        }
+        // 这个输出不再需要数据
+        this.queues[output].cancel();
+        this.closed[output] = true;
+        this.openOutputs--;
+        this.closedOutputs++;
+        if (this.openOutputs == 0 && this.closedOutputs >= this.outputs) {
+            stop();
+        }
+    }
+
+    /**
+     * Stop the producers without waiting for them, e.g. because the plan
+     * above is being closed.  Safe to call from any thread.
+     */
+    void cancel() {
+        this.cancelled = true;
+        ExchangeQueue[] qs = this.queues;
+        if (qs != null) {
+            for (ExchangeQueue q : qs) {
+                q.cancel();
+            }
+        }
+        cancelExchanges(this.children);
+    }
+
+    private void start() {
+        ExchangeQueue[] qs = new ExchangeQueue[this.outputs];
+        for (int i = 0; i < this.outputs; i++) {
+            qs[i] = new ExchangeQueue(BATCHES_PER_PRODUCER * this.children.length, this.children.length);
+        }
+        this.running = new ArrayList<>();
+        for (OpIterator child : this.children) {
+            this.running.add(WorkerPool.get().submit(() -> produce(child, qs)));
+        }
+        this.queues = qs;
+        this.closed = new boolean[this.outputs];
+        this.cancelled = false;
+        this.openOutputs = 0;
+        this.closedOutputs = 0;
+    }
+
+    // 停止这一轮的线程并等它们关闭各自的子计划
+    private void stop() {
+        cancel();
+        for (Future<?> f : this.running) {
+            try {
+                f.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException ignored) {
+                // produce 自己处理了异常
+            }
+        }
+        this.queues = null;
+        this.running = null;
+    }
+
+    // 生产者线程：把子计划的批次交给各个输出
+    private void produce(OpIterator child, ExchangeQueue[] qs) {
+        try {
+            child.open();
+            TupleBatch batch;
+            while ((batch = child.nextBatch()) != null) {
+                if (batch.numRows() > 0 && !this.router.route(batch, qs)) {
+                    break;
+                }
+            }
+            for (ExchangeQueue q : qs) {
+                q.done();
+            }
+        } catch (Throwable t) {
+            for (ExchangeQueue q : qs) {
+                q.fail(t);
+            }
+        } finally {
+            child.close();
+        }
+    }
+
+    /** Cancel the producers of every exchange in the given plans. */
+    static void cancelExchanges(OpIterator[] plans) {
+        if (plans == null) {
+            return;
+        }
+        for (OpIterator p : plans) {
+            if (p instanceof Exchange) {
+                ((Exchange) p).cancel();
+            } else if (p instanceof Operator) {
+                cancelExchanges(((Operator) p).getChildren());
+            }
+        }
+    }
+}
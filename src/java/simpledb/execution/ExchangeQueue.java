@@ -0,0 +1,136 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.storage.TupleBatch;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * ExchangeQueue passes batches of tuples from producer threads to one
+ * consumer.  The queue is bounded, so producers that get ahead of the
+ * consumer wait instead of buffering the whole input.
+ * <p>
+ * The queue ends when every producer has called {@link #done}.  A producer
+ * that fails calls {@link #fail}: the other producers are stopped and the
+ * consumer gets the exception from {@link #take} after the batches already
+ * queued are dropped.  The consumer stops the producers with
+ * {@link #cancel}, e.g. when it is closed early.
+ */
+final class ExchangeQueue {
+
+    // 队列结束的标记
+    private static final TupleBatch END = new TupleBatch(new TupleDesc(new Type[]{Type.INT_TYPE}), 1);
+    // 生产者等待空位时检查取消的间隔
+    private static final long POLL_MILLIS = 10;
+
+    private final BlockingQueue<TupleBatch> queue;
+    private final AtomicInteger producers;
+    private volatile boolean cancelled = false;
+    private volatile Throwable failure;
+    private boolean finished = false;
+
+    /**
+     * @param capacity  the number of batches the queue holds
+     * @param producers the number of producers that will call {@link #done}
+     */
+    ExchangeQueue(int capacity, int producers) {
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, capacity));
+        this.producers = new AtomicInteger(producers);
+        if (producers == 0) {
+            this.queue.add(END);
+        }
+    }
+
+    /** @return true if the consumer or a failed producer has stopped the exchange */
+    boolean isCancelled() {
+        return this.cancelled;
+    }
+
+    /**
+     * Add a batch, waiting while the queue is full.  The batch belongs to
+     * the consumer afterwards.
+     *
+     * @return false if the exchange was cancelled; the producer should stop
+     */
+    boolean put(TupleBatch batch) throws InterruptedException {
+        while (!this.cancelled) {
+            if (this.queue.offer(batch, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** A producer has added all its batches. */
+    void done() {
+        if (this.producers.decrementAndGet() == 0) {
+            try {
+                put(END);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /** A producer has failed; the consumer gets t instead of the rest of the batches. */
+    void fail(Throwable t) {
+        if (this.failure == null) {
+            this.failure = t;
+        }
+        this.cancelled = true;
+        // 丢掉已经排队的批次，给结束标记腾出位置
+        do {
+            this.queue.clear();
+        } while (!this.queue.offer(END));
+    }
+
+    /**
+     * @return the next batch, or null once every producer is done
+     * @throws TransactionAbortedException if a producer's transaction was aborted
+     * @throws DbException                 if a producer failed otherwise
+     */
+    TupleBatch take() throws DbException, TransactionAbortedException {
+        if (this.finished) {
+            return null;
+        }
+        TupleBatch batch;
+        try {
+            batch = this.queue.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DbException("interrupted while waiting for tuples");
+        }
+        if (batch != END) {
+            return batch;
+        }
+        this.finished = true;
+        Throwable t = this.failure;
+        if (t instanceof TransactionAbortedException) {
+            throw (TransactionAbortedException) t;
+        }
+        if (t instanceof DbException) {
+            throw (DbException) t;
+        }
+        if (t != null) {
+            throw new DbException("parallel worker failed: " + t);
+        }
+        return null;
+    }
+
+    /**
+     * Stop the producers and drop the queued batches.  A consumer waiting
+     * in {@link #take} sees the end of the queue.
+     */
+    void cancel() {
+        this.cancelled = true;
+        do {
+            this.queue.clear();
+        } while (!this.queue.offer(END));
+    }
+}
@@ -0,0 +1,248 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * ExternalSort sorts a stream of tuples that may not fit in memory.  Tuples
+ * are added with {@link #add}; whenever the memory budget is reached the
+ * buffered tuples are split into slices that are sorted and written to
+ * runs in {@link SpillFile}s by {@link #SORT_THREADS} threads in parallel.
+ * {@link #finish} merges the runs with a loser tree, at most
+ * {@link #MERGE_FANIN} at a time, and the tuples come back in order from
+ * {@link #next}.  If everything fit in the budget no file is written at
+ * all.  The sort is stable.
+ */
+class ExternalSort {
+
+    /** Number of threads that sort and write runs. */
+    static final int SORT_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors());
+    /** Most runs merged in one pass; more runs are merged in several passes. */
+    static final int MERGE_FANIN = 128;
+
+    private static final ExecutorService SORTERS = Executors.newFixedThreadPool(SORT_THREADS, r -> {
+        Thread t = new Thread(r, "simpledb-sort");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final TupleDesc td;
+    private final Comparator<Tuple> comparator;
+    private final int memoryBudget;
+
+    private final List<Tuple> buffer = new ArrayList<>();
+    private final List<SpillFile> runs = new ArrayList<>();
+
+    // finish 之后的输出：内存中的位置，或者各个 run 的归并
+    private int memoryPos = -1;
+    private LoserTree merge;
+
+    /**
+     * @param td           the schema of the sorted tuples
+     * @param comparator   the sort order
+     * @param memoryBudget the number of tuples held in memory at once
+     */
+    ExternalSort(TupleDesc td, Comparator<Tuple> comparator, int memoryBudget) {
+        this.td = td;
+        this.comparator = comparator;
+        this.memoryBudget = Math.max(1, memoryBudget);
+    }
+
+    /** @return the number of runs written to disk so far */
+    int numRuns() {
+        return this.runs.size();
+    }
+
+    void add(Tuple t) throws DbException {
+        this.buffer.add(t);
+        if (this.buffer.size() >= this.memoryBudget) {
+            spill();
+        }
+    }
+
+    // 把缓冲区切成几段，并行排序并各自写成一个 run
+    private void spill() throws DbException {
+        int slices = Math.min(SORT_THREADS, this.buffer.size());
+        int sliceSize = (this.buffer.size() + slices - 1) / slices;
+        List<Future<SpillFile>> written = new ArrayList<>();
+        for (int from = 0; from < this.buffer.size(); from += sliceSize) {
+            List<Tuple> slice = this.buffer.subList(from, Math.min(from + sliceSize, this.buffer.size()));
+            written.add(SORTERS.submit(() -> writeRun(slice)));
+        }
+        try {
+            // 按切分的顺序加入，相等的元组保持原来的先后
+            for (Future<SpillFile> f : written) {
+                this.runs.add(f.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DbException("interrupted while writing sorted runs");
+        } catch (ExecutionException e) {
+            throw new DbException("cannot write sorted run: " + e.getCause().getMessage());
+        }
+        this.buffer.clear();
+    }
+
+    private SpillFile writeRun(List<Tuple> slice) throws DbException {
+        slice.sort(this.comparator);
+        SpillFile run = new SpillFile(this.td);
+        for (Tuple t : slice) {
+            run.add(t);
+        }
+        run.flush();
+        return run;
+    }
+
+    /** Stop adding tuples and start returning them in order. */
+    void finish() throws DbException {
+        if (this.runs.isEmpty()) {
+            this.buffer.sort(this.comparator);
+            this.memoryPos = 0;
+            return;
+        }
+        if (!this.buffer.isEmpty()) {
+            spill();
+        }
+        // run 太多时先把相邻的 run 分组归并成较长的 run，保持 run 之间的先后
+        while (this.runs.size() > MERGE_FANIN) {
+            List<SpillFile> merged = new ArrayList<>();
+            for (int from = 0; from < this.runs.size(); from += MERGE_FANIN) {
+                List<SpillFile> group = this.runs.subList(from, Math.min(from + MERGE_FANIN, this.runs.size()));
+                merged.add(group.size() == 1 ? group.get(0) : mergeRuns(group));
+            }
+            this.runs.clear();
+            this.runs.addAll(merged);
+        }
+        this.merge = new LoserTree(this.runs);
+    }
+
+    private SpillFile mergeRuns(List<SpillFile> group) throws DbException {
+        LoserTree tree = new LoserTree(group);
+        SpillFile merged = new SpillFile(this.td);
+        Tuple t;
+        while ((t = tree.next()) != null) {
+            merged.add(t);
+        }
+        merged.flush();
+        for (SpillFile run : group) {
+            run.delete();
+        }
+        return merged;
+    }
+
+    /** @return the next tuple in order, or null when all have been returned */
+    Tuple next() throws DbException {
+        if (this.memoryPos >= 0) {
+            return this.memoryPos < this.buffer.size() ? this.buffer.get(this.memoryPos++) : null;
+        }
+        return this.merge.next();
+    }
+
+    /** Return the sorted tuples again from the first one. */
+    void rewind() throws DbException {
+        if (this.memoryPos >= 0) {
+            this.memoryPos = 0;
+        } else {
+            this.merge.close();
+            this.merge = new LoserTree(this.runs);
+        }
+    }
+
+    /** Remove the runs; this ExternalSort must not be used afterwards. */
+    void close() {
+        if (this.merge != null) {
+            this.merge.close();
+            this.merge = null;
+        }
+        for (SpillFile run : this.runs) {
+            run.delete();
+        }
+        this.runs.clear();
+        this.buffer.clear();
+        this.memoryPos = -1;
+    }
+
+    /**
+     * A tournament tree over the heads of k runs.  Each internal node keeps
+     * the run that lost the match there and tree[0] the overall winner, so
+     * replacing the winner replays only the matches on its path to the
+     * root: log2(k) comparisons per tuple.  Ties go to the lower run.
+     */
+    private class LoserTree {
+        private final int k;
+        private final int[] tree;
+        private final SpillFile.Reader[] readers;
+        private final Tuple[] heads;   // null 表示这个 run 已经读完
+
+        LoserTree(List<SpillFile> runs) throws DbException {
+            this.k = runs.size();
+            this.tree = new int[this.k];
+            this.readers = new SpillFile.Reader[this.k];
+            this.heads = new Tuple[this.k];
+            for (int i = 0; i < this.k; i++) {
+                this.readers[i] = runs.get(i).reader();
+                this.heads[i] = this.readers[i].next();
+            }
+            // k 是一个比所有 run 都小的虚拟叶子，先让它占据所有节点
+            Arrays.fill(this.tree, this.k);
+            for (int i = this.k - 1; i >= 0; i--) {
+                adjust(i);
+            }
+        }
+
+        // a 是否输给 b，即 a 应该排在 b 之后
+        private boolean loses(int a, int b) {
+            if (a == this.k) {
+                return false;
+            }
+            if (b == this.k) {
+                return true;
+            }
+            Tuple ta = this.heads[a], tb = this.heads[b];
+            if (ta == null || tb == null) {
+                return ta == null && (tb != null || a > b);
+            }
+            int c = ExternalSort.this.comparator.compare(ta, tb);
+            return c > 0 || (c == 0 && a > b);
+        }
+
+        // 叶子 s 的元组变了，沿着到根的路径重新比赛
+        private void adjust(int s) {
+            for (int t = (s + this.k) / 2; t > 0; t /= 2) {
+                if (loses(s, this.tree[t])) {
+                    int winner = this.tree[t];
+                    this.tree[t] = s;
+                    s = winner;
+                }
+            }
+            this.tree[0] = s;
+        }
+
+        Tuple next() throws DbException {
+            int w = this.tree[0];
+            Tuple t = this.heads[w];
+            if (t == null) {
+                return null;
+            }
+            this.heads[w] = this.readers[w].next();
+            adjust(w);
+            return t;
+        }
+
+        void close() {
+            for (SpillFile.Reader r : this.readers) {
+                r.close();
+            }
+        }
+    }
+}
@@ -2,20 +2,33 @@ package simpledb.execution;
 
 import simpledb.common.DbException;
 import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
 import simpledb.storage.TupleDesc;
 import simpledb.transaction.TransactionAbortedException;
 
+import java.util.Collections;
+import java.util.List;
 import java.util.NoSuchElementException;
 
 /**
- * Filter is an operator that implements a relational select.
+ * Filter is an operator that implements a relational select.  Over a
+ * {@link SeqScan} the predicates are handed to the scan when the filter is
+ * opened: the scan checks them on the bytes of its pages, or in its worker
+ * threads for a {@link ParallelSeqScan}, and the filter only passes on its
+ * tuples.  A hash join above the filter may also hand it a
+ * {@link JoinKeyFilter} that drops the tuples which cannot join.
  */
 public class Filter extends Operator {
 
     private static final long serialVersionUID = 1L;
 
-    private final Predicate predicate;
+    private final List<Predicate> predicates;
     private OpIterator child;
+    // 编译后的谓词合取
+    private transient CompiledPredicate compiled;
+    // 连接下推的键过滤，null 表示没有；可能由其他线程设置
+    private volatile JoinKeyFilter keyFilter;
+    private volatile int keyField;
 
     /**
      * Constructor accepts a predicate to apply and a child operator to read
@@ -26,13 +39,49 @@ public class Filter extends Operator {
      */
     public Filter(Predicate p, OpIterator child) {
         // some code goes here
-        this.predicate = p;
+        this(Collections.singletonList(p), child);
+    }
+
+    /**
+     * Constructor accepts a conjunction of predicates; a tuple passes the
+     * filter if it satisfies all of them.
+     *
+     * @param ps    The predicates to filter tuples with, at least one
+     * @param child The child operator
+     */
+    public Filter(List<Predicate> ps, OpIterator child) {
+        if (ps.isEmpty()) {
+            throw new IllegalArgumentException("Filter needs at least one predicate");
+        }
+        this.predicates = ps;
         this.child = child;
     }
 
+    /**
+     * @return the first predicate of this filter
+     */
     public Predicate getPredicate() {
         // some code goes here
-        return this.predicate;
+        return this.predicates.get(0);
+    }
+
+    /**
+     * @return all the predicates of this filter
+     */
+    public List<Predicate> getPredicates() {
+        return this.predicates;
+    }
+
+    /**
+     * Also drop the tuples whose field cannot match a key of the build side
+     * of a join; set by the join, see {@link JoinKeyFilter#push}.
+     *
+     * @param field  the join key
+     * @param filter the build keys, or null to keep every tuple
+     */
+    public void setKeyFilter(int field, JoinKeyFilter filter) {
+        this.keyField = field;
+        this.keyFilter = filter;
     }
 
     @Override
@@ -45,6 +94,13 @@ public class Filter extends Operator {
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         // some code goes here
+        if (this.child instanceof SeqScan) {
+            // 谓词交给扫描，这里只转发
+            ((SeqScan) this.child).setPredicates(this.predicates);
+            this.compiled = null;
+        } else {
+            this.compiled = CompiledPredicate.compile(this.predicates);
+        }
         this.child.open();
         super.open();
     }
@@ -69,21 +125,50 @@ public class Filter extends Operator {
      *
      * @return The next tuple that passes the filter, or null if there are no
      *         more tuples
-     * @see Predicate#filter
+     * @see CompiledPredicate#test
      */
     @Override
     protected Tuple fetchNext() throws NoSuchElementException,
             TransactionAbortedException, DbException {
         // some code goes here
+        JoinKeyFilter f = this.keyFilter;
+        int field = this.keyField;
         while (this.child.hasNext()) {
             Tuple tuple = this.child.next();
-            if (this.predicate.filter(tuple)) {
+            if ((this.compiled == null || this.compiled.test(tuple))
+                    && (f == null || f.mightMatch(tuple.getField(field)))) {
                 return tuple;
             }
         }
         return null;
     }
 
+    /**
+     * Batch version of fetchNext: narrows the selection of each batch of the
+     * child to the rows that pass the predicate, skipping batches in which
+     * no row does.
+     *
+     * @see CompiledPredicate#filter(TupleBatch)
+     */
+    @Override
+    protected TupleBatch fetchNextBatch() throws TransactionAbortedException, DbException {
+        TupleBatch batch;
+        JoinKeyFilter f = this.keyFilter;
+        int field = this.keyField;
+        while ((batch = this.child.nextBatch()) != null) {
+            if (this.compiled != null) {
+                this.compiled.filter(batch);
+            }
+            if (f != null) {
+                f.filter(batch, field);
+            }
+            if (batch.numRows() > 0) {
+                return batch;
+            }
+        }
+        return null;
+    }
+
     @Override
     public OpIterator[] getChildren() {
         // some code goes here
@@ -0,0 +1,34 @@
+package simpledb.execution;
+
+import simpledb.storage.TupleBatch;
+
+import java.util.List;
+
+/**
+ * Gather is the {@link Exchange} that runs each of its children on a worker
+ * thread and returns the tuples of all of them, in no particular order.
+ * The children usually read disjoint parts of the same input, e.g. the
+ * scans made by {@link ParallelSeqScan#partitionScans}.
+ */
+public class Gather extends Exchange {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Constructor.
+     *
+     * @param children the plans to run concurrently, with the same schema
+     */
+    public Gather(List<? extends OpIterator> children) {
+        super(new ExchangeProducers(checkChildren(children), 1, Gather::route), 0);
+    }
+
+    private static boolean route(TupleBatch batch, ExchangeQueue[] queues) throws InterruptedException {
+        return queues[0].put(batch.copy());
+    }
+
+    @Override
+    public String getName() {
+        return "gather(" + getChildren().length + ")";
+    }
+}
@@ -0,0 +1,519 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.storage.Field;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * HashAggregator computes any number of aggregates over the same input
+ * with one hash table of groups, and keeps that table under a memory
+ * budget.  Every group has a number; the aggregates keep their running
+ * values in long arrays indexed by it, and integer group-by values are
+ * numbered by an {@link IntHashTable}.
+ * <p>
+ * Once the table holds the budgeted number of groups, tuples of groups
+ * already in the table are still aggregated in memory, while tuples of new
+ * groups are written to {@link HashEquiJoin#FANOUT} spill files by the
+ * hash of their group.  The iterator returns the groups in memory first
+ * and then aggregates each spill file in turn, partitioning it again with
+ * a different hash if it still has too many groups, up to
+ * {@link HashEquiJoin#MAX_DEPTH} levels.
+ * <p>
+ * MIN, MAX, SUM, AVG and SUM_COUNT need an int field; COUNT accepts any.
+ */
+public class HashAggregator implements Aggregator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Default memory budget, in groups held in the hash table. */
+    public final static int MAX_GROUPS = 100000;
+
+    private final TupleDesc childTd;
+    private final int gbfield;
+    private final Type gbfieldtype;
+    private final int[] afields;
+    private final Op[] ops;
+    private final TupleDesc resultTd;
+    // 第几层分区，落盘分区的聚合器比产生它的深一层
+    private final int depth;
+    private int memoryBudget = MAX_GROUPS;
+
+    // 分组编号：int 分组字段用 IntHashTable，其他类型用 HashMap
+    private transient IntHashTable intGroups;
+    private transient Map<Field, Integer> fieldGroups;
+    private transient List<Field> groupFields;
+    private transient int numGroups;
+    // 每个聚合按分组编号存放的累加值，所有聚合共用每个分组的计数
+    private transient long[][] acc;
+    private transient long[] counts;
+    // 新分组的元组按分组哈希写入的落盘分区，没有落盘时为 null
+    private transient SpillFile[] spills;
+
+    /**
+     * Aggregate constructor
+     *
+     * @param td      the schema of the tuples to aggregate
+     * @param gbfield the 0-based index of the group-by field in the tuple,
+     *                or NO_GROUPING if there is no grouping
+     * @param afields the 0-based index of the aggregate field of each
+     *                aggregate
+     * @param ops     the aggregation operator of each aggregate
+     * @throws IllegalArgumentException if an operator is not supported on
+     *                                  the type of its field
+     */
+    public HashAggregator(TupleDesc td, int gbfield, int[] afields, Op[] ops) {
+        this(td, gbfield, afields, ops, 0);
+    }
+
+    private HashAggregator(TupleDesc td, int gbfield, int[] afields, Op[] ops, int depth) {
+        if (afields.length != ops.length) {
+            throw new IllegalArgumentException("need one operator per aggregate field");
+        }
+        for (int i = 0; i < ops.length; i++) {
+            if (ops[i] == Op.SC_AVG) {
+                throw new IllegalArgumentException("聚合器不支持当前运算符");
+            }
+            if (ops[i] != Op.COUNT && td.getFieldType(afields[i]) != Type.INT_TYPE) {
+                throw new IllegalArgumentException("String类型只支持计数");
+            }
+        }
+        this.childTd = td;
+        this.gbfield = gbfield;
+        this.gbfieldtype = gbfield == NO_GROUPING ? null : td.getFieldType(gbfield);
+        this.afields = afields.clone();
+        this.ops = ops.clone();
+        this.depth = depth;
+
+        List<Type> types = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        if (this.gbfieldtype != null) {
+            types.add(this.gbfieldtype);
+            names.add("groupVal");
+        }
+        for (Op op : this.ops) {
+            types.add(Type.INT_TYPE);
+            names.add("aggregateVal");
+            if (op == Op.SUM_COUNT) {
+                types.add(Type.INT_TYPE);
+                names.add("COUNT");
+            }
+        }
+        this.resultTd = new TupleDesc(types.toArray(new Type[0]), names.toArray(new String[0]));
+        reset();
+    }
+
+    /**
+     * Set the number of groups the hash table may hold before tuples of new
+     * groups are spilled to disk.  Takes effect for the groups added from
+     * now on.
+     */
+    public void setMemoryBudget(int groups) {
+        this.memoryBudget = Math.max(1, groups);
+    }
+
+    /** @return the schema of the result tuples */
+    public TupleDesc getResultTupleDesc() {
+        return this.resultTd;
+    }
+
+    /** @return true if tuples have been written to disk */
+    public boolean hasSpilled() {
+        return this.spills != null;
+    }
+
+    private void reset() {
+        this.intGroups = new IntHashTable();
+        this.fieldGroups = new HashMap<>();
+        this.groupFields = new ArrayList<>();
+        this.numGroups = 0;
+        this.acc = new long[this.ops.length][16];
+        this.counts = new long[16];
+        this.spills = null;
+    }
+
+    /**
+     * Remove the spill files and forget every group, so that the aggregator
+     * can be filled again.
+     */
+    public void close() {
+        if (this.spills != null) {
+            for (SpillFile f : this.spills) {
+                f.delete();
+            }
+        }
+        reset();
+    }
+
+    // 表满之后不再接受新分组；最后一层不再分区，忽略预算
+    private boolean full() {
+        return this.numGroups >= this.memoryBudget && this.depth < HashEquiJoin.MAX_DEPTH;
+    }
+
+    // 分配下一个分组编号并扩充累加数组
+    private int newGroup() {
+        int group = this.numGroups++;
+        if (group == this.counts.length) {
+            int capacity = group * 2;
+            this.counts = Arrays.copyOf(this.counts, capacity);
+            for (int i = 0; i < this.acc.length; i++) {
+                this.acc[i] = Arrays.copyOf(this.acc[i], capacity);
+            }
+        }
+        return group;
+    }
+
+    // int 分组值的编号，表满时新分组返回 -1
+    private int intGroupOf(int key) {
+        int group = this.intGroups.get(key);
+        if (group < 0 && !full()) {
+            this.intGroups.add(key);
+            group = newGroup();
+        }
+        return group;
+    }
+
+    // 分组值的编号，表满时新分组返回 -1
+    private int groupOf(Field gbField) {
+        if (this.gbfield == NO_GROUPING) {
+            return this.numGroups == 0 ? newGroup() : 0;
+        }
+        if (this.gbfieldtype == Type.INT_TYPE) {
+            return intGroupOf(((IntField) gbField).getValue());
+        }
+        Integer group = this.fieldGroups.get(gbField);
+        if (group == null) {
+            if (full()) {
+                return -1;
+            }
+            group = newGroup();
+            this.fieldGroups.put(gbField, group);
+            this.groupFields.add(gbField);
+        }
+        return group;
+    }
+
+    // 把第 i 个聚合的一个值（或部分聚合的累加值）合并到分组 group，first 表示是该分组的第一个值
+    private void accumulate(int i, int group, long value, boolean first) {
+        long[] a = this.acc[i];
+        switch (this.ops[i]) {
+            case MIN:
+                a[group] = first ? value : Math.min(a[group], value);
+                break;
+            case MAX:
+                a[group] = first ? value : Math.max(a[group], value);
+                break;
+            case SUM:
+            case AVG:
+            case SUM_COUNT:
+                a[group] += value;
+                break;
+            default:
+                // COUNT 只用计数
+                break;
+        }
+    }
+
+    private void spill(Tuple tup, int hash) {
+        if (this.spills == null) {
+            this.spills = new SpillFile[HashEquiJoin.FANOUT];
+            for (int p = 0; p < HashEquiJoin.FANOUT; p++) {
+                this.spills[p] = new SpillFile(this.childTd);
+            }
+        }
+        try {
+            this.spills[HashEquiJoin.partition(hash, this.depth)].add(tup);
+        } catch (DbException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Merge a new tuple into the aggregates of its group, or spill it if
+     * the group is new and the hash table is full.
+     *
+     * @param tup the Tuple containing the aggregate fields and a group-by
+     *            field
+     */
+    @Override
+    public void mergeTupleIntoGroup(Tuple tup) {
+        Field gbField = this.gbfield == NO_GROUPING ? null : tup.getField(this.gbfield);
+        int group = groupOf(gbField);
+        if (group < 0) {
+            spill(tup, gbField.hashCode());
+            return;
+        }
+        boolean first = this.counts[group]++ == 0;
+        for (int i = 0; i < this.ops.length; i++) {
+            if (this.ops[i] != Op.COUNT) {
+                accumulate(i, group, ((IntField) tup.getField(this.afields[i])).getValue(), first);
+            }
+        }
+    }
+
+    /**
+     * Merge a batch into the aggregates, reading the aggregate columns, and
+     * an int group-by column, as primitive ints.
+     *
+     * @param batch the rows to merge
+     */
+    @Override
+    public void mergeBatchIntoGroup(TupleBatch batch) {
+        if (this.gbfield != NO_GROUPING && this.gbfieldtype != Type.INT_TYPE) {
+            Aggregator.super.mergeBatchIntoGroup(batch);
+            return;
+        }
+        int[][] values = new int[this.ops.length][];
+        for (int i = 0; i < this.ops.length; i++) {
+            if (this.ops[i] != Op.COUNT) {
+                values[i] = batch.intColumn(this.afields[i]);
+            }
+        }
+        int[] keys = this.gbfield == NO_GROUPING ? null : batch.intColumn(this.gbfield);
+        int n = batch.numRows();
+        for (int r = 0; r < n; r++) {
+            int row = batch.row(r);
+            int group = keys == null ? groupOf(null) : intGroupOf(keys[row]);
+            if (group < 0) {
+                spill(batch.getTuple(row), keys[row]);
+                continue;
+            }
+            boolean first = this.counts[group]++ == 0;
+            for (int i = 0; i < this.ops.length; i++) {
+                if (values[i] != null) {
+                    accumulate(i, group, values[i][row], first);
+                }
+            }
+        }
+    }
+
+    // partial 的分组 pg 在本表中的编号，不在表中时不顾预算加入
+    private int addGroup(HashAggregator partial, int pg) {
+        if (this.gbfield == NO_GROUPING) {
+            return groupOf(null);
+        }
+        if (this.gbfieldtype == Type.INT_TYPE) {
+            int key = partial.intGroups.keyAt(pg);
+            int group = this.intGroups.get(key);
+            if (group < 0) {
+                this.intGroups.add(key);
+                group = newGroup();
+            }
+            return group;
+        }
+        Field gbField = partial.groupFields.get(pg);
+        Integer group = this.fieldGroups.get(gbField);
+        if (group == null) {
+            group = newGroup();
+            this.fieldGroups.put(gbField, group);
+            this.groupFields.add(gbField);
+        }
+        return group;
+    }
+
+    /**
+     * Add partial aggregates over other tuples of the same input, e.g.
+     * computed by other threads: first their groups are combined with the
+     * groups here, then the tuples they spilled are merged one by one.
+     * Groups new to this table are added even beyond the memory budget, so
+     * callers give each partial a share of the budget.  The partial
+     * aggregators are closed afterwards.
+     *
+     * @param partials aggregators with the same fields and operators
+     */
+    void merge(List<HashAggregator> partials) throws DbException {
+        // 先合并所有内存中的分组，之后落盘的元组才不会和表中的分组重复
+        for (HashAggregator partial : partials) {
+            for (int pg = 0; pg < partial.numGroups; pg++) {
+                if (partial.counts[pg] == 0) {
+                    continue;
+                }
+                int group = addGroup(partial, pg);
+                boolean first = this.counts[group] == 0;
+                for (int i = 0; i < this.ops.length; i++) {
+                    if (this.ops[i] != Op.COUNT) {
+                        accumulate(i, group, partial.acc[i][pg], first);
+                    }
+                }
+                this.counts[group] += partial.counts[pg];
+            }
+        }
+        for (HashAggregator partial : partials) {
+            if (partial.spills != null) {
+                for (SpillFile f : partial.spills) {
+                    SpillFile.Reader reader = f.reader();
+                    Tuple t;
+                    while ((t = reader.next()) != null) {
+                        mergeTupleIntoGroup(t);
+                    }
+                }
+            }
+            partial.close();
+        }
+    }
+
+    // 分组 group 的结果元组
+    private Tuple result(int group) {
+        Tuple t = new Tuple(this.resultTd);
+        int f = 0;
+        if (this.gbfieldtype == Type.INT_TYPE) {
+            t.setField(f++, new IntField(this.intGroups.keyAt(group)));
+        } else if (this.gbfieldtype != null) {
+            t.setField(f++, this.groupFields.get(group));
+        }
+        long count = this.counts[group];
+        for (int i = 0; i < this.ops.length; i++) {
+            long a = this.acc[i][group];
+            switch (this.ops[i]) {
+                case COUNT:
+                    t.setField(f++, new IntField((int) count));
+                    break;
+                case AVG:
+                    t.setField(f++, new IntField(count == 0 ? 0 : (int) (a / count)));
+                    break;
+                case SUM_COUNT:
+                    t.setField(f++, new IntField((int) a));
+                    t.setField(f++, new IntField((int) count));
+                    break;
+                default:
+                    t.setField(f++, new IntField((int) a));
+                    break;
+            }
+        }
+        return t;
+    }
+
+    /**
+     * Create a OpIterator over group aggregate results.  The groups in
+     * memory come first; each spill file is aggregated only when the
+     * iterator reaches it.
+     *
+     * @return a OpIterator whose tuples are the group-by value, if any,
+     * followed by the value of each aggregate; SUM_COUNT gives the sum and
+     * the count.  Without grouping there is exactly one tuple.
+     */
+    @Override
+    public OpIterator iterator() {
+        return new ResultIterator();
+    }
+
+    private class ResultIterator implements OpIterator {
+        private static final long serialVersionUID = 1L;
+
+        private boolean open = false;
+        private int pos;
+        // 正在输出的落盘分区和它的聚合器
+        private int partition;
+        private HashAggregator sub;
+        private OpIterator subResults;
+        private Tuple next;
+
+        @Override
+        public void open() {
+            if (HashAggregator.this.gbfield == NO_GROUPING) {
+                // 没有输入时也返回一行
+                groupOf(null);
+            }
+            this.open = true;
+            this.pos = 0;
+            this.partition = -1;
+            this.next = null;
+        }
+
+        // 换到下一个非空的落盘分区，没有时返回 false
+        private boolean nextPartition() throws DbException, TransactionAbortedException {
+            closeSub();
+            SpillFile[] spills = HashAggregator.this.spills;
+            while (spills != null && ++this.partition < spills.length) {
+                if (spills[this.partition].size() == 0) {
+                    continue;
+                }
+                this.sub = new HashAggregator(HashAggregator.this.childTd, HashAggregator.this.gbfield,
+                        HashAggregator.this.afields, HashAggregator.this.ops, HashAggregator.this.depth + 1);
+                this.sub.memoryBudget = HashAggregator.this.memoryBudget;
+                SpillFile.Reader reader = spills[this.partition].reader();
+                Tuple t;
+                while ((t = reader.next()) != null) {
+                    this.sub.mergeTupleIntoGroup(t);
+                }
+                this.subResults = this.sub.iterator();
+                this.subResults.open();
+                return true;
+            }
+            return false;
+        }
+
+        private void closeSub() {
+            if (this.sub != null) {
+                this.subResults.close();
+                this.sub.close();
+                this.sub = null;
+                this.subResults = null;
+            }
+        }
+
+        private Tuple fetchNext() throws DbException, TransactionAbortedException {
+            if (this.pos < HashAggregator.this.numGroups) {
+                return result(this.pos++);
+            }
+            do {
+                if (this.subResults != null && this.subResults.hasNext()) {
+                    return this.subResults.next();
+                }
+            } while (nextPartition());
+            return null;
+        }
+
+        @Override
+        public boolean hasNext() throws DbException, TransactionAbortedException {
+            if (!this.open) {
+                throw new IllegalStateException("Operator not yet open");
+            }
+            if (this.next == null) {
+                this.next = fetchNext();
+            }
+            return this.next != null;
+        }
+
+        @Override
+        public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Tuple t = this.next;
+            this.next = null;
+            return t;
+        }
+
+        @Override
+        public void rewind() {
+            closeSub();
+            this.pos = 0;
+            this.partition = -1;
+            this.next = null;
+        }
+
+        @Override
+        public TupleDesc getTupleDesc() {
+            return HashAggregator.this.resultTd;
+        }
+
+        @Override
+        public void close() {
+            closeSub();
+            this.open = false;
+            this.next = null;
+        }
+    }
+}
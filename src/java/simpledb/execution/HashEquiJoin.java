@@ -2,13 +2,31 @@ package simpledb.execution;
 
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.storage.Field;
+import simpledb.storage.IntField;
 import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
 import simpledb.storage.TupleDesc;
 
 import java.util.*;
 
 /**
  * The Join operator implements the relational join operation.
+ * <p>
+ * HashEquiJoin is a hybrid hash join.  It builds a hash table on child1
+ * and probes it with child2.  If child1 does not fit in the memory budget,
+ * both inputs are split into {@link #FANOUT} partitions by the hash of the
+ * join key: partition 0 stays in memory and is joined while child2 is read,
+ * the others are written to spill files and joined one pair at a time
+ * afterwards.  A partition that still does not fit is partitioned again
+ * with a different hash, up to {@link #MAX_DEPTH} levels; beyond that (a
+ * heavily skewed key) it is joined a memory-sized chunk at a time.
+ * <p>
+ * While child1 is read, the join collects its keys into a
+ * {@link JoinKeyFilter} and hands it to the scans and filters of child2
+ * before child2 is opened, so that probe tuples whose key has no match are
+ * dropped before they reach the join.
  */
 public class HashEquiJoin extends Operator {
 
@@ -19,10 +37,19 @@ public class HashEquiJoin extends Operator {
     transient private Tuple t1 = null;
     transient private Tuple t2 = null;
 
+    /** Default memory budget, in tuples of child1 held in the hash table. */
+    public final static int MAP_SIZE = 20000;
+    /** Number of partitions an input is split into when it is spilled. */
+    public final static int FANOUT = 16;
+    /** Levels of repartitioning before a partition is joined in chunks. */
+    public final static int MAX_DEPTH = 3;
+
+    private int memoryBudget = MAP_SIZE;
+
     /**
      * Constructor. Accepts to children to join and the predicate to join them
      * on
-     * 
+     *
      * @param p
      *            The predicate to use to join the children
      * @param child1
@@ -44,7 +71,7 @@ public class HashEquiJoin extends Operator {
     public TupleDesc getTupleDesc() {
         return comboTD;
     }
-    
+
     public String getJoinField1Name()
     {
 	return this.child1.getTupleDesc().getFieldName(this.pred.getField1());
@@ -54,29 +81,358 @@ public class HashEquiJoin extends Operator {
     {
 	return this.child2.getTupleDesc().getFieldName(this.pred.getField2());
     }
-    
-    final Map<Object, List<Tuple>> map = new HashMap<>();
-    public final static int MAP_SIZE = 20000;
 
-    private boolean loadMap() throws DbException, TransactionAbortedException {
-        int cnt = 0;
-        map.clear();
-        while (child1.hasNext()) {
-            t1 = child1.next();
-            List<Tuple> list = map.computeIfAbsent(t1.getField(pred.getField1()), k -> new ArrayList<>());
-            list.add(t1);
-            if (cnt++ == MAP_SIZE)
+    /**
+     * Set the number of child1 tuples the hash table may hold before the
+     * join spills to disk.  Takes effect at the next open() or rewind().
+     */
+    public void setMemoryBudget(int tuples) {
+        this.memoryBudget = tuples;
+    }
+
+    /**
+     * The hash table on child1: join key -> number -> chain of the tuples
+     * with that key.  Integer keys are numbered by an {@link IntHashTable},
+     * so building and probing on them neither boxes keys nor allocates
+     * per-key lists.
+     */
+    private static final class BuildTable {
+        private final boolean intKeys;
+        private final IntHashTable intIds = new IntHashTable();
+        private final Map<Field, Integer> fieldIds = new HashMap<>();
+        private int[] head = new int[16];       // 编号 -> 最后加入的行
+        private int numIds = 0;
+        private int[] next = new int[16];       // 行 -> 同一个键的上一行，-1 表示结束
+        private Tuple[] rows = new Tuple[16];
+        private int size = 0;
+
+        BuildTable(boolean intKeys) {
+            this.intKeys = intKeys;
+        }
+
+        int size() {
+            return size;
+        }
+
+        Tuple row(int r) {
+            return rows[r];
+        }
+
+        /** @return the next row with the same key as row r, or -1 */
+        int next(int r) {
+            return next[r];
+        }
+
+        void add(Field key, Tuple t) {
+            int id;
+            if (intKeys) {
+                id = intIds.add(((IntField) key).getValue());
+            } else {
+                id = fieldIds.computeIfAbsent(key, k -> fieldIds.size());
+            }
+            // 编号按加入顺序分配，等于 numIds 时是新键
+            if (id == numIds) {
+                if (id == head.length) {
+                    head = Arrays.copyOf(head, id * 2);
+                }
+                head[id] = -1;
+                numIds++;
+            }
+            if (size == rows.length) {
+                rows = Arrays.copyOf(rows, size * 2);
+                next = Arrays.copyOf(next, size * 2);
+            }
+            rows[size] = t;
+            next[size] = head[id];
+            head[id] = size;
+            size++;
+        }
+
+        /** @return the last row added with this key, or -1 */
+        int first(int key) {
+            int id = intIds.get(key);
+            return id < 0 ? -1 : head[id];
+        }
+
+        /** @return the last row added with this key, or -1 */
+        int first(Field key) {
+            if (intKeys) {
+                return first(((IntField) key).getValue());
+            }
+            Integer id = fieldIds.get(key);
+            return id == null ? -1 : head[id];
+        }
+
+        void clear() {
+            intIds.clear();
+            fieldIds.clear();
+            Arrays.fill(rows, 0, size, null);
+            size = 0;
+            numIds = 0;
+        }
+    }
+
+    transient private BuildTable table;
+
+    // 读取元组的来源：子节点或落盘文件
+    private interface TupleSource {
+        Tuple next() throws DbException, TransactionAbortedException;
+    }
+
+    // 一对落盘的分区，在 depth 层继续连接
+    private static class Task {
+        final SpillFile build, probe;
+        final int depth;
+
+        Task(SpillFile build, SpillFile probe, int depth) {
+            this.build = build;
+            this.probe = probe;
+            this.depth = depth;
+        }
+    }
+
+    // 当前连接的状态
+    transient private int depth;
+    transient private SpillFile[] buildSpills, probeSpills; // 未分区时为 null
+    transient private boolean residentSpilled;              // 分区 0 也已落盘
+    transient private boolean probeFromChild;               // 探测输入是 child2
+    transient private SpillFile.Reader probeReader;         // 否则是这个落盘文件
+    transient private Task current;                         // 正在连接的落盘分区
+    transient private TupleSource chunkSource;              // 倾斜分区剩余的建表输入
+    transient private Deque<Task> pending;
+
+    // 第 depth 层分区用的哈希，每层不同
+    static int partition(int hash, int depth) {
+        int h = hash + depth * 0x9E3779B9;
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return Math.floorMod(h, FANOUT);
+    }
+
+    /**
+     * Build the hash table from src, partitioning it if it exceeds the
+     * memory budget.  At MAX_DEPTH only the first chunk is loaded and the
+     * rest of src is left in chunkSource.
+     */
+    private void build(TupleSource src, int depth) throws DbException, TransactionAbortedException {
+        this.table.clear();
+        this.depth = depth;
+        this.buildSpills = null;
+        this.probeSpills = null;
+        this.residentSpilled = false;
+        this.chunkSource = null;
+
+        Tuple t;
+        while ((t = src.next()) != null) {
+            Field key = t.getField(pred.getField1());
+            if (buildSpills != null) {
+                int p = partition(key.hashCode(), depth);
+                if (p != 0 || residentSpilled) {
+                    buildSpills[p].add(t);
+                    continue;
+                }
+            }
+            table.add(key, t);
+            if (table.size() < memoryBudget) {
+                continue;
+            }
+            if (depth >= MAX_DEPTH) {
+                // 分区已无法缩小，按块连接
+                chunkSource = src;
+                return;
+            }
+            if (buildSpills == null) {
+                startPartitioning();
+            } else {
+                spillResident();
+            }
+        }
+    }
+
+    // 把哈希表中不属于分区 0 的元组写入落盘文件
+    private void startPartitioning() throws DbException {
+        buildSpills = new SpillFile[FANOUT];
+        probeSpills = new SpillFile[FANOUT];
+        for (int i = 0; i < FANOUT; i++) {
+            buildSpills[i] = new SpillFile(child1.getTupleDesc());
+            probeSpills[i] = new SpillFile(child2.getTupleDesc());
+        }
+        List<Tuple> resident = new ArrayList<>();
+        for (int r = 0; r < table.size(); r++) {
+            Tuple t = table.row(r);
+            int p = partition(t.getField(pred.getField1()).hashCode(), depth);
+            if (p == 0) {
+                resident.add(t);
+            } else {
+                buildSpills[p].add(t);
+            }
+        }
+        table.clear();
+        for (Tuple t : resident) {
+            table.add(t.getField(pred.getField1()), t);
+        }
+        if (table.size() >= memoryBudget) {
+            spillResident();
+        }
+    }
+
+    private void spillResident() throws DbException {
+        for (int r = 0; r < table.size(); r++) {
+            buildSpills[0].add(table.row(r));
+        }
+        table.clear();
+        residentSpilled = true;
+    }
+
+    /**
+     * Returns true if a probe tuple whose key has the given hash belongs to
+     * the partition in memory.  Otherwise the tuple is written to the probe
+     * file of its partition; t is the probe tuple, or null to take physical
+     * row row of batch.
+     */
+    private boolean route(int hash, Tuple t, TupleBatch batch, int row) throws DbException {
+        if (buildSpills != null) {
+            int p = partition(hash, depth);
+            if (p != 0 || residentSpilled) {
+                // 建表分区为空时探测元组不可能匹配
+                if (buildSpills[p].size() > 0) {
+                    probeSpills[p].add(t != null ? t : batch.getTuple(row));
+                }
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** @return the first row of the hash table matching t, or -1 */
+    private int probe(Tuple t) throws DbException {
+        Field key = t.getField(pred.getField2());
+        return route(key.hashCode(), t, null, 0) ? table.first(key) : -1;
+    }
+
+    /** @return the first row of the hash table matching physical row row of batch, or -1 */
+    private int probe(TupleBatch batch, int row) throws DbException {
+        int f = pred.getField2();
+        if (batch.isIntColumn(f)) {
+            int key = batch.getInt(f, row);
+            return route(key, null, batch, row) ? table.first(key) : -1;
+        }
+        Field key = batch.getField(f, row);
+        return route(key.hashCode(), null, batch, row) ? table.first(key) : -1;
+    }
+
+    private Tuple nextProbeTuple() throws DbException, TransactionAbortedException {
+        if (probeFromChild) {
+            return child2.hasNext() ? child2.next() : null;
+        }
+        return probeReader == null ? null : probeReader.next();
+    }
+
+    /**
+     * Called when the probe input of the current step is exhausted: moves
+     * to the next chunk of a skewed partition or to the next spilled pair
+     * of partitions.
+     *
+     * @return false if the join is finished
+     */
+    private boolean finishStep() throws DbException, TransactionAbortedException {
+        probeFromChild = false;
+        probeReader = null;
+
+        // 倾斜分区：装载下一块，重新扫描探测文件
+        if (chunkSource != null) {
+            build(chunkSource, depth);
+            if (table.size() > 0) {
+                probeReader = current.probe.reader();
                 return true;
+            }
+        }
+
+        if (buildSpills != null) {
+            for (int p = 0; p < FANOUT; p++) {
+                if ((p != 0 || residentSpilled) && buildSpills[p].size() > 0 && probeSpills[p].size() > 0) {
+                    pending.push(new Task(buildSpills[p], probeSpills[p], depth + 1));
+                } else {
+                    buildSpills[p].delete();
+                    probeSpills[p].delete();
+                }
+            }
+            buildSpills = null;
+            probeSpills = null;
+        }
+        if (current != null) {
+            current.build.delete();
+            current.probe.delete();
+            current = null;
         }
-        return cnt > 0;
 
+        table.clear();
+        current = pending.poll();
+        if (current == null) {
+            return false;
+        }
+        SpillFile.Reader r = current.build.reader();
+        build(r::next, current.depth);
+        probeReader = current.probe.reader();
+        return true;
+    }
+
+    // 从头开始连接：用 child1 建表，用 child2 探测
+    private void start() throws DbException, TransactionAbortedException {
+        pending = new ArrayDeque<>();
+        table = new BuildTable(child1.getTupleDesc().getFieldType(pred.getField1()) == Type.INT_TYPE
+                && child2.getTupleDesc().getFieldType(pred.getField2()) == Type.INT_TYPE);
+        // 第 0 层读完 child1 的所有元组，同时收集连接键
+        JoinKeyFilter.Builder keys = new JoinKeyFilter.Builder();
+        build(() -> {
+            if (!child1.hasNext()) {
+                return null;
+            }
+            Tuple t = child1.next();
+            keys.add(t.getField(pred.getField1()));
+            return t;
+        }, 0);
+        JoinKeyFilter.push(child2, pred.getField2(), keys.build());
+        probeFromChild = true;
+    }
+
+    // 删除所有落盘文件
+    private void cleanup() {
+        if (buildSpills != null) {
+            for (int p = 0; p < FANOUT; p++) {
+                buildSpills[p].delete();
+                probeSpills[p].delete();
+            }
+        }
+        if (current != null) {
+            current.build.delete();
+            current.probe.delete();
+        }
+        if (pending != null) {
+            for (Task task : pending) {
+                task.build.delete();
+                task.probe.delete();
+            }
+        }
+        buildSpills = null;
+        probeSpills = null;
+        current = null;
+        pending = null;
+        chunkSource = null;
+        probeReader = null;
+        probeFromChild = false;
+        table = null;
     }
 
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child1.open();
+        // 建表后再打开 child2，键过滤从第一个探测元组起生效
+        start();
         child2.open();
-        loadMap();
         super.open();
     }
 
@@ -84,18 +440,39 @@ public class HashEquiJoin extends Operator {
         super.close();
         child2.close();
         child1.close();
+        JoinKeyFilter.push(child2, pred.getField2(), null);
+        cleanup();
         this.t1=null;
         this.t2=null;
-        this.listIt=null;
-        this.map.clear();
+        this.match=-1;
+        this.probe=null;
+        this.out=null;
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
+        cleanup();
         child1.rewind();
+        this.match=-1;
+        this.probe=null;
+        start();
         child2.rewind();
     }
 
-    transient Iterator<Tuple> listIt = null;
+    // 哈希表中下一个匹配的行，-1 表示没有
+    transient private int match = -1;
+
+    private Tuple joined(Tuple left, Tuple right) {
+        int td1n = left.getTupleDesc().numFields();
+        int td2n = right.getTupleDesc().numFields();
+
+        // set fields in combined tuple
+        Tuple t = new Tuple(comboTD);
+        for (int i = 0; i < td1n; i++)
+            t.setField(i, left.getField(i));
+        for (int i = 0; i < td2n; i++)
+            t.setField(td1n + i, right.getField(i));
+        return t;
+    }
 
     /**
      * Returns the next tuple generated by the join, or null if there are no
@@ -111,53 +488,88 @@ public class HashEquiJoin extends Operator {
      * <p>
      * For example, if one tuple is {1,2,3} and the other tuple is {1,5,6},
      * joined on equality of the first column, then this returns {1,2,3,1,5,6}.
-     * 
+     *
      * @return The next matching tuple.
      * @see JoinPredicate#filter
      */
     private Tuple processList() {
-        t1 = listIt.next();
-
-        int td1n = t1.getTupleDesc().numFields();
-        int td2n = t2.getTupleDesc().numFields();
-
-        // set fields in combined tuple
-        Tuple t = new Tuple(comboTD);
-        for (int i = 0; i < td1n; i++)
-            t.setField(i, t1.getField(i));
-        for (int i = 0; i < td2n; i++)
-            t.setField(td1n + i, t2.getField(i));
-        return t;
-
+        t1 = table.row(match);
+        match = table.next(match);
+        return joined(t1, t2);
     }
 
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
-        if (listIt != null && listIt.hasNext()) {
-            return processList();
-        }
+        while (true) {
+            if (match >= 0) {
+                return processList();
+            }
 
-        // loop around child2
-        while (child2.hasNext()) {
-            t2 = child2.next();
+            t2 = nextProbeTuple();
+            if (t2 == null) {
+                if (!finishStep())
+                    return null;
+                continue;
+            }
 
             // if match, create a combined tuple and fill it with the values
             // from both tuples
-            List<Tuple> l = map.get(t2.getField(pred.getField2()));
-            if (l == null)
-                continue;
-            listIt = l.iterator();
+            match = probe(t2);
+        }
+    }
 
-            return processList();
+    // nextBatch 的状态：当前探测批、探测到的行和它在哈希表中的匹配
+    transient private TupleBatch probe = null;
+    transient private int probeIndex = 0;
+    transient private int probeRow = 0;
+    transient private TupleBatch out = null;
 
+    /**
+     * Batch version of fetchNext: probes the hash table with whole batches
+     * of child2 and fills an output batch with the joined rows.  Spilled
+     * partitions are probed a tuple at a time.
+     */
+    @Override
+    protected TupleBatch fetchNextBatch() throws TransactionAbortedException, DbException {
+        if (out == null) {
+            out = new TupleBatch(comboTD);
         }
+        out.clear();
+        while (true) {
+            // emit the remaining matches of the current probe row
+            while (match >= 0) {
+                if (out.isFull())
+                    return out;
+                Tuple left = table.row(match);
+                match = table.next(match);
+                if (probe != null)
+                    out.addJoined(left, probe, probeRow);
+                else
+                    out.addTuple(joined(left, t2));
+            }
 
-        // child2 is done: advance child1
-        child2.rewind();
-        if (loadMap()) {
-            return fetchNext();
-        }
+            if (probe != null && probeIndex < probe.numRows()) {
+                probeRow = probe.row(probeIndex++);
+                match = probe(probe, probeRow);
+                continue;
+            }
+            probe = null;
 
-        return null;
+            if (probeFromChild) {
+                probe = child2.nextBatch();
+                probeIndex = 0;
+                if (probe != null)
+                    continue;
+            } else if (probeReader != null) {
+                t2 = probeReader.next();
+                if (t2 != null) {
+                    match = probe(t2);
+                    continue;
+                }
+            }
+
+            if (!finishStep())
+                return out.numRows() > 0 ? out : null;
+        }
     }
 
     @Override
@@ -170,5 +582,5 @@ public class HashEquiJoin extends Operator {
         this.child1 = children[0];
         this.child2 = children[1];
     }
-    
+
 }
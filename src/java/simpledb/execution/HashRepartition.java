@@ -0,0 +1,105 @@
+package simpledb.execution;
+
+import simpledb.storage.Field;
+import simpledb.storage.IntField;
+import simpledb.storage.TupleBatch;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * HashRepartition is the {@link Exchange} that sends each tuple of its
+ * children to one of its outputs, chosen by the hash of one field.  Tuples
+ * with equal values of the field go to the same output, so the outputs can
+ * be joined or grouped on that field independently of each other.  The
+ * outputs are created together by {@link #create}.
+ */
+public class HashRepartition extends Exchange {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int field;
+
+    private HashRepartition(ExchangeProducers producers, int output, int field) {
+        super(producers, output);
+        this.field = field;
+    }
+
+    /**
+     * Create the outputs of a hash repartitioning.
+     *
+     * @param children the plans whose tuples are sent, each run by one thread
+     * @param field    the field whose hash chooses the output of a tuple
+     * @param outputs  the number of outputs
+     * @return the outputs; output i returns the tuples whose field is in
+     * partition {@link #partition}(value, outputs) == i
+     */
+    public static List<HashRepartition> create(List<? extends OpIterator> children, int field, int outputs) {
+        if (outputs < 1) {
+            throw new IllegalArgumentException("a repartitioning needs at least one output");
+        }
+        OpIterator[] cs = checkChildren(children);
+        if (field < 0 || field >= cs[0].getTupleDesc().numFields()) {
+            throw new IllegalArgumentException("no field " + field + " to repartition on");
+        }
+        ExchangeProducers producers = new ExchangeProducers(cs, outputs,
+                (batch, queues) -> route(batch, field, queues));
+        List<HashRepartition> result = new ArrayList<>();
+        for (int i = 0; i < outputs; i++) {
+            result.add(new HashRepartition(producers, i, field));
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    /** @return the field whose hash chooses the output */
+    public int getField() {
+        return this.field;
+    }
+
+    /**
+     * @return the partition, between 0 and partitions - 1, of the tuples
+     * whose repartitioning field has value f
+     */
+    public static int partition(Field f, int partitions) {
+        return partition(f instanceof IntField ? ((IntField) f).getValue() : f.hashCode(), partitions);
+    }
+
+    // 打散哈希值的低位，避免连续的整数都落在相邻的分区
+    private static int partition(int hash, int partitions) {
+        int h = hash * 0x9E3779B9;
+        return Math.floorMod(h ^ (h >>> 16), partitions);
+    }
+
+    private static boolean route(TupleBatch batch, int field, ExchangeQueue[] queues) throws InterruptedException {
+        TupleBatch[] parts = new TupleBatch[queues.length];
+        int[] ints = batch.isIntColumn(field) ? batch.intColumn(field) : null;
+        for (int i = 0; i < batch.numRows(); i++) {
+            int row = batch.row(i);
+            int p = ints != null ? partition(ints[row], queues.length)
+                    : partition(batch.getField(field, row), queues.length);
+            if (queues[p].isCancelled()) {
+                continue;
+            }
+            if (parts[p] == null) {
+                parts[p] = new TupleBatch(batch.getTupleDesc(), batch.numRows());
+            }
+            parts[p].addRow(batch, row);
+        }
+        boolean live = false;
+        for (int p = 0; p < queues.length; p++) {
+            if (queues[p].isCancelled()) {
+                continue;
+            }
+            if (parts[p] == null || queues[p].put(parts[p])) {
+                live = true;
+            }
+        }
+        return live;
+    }
+
+    @Override
+    public String getName() {
+        return "hash(" + getTupleDesc().getFieldName(this.field) + ") " + (getOutput() + 1) + "/" + numOutputs();
+    }
+}
@@ -0,0 +1,223 @@
+package simpledb.execution;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.index.BTreeFile;
+import simpledb.storage.DbFile;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * IndexNestedLoopJoin joins child1 with a table stored in a {@link BTreeFile}
+ * whose key is the join field of the inner side.  For every child1 tuple it
+ * searches the B+ tree for the matching inner tuples with
+ * {@link BTreeFile#indexIterator}, so the inner table is never scanned.
+ * <p>
+ * The inner side is given as the plan that would otherwise be joined: a
+ * SeqScan over the indexed table, possibly under a Filter whose predicates
+ * are then checked on the tuples found in the index.  That plan is kept as
+ * the second child for the optimizer and the plan printer but is never
+ * opened.
+ */
+public class IndexNestedLoopJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    // 双元组比较
+    private final JoinPredicate joinPredicate;
+    // 外层输入
+    private OpIterator child1;
+    // 内层计划：有索引的表上的 SeqScan，或者其上的 Filter
+    private OpIterator inner;
+    private final SeqScan scan;
+    private final List<Predicate> innerPredicates;
+    // 在索引上查找用的比较符，方向和连接条件相反
+    private final Predicate.Op indexOp;
+
+    private transient CompiledPredicate residual;
+    private transient DbFileIterator matches;
+    private transient Tuple t1;
+    private transient TupleDesc comboTD;
+
+    /**
+     * Constructor.
+     *
+     * @param p      The predicate to use to join the children
+     * @param child1 Iterator for the left(outer) relation to join
+     * @param inner  The plan of the right(inner) relation; it must be
+     *               accepted by {@link #canUseIndex}
+     */
+    public IndexNestedLoopJoin(JoinPredicate p, OpIterator child1, OpIterator inner) {
+        if (!canUseIndex(p, inner)) {
+            throw new IllegalArgumentException("no index on the inner join field");
+        }
+        this.joinPredicate = p;
+        this.child1 = child1;
+        this.inner = inner;
+        this.scan = innerScan(inner);
+        this.innerPredicates = inner instanceof Filter
+                ? ((Filter) inner).getPredicates() : new ArrayList<>();
+        this.indexOp = reverse(p.getOperator());
+    }
+
+    // inner 是 SeqScan 或 SeqScan 上的 Filter 时返回这个 SeqScan
+    private static SeqScan innerScan(OpIterator inner) {
+        if (inner instanceof Filter && ((Filter) inner).getChildren()[0] instanceof SeqScan) {
+            return (SeqScan) ((Filter) inner).getChildren()[0];
+        }
+        return inner instanceof SeqScan ? (SeqScan) inner : null;
+    }
+
+    // t1 op t2 等价于 t2 reverse(op) t1
+    private static Predicate.Op reverse(Predicate.Op op) {
+        switch (op) {
+            case LESS_THAN:
+                return Predicate.Op.GREATER_THAN;
+            case LESS_THAN_OR_EQ:
+                return Predicate.Op.GREATER_THAN_OR_EQ;
+            case GREATER_THAN:
+                return Predicate.Op.LESS_THAN;
+            case GREATER_THAN_OR_EQ:
+                return Predicate.Op.LESS_THAN_OR_EQ;
+            default:
+                return op;
+        }
+    }
+
+    /**
+     * @return true if inner is a scan (optionally filtered) of a BTreeFile
+     * keyed on the inner join field of p, and the operator of p can be
+     * answered by a search of that index
+     */
+    public static boolean canUseIndex(JoinPredicate p, OpIterator inner) {
+        SeqScan scan = innerScan(inner);
+        if (scan == null) {
+            return false;
+        }
+        if (p.getOperator() == Predicate.Op.NOT_EQUALS || p.getOperator() == Predicate.Op.LIKE) {
+            return false;
+        }
+        DbFile f = Database.getCatalog().getDatabaseFile(scan.getTableId());
+        return f instanceof BTreeFile && ((BTreeFile) f).keyField() == p.getField2();
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return this.joinPredicate;
+    }
+
+    /**
+     * @return the field name of join field1, quantified by alias or table
+     * name
+     */
+    public String getJoinField1Name() {
+        return this.child1.getTupleDesc().getFieldName(this.joinPredicate.getField1());
+    }
+
+    /**
+     * @return the field name of join field2, quantified by alias or table
+     * name
+     */
+    public String getJoinField2Name() {
+        return this.inner.getTupleDesc().getFieldName(this.joinPredicate.getField2());
+    }
+
+    @Override
+    public TupleDesc getTupleDesc() {
+        return TupleDesc.merge(this.child1.getTupleDesc(), this.inner.getTupleDesc());
+    }
+
+    @Override
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        this.child1.open();
+        // 直接交给内表扫描的谓词也要检查
+        List<Predicate> ps = new ArrayList<>(this.innerPredicates);
+        if (!(this.inner instanceof Filter) && this.scan.getPredicates() != null) {
+            ps.addAll(this.scan.getPredicates());
+        }
+        this.residual = ps.isEmpty() ? null : CompiledPredicate.compile(ps);
+        this.comboTD = getTupleDesc();
+        super.open();
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        this.child1.close();
+        closeMatches();
+        this.t1 = null;
+    }
+
+    @Override
+    public void rewind() throws DbException, TransactionAbortedException {
+        this.child1.rewind();
+        closeMatches();
+        this.t1 = null;
+    }
+
+    private void closeMatches() {
+        if (this.matches != null) {
+            this.matches.close();
+            this.matches = null;
+        }
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples: the concatenation of a child1 tuple and an inner tuple
+     * found for it in the index.
+     */
+    @Override
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (true) {
+            // 当前外层元组在索引中找到的内层元组
+            if (this.matches != null) {
+                while (this.matches.hasNext()) {
+                    Tuple t2 = this.matches.next();
+                    if (this.residual == null || this.residual.test(t2)) {
+                        return merge(this.t1, t2);
+                    }
+                }
+                closeMatches();
+            }
+            if (!this.child1.hasNext()) {
+                return null;
+            }
+            this.t1 = this.child1.next();
+            BTreeFile f = (BTreeFile) Database.getCatalog().getDatabaseFile(this.scan.getTableId());
+            this.matches = f.indexIterator(this.scan.getTransactionId(),
+                    new IndexPredicate(this.indexOp, this.t1.getField(this.joinPredicate.getField1())));
+            this.matches.open();
+        }
+    }
+
+    // 合并两个元组
+    private Tuple merge(Tuple t1, Tuple t2) {
+        int n1 = t1.getTupleDesc().numFields();
+        Tuple newTuple = new Tuple(this.comboTD);
+        newTuple.setRecordId(t1.getRecordId());
+        for (int i = 0; i < n1; i++) {
+            newTuple.setField(i, t1.getField(i));
+        }
+        for (int j = 0; j < t2.getTupleDesc().numFields(); j++) {
+            newTuple.setField(n1 + j, t2.getField(j));
+        }
+        return newTuple;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{this.child1, this.inner};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child1 = children[0];
+        this.inner = children[1];
+    }
+}
@@ -0,0 +1,119 @@
+package simpledb.execution;
+
+import java.util.Arrays;
+
+/**
+ * IntHashTable numbers distinct int keys 0, 1, 2, ... in the order they are
+ * first added.  Callers keep whatever they associate with a key in arrays
+ * indexed by that number, so neither the keys nor the values are boxed.
+ * <p>
+ * The table uses open addressing with linear probing over two flat
+ * arrays, and grows when it is half full.
+ */
+final class IntHashTable {
+
+    private static final int MIN_CAPACITY = 16;
+
+    private int[] slotKeys;
+    private int[] slotIds;   // 编号加 1，0 表示空槽
+    private int[] keys;      // 编号 -> key
+    private int size = 0;
+    private int mask;
+
+    IntHashTable() {
+        this(MIN_CAPACITY);
+    }
+
+    /**
+     * @param expected the number of keys expected, to size the table
+     */
+    IntHashTable(int expected) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < expected * 2) {
+            capacity <<= 1;
+        }
+        this.slotKeys = new int[capacity];
+        this.slotIds = new int[capacity];
+        this.keys = new int[Math.max(expected, MIN_CAPACITY)];
+        this.mask = capacity - 1;
+    }
+
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /** @return the number of distinct keys */
+    int size() {
+        return this.size;
+    }
+
+    /** @return the number of key, or -1 if key has not been added */
+    int get(int key) {
+        int slot = hash(key) & this.mask;
+        while (true) {
+            int id = this.slotIds[slot];
+            if (id == 0) {
+                return -1;
+            }
+            if (this.slotKeys[slot] == key) {
+                return id - 1;
+            }
+            slot = (slot + 1) & this.mask;
+        }
+    }
+
+    /**
+     * @return the number of key, adding it with the next free number if it
+     * is not in the table yet
+     */
+    int add(int key) {
+        int slot = hash(key) & this.mask;
+        while (true) {
+            int id = this.slotIds[slot];
+            if (id == 0) {
+                break;
+            }
+            if (this.slotKeys[slot] == key) {
+                return id - 1;
+            }
+            slot = (slot + 1) & this.mask;
+        }
+        int id = this.size++;
+        if (id == this.keys.length) {
+            this.keys = Arrays.copyOf(this.keys, id * 2);
+        }
+        this.keys[id] = key;
+        this.slotKeys[slot] = key;
+        this.slotIds[slot] = id + 1;
+        if (this.size * 2 > this.slotIds.length) {
+            rehash(this.slotIds.length * 2);
+        }
+        return id;
+    }
+
+    /** @return the key with number id */
+    int keyAt(int id) {
+        return this.keys[id];
+    }
+
+    /** Remove every key. */
+    void clear() {
+        Arrays.fill(this.slotIds, 0);
+        this.size = 0;
+    }
+
+    private void rehash(int capacity) {
+        this.slotKeys = new int[capacity];
+        this.slotIds = new int[capacity];
+        this.mask = capacity - 1;
+        for (int id = 0; id < this.size; id++) {
+            int slot = hash(this.keys[id]) & this.mask;
+            while (this.slotIds[slot] != 0) {
+                slot = (slot + 1) & this.mask;
+            }
+            this.slotKeys[slot] = this.keys[id];
+            this.slotIds[slot] = id + 1;
+        }
+    }
+}
@@ -4,6 +4,7 @@ import simpledb.common.Type;
 import simpledb.storage.*;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -25,85 +26,81 @@ public class IntegerAggregator implements Aggregator {
 
     private AggHandler aggHandler;
 
+    // 分组编号：int 分组字段用 IntHashTable，其他类型用 HashMap
+    private final IntHashTable intGroups = new IntHashTable();
+    private final Map<Field, Integer> fieldGroups = new HashMap<>();
+    private final List<Field> groupFields = new ArrayList<>();
+    private int numGroups = 0;
+
     private abstract class AggHandler {
-        // 存储字段对应的聚合结果
-        Map<Field, Integer> aggResult;
+        // 按分组编号存储聚合结果，用 long 累加避免求和溢出
+        long[] aggResult = new long[16];
 
-        // gbField 用于分组的字段， aggField 现阶段聚合结果
-        abstract void handle(Field gbField, IntField aggField);
+        // group 分组编号，isNew 是否是该分组的第一个值，value 新插入的聚合值
+        abstract void handle(int group, boolean isNew, int value);
 
-        public AggHandler() {
-            this.aggResult = new HashMap<>();
+        void grow(int groups) {
+            if (groups > this.aggResult.length) {
+                this.aggResult = Arrays.copyOf(this.aggResult, Math.max(groups, this.aggResult.length * 2));
+            }
         }
 
-        public Map<Field, Integer> getAggResult() {
-            return this.aggResult;
+        int getAggResult(int group) {
+            return (int) this.aggResult[group];
         }
     }
 
     private class CountHandler extends AggHandler {
         @Override
-        void handle(Field gbField, IntField aggField) {
-            if (this.aggResult.containsKey(gbField)) {
-                this.aggResult.put(gbField, this.aggResult.get(gbField) + 1);
-            } else {
-                this.aggResult.put(gbField, 1);
-            }
+        void handle(int group, boolean isNew, int value) {
+            this.aggResult[group] = isNew ? 1 : this.aggResult[group] + 1;
         }
     }
 
     private class SumHandler extends AggHandler {
         @Override
-        void handle(Field gbField, IntField aggField) {
-            int value = aggField.getValue();
-            if (this.aggResult.containsKey(gbField)) {
-                this.aggResult.put(gbField, this.aggResult.get(gbField) + value);
-            } else {
-                this.aggResult.put(gbField, value);
-            }
+        void handle(int group, boolean isNew, int value) {
+            this.aggResult[group] = isNew ? value : this.aggResult[group] + value;
         }
     }
 
     private class MaxHandler extends AggHandler {
         @Override
-        void handle(Field gbField, IntField aggField) {
-            int value = aggField.getValue();
-            if (this.aggResult.containsKey(gbField)) {
-                this.aggResult.put(gbField, Math.max(this.aggResult.get(gbField), value));
-            } else {
-                this.aggResult.put(gbField, value);
-            }
+        void handle(int group, boolean isNew, int value) {
+            this.aggResult[group] = isNew ? value : Math.max(this.aggResult[group], value);
         }
     }
 
     private class MinHandler extends AggHandler {
         @Override
-        void handle(Field gbField, IntField aggField) {
-            int value = aggField.getValue();
-            if (this.aggResult.containsKey(gbField)) {
-                this.aggResult.put(gbField, Math.min(this.aggResult.get(gbField), value));
-            } else {
-                this.aggResult.put(gbField, value);
-            }
+        void handle(int group, boolean isNew, int value) {
+            this.aggResult[group] = isNew ? value : Math.min(this.aggResult[group], value);
         }
     }
 
     private class AvgHandler extends AggHandler {
-        Map<Field, Integer> sum = new HashMap<>();
-        Map<Field, Integer> count = new HashMap<>();
+        // aggResult 存放求和，count 存放计数
+        int[] count = new int[16];
 
         @Override
-        void handle(Field gbField, IntField aggField) {
-            int value = aggField.getValue();
-            // 求和 + 计数
-            if (this.sum.containsKey(gbField) && this.count.containsKey(gbField)) {
-                this.sum.put(gbField, this.sum.get(gbField) + value);
-                this.count.put(gbField, this.count.get(gbField) + 1);
-            } else {
-                this.sum.put(gbField, value);
-                this.count.put(gbField, 1);
+        void grow(int groups) {
+            super.grow(groups);
+            if (groups > this.count.length) {
+                this.count = Arrays.copyOf(this.count, this.aggResult.length);
             }
-            this.aggResult.put(gbField, this.sum.get(gbField) / this.count.get(gbField));
+        }
+
+        @Override
+        void handle(int group, boolean isNew, int value) {
+            // 求和 + 计数
+            this.aggResult[group] = isNew ? value : this.aggResult[group] + value;
+            this.count[group] = isNew ? 1 : this.count[group] + 1;
+        }
+
+        @Override
+        int getAggResult(int group) {
+            // 只在输出时做一次除法
+            return (int) (this.aggResult[group] / this.count[group]);
         }
     }
 
@@ -150,6 +147,33 @@ public class IntegerAggregator implements Aggregator {
         }
     }
 
+    // 分组值对应的编号，新分组分配下一个编号
+    private int groupOf(Field gbField) {
+        if (this.gbfield == NO_GROUPING) {
+            return 0;
+        }
+        if (this.gbfieldtype == Type.INT_TYPE) {
+            return this.intGroups.add(((IntField) gbField).getValue());
+        }
+        Integer group = this.fieldGroups.get(gbField);
+        if (group == null) {
+            group = this.fieldGroups.size();
+            this.fieldGroups.put(gbField, group);
+            this.groupFields.add(gbField);
+        }
+        return group;
+    }
+
+    // 合并一个值，group 是它所在分组的编号
+    private void merge(int group, int value) {
+        boolean isNew = group == this.numGroups;
+        if (isNew) {
+            this.numGroups++;
+            this.aggHandler.grow(this.numGroups);
+        }
+        this.aggHandler.handle(group, isNew, value);
+    }
+
     /**
      * Merge a new tuple into the aggregate, grouping as indicated(指示) in the
      * constructor
@@ -163,7 +187,32 @@ public class IntegerAggregator implements Aggregator {
         IntField afield = (IntField) tup.getField(this.afield);
         // 分组的字段
         Field gbfield = this.gbfield == NO_GROUPING ? null : tup.getField(this.gbfield);
-        this.aggHandler.handle(gbfield, afield);
+        merge(groupOf(gbfield), afield.getValue());
+    }
+
+    /**
+     * Merge a batch into the aggregate, reading the aggregate column, and
+     * an int group-by column, as primitive ints.
+     *
+     * @param batch the rows to merge
+     */
+    @Override
+    public void mergeBatchIntoGroup(TupleBatch batch) {
+        int[] values = batch.intColumn(this.afield);
+        int n = batch.numRows();
+        if (this.gbfield != NO_GROUPING && this.gbfieldtype == Type.INT_TYPE) {
+            int[] keys = batch.intColumn(this.gbfield);
+            for (int i = 0; i < n; i++) {
+                int row = batch.row(i);
+                merge(this.intGroups.add(keys[row]), values[row]);
+            }
+            return;
+        }
+        for (int i = 0; i < n; i++) {
+            int row = batch.row(i);
+            Field gbfield = this.gbfield == NO_GROUPING ? null : batch.getField(this.gbfield, row);
+            merge(groupOf(gbfield), values[row]);
+        }
     }
 
     /**
@@ -177,8 +226,6 @@ public class IntegerAggregator implements Aggregator {
     @Override
     public OpIterator iterator() {
         // some code goes here
-        // 获取聚合集
-        Map<Field, Integer> aggResult = this.aggHandler.getAggResult();
         // 构建 tuple 需要
         Type[] types;
         String[] names;
@@ -191,7 +238,7 @@ public class IntegerAggregator implements Aggregator {
             names = new String[]{"aggregateVal"};
             tupleDesc = new TupleDesc(types, names);
             // 获取结果字段
-            IntField resultField = new IntField(aggResult.get(null));
+            IntField resultField = new IntField(this.aggHandler.getAggResult(0));
             // 组合成行（临时行，不需要存储，只需要设置字段值）
             Tuple tuple = new Tuple(tupleDesc);
             tuple.setField(0, resultField);
@@ -200,17 +247,15 @@ public class IntegerAggregator implements Aggregator {
             types = new Type[]{this.gbfieldtype, Type.INT_TYPE};
             names = new String[]{"groupVal", "aggregateVal"};
             tupleDesc = new TupleDesc(types, names);
-            for (Field field : aggResult.keySet()) {
+            for (int group = 0; group < this.numGroups; group++) {
                 Tuple tuple = new Tuple(tupleDesc);
                 if (this.gbfieldtype == Type.INT_TYPE) {
-                    IntField intField = (IntField) field;
-                    tuple.setField(0, intField);
+                    tuple.setField(0, new IntField(this.intGroups.keyAt(group)));
                 } else {
-                    StringField stringField = (StringField) field;
-                    tuple.setField(0, stringField);
+                    tuple.setField(0, this.groupFields.get(group));
                 }
 
-                IntField resultField = new IntField(aggResult.get(field));
+                IntField resultField = new IntField(this.aggHandler.getAggResult(group));
                 tuple.setField(1, resultField);
                 tuples.add(tuple);
             }
@@ -1,14 +1,22 @@
 package simpledb.execution;
 
 import simpledb.common.DbException;
+import simpledb.storage.BufferPool;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 import simpledb.transaction.TransactionAbortedException;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.NoSuchElementException;
 
 /**
  * The Join operator implements the relational join operation.
+ * <p>
+ * Join is a block nested-loop join: it buffers a block of child1 tuples,
+ * {@link #BLOCK_PAGES} pages' worth by default, and compares every tuple of
+ * child2 with the whole block, so child2 is scanned once per block rather
+ * than once per child1 tuple.
  */
 public class Join extends Operator {
 
@@ -19,8 +27,20 @@ public class Join extends Operator {
     private OpIterator child1;
     // 元组迭代器2
     private OpIterator child2;
-    // 临时元组，保存上次迭代用的 child1 的 Tuple
-    private Tuple t;
+    // 编译后的连接条件
+    private transient CompiledPredicate.JoinTest joinTest;
+
+    /** Default number of pages of child1 tuples in a block. */
+    public static final int BLOCK_PAGES = 16;
+
+    // 一个块最多缓存的 child1 元组数，0 表示按 BLOCK_PAGES 计算
+    private int blockSize = 0;
+    // 当前块
+    private transient List<Tuple> block = new ArrayList<>();
+    // 当前正在和块比较的 child2 元组，以及下一个要比较的块内位置
+    private transient Tuple t2;
+    private transient int blockPos;
+    private transient TupleDesc comboTD;
 
     /**
      * Constructor. Accepts two children to join and the predicate to join them
@@ -81,16 +101,57 @@ public class Join extends Operator {
         // some code goes here
         this.child1.open();
         this.child2.open();
+        this.joinTest = CompiledPredicate.compileJoin(this.joinPredicate,
+                this.child1.getTupleDesc(), this.child2.getTupleDesc());
+        this.comboTD = getTupleDesc();
+        this.block = new ArrayList<>();
+        this.t2 = null;
         super.open();
     }
 
+    /**
+     * Set the number of child1 tuples buffered per pass over child2.
+     * Takes effect at the next block.
+     */
+    public void setBlockSize(int tuples) {
+        this.blockSize = tuples;
+    }
+
+    /**
+     * @return the number of tuples of schema td that fit in a block of
+     * {@link #BLOCK_PAGES} pages
+     */
+    public static int blockTuples(TupleDesc td) {
+        int perPage = (BufferPool.getPageSize() * 8) / (td.getSize() * 8 + 1);
+        return Math.max(1, BLOCK_PAGES * perPage);
+    }
+
+    // 一块 child1 元组的个数
+    private int blockSize() {
+        if (this.blockSize > 0) {
+            return this.blockSize;
+        }
+        return blockTuples(this.child1.getTupleDesc());
+    }
+
+    // 读入下一块 child1 元组，没有更多元组时返回 false
+    private boolean loadBlock() throws DbException, TransactionAbortedException {
+        this.block.clear();
+        int size = blockSize();
+        while (this.block.size() < size && this.child1.hasNext()) {
+            this.block.add(this.child1.next());
+        }
+        return !this.block.isEmpty();
+    }
+
     @Override
     public void close() {
         // some code goes here
         super.close();
         this.child2.close();
         this.child1.close();
-
+        this.block = new ArrayList<>();
+        this.t2 = null;
     }
 
     @Override
@@ -98,7 +159,8 @@ public class Join extends Operator {
         // some code goes here
         this.child1.rewind();
         this.child2.rewind();
-        this.t = null;
+        this.block.clear();
+        this.t2 = null;
     }
 
     /**
@@ -122,43 +184,45 @@ public class Join extends Operator {
     @Override
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
         // some code goes here
-        // t 的意义就是 笛卡尔积, 一个可能对多个相等
-        while (this.child1.hasNext() || this.t != null) {
-            if (this.child1.hasNext() && this.t == null) {
-                this.t = this.child1.next();
-            }
-            while (this.child2.hasNext()) {
-                Tuple t2 = this.child2.next();
-                if (this.joinPredicate.filter(this.t, t2)) {
-                    TupleDesc td1 = this.t.getTupleDesc();
-                    TupleDesc td2 = t2.getTupleDesc();
-                    // 合并
-                    TupleDesc tupleDesc = TupleDesc.merge(td1, td2);
-                    // 创建新的行
-                    Tuple newTuple = new Tuple(tupleDesc);
-                    // 设置路径
-                    newTuple.setRecordId(this.t.getRecordId());
-                    // 合并
-                    int i = 0;
-                    for (; i < td1.numFields(); i++) {
-                        newTuple.setField(i, this.t.getField(i));
+        while (true) {
+            // 当前 child2 元组和块内剩下的元组比较
+            if (this.t2 != null) {
+                while (this.blockPos < this.block.size()) {
+                    Tuple t1 = this.block.get(this.blockPos++);
+                    if (this.joinTest.test(t1, this.t2)) {
+                        return merge(t1, this.t2);
                     }
-                    for (int j = 0; j < td2.numFields(); j++) {
-                        newTuple.setField(i + j, t2.getField(j));
-                    }
-                    // 遍历完t2后重置，t置空，准备遍历下一个
-                    if (!this.child2.hasNext()) {
-                        this.child2.rewind();
-                        this.t = null;
-                    }
-                    return newTuple;
                 }
+                this.t2 = null;
             }
-            // 重置 child2
-            this.child2.rewind();
-            this.t = null;
+            // child2 扫描完一遍后，重置 child2 并读入下一块
+            if (this.block.isEmpty() || !this.child2.hasNext()) {
+                if (!this.block.isEmpty()) {
+                    this.child2.rewind();
+                }
+                if (!loadBlock()) {
+                    return null;
+                }
+                continue;
+            }
+            this.t2 = this.child2.next();
+            this.blockPos = 0;
+        }
+    }
+
+    // 合并两个元组
+    private Tuple merge(Tuple t1, Tuple t2) {
+        int n1 = t1.getTupleDesc().numFields();
+        Tuple newTuple = new Tuple(this.comboTD);
+        // 设置路径
+        newTuple.setRecordId(t1.getRecordId());
+        for (int i = 0; i < n1; i++) {
+            newTuple.setField(i, t1.getField(i));
+        }
+        for (int j = 0; j < t2.getTupleDesc().numFields(); j++) {
+            newTuple.setField(n1 + j, t2.getField(j));
         }
-        return null;
+        return newTuple;
     }
 
     @Override
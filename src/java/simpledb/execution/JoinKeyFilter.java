@@ -0,0 +1,194 @@
+package simpledb.execution;
+
+import simpledb.storage.Field;
+import simpledb.storage.IntField;
+import simpledb.storage.TupleBatch;
+
+import java.util.Arrays;
+
+/**
+ * JoinKeyFilter summarizes the join keys of the build side of a hash join:
+ * a Bloom filter over the keys and, for integer keys, their range.  The
+ * join passes it down to the scans and filters of its probe side with
+ * {@link #push}, and they drop the tuples whose key cannot match any build
+ * tuple before those reach the join.  The test has false positives but no
+ * false negatives, so only an inner equi-join may use it.
+ */
+public final class JoinKeyFilter {
+
+    // 每个键约 8 位、3 个哈希，误判率约 3%
+    private static final int BITS_PER_KEY = 8;
+    private static final int HASHES = 3;
+    /** Above this many build tuples only the key range is kept. */
+    public static final int MAX_BLOOM_KEYS = 1 << 22;
+
+    private final long[] bits;      // null 表示没有 Bloom 过滤器
+    private final int mask;
+    private final boolean hasRange;
+    private final int min, max;
+
+    private JoinKeyFilter(long[] bits, boolean hasRange, int min, int max) {
+        this.bits = bits;
+        this.mask = bits == null ? 0 : bits.length * 64 - 1;
+        this.hasRange = hasRange;
+        this.min = min;
+        this.max = max;
+    }
+
+    /** Collects the keys of the build side. */
+    public static final class Builder {
+        private int[] hashes = new int[64];
+        private int n = 0;
+        private boolean bloom = true;
+        private boolean intKeys = true;
+        private int min = Integer.MAX_VALUE, max = Integer.MIN_VALUE;
+
+        /** Add the key of a build tuple. */
+        public void add(Field key) {
+            if (key instanceof IntField) {
+                int v = ((IntField) key).getValue();
+                this.min = Math.min(this.min, v);
+                this.max = Math.max(this.max, v);
+            } else {
+                this.intKeys = false;
+            }
+            if (!this.bloom) {
+                return;
+            }
+            if (this.n == MAX_BLOOM_KEYS) {
+                // 太多键时 Bloom 过滤器几乎全满，不再维护
+                this.bloom = false;
+                this.hashes = null;
+                return;
+            }
+            if (this.n == this.hashes.length) {
+                this.hashes = Arrays.copyOf(this.hashes, this.n * 2);
+            }
+            this.hashes[this.n++] = hash(key);
+        }
+
+        public JoinKeyFilter build() {
+            long[] bits = null;
+            if (this.bloom) {
+                int words = Math.max(1, Integer.highestOneBit(Math.max(1, this.n * BITS_PER_KEY / 64 - 1)) * 2);
+                bits = new long[words];
+                int mask = words * 64 - 1;
+                for (int i = 0; i < this.n; i++) {
+                    long z = mix(this.hashes[i]);
+                    int h1 = (int) z, h2 = (int) (z >>> 32) | 1;
+                    for (int k = 0; k < HASHES; k++) {
+                        int b = (h1 + k * h2) & mask;
+                        bits[b >>> 6] |= 1L << b;
+                    }
+                }
+            }
+            return new JoinKeyFilter(bits, this.intKeys, this.min, this.max);
+        }
+    }
+
+    // 整数键用它的值，与 IntField.hashCode 一致
+    private static int hash(Field key) {
+        return key instanceof IntField ? ((IntField) key).getValue() : key.hashCode();
+    }
+
+    private static long mix(int hash) {
+        long z = hash * 0x9E3779B97F4A7C15L;
+        return z ^ (z >>> 29);
+    }
+
+    /** @return true if the build keys are integers, so {@link #getMin}/{@link #getMax} bound them */
+    public boolean hasRange() {
+        return this.hasRange;
+    }
+
+    /** @return the smallest build key; greater than {@link #getMax} if there is none */
+    public int getMin() {
+        return this.min;
+    }
+
+    /** @return the largest build key */
+    public int getMax() {
+        return this.max;
+    }
+
+    /** @return false if no build tuple has this key */
+    public boolean mightMatch(int key) {
+        if (this.hasRange && (key < this.min || key > this.max)) {
+            return false;
+        }
+        return this.bits == null || bloomContains(key);
+    }
+
+    /** @return false if no build tuple has this key */
+    public boolean mightMatch(Field key) {
+        if (key instanceof IntField) {
+            return mightMatch(((IntField) key).getValue());
+        }
+        return this.bits == null || bloomContains(key.hashCode());
+    }
+
+    private boolean bloomContains(int hash) {
+        long z = mix(hash);
+        int h1 = (int) z, h2 = (int) (z >>> 32) | 1;
+        for (int k = 0; k < HASHES; k++) {
+            int b = (h1 + k * h2) & this.mask;
+            if ((this.bits[b >>> 6] & (1L << b)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Narrow the selection of batch to the rows whose key in field might match. */
+    public void filter(TupleBatch batch, int field) {
+        int[] sel = batch.selectionVector();
+        int n = 0;
+        if (batch.isIntColumn(field)) {
+            int[] col = batch.intColumn(field);
+            for (int i = 0; i < batch.numRows(); i++) {
+                int row = batch.row(i);
+                if (mightMatch(col[row])) {
+                    sel[n++] = row;
+                }
+            }
+        } else {
+            for (int i = 0; i < batch.numRows(); i++) {
+                int row = batch.row(i);
+                if (mightMatch(batch.getField(field, row))) {
+                    sel[n++] = row;
+                }
+            }
+        }
+        batch.setSelection(n);
+    }
+
+    /**
+     * Hand filter to the operators of plan that produce its tuples: a
+     * Filter or SeqScan at the top of plan, or those at the top of each
+     * pipeline of a {@link Gather}.  A Filter directly over a SeqScan hands
+     * it on to the scan, which can then also skip the pages outside the key
+     * range.  Other plans keep all their tuples.
+     *
+     * @param plan   the probe side of a join
+     * @param field  the join key, a field of plan's tuples
+     * @param filter the keys of the build side, or null to remove a
+     *               filter handed down before
+     */
+    public static void push(OpIterator plan, int field, JoinKeyFilter filter) {
+        if (plan instanceof Filter) {
+            OpIterator child = ((Filter) plan).getChildren()[0];
+            if (child instanceof SeqScan) {
+                // 过滤不改变模式，键在扫描的元组中是同一个字段
+                push(child, field, filter);
+            } else {
+                ((Filter) plan).setKeyFilter(field, filter);
+            }
+        } else if (plan instanceof SeqScan) {
+            ((SeqScan) plan).setKeyFilter(field, filter);
+        } else if (plan instanceof Gather) {
+            for (OpIterator child : ((Gather) plan).getChildren()) {
+                push(child, field, filter);
+            }
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package simpledb.execution;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * MorselDispatcher hands out the pages of a file in small ranges, called
+ * morsels, to the workers of a parallel operator.  Each worker asks for the
+ * next morsel when it has finished the previous one, so a worker that is
+ * slowed down takes fewer pages instead of holding up the others, as a
+ * fixed split of the file would.
+ */
+final class MorselDispatcher {
+
+    /** Default number of pages in a morsel. */
+    static final int MORSEL_PAGES = 4;
+
+    private final int numPages;
+    private final int morselPages;
+    private final AtomicInteger next = new AtomicInteger();
+
+    /**
+     * @param numPages    the number of pages to hand out
+     * @param morselPages the number of pages in a morsel
+     */
+    MorselDispatcher(int numPages, int morselPages) {
+        this.numPages = numPages;
+        this.morselPages = Math.max(1, morselPages);
+    }
+
+    /** @return the number of morsels, i.e. the most workers that can get one */
+    int numMorsels() {
+        return (this.numPages + this.morselPages - 1) / this.morselPages;
+    }
+
+    /**
+     * @return the first page of the next morsel, or -1 if every page has
+     * been handed out.  Safe to call from several threads.
+     */
+    int next() {
+        int start = this.next.getAndAdd(this.morselPages);
+        return start < this.numPages ? start : -1;
+    }
+
+    /** @return the page after the last one of the morsel starting at start */
+    int end(int start) {
+        return Math.min(start + this.morselPages, this.numPages);
+    }
+}
@@ -2,6 +2,7 @@ package simpledb.execution;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.common.DbException;
 import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
 import simpledb.storage.TupleDesc;
 
 import java.io.Serializable;
@@ -39,6 +40,27 @@ public interface OpIterator extends Serializable{
    */
   Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException;
 
+  /**
+   * Returns the next batch of tuples from the operator.  This is the
+   * batch-at-a-time counterpart of {@link #next()}; a caller should use
+   * only one of the two between an open() or rewind() and the end of the
+   * iteration.  The returned batch may be reused by the next call to
+   * nextBatch(), so the caller must be done with it by then.
+   * <p>
+   * The default implementation collects up to
+   * {@link TupleBatch#DEFAULT_CAPACITY} tuples from next().
+   *
+   * @return the next non-empty batch, or null if there are no more tuples.
+   * @throws IllegalStateException If the iterator has not been opened
+   */
+  default TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+      TupleBatch batch = new TupleBatch(getTupleDesc());
+      while (!batch.isFull() && hasNext()) {
+          batch.addTuple(next());
+      }
+      return batch.numRows() > 0 ? batch : null;
+  }
+
   /**
    * Resets the iterator to the start.
    * @throws DbException when rewind is unsupported.
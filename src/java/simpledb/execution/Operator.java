@@ -2,6 +2,7 @@ package simpledb.execution;
 
 import simpledb.common.DbException;
 import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
 import simpledb.storage.TupleDesc;
 import simpledb.transaction.TransactionAbortedException;
 
@@ -44,6 +45,49 @@ public abstract class Operator implements OpIterator {
         return result;
     }
 
+    @Override
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        if (!this.open) {
+            throw new IllegalStateException("Operator not yet open");
+        }
+        // hasNext 已经预取了一行，这一批逐行收集
+        if (this.next != null) {
+            return collectRows();
+        }
+        return fetchNextBatch();
+    }
+
+    /**
+     * Returns the next batch of tuples, or null if the iteration is
+     * finished.  Operator uses this method to implement
+     * <code>nextBatch</code>.  The default implementation collects tuples
+     * from <code>fetchNext</code>; operators that can process whole
+     * batches should override it.
+     *
+     * @return the next non-empty batch, or null if the iteration is
+     *         finished.
+     */
+    protected TupleBatch fetchNextBatch() throws DbException,
+            TransactionAbortedException {
+        return collectRows();
+    }
+
+    private TupleBatch collectRows() throws DbException, TransactionAbortedException {
+        if (this.rowBatch == null) {
+            this.rowBatch = new TupleBatch(getTupleDesc());
+        }
+        this.rowBatch.clear();
+        while (!this.rowBatch.isFull()) {
+            Tuple t = this.next != null ? this.next : fetchNext();
+            this.next = null;
+            if (t == null) {
+                break;
+            }
+            this.rowBatch.addTuple(t);
+        }
+        return this.rowBatch.numRows() > 0 ? this.rowBatch : null;
+    }
+
     /**
      * Returns the next Tuple in the iterator, or null if the iteration is
      * finished. Operator uses this method to implement both <code>next</code>
@@ -64,10 +108,13 @@ public abstract class Operator implements OpIterator {
         // Ensures that a future call to next() will fail
         this.next = null;
         this.open = false;
+        this.rowBatch = null;
     }
 
     private Tuple next = null;
     private boolean open = false;
+    // fetchNextBatch 默认实现逐行收集用的批
+    private transient TupleBatch rowBatch = null;
     private int estimatedCardinality = 0;
 
     @Override
@@ -2,7 +2,6 @@ package simpledb.execution;
 
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.common.DbException;
-import simpledb.storage.Field;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 
@@ -10,17 +9,25 @@ import java.util.*;
 
 /**
  * OrderBy is an operator that implements a relational ORDER BY.
+ * <p>
+ * The child is sorted with an {@link ExternalSort}: once more than the
+ * memory budget of tuples has been read, sorted runs are written to
+ * temporary files and merged, so the size of the input is not limited by
+ * the heap.
  */
 public class OrderBy extends Operator {
 
     private static final long serialVersionUID = 1L;
+
+    /** Default memory budget, in tuples held in memory while sorting. */
+    public static final int MEMORY_BUDGET = 100000;
+
     private OpIterator child;
     private final TupleDesc td;
-    private final List<Tuple> childTups = new ArrayList<>();
-    private final int orderByField;
-    private final String orderByFieldName;
-    private Iterator<Tuple> it;
-    private final boolean asc;
+    private final int[] orderByFields;
+    private final boolean[] asc;
+    private int memoryBudget = MEMORY_BUDGET;
+    private transient ExternalSort sort;
 
     /**
      * Creates a new OrderBy node over the tuples from the iterator.
@@ -33,28 +40,69 @@ public class OrderBy extends Operator {
      *            the tuples to sort.
      */
     public OrderBy(int orderbyField, boolean asc, OpIterator child) {
+        this(new int[]{orderbyField}, new boolean[]{asc}, child);
+    }
+
+    /**
+     * Creates a new OrderBy node that sorts on several fields: by the first
+     * one, then by the second among tuples equal on the first, and so on.
+     *
+     * @param orderbyFields
+     *            the fields to which the sort is applied, most significant
+     *            first.
+     * @param asc
+     *            for each field, true if the sort order is ascending.
+     * @param child
+     *            the tuples to sort.
+     */
+    public OrderBy(int[] orderbyFields, boolean[] asc, OpIterator child) {
+        if (orderbyFields.length == 0 || orderbyFields.length != asc.length) {
+            throw new IllegalArgumentException("need one sort order per ORDER BY field");
+        }
         this.child = child;
-        td = child.getTupleDesc();
-        this.orderByField = orderbyField;
-        this.orderByFieldName = td.getFieldName(orderbyField);
-        this.asc = asc;
+        this.td = child.getTupleDesc();
+        this.orderByFields = orderbyFields.clone();
+        this.asc = asc.clone();
     }
-    
+
     public boolean isASC()
     {
-	return this.asc;
+	return this.asc[0];
     }
-    
+
     public int getOrderByField()
     {
-        return this.orderByField;
+        return this.orderByFields[0];
     }
-    
+
     public String getOrderFieldName()
     {
-	return this.orderByFieldName;
+	return this.td.getFieldName(this.orderByFields[0]);
+    }
+
+    /**
+     * @return the fields sorted on, most significant first
+     */
+    public int[] getOrderByFields() {
+        return this.orderByFields.clone();
     }
-    
+
+    /**
+     * @return for each field of {@link #getOrderByFields}, whether it is
+     * sorted in ascending order
+     */
+    public boolean[] getAscending() {
+        return this.asc.clone();
+    }
+
+    /**
+     * Set the number of tuples held in memory while sorting; more are
+     * written to temporary files.  Takes effect at the next open().
+     */
+    public void setMemoryBudget(int tuples) {
+        this.memoryBudget = tuples;
+    }
+
     public TupleDesc getTupleDesc() {
         return td;
     }
@@ -62,21 +110,30 @@ public class OrderBy extends Operator {
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child.open();
-        // load all the tuples in a collection, and sort it
-        while (child.hasNext())
-            childTups.add(child.next());
-        childTups.sort(new TupleComparator(orderByField, asc));
-        it = childTups.iterator();
+        // 读入全部元组并排序，超出内存预算的部分写到临时文件
+        sort = new ExternalSort(td, new TupleComparator(orderByFields, asc), memoryBudget);
+        try {
+            while (child.hasNext())
+                sort.add(child.next());
+            sort.finish();
+        } catch (DbException | TransactionAbortedException e) {
+            sort.close();
+            throw e;
+        }
         super.open();
     }
 
     public void close() {
         super.close();
-        it = null;
+        child.close();
+        if (sort != null) {
+            sort.close();
+            sort = null;
+        }
     }
 
-    public void rewind() {
-        it = childTups.iterator();
+    public void rewind() throws DbException {
+        sort.rewind();
     }
 
     /**
@@ -86,9 +143,9 @@ public class OrderBy extends Operator {
      * @return The next tuple in the ordering, or null if there are no more
      *         tuples
      */
-    protected Tuple fetchNext() throws NoSuchElementException {
-        if (it != null && it.hasNext()) {
-            return it.next();
+    protected Tuple fetchNext() throws NoSuchElementException, DbException {
+        if (sort != null) {
+            return sort.next();
         } else
             return null;
     }
@@ -104,25 +161,3 @@ public class OrderBy extends Operator {
     }
 
 }
-
-class TupleComparator implements Comparator<Tuple> {
-    final int field;
-    final boolean asc;
-
-    public TupleComparator(int field, boolean asc) {
-        this.field = field;
-        this.asc = asc;
-    }
-
-    public int compare(Tuple o1, Tuple o2) {
-        Field t1 = (o1).getField(field);
-        Field t2 = (o2).getField(field);
-        if (t1.compare(Predicate.Op.EQUALS, t2))
-            return 0;
-        if (t1.compare(Predicate.Op.GREATER_THAN, t2))
-            return asc ? 1 : -1;
-        else
-            return asc ? -1 : 1;
-    }
-    
-}
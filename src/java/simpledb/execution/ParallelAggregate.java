@@ -0,0 +1,190 @@
+package simpledb.execution;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.storage.DbFile;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.HeapFile;
+import simpledb.storage.TupleBatch;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * ParallelAggregate is an {@link Aggregate} that reads its input with
+ * several threads when the child is a SeqScan over a HeapFile, possibly
+ * under a Filter.  The threads take the pages of the file a few at a time
+ * from a {@link MorselDispatcher}; each thread applies the filter to its
+ * pages and aggregates the tuples into its own {@link HashAggregator}, and
+ * the partial aggregates are merged into the result at the end.  Each
+ * thread gets an equal share of the memory budget.
+ * <p>
+ * Any other child, or a parallelism of 1, is aggregated by a single
+ * thread exactly like Aggregate does.  The child plan is kept for the
+ * optimizer and the plan printer.
+ */
+public class ParallelAggregate extends Aggregate {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Default number of threads: one, until {@link #setParallelism} asks for more. */
+    public static final int DEFAULT_PARALLELISM = WorkerPool.DEFAULT_PARALLELISM;
+
+    private int parallelism = DEFAULT_PARALLELISM;
+
+    /**
+     * Constructor.
+     *
+     * @param child  The OpIterator that is feeding us tuples.
+     * @param afield The column over which we are computing an aggregate.
+     * @param gfield The column over which we are grouping the result, or -1 if
+     *               there is no grouping
+     * @param aop    The aggregation operator to use
+     */
+    public ParallelAggregate(OpIterator child, int afield, int gfield, Aggregator.Op aop) {
+        super(child, afield, gfield, aop);
+    }
+
+    /**
+     * Constructor for several aggregates over the same groups.
+     *
+     * @param child   The OpIterator that is feeding us tuples.
+     * @param afields The column of each aggregate.
+     * @param gfield  The column over which we are grouping the result, or -1
+     *                if there is no grouping
+     * @param aops    The aggregation operator of each aggregate
+     */
+    public ParallelAggregate(OpIterator child, int[] afields, int gfield, Aggregator.Op[] aops) {
+        super(child, afields, gfield, aops);
+    }
+
+    /**
+     * Set the number of threads that read the input.  Takes effect at the
+     * next open().
+     */
+    public void setParallelism(int threads) {
+        this.parallelism = Math.max(1, threads);
+    }
+
+    public int getParallelism() {
+        return this.parallelism;
+    }
+
+    // child 是 HeapFile 上的 SeqScan 或其上的 Filter 时返回这个 SeqScan
+    private static SeqScan heapScan(OpIterator child) {
+        OpIterator scan = child instanceof Filter ? ((Filter) child).getChildren()[0] : child;
+        if (!(scan instanceof SeqScan)) {
+            return null;
+        }
+        DbFile f = Database.getCatalog().getDatabaseFile(((SeqScan) scan).getTableId());
+        return f instanceof HeapFile ? (SeqScan) scan : null;
+    }
+
+    /**
+     * @return true if child is a scan, optionally filtered, of a HeapFile,
+     * whose pages can be read by several threads
+     */
+    public static boolean canScanInParallel(OpIterator child) {
+        return heapScan(child) != null;
+    }
+
+    @Override
+    protected void aggregate(HashAggregator aggregator) throws DbException, TransactionAbortedException {
+        OpIterator child = getChildren()[0];
+        SeqScan scan = heapScan(child);
+        if (scan == null) {
+            super.aggregate(aggregator);
+            return;
+        }
+        HeapFile file = (HeapFile) Database.getCatalog().getDatabaseFile(scan.getTableId());
+        MorselDispatcher dispatcher = new MorselDispatcher(file.numPages(), MorselDispatcher.MORSEL_PAGES);
+        int threads = Math.min(this.parallelism, dispatcher.numMorsels());
+        if (threads <= 1) {
+            super.aggregate(aggregator);
+            return;
+        }
+        // 和 Filter 打开时一样把谓词交给扫描，读页时检查
+        if (child instanceof Filter) {
+            scan.setPredicates(((Filter) child).getPredicates());
+        }
+        int budget = Math.max(1, getMemoryBudget() / threads);
+
+        // 每个线程不断领取下一段页，聚合到自己的哈希表中
+        List<Future<HashAggregator>> partials = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            partials.add(WorkerPool.get().submit(() -> aggregateMorsels(scan, dispatcher, budget)));
+        }
+        try {
+            List<HashAggregator> done = new ArrayList<>();
+            for (Future<HashAggregator> f : partials) {
+                done.add(f.get());
+            }
+            aggregator.merge(done);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DbException("interrupted while aggregating");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof TransactionAbortedException) {
+                throw (TransactionAbortedException) cause;
+            }
+            if (cause instanceof DbException) {
+                throw (DbException) cause;
+            }
+            throw new DbException("aggregation failed: " + cause);
+        } finally {
+            // 出错时停止其余线程并删除它们的落盘文件
+            for (Future<HashAggregator> f : partials) {
+                if (!f.isDone()) {
+                    f.cancel(true);
+                } else if (!f.isCancelled()) {
+                    try {
+                        f.get().close();
+                    } catch (InterruptedException | ExecutionException ignored) {
+                        // 失败的线程没有留下聚合器
+                    }
+                }
+            }
+        }
+    }
+
+    // 聚合领取到的各段页中满足谓词的元组
+    private HashAggregator aggregateMorsels(SeqScan scan, MorselDispatcher dispatcher, int budget)
+            throws DbException, TransactionAbortedException {
+        HashAggregator partial = newAggregator();
+        partial.setMemoryBudget(budget);
+        TupleDesc td = scan.getTupleDesc();
+        TupleBatch batch = new TupleBatch(td);
+        int start;
+        while ((start = dispatcher.next()) >= 0) {
+            if (Thread.currentThread().isInterrupted()) {
+                // 被取消
+                partial.close();
+                throw new DbException("aggregation cancelled");
+            }
+            DbFileIterator it = scan.iterator(start, dispatcher.end(start));
+            it.open();
+            try {
+                while (it.hasNext()) {
+                    batch.addTuple(it.next());
+                    if (batch.isFull()) {
+                        mergeBatch(partial, batch);
+                    }
+                }
+            } finally {
+                it.close();
+            }
+        }
+        mergeBatch(partial, batch);
+        return partial;
+    }
+
+    private static void mergeBatch(HashAggregator partial, TupleBatch batch) {
+        partial.mergeBatchIntoGroup(batch);
+        batch.clear();
+    }
+}
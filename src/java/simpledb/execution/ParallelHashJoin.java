@@ -0,0 +1,156 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * ParallelHashJoin is an equi-join whose build and probe run on several
+ * threads.  Both inputs are repartitioned by the hash of the join key with
+ * {@link HashRepartition}, so tuples with equal keys end up in the same
+ * partition.  Each partition is joined by its own {@link HashEquiJoin} on
+ * its own thread: it builds the hash table of its part of child1 and
+ * probes it with its part of child2 while the other partitions do the
+ * same.  A {@link Gather} returns the joined tuples in no particular order.
+ * <p>
+ * An input that is a Gather is repartitioned by the pipelines below the
+ * Gather, so the scans and filters of that input run in parallel too; any
+ * other input is read by a single thread.  Each partition gets an equal
+ * share of the memory budget and spills to disk like HashEquiJoin when its
+ * part of child1 does not fit.
+ */
+public class ParallelHashJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final JoinPredicate pred;
+    private OpIterator child1, child2;
+    private final TupleDesc comboTD;
+    private int parallelism = WorkerPool.DEFAULT_PARALLELISM;
+    private int memoryBudget = HashEquiJoin.MAP_SIZE;
+
+    // 每个分区一个 HashEquiJoin，由 Gather 汇总
+    private transient Gather plan;
+
+    /**
+     * Constructor.
+     *
+     * @param p      The predicate to use to join the children, an equality
+     * @param child1 Iterator for the relation the hash tables are built on
+     * @param child2 Iterator for the relation that probes them
+     */
+    public ParallelHashJoin(JoinPredicate p, OpIterator child1, OpIterator child2) {
+        if (p.getOperator() != Predicate.Op.EQUALS) {
+            throw new IllegalArgumentException("a hash join needs an equality predicate");
+        }
+        this.pred = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        this.comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return this.pred;
+    }
+
+    public String getJoinField1Name() {
+        return this.child1.getTupleDesc().getFieldName(this.pred.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return this.child2.getTupleDesc().getFieldName(this.pred.getField2());
+    }
+
+    /**
+     * Set the number of partitions, each joined by one thread.  Takes
+     * effect at the next open().
+     */
+    public void setParallelism(int threads) {
+        this.parallelism = Math.max(1, threads);
+    }
+
+    public int getParallelism() {
+        return this.parallelism;
+    }
+
+    /**
+     * Set the number of child1 tuples the hash tables of all partitions may
+     * hold together before they spill to disk.  Takes effect at the next
+     * open().
+     */
+    public void setMemoryBudget(int tuples) {
+        this.memoryBudget = tuples;
+    }
+
+    // Gather 的各条流水线直接参与重分区，其他输入由一个线程读
+    private static List<OpIterator> producers(OpIterator child) {
+        if (child instanceof Gather) {
+            return Arrays.asList(((Gather) child).getChildren());
+        }
+        return Collections.singletonList(child);
+    }
+
+    @Override
+    public void open() throws DbException, TransactionAbortedException {
+        List<HashRepartition> builds = HashRepartition.create(producers(this.child1), this.pred.getField1(),
+                this.parallelism);
+        List<HashRepartition> probes = HashRepartition.create(producers(this.child2), this.pred.getField2(),
+                this.parallelism);
+        List<HashEquiJoin> joins = new ArrayList<>();
+        for (int i = 0; i < this.parallelism; i++) {
+            HashEquiJoin j = new HashEquiJoin(this.pred, builds.get(i), probes.get(i));
+            j.setMemoryBudget(Math.max(1, this.memoryBudget / this.parallelism));
+            joins.add(j);
+        }
+        this.plan = new Gather(joins);
+        this.plan.open();
+        super.open();
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        if (this.plan != null) {
+            this.plan.close();
+            this.plan = null;
+        }
+    }
+
+    @Override
+    public void rewind() throws DbException, TransactionAbortedException {
+        this.plan.rewind();
+    }
+
+    @Override
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+        return this.plan.hasNext() ? this.plan.next() : null;
+    }
+
+    @Override
+    protected TupleBatch fetchNextBatch() throws DbException, TransactionAbortedException {
+        return this.plan.nextBatch();
+    }
+
+    @Override
+    public TupleDesc getTupleDesc() {
+        return this.comboTD;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{this.child1, this.child2};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child1 = children[0];
+        this.child2 = children[1];
+    }
+}
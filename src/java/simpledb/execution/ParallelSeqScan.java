@@ -0,0 +1,355 @@
+package simpledb.execution;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.storage.DbFile;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.HeapFile;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * ParallelSeqScan reads a HeapFile with several worker threads.  A
+ * {@link MorselDispatcher} hands out the pages a few at a time; each worker
+ * builds the tuples of its morsel that satisfy the predicates pushed into
+ * the scan, collects them in batches and passes those to the consumer
+ * through a bounded {@link ExchangeQueue}.  The operators above still run
+ * on the consumer's thread and see an ordinary scan, except that the
+ * tuples come in no particular order.
+ * <p>
+ * A {@link Filter} directly above a ParallelSeqScan pushes its predicates
+ * into the scan when it is opened, so that the workers evaluate them.
+ * <p>
+ * {@link #partitionScans} makes scans that share the morsels of a table
+ * instead, for plans that run a pipeline per thread under a
+ * {@link Gather} or another {@link Exchange}.
+ */
+public class ParallelSeqScan extends SeqScan {
+
+    private static final long serialVersionUID = 1L;
+
+    private int parallelism = WorkerPool.DEFAULT_PARALLELISM;
+    private int morselPages = MorselDispatcher.MORSEL_PAGES;
+
+    private transient ExchangeQueue queue;
+    // 正在逐行返回的批次
+    private transient TupleBatch current;
+    private transient int pos;
+
+    /**
+     * Creates a parallel sequential scan over the specified table.
+     *
+     * @param tid        The transaction this scan is running as a part of.
+     * @param tableid    the table to scan, stored in a HeapFile.
+     * @param tableAlias the alias of this table (needed by the parser)
+     */
+    public ParallelSeqScan(TransactionId tid, int tableid, String tableAlias) {
+        super(tid, tableid, tableAlias);
+    }
+
+    /**
+     * @return true if the table is stored in a HeapFile large enough that
+     * more than one worker would get pages
+     */
+    public static boolean canScanInParallel(int tableid) {
+        DbFile f = Database.getCatalog().getDatabaseFile(tableid);
+        return f instanceof HeapFile && ((HeapFile) f).numPages() > MorselDispatcher.MORSEL_PAGES;
+    }
+
+    /**
+     * Creates scans that together read every page of a table once: each
+     * takes the next morsel of the table when it has read the previous
+     * one.  The scans are meant to be run by different threads, e.g. as
+     * the children of an {@link Exchange}, and are rewound together by
+     * closing and reopening all of them.
+     *
+     * @param tid        The transaction the scans are running as a part of.
+     * @param tableid    the table to scan, stored in a HeapFile.
+     * @param tableAlias the alias of this table (needed by the parser)
+     * @param n          the number of scans
+     */
+    public static List<SeqScan> partitionScans(TransactionId tid, int tableid, String tableAlias, int n) {
+        MorselGroup group = new MorselGroup(tableid, n);
+        List<SeqScan> scans = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            scans.add(new MorselScan(tid, tableid, tableAlias, group));
+        }
+        return scans;
+    }
+
+    /**
+     * Set the number of worker threads.  Takes effect at the next open().
+     */
+    public void setParallelism(int threads) {
+        this.parallelism = Math.max(1, threads);
+    }
+
+    public int getParallelism() {
+        return this.parallelism;
+    }
+
+    /**
+     * Set the number of pages a worker reads at a time.  Takes effect at
+     * the next open().
+     */
+    public void setMorselPages(int pages) {
+        this.morselPages = Math.max(1, pages);
+    }
+
+    @Override
+    public void open() throws DbException, TransactionAbortedException {
+        DbFile f = Database.getCatalog().getDatabaseFile(getTableId());
+        if (!(f instanceof HeapFile)) {
+            throw new DbException("table " + getTableId() + " is not a heap file");
+        }
+        HeapFile file = (HeapFile) f;
+        MorselDispatcher dispatcher = new MorselDispatcher(file.numPages(), this.morselPages);
+        int threads = Math.min(this.parallelism, dispatcher.numMorsels());
+        TupleDesc td = getTupleDesc();
+        // 每个线程最多有两个批次在队列中等待
+        ExchangeQueue q = new ExchangeQueue(2 * Math.max(1, threads), threads);
+        for (int t = 0; t < threads; t++) {
+            WorkerPool.get().submit(() -> scanMorsels(dispatcher, td, q));
+        }
+        this.queue = q;
+        this.current = null;
+        this.pos = 0;
+    }
+
+    // 工作线程：不断领取下一段页，生成满足谓词的元组放入队列
+    private void scanMorsels(MorselDispatcher dispatcher, TupleDesc td, ExchangeQueue q) {
+        try {
+            TupleBatch batch = new TupleBatch(td);
+            int start;
+            while (!q.isCancelled() && (start = dispatcher.next()) >= 0) {
+                // 连接的键过滤可能在扫描开始后才设置，每段重新取
+                DbFileIterator it = iterator(start, dispatcher.end(start));
+                it.open();
+                try {
+                    while (it.hasNext()) {
+                        batch.addTuple(it.next());
+                        if (batch.isFull()) {
+                            batch = emit(batch, td, q);
+                            if (batch == null) {
+                                return;
+                            }
+                        }
+                    }
+                } finally {
+                    it.close();
+                }
+            }
+            if (batch.numRows() > 0) {
+                emit(batch, td, q);
+            }
+            q.done();
+        } catch (Throwable e) {
+            q.fail(e);
+        }
+    }
+
+    // 过滤后交给消费者，返回下一个可写的批次；被取消时返回 null
+    private TupleBatch emit(TupleBatch batch, TupleDesc td, ExchangeQueue q) throws InterruptedException {
+        // 连接的键过滤可能在扫描开始后才设置
+        JoinKeyFilter keys = getKeyFilter();
+        if (keys != null) {
+            keys.filter(batch, getKeyField());
+        }
+        if (batch.numRows() == 0) {
+            batch.clear();
+            return batch;
+        }
+        return q.put(batch) ? new TupleBatch(td) : null;
+    }
+
+    @Override
+    public boolean hasNext() throws TransactionAbortedException, DbException {
+        if (this.queue == null) {
+            return false;
+        }
+        while (this.current == null || this.pos >= this.current.numRows()) {
+            this.current = this.queue.take();
+            this.pos = 0;
+            if (this.current == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public Tuple next() throws NoSuchElementException, TransactionAbortedException, DbException {
+        if (!hasNext()) {
+            throw new NoSuchElementException("no next tuple");
+        }
+        return this.current.getTuple(this.current.row(this.pos++));
+    }
+
+    @Override
+    public TupleBatch nextBatch() throws TransactionAbortedException, DbException {
+        if (this.queue == null) {
+            return null;
+        }
+        // hasNext 已经取出的批次先返回，逐行返回了一部分时只返回剩下的行
+        if (this.current != null && this.pos < this.current.numRows()) {
+            TupleBatch b = this.current;
+            if (this.pos > 0) {
+                b = new TupleBatch(getTupleDesc());
+                while (this.pos < this.current.numRows()) {
+                    b.addTuple(this.current.getTuple(this.current.row(this.pos++)));
+                }
+            }
+            this.current = null;
+            this.pos = 0;
+            return b;
+        }
+        this.current = null;
+        this.pos = 0;
+        return this.queue.take();
+    }
+
+    @Override
+    public void close() {
+        if (this.queue != null) {
+            this.queue.cancel();
+            this.queue = null;
+        }
+        this.current = null;
+    }
+
+    @Override
+    public void rewind() throws DbException, NoSuchElementException, TransactionAbortedException {
+        close();
+        open();
+    }
+
+    // 一组分区扫描共用的分段分配器；所有扫描都关闭后下一次打开重新分配
+    private static final class MorselGroup {
+        private final int tableid;
+        private final int scans;
+        private MorselDispatcher dispatcher;
+        private int open = 0;
+        private int closed = 0;
+
+        MorselGroup(int tableid, int scans) {
+            this.tableid = tableid;
+            this.scans = scans;
+        }
+
+        synchronized MorselDispatcher join() throws DbException {
+            if (this.dispatcher == null) {
+                DbFile f = Database.getCatalog().getDatabaseFile(this.tableid);
+                if (!(f instanceof HeapFile)) {
+                    throw new DbException("table " + this.tableid + " is not a heap file");
+                }
+                this.dispatcher = new MorselDispatcher(((HeapFile) f).numPages(), MorselDispatcher.MORSEL_PAGES);
+                this.closed = 0;
+            }
+            this.open++;
+            return this.dispatcher;
+        }
+
+        synchronized void leave() {
+            this.open--;
+            this.closed++;
+            if (this.open == 0 && this.closed >= this.scans) {
+                this.dispatcher = null;
+            }
+        }
+    }
+
+    // 从共用的分配器领取分段来读的扫描
+    private static final class MorselScan extends SeqScan {
+        private static final long serialVersionUID = 1L;
+
+        private final transient MorselGroup group;
+        private transient MorselDispatcher dispatcher;
+
+        MorselScan(TransactionId tid, int tableid, String tableAlias, MorselGroup group) {
+            super(tid, tableid, tableAlias);
+            this.group = group;
+        }
+
+        @Override
+        public void open() throws DbException, TransactionAbortedException {
+            this.dispatcher = this.group.join();
+            super.open();
+        }
+
+        @Override
+        protected DbFileIterator newIterator() {
+            return new MorselIterator(this.dispatcher);
+        }
+
+        @Override
+        public void close() {
+            super.close();
+            if (this.dispatcher != null) {
+                this.dispatcher = null;
+                this.group.leave();
+            }
+        }
+
+        @Override
+        public void rewind() throws DbException, NoSuchElementException, TransactionAbortedException {
+            close();
+            open();
+        }
+
+        // 依次读领取到的各段页
+        private final class MorselIterator implements DbFileIterator {
+            private final MorselDispatcher dispatcher;
+            private DbFileIterator pages;
+
+            MorselIterator(MorselDispatcher dispatcher) {
+                this.dispatcher = dispatcher;
+            }
+
+            @Override
+            public void open() {
+            }
+
+            @Override
+            public boolean hasNext() throws DbException, TransactionAbortedException {
+                while (this.pages == null || !this.pages.hasNext()) {
+                    close();
+                    int start = this.dispatcher.next();
+                    if (start < 0) {
+                        return false;
+                    }
+                    this.pages = iterator(start, this.dispatcher.end(start));
+                    this.pages.open();
+                }
+                return true;
+            }
+
+            @Override
+            public Tuple next() throws DbException, TransactionAbortedException {
+                if (!hasNext()) {
+                    throw new NoSuchElementException("no next tuple");
+                }
+                return this.pages.next();
+            }
+
+            @Override
+            public void rewind() {
+                throw new UnsupportedOperationException("rewind the scans of a table together");
+            }
+
+            @Override
+            public void close() {
+                if (this.pages != null) {
+                    this.pages.close();
+                    this.pages = null;
+                }
+            }
+        }
+    }
+}
@@ -4,6 +4,7 @@ import simpledb.transaction.TransactionAbortedException;
 import simpledb.common.Type;
 import simpledb.common.DbException;
 import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
 import simpledb.storage.TupleDesc;
 
 import java.util.*;
@@ -17,6 +18,8 @@ public class Project extends Operator {
     private OpIterator child;
     private final TupleDesc td;
     private final List<Integer> outFieldIds;
+    // 子节点批的列视图
+    private transient TupleBatch view;
 
     /**
      * Constructor accepts a child operator to read tuples to apply projection
@@ -81,6 +84,23 @@ public class Project extends Operator {
         return newTuple;
     }
 
+    /**
+     * Batch version of fetchNext: returns a view of the child's batch that
+     * shares its columns, so no values are copied.
+     */
+    @Override
+    protected TupleBatch fetchNextBatch() throws TransactionAbortedException, DbException {
+        TupleBatch batch = child.nextBatch();
+        if (batch == null) {
+            return null;
+        }
+        if (view == null) {
+            view = new TupleBatch(td, 0);
+        }
+        view.project(batch, outFieldIds);
+        return view;
+    }
+
     @Override
     public OpIterator[] getChildren() {
         return new OpIterator[]{this.child};
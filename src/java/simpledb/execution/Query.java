@@ -5,6 +5,7 @@ import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 import simpledb.common.DbException;
 import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
 import simpledb.storage.TupleDesc;
 
 import java.io.*;
@@ -15,6 +16,10 @@ import java.util.*;
  * plan in the form of a high level OpIterator (built by initiating the
  * constructors of query plans) and runs it as a part of a specified
  * transaction.
+ * <p>
+ * An application that reads the result itself should use a
+ * {@link QueryCursor} from {@link #cursor()} or {@link #cursor(int)}, which
+ * returns the tuples in batches as the plan produces them.
  * 
  * @author Sam Madden
  */
@@ -99,6 +104,36 @@ public class Query implements Serializable {
         started = false;
     }
 
+    /**
+     * Run the query on this thread as the returned cursor is read.
+     *
+     * @return a cursor over the result, to be closed by the caller
+     * @throws DbException if the query is already running through
+     *                     {@link #start}, or cannot be opened
+     */
+    public QueryCursor cursor() throws DbException, TransactionAbortedException {
+        if (started)
+            throw new DbException("Query already started.");
+        return new QueryCursor(op, 0);
+    }
+
+    /**
+     * Run the query on a worker thread, which produces at most
+     * bufferedBatches batches of the result ahead of the reader of the
+     * returned cursor.
+     *
+     * @param bufferedBatches the number of batches to buffer, at least 1;
+     *                        see {@link QueryCursor#DEFAULT_BUFFERED_BATCHES}
+     * @return a cursor over the result, to be closed by the caller
+     * @throws DbException if the query is already running through
+     *                     {@link #start}
+     */
+    public QueryCursor cursor(int bufferedBatches) throws DbException, TransactionAbortedException {
+        if (started)
+            throw new DbException("Query already started.");
+        return new QueryCursor(op, Math.max(1, bufferedBatches));
+    }
+
     public void execute() throws DbException, TransactionAbortedException {
         TupleDesc td = this.getOutputTupleDesc();
 
@@ -112,14 +147,16 @@ public class Query implements Serializable {
         }
         System.out.println();
 
-        this.start();
         int cnt = 0;
-        while (this.hasNext()) {
-            Tuple tup = this.next();
-            System.out.println(tup);
-            cnt++;
+        try (QueryCursor cursor = this.cursor()) {
+            TupleBatch batch;
+            while ((batch = cursor.nextBatch()) != null) {
+                for (int i = 0; i < batch.numRows(); i++) {
+                    System.out.println(batch.getTuple(batch.row(i)));
+                }
+                cnt += batch.numRows();
+            }
         }
         System.out.println("\n " + cnt + " rows.");
-        this.close();
     }
 }
@@ -0,0 +1,190 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * QueryCursor hands the result of a {@link Query} to an application a batch
+ * at a time, so that a large result is never held in memory as a whole.
+ * <p>
+ * A cursor from {@link Query#cursor()} runs the plan on the reader's thread:
+ * each {@link #nextBatch} pulls the next batch through the plan.  A cursor
+ * from {@link Query#cursor(int)} runs the plan on a worker thread, which
+ * stays at most a given number of batches ahead of the reader and then
+ * waits, so a slow reader holds the plan back instead of buffering the
+ * result.
+ * <p>
+ * {@link #cancel} may be called from any thread.  It stops the plan's
+ * worker threads and the producer thread of the cursor, and the reader
+ * sees the end of the result.  {@link #close} also waits for the plan to
+ * be closed, which deletes its spill files.  The locks the transaction took
+ * on the pages it read are kept until the transaction completes, as strict
+ * two-phase locking requires; complete or abort it to release them.
+ */
+public final class QueryCursor implements AutoCloseable {
+
+    /** Default number of batches a cursor run on a worker thread buffers. */
+    public static final int DEFAULT_BUFFERED_BATCHES = 4;
+
+    private final OpIterator plan;
+    // 在工作线程上执行时的队列和线程，否则为 null
+    private final ExchangeQueue queue;
+    private final Future<?> producer;
+    private volatile boolean cancelled = false;
+    private boolean closed = false;
+    // next() 正在逐行返回的批次
+    private TupleBatch current;
+    private int pos;
+
+    /**
+     * Open plan and return a cursor over its tuples.
+     *
+     * @param plan            the plan of a query, not yet opened
+     * @param bufferedBatches the number of batches a worker thread may
+     *                        produce ahead of the reader, or 0 to run the
+     *                        plan on the reader's thread
+     */
+    QueryCursor(OpIterator plan, int bufferedBatches) throws DbException, TransactionAbortedException {
+        this.plan = plan;
+        if (bufferedBatches <= 0) {
+            this.queue = null;
+            this.producer = null;
+            plan.open();
+        } else {
+            this.queue = new ExchangeQueue(bufferedBatches, 1);
+            this.producer = WorkerPool.get().submit(this::produce);
+        }
+    }
+
+    // 工作线程：执行计划，把批次的副本交给读者
+    private void produce() {
+        try {
+            this.plan.open();
+            TupleBatch batch;
+            while (!this.queue.isCancelled() && (batch = this.plan.nextBatch()) != null) {
+                // 算子会复用返回的批次
+                if (batch.numRows() > 0 && !this.queue.put(batch.copy())) {
+                    break;
+                }
+            }
+            this.queue.done();
+        } catch (Throwable t) {
+            this.queue.fail(t);
+        } finally {
+            this.plan.close();
+        }
+    }
+
+    /** @return the schema of the tuples of the result */
+    public TupleDesc getTupleDesc() {
+        return this.plan.getTupleDesc();
+    }
+
+    /**
+     * Returns the next batch of the result.  A batch of a cursor run on the
+     * reader's thread is only valid until the next call; one of a cursor
+     * run on a worker thread belongs to the reader.
+     *
+     * @return the next non-empty batch, or null at the end of the result or
+     * once the cursor is cancelled or closed
+     * @throws TransactionAbortedException if the transaction was aborted
+     * @throws DbException                 if the plan failed
+     */
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        if (this.current != null && this.pos < this.current.numRows()) {
+            // next() 还没有读完的批次，只返回剩下的行
+            TupleBatch b = new TupleBatch(this.current.getTupleDesc(), this.current.numRows() - this.pos);
+            while (this.pos < this.current.numRows()) {
+                b.addRow(this.current, this.current.row(this.pos++));
+            }
+            this.current = null;
+            return b;
+        }
+        this.current = null;
+        if (this.closed) {
+            return null;
+        }
+        if (this.cancelled) {
+            close();
+            return null;
+        }
+        TupleBatch b = this.queue != null ? this.queue.take() : this.plan.nextBatch();
+        if (b == null) {
+            // 结果读完，尽早释放计划占用的资源
+            close();
+        }
+        return b;
+    }
+
+    /** @return true if the result has more tuples */
+    public boolean hasNext() throws DbException, TransactionAbortedException {
+        while (this.current == null || this.pos >= this.current.numRows()) {
+            this.current = null;
+            TupleBatch b = nextBatch();
+            if (b == null) {
+                return false;
+            }
+            this.current = b;
+            this.pos = 0;
+        }
+        return true;
+    }
+
+    /** @return the next tuple of the result */
+    public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException {
+        if (!hasNext()) {
+            throw new NoSuchElementException("no next tuple");
+        }
+        return this.current.getTuple(this.current.row(this.pos++));
+    }
+
+    /**
+     * Stop the query.  Safe to call from any thread, e.g. while the reader
+     * waits in {@link #nextBatch}; the reader then sees the end of the
+     * result.
+     */
+    public void cancel() {
+        this.cancelled = true;
+        if (this.queue != null) {
+            this.queue.cancel();
+        }
+        ExchangeProducers.cancelExchanges(new OpIterator[]{this.plan});
+    }
+
+    /** @return true if {@link #cancel} was called */
+    public boolean isCancelled() {
+        return this.cancelled;
+    }
+
+    /**
+     * Stop the query if it is still running and close its plan.  Called by
+     * the reader; waits for a worker thread running the plan to close it.
+     */
+    @Override
+    public void close() {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+        this.current = null;
+        if (this.queue == null) {
+            this.plan.close();
+            return;
+        }
+        this.queue.cancel();
+        try {
+            this.producer.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException ignored) {
+            // produce 自己处理了异常
+        }
+    }
+}
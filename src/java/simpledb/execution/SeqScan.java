@@ -3,18 +3,38 @@ package simpledb.execution;
 import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Type;
+import simpledb.storage.AbstractDbFileIterator;
+import simpledb.storage.DbFile;
 import simpledb.storage.DbFileIterator;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
 import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
 import simpledb.storage.TupleDesc;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.NoSuchElementException;
 
 /**
  * SeqScan is an implementation of a sequential scan access method that reads
  * each tuple of a table in no particular order (e.g., as they are laid out on
  * disk).
+ * <p>
+ * Predicates can be pushed into the scan, by a {@link Filter} directly above
+ * it or with {@link #setPredicates}; the scan then returns only the tuples
+ * that satisfy them.  Over a HeapFile it skips the pages that the file's
+ * {@link simpledb.storage.ZoneMap zone map} rules out, and checks the
+ * predicates on the bytes of the other pages, building only the tuples
+ * that pass.  The key range of a {@link JoinKeyFilter} is used the same
+ * way.
+ * <p>
+ * With {@link #setProjection} the scan returns only some fields of the
+ * table; the planner sets it to the fields the rest of the query uses, so
+ * that the operators above carry narrow tuples and a HeapFile does not
+ * even decode the other fields.
  */
 public class SeqScan implements OpIterator {
 
@@ -24,6 +44,17 @@ public class SeqScan implements OpIterator {
     private int tableId;
     private String tableAlias;
     private DbFileIterator iterator;
+    // nextBatch 复用的批
+    private transient TupleBatch batch;
+    // 连接下推的键过滤，null 表示没有；可能由其他线程设置
+    private volatile JoinKeyFilter keyFilter;
+    private volatile int keyField;
+    // 有键过滤时 hasNext 预取的元组
+    private transient Tuple nextTuple;
+    // 下推到扫描的谓词，null 表示没有
+    private List<Predicate> predicates;
+    // 返回的字段在文件中的编号，null 表示全部字段
+    private int[] projection;
 
     /**
      * Creates a sequential scan over the specified table as a part of the
@@ -62,6 +93,107 @@ public class SeqScan implements OpIterator {
         return this.tableAlias;
     }
 
+    /**
+     * @return the id of the table this operator scans
+     */
+    public int getTableId() {
+        return this.tableId;
+    }
+
+    /**
+     * @return the transaction this operator scans on behalf of
+     */
+    public TransactionId getTransactionId() {
+        return this.tid;
+    }
+
+    /**
+     * Only return the tuples whose field might match a key of the build side
+     * of a join; set by the join, see {@link JoinKeyFilter#push}.
+     *
+     * @param field  the join key
+     * @param filter the build keys, or null to return every tuple
+     */
+    public void setKeyFilter(int field, JoinKeyFilter filter) {
+        this.keyField = field;
+        this.keyFilter = filter;
+    }
+
+    /** @return the filter set by {@link #setKeyFilter}, or null */
+    public JoinKeyFilter getKeyFilter() {
+        return this.keyFilter;
+    }
+
+    /** @return the field the filter set by {@link #setKeyFilter} applies to */
+    protected int getKeyField() {
+        return this.keyField;
+    }
+
+    /**
+     * Only return the tuples that satisfy all of the predicates.  Takes
+     * effect at the next open() or rewind().
+     *
+     * @param ps the predicates, or null for none
+     */
+    public void setPredicates(List<Predicate> ps) {
+        this.predicates = ps == null || ps.isEmpty() ? null : ps;
+    }
+
+    /** @return the predicates set by {@link #setPredicates}, or null */
+    public List<Predicate> getPredicates() {
+        return this.predicates;
+    }
+
+    /**
+     * Only return the given fields of the table, in that order.  Field
+     * numbers given to this scan afterwards, in predicates and key filters,
+     * and those of its TupleDesc refer to the fields returned.  Takes effect
+     * at the next open() or rewind().
+     *
+     * @param fields fields of the table, or null to return all of them
+     */
+    public void setProjection(int[] fields) {
+        this.projection = fields;
+    }
+
+    /** @return the fields of the table set by {@link #setProjection}, or null */
+    public int[] getProjection() {
+        return this.projection;
+    }
+
+    // 返回的第 field 个字段在文件中的编号
+    private int fileField(int field) {
+        return this.projection == null ? field : this.projection[field];
+    }
+
+    /**
+     * @return the predicates the file is read with, on the fields of the
+     * file: those set by {@link #setPredicates}, plus the key range of the
+     * filter set by {@link #setKeyFilter}; null if there are none
+     */
+    protected List<Predicate> scanPredicates() {
+        JoinKeyFilter f = this.keyFilter;
+        int field = fileField(this.keyField);
+        boolean range = f != null && f.hasRange()
+                && Database.getCatalog().getTupleDesc(this.tableId).getFieldType(field) == Type.INT_TYPE;
+        if (!range && (this.projection == null || this.predicates == null)) {
+            return this.predicates;
+        }
+        List<Predicate> ps = new ArrayList<>();
+        if (this.predicates != null) {
+            for (Predicate p : this.predicates) {
+                ps.add(this.projection == null ? p
+                        : new Predicate(fileField(p.getFieldNo()), p.getOp(), p.getOperand()));
+            }
+        }
+        if (range) {
+            // 连接键的范围之外的页不可能有匹配的元组
+            ps.add(new Predicate(field, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(f.getMin())));
+            ps.add(new Predicate(field, Predicate.Op.LESS_THAN_OR_EQ, new IntField(f.getMax())));
+        }
+        return ps;
+    }
+
     /**
      * Reset the tableid, and tableAlias of this operator.
      *
@@ -86,8 +218,41 @@ public class SeqScan implements OpIterator {
     @Override
     public void open() throws DbException, TransactionAbortedException {
         // some code goes here
-        iterator = Database.getCatalog().getDatabaseFile(tableId).iterator(tid);
+        iterator = newIterator();
         iterator.open();
+        nextTuple = null;
+    }
+
+    /**
+     * @return a new iterator over the tuples this scan returns; by default
+     * the projected tuples of the table that satisfy {@link #scanPredicates}.
+     * Called by open() and rewind().
+     */
+    protected DbFileIterator newIterator() {
+        DbFile f = Database.getCatalog().getDatabaseFile(this.tableId);
+        List<Predicate> ps = scanPredicates();
+        if (f instanceof HeapFile) {
+            return ((HeapFile) f).iterator(this.tid, ps, this.projection);
+        }
+        if (ps == null && this.projection == null) {
+            return f.iterator(this.tid);
+        }
+        return new FilteredIterator(f.iterator(this.tid), ps, this.projection);
+    }
+
+    /**
+     * @return an iterator over the projected tuples of pages fromPage
+     * (inclusive) to toPage (exclusive) of the table that satisfy
+     * {@link #scanPredicates}, for threads that each read a part of the
+     * table.  The Bloom filter of a key filter is not applied.
+     * @throws DbException if the table is not stored in a HeapFile
+     */
+    public DbFileIterator iterator(int fromPage, int toPage) throws DbException {
+        DbFile f = Database.getCatalog().getDatabaseFile(this.tableId);
+        if (!(f instanceof HeapFile)) {
+            throw new DbException("table " + this.tableId + " is not a heap file");
+        }
+        return ((HeapFile) f).iterator(this.tid, fromPage, toPage, scanPredicates(), this.projection);
     }
 
     /**
@@ -104,6 +269,9 @@ public class SeqScan implements OpIterator {
     public TupleDesc getTupleDesc() {
         // some code goes here
         TupleDesc tupleDesc = Database.getCatalog().getTupleDesc(this.tableId);
+        if (this.projection != null) {
+            tupleDesc = tupleDesc.project(this.projection);
+        }
         Type[] types = new Type[tupleDesc.numFields()];
         String[] names = new String[tupleDesc.numFields()];
         for (int i = 0; i < tupleDesc.numFields(); i++) {
@@ -119,7 +287,19 @@ public class SeqScan implements OpIterator {
         if (this.iterator == null) {
             return false;
         }
-        return this.iterator.hasNext();
+        JoinKeyFilter f = this.keyFilter;
+        if (f == null && this.nextTuple == null) {
+            return this.iterator.hasNext();
+        }
+        // 跳过键不可能匹配的元组
+        int field = this.keyField;
+        while (this.nextTuple == null && this.iterator.hasNext()) {
+            Tuple t = this.iterator.next();
+            if (f == null || f.mightMatch(t.getField(field))) {
+                this.nextTuple = t;
+            }
+        }
+        return this.nextTuple != null;
     }
 
     @Override
@@ -129,6 +309,14 @@ public class SeqScan implements OpIterator {
         if (this.iterator == null) {
             throw new NoSuchElementException("no next tuple");
         }
+        if (this.keyFilter != null || this.nextTuple != null) {
+            if (!hasNext()) {
+                throw new NoSuchElementException("no next tuple");
+            }
+            Tuple t = this.nextTuple;
+            this.nextTuple = null;
+            return t;
+        }
         Tuple t = this.iterator.next();
         if (t == null) {
             throw new NoSuchElementException("no next tuple");
@@ -136,16 +324,104 @@ public class SeqScan implements OpIterator {
         return t;
     }
 
+    @Override
+    public TupleBatch nextBatch() throws TransactionAbortedException, DbException {
+        if (this.iterator == null) {
+            return null;
+        }
+        if (this.batch == null) {
+            this.batch = new TupleBatch(getTupleDesc());
+        }
+        JoinKeyFilter f = this.keyFilter;
+        int field = this.keyField;
+        do {
+            this.batch.clear();
+            if (this.nextTuple != null) {
+                this.batch.addTuple(this.nextTuple);
+                this.nextTuple = null;
+            }
+            while (!this.batch.isFull() && this.iterator.hasNext()) {
+                this.batch.addTuple(this.iterator.next());
+            }
+            if (f != null) {
+                f.filter(this.batch, field);
+            }
+        } while (this.batch.numRows() == 0 && this.iterator.hasNext());
+        return this.batch.numRows() > 0 ? this.batch : null;
+    }
+
     @Override
     public void close() {
         // some code goes here
-        this.iterator.close();
+        if (this.iterator != null) {
+            this.iterator.close();
+        }
+        this.batch = null;
+        this.nextTuple = null;
     }
 
     @Override
     public void rewind() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         // some code goes here
-        this.iterator.rewind();
+        // 重新生成迭代器，下推的谓词可能变了
+        this.iterator.close();
+        this.iterator = newIterator();
+        this.iterator.open();
+        this.nextTuple = null;
+    }
+
+    // 其他文件的迭代器：读出元组后检查谓词，再取出投影的字段
+    private static final class FilteredIterator extends AbstractDbFileIterator {
+        private final DbFileIterator it;
+        private final CompiledPredicate predicate;
+        private final int[] fields;
+        private TupleDesc projected;
+
+        FilteredIterator(DbFileIterator it, List<Predicate> predicates, int[] fields) {
+            this.it = it;
+            this.predicate = predicates == null ? null : CompiledPredicate.compile(predicates);
+            this.fields = fields;
+        }
+
+        @Override
+        public void open() throws DbException, TransactionAbortedException {
+            this.it.open();
+        }
+
+        @Override
+        protected Tuple readNext() throws DbException, TransactionAbortedException {
+            while (this.it.hasNext()) {
+                Tuple t = this.it.next();
+                if (this.predicate != null && !this.predicate.test(t)) {
+                    continue;
+                }
+                if (this.fields == null) {
+                    return t;
+                }
+                if (this.projected == null) {
+                    this.projected = t.getTupleDesc().project(this.fields);
+                }
+                Tuple p = new Tuple(this.projected);
+                p.setRecordId(t.getRecordId());
+                for (int k = 0; k < this.fields.length; k++) {
+                    p.setField(k, t.getField(this.fields[k]));
+                }
+                return p;
+            }
+            return null;
+        }
+
+        @Override
+        public void rewind() throws DbException, TransactionAbortedException {
+            super.close();
+            this.it.rewind();
+        }
+
+        @Override
+        public void close() {
+            super.close();
+            this.it.close();
+        }
     }
 }
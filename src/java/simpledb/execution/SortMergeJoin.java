@@ -0,0 +1,396 @@
+package simpledb.execution;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeScan;
+import simpledb.storage.DbFile;
+import simpledb.storage.Field;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * SortMergeJoin sorts both children on their join fields with an
+ * {@link ExternalSort} and merges them.  It handles equality joins, the
+ * inequality joins (<, <=, >, >=), and band joins |t1.f1 - t2.f2| <= width
+ * on integer fields.
+ * <p>
+ * For each child1 tuple in key order the matching child2 tuples form a
+ * contiguous range of sorted child2 whose two ends only move forward, so
+ * the join keeps that range as a sliding window and reads child2 once.  A
+ * window larger than the memory budget is kept in a spill file.  A child
+ * that is a scan of a BTreeFile keyed on its join field is already in
+ * order and is not sorted again.
+ */
+public class SortMergeJoin extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Default memory budget, in tuples held per sorted run or window. */
+    public final static int MEMORY_BUDGET = 20000;
+
+    private final JoinPredicate pred;
+    // 带状连接的宽度，-1 表示普通连接
+    private final int width;
+    private OpIterator child1, child2;
+    private int memoryBudget = MEMORY_BUDGET;
+
+    private transient TupleDesc comboTD;
+    private transient ExternalSort sort1, sort2;
+    private transient Tuple t1;
+    private transient Tuple lookahead;
+    private transient boolean child2Done;
+    // 窗口：当前 child1 元组匹配的 child2 元组，按 key 排序
+    private transient ArrayDeque<Field> windowKeys;
+    private transient ArrayDeque<Tuple> windowTuples;
+    private transient SpillFile windowFile;
+    private transient int windowFileSkip;
+    // 遍历窗口的位置
+    private transient Iterator<Tuple> windowIt;
+    private transient SpillFile.Reader windowReader;
+    private transient int windowRemaining;
+
+    /**
+     * Constructor.
+     *
+     * @param p      The predicate to use to join the children; NOT_EQUALS and
+     *               LIKE are not supported
+     * @param child1 Iterator for the left(outer) relation to join
+     * @param child2 Iterator for the right(inner) relation to join
+     */
+    public SortMergeJoin(JoinPredicate p, OpIterator child1, OpIterator child2) {
+        this(p, -1, child1, child2);
+    }
+
+    /**
+     * Constructor for a band join, matching the tuples with
+     * |t1.field1 - t2.field2| <= width.  Both fields must be integers.
+     */
+    public SortMergeJoin(int field1, int field2, int width, OpIterator child1, OpIterator child2) {
+        this(new JoinPredicate(field1, Predicate.Op.EQUALS, field2), width, child1, child2);
+        if (width < 0) {
+            throw new IllegalArgumentException("band width must not be negative");
+        }
+    }
+
+    private SortMergeJoin(JoinPredicate p, int width, OpIterator child1, OpIterator child2) {
+        if (!supports(p.getOperator())) {
+            throw new IllegalArgumentException("sort-merge join cannot evaluate " + p.getOperator());
+        }
+        this.pred = p;
+        this.width = width;
+        this.child1 = child1;
+        this.child2 = child2;
+    }
+
+    /**
+     * @return true if a sort-merge join can evaluate a join with operator op
+     */
+    public static boolean supports(Predicate.Op op) {
+        return op != Predicate.Op.NOT_EQUALS && op != Predicate.Op.LIKE;
+    }
+
+    /**
+     * @return the predicate of this join.  For a band join this is an
+     * EQUALS predicate on the two fields; see {@link #getBandWidth}.
+     */
+    public JoinPredicate getJoinPredicate() {
+        return this.pred;
+    }
+
+    /** @return the width of a band join, or -1 if this is not a band join */
+    public int getBandWidth() {
+        return this.width;
+    }
+
+    public String getJoinField1Name() {
+        return this.child1.getTupleDesc().getFieldName(this.pred.getField1());
+    }
+
+    public String getJoinField2Name() {
+        return this.child2.getTupleDesc().getFieldName(this.pred.getField2());
+    }
+
+    /**
+     * Set the number of tuples held in memory per sorted run and in the
+     * window.  Takes effect at the next open() or rewind().
+     */
+    public void setMemoryBudget(int tuples) {
+        this.memoryBudget = tuples;
+    }
+
+    @Override
+    public TupleDesc getTupleDesc() {
+        return TupleDesc.merge(this.child1.getTupleDesc(), this.child2.getTupleDesc());
+    }
+
+    /**
+     * @return the field child is already sorted on, ascending, or -1.  A
+     * BTreeFile returns its tuples in key order both from a full scan and
+     * from an index search, and a Filter keeps the order of its child.
+     */
+    static int sortedField(OpIterator child) {
+        while (child instanceof Filter) {
+            child = ((Filter) child).getChildren()[0];
+        }
+        DbFile f = null;
+        if (child instanceof BTreeScan) {
+            f = Database.getCatalog().getDatabaseFile(
+                    Database.getCatalog().getTableId(((BTreeScan) child).getTableName()));
+        } else if (child instanceof SeqScan) {
+            f = Database.getCatalog().getDatabaseFile(((SeqScan) child).getTableId());
+        }
+        return f instanceof BTreeFile ? ((BTreeFile) f).keyField() : -1;
+    }
+
+    @Override
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        this.child1.open();
+        this.child2.open();
+        this.comboTD = getTupleDesc();
+        start();
+        super.open();
+    }
+
+    // 对没有按连接字段排好序的输入做外部排序，然后初始化窗口
+    private void start() throws DbException, TransactionAbortedException {
+        this.sort1 = sortIfNeeded(this.child1, this.pred.getField1());
+        this.sort2 = sortIfNeeded(this.child2, this.pred.getField2());
+        this.windowKeys = new ArrayDeque<>();
+        this.windowTuples = new ArrayDeque<>();
+        this.windowFile = null;
+        this.windowFileSkip = 0;
+        this.t1 = null;
+        this.lookahead = null;
+        this.child2Done = false;
+        this.windowIt = null;
+        this.windowReader = null;
+    }
+
+    private ExternalSort sortIfNeeded(OpIterator child, int field)
+            throws DbException, TransactionAbortedException {
+        if (sortedField(child) == field) {
+            return null;
+        }
+        ExternalSort sort = new ExternalSort(child.getTupleDesc(),
+                new TupleComparator(field, true), this.memoryBudget);
+        while (child.hasNext()) {
+            sort.add(child.next());
+        }
+        sort.finish();
+        return sort;
+    }
+
+    private static Tuple nextSorted(ExternalSort sort, OpIterator child)
+            throws DbException, TransactionAbortedException {
+        if (sort != null) {
+            return sort.next();
+        }
+        return child.hasNext() ? child.next() : null;
+    }
+
+    private void cleanup() {
+        if (this.sort1 != null) {
+            this.sort1.close();
+            this.sort1 = null;
+        }
+        if (this.sort2 != null) {
+            this.sort2.close();
+            this.sort2 = null;
+        }
+        if (this.windowReader != null) {
+            this.windowReader.close();
+            this.windowReader = null;
+        }
+        if (this.windowFile != null) {
+            this.windowFile.delete();
+            this.windowFile = null;
+        }
+        this.windowKeys = null;
+        this.windowTuples = null;
+        this.windowIt = null;
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        this.child1.close();
+        this.child2.close();
+        cleanup();
+        this.t1 = null;
+        this.lookahead = null;
+    }
+
+    @Override
+    public void rewind() throws DbException, TransactionAbortedException {
+        cleanup();
+        this.child1.rewind();
+        this.child2.rewind();
+        start();
+    }
+
+    // 当 child1 的 key 为 v 时，key 为 w 的 child2 元组是否已经进入窗口的范围
+    private boolean admits(Field w, Field v) {
+        if (this.width >= 0) {
+            return (long) ((IntField) w).getValue() <= (long) ((IntField) v).getValue() + this.width;
+        }
+        switch (this.pred.getOperator()) {
+            case EQUALS:
+            case GREATER_THAN_OR_EQ:
+                return w.compare(Predicate.Op.LESS_THAN_OR_EQ, v);
+            case GREATER_THAN:
+                return w.compare(Predicate.Op.LESS_THAN, v);
+            default:
+                return true;
+        }
+    }
+
+    // key 为 w 的 child2 元组是否已经离开窗口；v 只增不减，离开后不会再匹配
+    private boolean expired(Field w, Field v) {
+        if (this.width >= 0) {
+            return (long) ((IntField) w).getValue() < (long) ((IntField) v).getValue() - this.width;
+        }
+        switch (this.pred.getOperator()) {
+            case EQUALS:
+            case LESS_THAN_OR_EQ:
+                return w.compare(Predicate.Op.LESS_THAN, v);
+            case LESS_THAN:
+                return w.compare(Predicate.Op.LESS_THAN_OR_EQ, v);
+            default:
+                return false;
+        }
+    }
+
+    private void addToWindow(Tuple t2) throws DbException {
+        this.windowKeys.addLast(t2.getField(this.pred.getField2()));
+        if (this.windowFile != null) {
+            this.windowFile.add(t2);
+            return;
+        }
+        this.windowTuples.addLast(t2);
+        if (this.windowTuples.size() > this.memoryBudget) {
+            // 窗口超出预算，之后都放在溢出文件里
+            this.windowFile = new SpillFile(this.child2.getTupleDesc());
+            for (Tuple t : this.windowTuples) {
+                this.windowFile.add(t);
+            }
+            this.windowTuples.clear();
+            this.windowFileSkip = 0;
+        }
+    }
+
+    private void dropFirst() {
+        this.windowKeys.pollFirst();
+        if (this.windowFile == null) {
+            this.windowTuples.pollFirst();
+        } else if (this.windowKeys.isEmpty()) {
+            this.windowFile.delete();
+            this.windowFile = null;
+            this.windowFileSkip = 0;
+        } else {
+            this.windowFileSkip++;
+        }
+    }
+
+    // 让窗口对应 key 为 v 的 child1 元组，并从头开始遍历它
+    private void slideWindow(Field v) throws DbException, TransactionAbortedException {
+        while (!this.child2Done) {
+            if (this.lookahead == null) {
+                this.lookahead = nextSorted(this.sort2, this.child2);
+                if (this.lookahead == null) {
+                    this.child2Done = true;
+                    break;
+                }
+            }
+            if (!admits(this.lookahead.getField(this.pred.getField2()), v)) {
+                break;
+            }
+            addToWindow(this.lookahead);
+            this.lookahead = null;
+        }
+        while (!this.windowKeys.isEmpty() && expired(this.windowKeys.peekFirst(), v)) {
+            dropFirst();
+        }
+        if (this.windowFile == null) {
+            this.windowIt = this.windowTuples.iterator();
+        } else {
+            this.windowReader = this.windowFile.reader();
+            this.windowReader.skip(this.windowFileSkip);
+            this.windowRemaining = this.windowKeys.size();
+        }
+    }
+
+    private Tuple nextInWindow() throws DbException {
+        if (this.windowIt != null) {
+            if (this.windowIt.hasNext()) {
+                return this.windowIt.next();
+            }
+            this.windowIt = null;
+        } else if (this.windowReader != null) {
+            if (this.windowRemaining > 0) {
+                this.windowRemaining--;
+                return this.windowReader.next();
+            }
+            this.windowReader.close();
+            this.windowReader = null;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the next tuple generated by the join, or null if there are no
+     * more tuples.  Tuples come out ordered on the join field of child1.
+     */
+    @Override
+    protected Tuple fetchNext() throws TransactionAbortedException, DbException {
+        while (true) {
+            if (this.t1 != null) {
+                Tuple t2 = nextInWindow();
+                if (t2 != null) {
+                    return merge(this.t1, t2);
+                }
+            }
+            // child2 读完且窗口为空时，之后的 child1 元组都不会再匹配
+            if (this.child2Done && this.windowKeys.isEmpty()) {
+                return null;
+            }
+            this.t1 = nextSorted(this.sort1, this.child1);
+            if (this.t1 == null) {
+                return null;
+            }
+            slideWindow(this.t1.getField(this.pred.getField1()));
+        }
+    }
+
+    // 合并两个元组
+    private Tuple merge(Tuple t1, Tuple t2) {
+        int n1 = t1.getTupleDesc().numFields();
+        Tuple newTuple = new Tuple(this.comboTD);
+        newTuple.setRecordId(t1.getRecordId());
+        for (int i = 0; i < n1; i++) {
+            newTuple.setField(i, t1.getField(i));
+        }
+        for (int j = 0; j < t2.getTupleDesc().numFields(); j++) {
+            newTuple.setField(n1 + j, t2.getField(j));
+        }
+        return newTuple;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{this.child1, this.child2};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child1 = children[0];
+        this.child2 = children[1];
+    }
+}
@@ -0,0 +1,186 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.storage.Field;
+import simpledb.storage.IntField;
+import simpledb.storage.StringField;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * SpillFile is a temporary file of tuples written by an operator that has
+ * run out of memory, e.g. a partition of a hash join.  Tuples are appended
+ * with {@link #add} and read back in the same order, any number of times,
+ * with {@link #reader}.  The file is created on the first add and removed
+ * by {@link #delete}.
+ * <p>
+ * Tuples are stored in a compact binary format rather than the page
+ * format: an int field takes 4 bytes and a string field a 2-byte length
+ * followed by its characters, without the padding to
+ * {@link Type#STRING_LEN}.  Record ids are not kept.
+ */
+class SpillFile {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final TupleDesc td;
+    private File file;
+    private DataOutputStream out;
+    private int size = 0;
+
+    SpillFile(TupleDesc td) {
+        this.td = td;
+    }
+
+    /** @return the number of tuples in this file */
+    int size() {
+        return this.size;
+    }
+
+    void add(Tuple t) throws DbException {
+        try {
+            if (this.out == null) {
+                if (this.file == null) {
+                    this.file = File.createTempFile("simpledb-spill", ".tmp");
+                    this.file.deleteOnExit();
+                }
+                this.out = new DataOutputStream(new BufferedOutputStream(
+                        new FileOutputStream(this.file, true), BUFFER_SIZE));
+            }
+            for (int i = 0; i < this.td.numFields(); i++) {
+                Field f = t.getField(i);
+                if (this.td.getFieldType(i) == Type.INT_TYPE) {
+                    this.out.writeInt(((IntField) f).getValue());
+                } else {
+                    String v = ((StringField) f).getValue();
+                    this.out.writeShort(v.length());
+                    this.out.writeBytes(v);
+                }
+            }
+            this.size++;
+        } catch (IOException e) {
+            throw new DbException("cannot write spill file: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Write out the buffered tuples and release the output stream.  Adding
+     * another tuple opens it again.
+     */
+    void flush() throws DbException {
+        try {
+            if (this.out != null) {
+                this.out.close();
+                this.out = null;
+            }
+        } catch (IOException e) {
+            throw new DbException("cannot write spill file: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return a reader over the tuples added so far.  Adding more tuples
+     * while the reader is in use is not allowed.
+     */
+    Reader reader() throws DbException {
+        flush();
+        try {
+            return new Reader();
+        } catch (IOException e) {
+            throw new DbException("cannot read spill file: " + e.getMessage());
+        }
+    }
+
+    /** Remove the file; this SpillFile must not be used afterwards. */
+    void delete() {
+        try {
+            if (this.out != null) {
+                this.out.close();
+                this.out = null;
+            }
+        } catch (IOException ignored) {
+            // 文件马上就删除了
+        }
+        if (this.file != null) {
+            this.file.delete();
+            this.file = null;
+        }
+        this.size = 0;
+    }
+
+    /** Reads the tuples of a SpillFile in the order they were added. */
+    class Reader {
+        private final DataInputStream in;
+        private int remaining;
+
+        private Reader() throws IOException {
+            this.remaining = SpillFile.this.size;
+            this.in = this.remaining == 0 ? null : new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(SpillFile.this.file), BUFFER_SIZE));
+        }
+
+        /** @return the next tuple, or null at the end of the file */
+        Tuple next() throws DbException {
+            if (this.remaining == 0) {
+                close();
+                return null;
+            }
+            TupleDesc td = SpillFile.this.td;
+            Tuple t = new Tuple(td);
+            try {
+                for (int i = 0; i < td.numFields(); i++) {
+                    if (td.getFieldType(i) == Type.INT_TYPE) {
+                        t.setField(i, new IntField(this.in.readInt()));
+                    } else {
+                        byte[] bs = new byte[this.in.readUnsignedShort()];
+                        this.in.readFully(bs);
+                        t.setField(i, new StringField(new String(bs), Type.STRING_LEN));
+                    }
+                }
+            } catch (IOException e) {
+                throw new DbException("cannot read spill file: " + e.getMessage());
+            }
+            this.remaining--;
+            return t;
+        }
+
+        /** Skip over the next n tuples without building them. */
+        void skip(int n) throws DbException {
+            n = Math.min(n, this.remaining);
+            TupleDesc td = SpillFile.this.td;
+            try {
+                for (int k = 0; k < n; k++) {
+                    for (int i = 0; i < td.numFields(); i++) {
+                        int len = td.getFieldType(i) == Type.INT_TYPE ? 4 : this.in.readUnsignedShort();
+                        if (this.in.skipBytes(len) != len) {
+                            throw new DbException("spill file is shorter than expected");
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                throw new DbException("cannot read spill file: " + e.getMessage());
+            }
+            this.remaining -= n;
+        }
+
+        void close() {
+            if (this.in != null) {
+                try {
+                    this.in.close();
+                } catch (IOException ignored) {
+                    // 只读的临时文件，关闭失败无影响
+                }
+            }
+        }
+    }
+}
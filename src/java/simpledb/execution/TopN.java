@@ -0,0 +1,174 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * TopN implements ORDER BY ... LIMIT n: it returns the first n tuples of
+ * its child in the given order, like an {@link OrderBy} followed by a
+ * limit, but keeps only the n best tuples seen so far in a bounded heap.
+ * That takes O(n) memory and O(N log n) time for N input tuples instead of
+ * sorting all of them.
+ * <p>
+ * With no sort fields it returns the first n tuples of the child.  If the
+ * child is already ordered on the first sort field (a scan of a BTreeFile
+ * keyed on it, possibly filtered) and that field is ascending, the scan
+ * stops as soon as no later tuple can enter the result.
+ */
+public class TopN extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private OpIterator child;
+    private final TupleDesc td;
+    private final int[] orderByFields;
+    private final boolean[] asc;
+    private final int limit;
+
+    private transient List<Tuple> result;
+    private transient int pos;
+
+    /**
+     * Creates a new TopN node over the tuples from the iterator.
+     *
+     * @param orderbyFields the fields to which the sort is applied, most
+     *                      significant first; may be empty
+     * @param asc           for each field, true if the sort order is ascending
+     * @param limit         the number of tuples to return
+     * @param child         the tuples to sort
+     */
+    public TopN(int[] orderbyFields, boolean[] asc, int limit, OpIterator child) {
+        if (orderbyFields.length != asc.length) {
+            throw new IllegalArgumentException("need one sort order per ORDER BY field");
+        }
+        if (limit < 0) {
+            throw new IllegalArgumentException("LIMIT must not be negative");
+        }
+        this.child = child;
+        this.td = child.getTupleDesc();
+        this.orderByFields = orderbyFields.clone();
+        this.asc = asc.clone();
+        this.limit = limit;
+    }
+
+    /** @return the number of tuples this operator returns at most */
+    public int getLimit() {
+        return this.limit;
+    }
+
+    /**
+     * @return the fields sorted on, most significant first
+     */
+    public int[] getOrderByFields() {
+        return this.orderByFields.clone();
+    }
+
+    /**
+     * @return for each field of {@link #getOrderByFields}, whether it is
+     * sorted in ascending order
+     */
+    public boolean[] getAscending() {
+        return this.asc.clone();
+    }
+
+    @Override
+    public TupleDesc getTupleDesc() {
+        return this.td;
+    }
+
+    // 堆中的元组和它的输入序号，序号保证相等的元组按输入顺序输出
+    private static final class Entry {
+        final Tuple tuple;
+        final long seq;
+
+        Entry(Tuple tuple, long seq) {
+            this.tuple = tuple;
+            this.seq = seq;
+        }
+    }
+
+    @Override
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        this.child.open();
+        TupleComparator tc = new TupleComparator(this.orderByFields, this.asc);
+        Comparator<Entry> order = (a, b) -> {
+            int c = tc.compare(a.tuple, b.tuple);
+            return c != 0 ? c : Long.compare(a.seq, b.seq);
+        };
+        // 大顶堆，堆顶是目前结果中最靠后的元组
+        PriorityQueue<Entry> heap = new PriorityQueue<>(Math.max(1, Math.min(this.limit, 1024)),
+                order.reversed());
+        boolean sortedInput = this.orderByFields.length == 0
+                || (this.asc[0] && SortMergeJoin.sortedField(this.child) == this.orderByFields[0]);
+        long seq = 0;
+        while (this.limit > 0 && this.child.hasNext()) {
+            Tuple t = this.child.next();
+            if (heap.size() < this.limit) {
+                heap.add(new Entry(t, seq++));
+                continue;
+            }
+            Tuple worst = heap.peek().tuple;
+            if (sortedInput && (this.orderByFields.length == 0
+                    || TupleComparator.compareFields(t.getField(this.orderByFields[0]),
+                    worst.getField(this.orderByFields[0])) > 0)) {
+                // 输入有序，后面的元组都排在结果之后
+                break;
+            }
+            if (tc.compare(t, worst) < 0) {
+                heap.poll();
+                heap.add(new Entry(t, seq));
+            }
+            seq++;
+        }
+        List<Entry> entries = new ArrayList<>(heap);
+        entries.sort(order);
+        this.result = new ArrayList<>(entries.size());
+        for (Entry e : entries) {
+            this.result.add(e.tuple);
+        }
+        this.pos = 0;
+        super.open();
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        this.child.close();
+        this.result = null;
+    }
+
+    @Override
+    public void rewind() {
+        this.pos = 0;
+    }
+
+    /**
+     * Returns the next of the first n tuples in the ordering, or null if
+     * there are no more.
+     */
+    @Override
+    protected Tuple fetchNext() {
+        if (this.result != null && this.pos < this.result.size()) {
+            return this.result.get(this.pos++);
+        }
+        return null;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[]{this.child};
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child = children[0];
+    }
+}
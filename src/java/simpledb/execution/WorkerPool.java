@@ -0,0 +1,32 @@
+package simpledb.execution;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * WorkerPool holds the threads that run the parallel parts of query plans:
+ * the workers of parallel scans, aggregates and exchanges.  The threads
+ * are daemons, created on demand and reused, so an idle database keeps
+ * none busy.
+ */
+final class WorkerPool {
+
+    /**
+     * Default number of workers of a parallel operator.  One, so that a
+     * plan uses more threads only when its setParallelism asks for them.
+     */
+    static final int DEFAULT_PARALLELISM = 1;
+
+    private static final ExecutorService WORKERS = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "simpledb-worker");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private WorkerPool() {
+    }
+
+    static ExecutorService get() {
+        return WORKERS;
+    }
+}
@@ -3,6 +3,8 @@ package simpledb.optimizer;
 import simpledb.common.Database;
 import simpledb.ParsingException;
 import simpledb.execution.*;
+import simpledb.index.BTreeFile;
+import simpledb.storage.DbFile;
 import simpledb.storage.TupleDesc;
 
 import java.util.*;
@@ -39,6 +41,13 @@ public class JoinOptimizer {
      * inner/outer here -- because OpIterator's don't provide any cardinality
      * estimates, and stats only has information about the base tables. For this
      * reason, the plan1
+     * <p>
+     * An IndexNestedLoopJoin is used for an equality join when plan2 scans
+     * a BTreeFile keyed on the join field, a HashEquiJoin for other
+     * equality joins, a SortMergeJoin for range joins, and a block
+     * nested-loop Join otherwise.  A range join does not probe the index,
+     * since each probe would read a sizeable part of the leaves; it is
+     * sorted and merged instead.
      * 
      * @param lj
      *            The join being considered
@@ -73,7 +82,11 @@ public class JoinOptimizer {
 
         JoinPredicate p = new JoinPredicate(t1id, lj.p, t2id);
 
-        if (lj.p == Predicate.Op.EQUALS) {
+        if (!(lj instanceof LogicalSubplanJoinNode) && lj.p == Predicate.Op.EQUALS
+                && IndexNestedLoopJoin.canUseIndex(p, plan2)) {
+            // 内层表在连接字段上有 B+ 树索引，逐个外层元组查索引
+            j = new IndexNestedLoopJoin(p, plan1, plan2);
+        } else if (lj.p == Predicate.Op.EQUALS) {
 
             try {
                 // dynamically load HashEquiJoin -- if it doesn't exist, just
@@ -85,6 +98,9 @@ public class JoinOptimizer {
             } catch (Exception e) {
                 j = new Join(p, plan1, plan2);
             }
+        } else if (SortMergeJoin.supports(lj.p)) {
+            // 范围连接用排序归并
+            j = new SortMergeJoin(p, plan1, plan2);
         } else {
             j = new Join(p, plan1, plan2);
         }
@@ -126,12 +142,83 @@ public class JoinOptimizer {
             // You do not need to implement proper support for these for Lab 3.
             return card1 + cost1 + cost2;
         } else {
-            // Insert your code here.
-            // HINT: You may need to use the variable "j" if you implemented
-            // a join algorithm that's more complicated than a basic
-            // nested-loops join.
-            return -1.0;
+            double cost;
+            if (j.p == Predicate.Op.EQUALS) {
+                // 等值连接的代价沿用嵌套循环的模型：每个外层元组扫描一遍内层，并比较每一对元组
+                cost = cost1 + card1 * cost2 + (double) card1 * card2;
+                BTreeFile index = innerIndex(j);
+                if (index != null) {
+                    cost = Math.min(cost, indexJoinCost(index, card1, cost1, cost2));
+                }
+            } else {
+                // 块嵌套循环：每块外层元组扫描一遍内层
+                double blocks = Math.ceil((double) card1 / blockTuples(j.t1Alias));
+                cost = cost1 + blocks * cost2 + (double) card1 * card2;
+                if (SortMergeJoin.supports(j.p)) {
+                    // 排序归并：两边各排序一次，再遍历窗口里的每一对匹配元组
+                    double sortMerge = cost1 + cost2 + sortCost(card1, cost1) + sortCost(card2, cost2)
+                            + card1 + card2 + RANGE_MATCH_FRACTION * card1 * card2;
+                    cost = Math.min(cost, sortMerge);
+                }
+            }
+            return cost;
+        }
+    }
+
+    /** The fraction of all pairs a range join is assumed to match. */
+    static final double RANGE_MATCH_FRACTION = 0.3;
+
+    /** The assumed number of children of an internal page of a B+ tree. */
+    static final int INDEX_FANOUT = 200;
+
+    // 外层表的元组在一个 Join 块中能放下的个数；外层是连接结果时按基表估计
+    private int blockTuples(String alias) {
+        Integer tableId = this.p.getTableId(alias);
+        if (tableId == null) {
+            return 1;
         }
+        return Join.blockTuples(Database.getCatalog().getTupleDesc(tableId));
+    }
+
+    // 内层表按连接字段建了 B+ 树索引时返回这个文件，否则返回 null
+    private BTreeFile innerIndex(LogicalJoinNode j) {
+        Integer tableId = this.p.getTableId(j.t2Alias);
+        if (tableId == null) {
+            return null;
+        }
+        DbFile f = Database.getCatalog().getDatabaseFile(tableId);
+        if (!(f instanceof BTreeFile)) {
+            return null;
+        }
+        try {
+            return f.getTupleDesc().fieldNameToIndex(j.f2PureName) == ((BTreeFile) f).keyField()
+                    ? (BTreeFile) f : null;
+        } catch (NoSuchElementException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Estimate the cost of an equality join that probes index, the B+ tree
+     * of the inner table, once per outer tuple: each probe reads the pages
+     * on the path from the root to a leaf, each costing as much as one page
+     * of a full scan of the inner table, and compares the tuple it finds.
+     */
+    private static double indexJoinCost(BTreeFile index, int card1, double cost1, double cost2) {
+        int pages = Math.max(1, index.numPages());
+        double depth = 1 + Math.ceil(Math.log(pages) / Math.log(INDEX_FANOUT));
+        return cost1 + card1 * (depth * cost2 / pages + 1);
+    }
+
+    /**
+     * Estimate the cost of an external sort of card tuples whose scan costs
+     * cost: the comparisons, plus writing and reading the sorted runs again
+     * when they do not fit in memory.
+     */
+    private static double sortCost(int card, double cost) {
+        double compares = card > 1 ? card * (Math.log(card) / Math.log(2)) : 0;
+        double spill = card > SortMergeJoin.MEMORY_BUDGET ? 2 * cost : 0;
+        return compares + spill;
     }
 
     /**
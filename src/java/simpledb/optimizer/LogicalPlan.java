@@ -16,8 +16,8 @@ import java.io.File;
  * <p>
  * A LogicalPlan consits of a collection of table scan nodes, join
  * nodes, filter nodes, a select list, and a group by field.
- * LogicalPlans can only represent queries with one aggregation field
- * and one group by field.
+ * LogicalPlans can represent queries with any number of aggregates
+ * and at most one group by field.
  * <p>
  * LogicalPlans can be converted to physical (optimized) plans using
  * the {@link #physicalPlan} method, which uses the
@@ -34,11 +34,14 @@ public class LogicalPlan {
     private final List<LogicalSelectListNode> selectList;
     private String groupByField = null;
     private boolean hasAgg = false;
-    private String aggOp;
-    private String aggField;
-    private boolean oByAsc, hasOrderBy = false;
-    private String oByField;
+    private final List<String> aggOps = new ArrayList<>();
+    private final List<String> aggFields = new ArrayList<>();
+    private boolean hasOrderBy = false;
+    private int limit = -1;
+    private final List<String> oByFields = new ArrayList<>();
+    private final List<Boolean> oByAscs = new ArrayList<>();
     private String query;
+    private int parallelism = 1;
 //    private Query owner;
 
     /** Constructor -- generate an empty logical plan */
@@ -189,8 +192,8 @@ public class LogicalPlan {
     }
     
     /** Add an aggregate over the field with the specified grouping to
-        the query.  SimpleDb only supports a single aggregate
-        expression and GROUP BY field.
+        the query.  Each call adds one more aggregate, computed in the same
+        pass as the others; all of them must have the same GROUP BY field.
         @param op the aggregation operator
         @param afield the field to aggregate over
         @param gfield the field to group by
@@ -200,25 +203,57 @@ public class LogicalPlan {
         afield=disambiguateName(afield);
         if (gfield!=null)
             gfield=disambiguateName(gfield);
-        aggOp = op;
-        aggField = afield;
+        if (hasAgg && !Objects.equals(groupByField, gfield)) {
+            throw new ParsingException("All aggregates must have the same GROUP BY field");
+        }
+        aggOps.add(op);
+        aggFields.add(afield);
         groupByField = gfield;
         hasAgg = true;
     }
 
-    /** Add an ORDER BY expression in the specified order on the specified field.  SimpleDb only supports
-        a single ORDER BY field.
+    /** Add an ORDER BY expression in the specified order on the specified field.  Each call adds
+        one more sort key, less significant than the ones added before it.
         @param field the field to order by
         @param asc true if should be ordered in ascending order, false for descending order
      * @throws ParsingException 
     */
     public void addOrderBy(String field, boolean asc) throws ParsingException {
         field=disambiguateName(field);
-        oByField = field;
-        oByAsc = asc;
+        oByFields.add(field);
+        oByAscs.add(asc);
         hasOrderBy = true;
     }
 
+    /** Keep only the first n result tuples, as in LIMIT n.
+        @param n the number of tuples to return
+    */
+    public void setLimit(int n) {
+        limit = n;
+    }
+
+    /** @return the LIMIT of this query, or -1 if it has none */
+    public int getLimit() {
+        return limit;
+    }
+
+    /** Set the number of threads the physical plan may use to scan and
+        aggregate a table and to join.  With more than one, large tables are
+        read by a {@link Gather} over one scan per thread, or by a
+        {@link ParallelAggregate}, and equi-joins of such tables are
+        {@link ParallelHashJoin}s.  Defaults to 1, so plans are parallel
+        only when asked to be.
+        @param threads the number of threads, at least 1
+    */
+    public void setParallelism(int threads) {
+        parallelism = Math.max(1, threads);
+    }
+
+    /** @return the number of threads the physical plan may use */
+    public int getParallelism() {
+        return parallelism;
+    }
+
     /** Given a name of a field, try to figure out what table it belongs to by looking
      *   through all of the tables added via {@link #addScan}. 
      *  @return A fully qualified name of the form tableAlias.name.  If the name parameter is already qualified
@@ -274,6 +309,71 @@ public class LogicalPlan {
         throw new ParsingException("Unknown predicate " + s);
     }
 
+    /** For each alias of a table stored in a HeapFile, find the fields of the table that
+     *   the query uses, in its select list, aggregates, GROUP BY, ORDER BY, filters and
+     *   joins.  The scan of the table returns only those, so every operator above it
+     *   carries narrow tuples.
+     *  @return the fields of the table, in file order, for each alias that does not use
+     *   all of them; empty if the query returns whole tuples, e.g. for a DELETE
+     */
+    private Map<String,int[]> requiredFields() {
+        Map<String,int[]> result = new HashMap<>();
+        List<String> names = new ArrayList<>();
+        for (LogicalSelectListNode si : selectList) {
+            if (si.fname.endsWith(".*"))
+                return result;
+            names.add(si.fname);
+        }
+        names.addAll(aggFields);
+        if (groupByField != null)
+            names.add(groupByField);
+        names.addAll(oByFields);
+        for (LogicalFilterNode lf : filters)
+            names.add(lf.fieldQuantifiedName);
+        for (LogicalJoinNode lj : joins) {
+            names.add(lj.f1QuantifiedName);
+            if (!(lj instanceof LogicalSubplanJoinNode))
+                names.add(lj.f2QuantifiedName);
+        }
+
+        for (LogicalScanNode table : tables) {
+            DbFile f = Database.getCatalog().getDatabaseFile(table.t);
+            if (!(f instanceof HeapFile))
+                continue;
+            TupleDesc td = f.getTupleDesc();
+            boolean[] used = new boolean[td.numFields()];
+            int n = 0;
+            for (String name : names) {
+                int dot = name.indexOf('.');
+                if (dot < 0 || !name.substring(0, dot).equals(table.alias))
+                    continue;
+                try {
+                    int i = td.fieldNameToIndex(name.substring(dot + 1));
+                    if (!used[i]) {
+                        used[i] = true;
+                        n++;
+                    }
+                } catch (NoSuchElementException e) {
+                    // 未知字段由 physicalPlan 报错
+                }
+            }
+            if (n == td.numFields())
+                continue;
+            if (n == 0) {
+                // 至少返回一个字段
+                used[0] = true;
+                n = 1;
+            }
+            int[] fields = new int[n];
+            for (int i = 0, k = 0; i < used.length; i++) {
+                if (used[i])
+                    fields[k++] = i;
+            }
+            result.put(table.alias, fields);
+        }
+        return result;
+    }
+
     /** Convert this LogicalPlan into a physicalPlan represented by a {@link OpIterator}.  Attempts to
      *   find the optimal plan by using {@link JoinOptimizer#orderJoins} to order the joins in the plan.
      *  @param t The transaction that the returned OpIterator will run as a part of
@@ -292,6 +392,7 @@ public class LogicalPlan {
         Map<String,String> equivMap = new HashMap<>();
         Map<String,Double> filterSelectivities = new HashMap<>();
         Map<String,TableStats> statsMap = new HashMap<>();
+        Map<String,int[]> projections = requiredFields();
 
         while (tableIt.hasNext()) {
             LogicalScanNode table = tableIt.next();
@@ -301,6 +402,8 @@ public class LogicalPlan {
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown table " + table.t);
             }
+            // 扫描只返回查询用到的字段
+            ss.setProjection(projections.get(table.alias));
             
             subplanMap.put(table.alias,ss);
             String baseTableName = Database.getCatalog().getTableName(table.t);
@@ -309,6 +412,8 @@ public class LogicalPlan {
 
         }
 
+        // 同一张表上的过滤条件合成一个 Filter，一起编译
+        Map<String, List<Predicate>> filterMap = new LinkedHashMap<>();
         for (LogicalFilterNode lf : filters) {
             OpIterator subplan = subplanMap.get(lf.tableAlias);
             if (subplan == null) {
@@ -335,15 +440,39 @@ public class LogicalPlan {
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown field " + lf.fieldQuantifiedName);
             }
-            subplanMap.put(lf.tableAlias, new Filter(p, subplan));
+            filterMap.computeIfAbsent(lf.tableAlias, k -> new ArrayList<>()).add(p);
 
             TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(lf.tableAlias)));
 
-            double sel = s.estimateSelectivity(subplan.getTupleDesc().fieldNameToIndex(lf.fieldQuantifiedName), lf.p, f);
+            // 统计信息按表中的字段编号，扫描可能只返回部分字段
+            int statsField = Database.getCatalog().getTupleDesc(this.getTableId(lf.tableAlias))
+                    .fieldNameToIndex(lf.fieldPureName);
+            double sel = s.estimateSelectivity(statsField, lf.p, f);
             filterSelectivities.put(lf.tableAlias, filterSelectivities.get(lf.tableAlias) * sel);
 
             //s.addSelectivityFactor(estimateFilterSelectivity(lf,statsMap));
         }
+        for (Map.Entry<String, List<Predicate>> e : filterMap.entrySet()) {
+            subplanMap.put(e.getKey(), new Filter(e.getValue(), subplanMap.get(e.getKey())));
+        }
+
+        // 较大的堆文件由每个线程各跑一份扫描和过滤，经 Gather 汇总；
+        // 单表聚合由 ParallelAggregate 自己多线程读
+        if (parallelism > 1 && !(hasAgg && joins.isEmpty())) {
+            for (LogicalScanNode table : tables) {
+                int tableId = Database.getCatalog().getDatabaseFile(table.t).getId();
+                if (!ParallelSeqScan.canScanInParallel(tableId)) {
+                    continue;
+                }
+                List<Predicate> preds = filterMap.get(table.alias);
+                List<OpIterator> pipelines = new ArrayList<>();
+                for (SeqScan scan : ParallelSeqScan.partitionScans(t, tableId, table.alias, parallelism)) {
+                    scan.setProjection(projections.get(table.alias));
+                    pipelines.add(preds == null ? scan : new Filter(preds, scan));
+                }
+                subplanMap.put(table.alias, new Gather(pipelines));
+            }
+        }
         
         JoinOptimizer jo = new JoinOptimizer(this,joins);
 
@@ -382,6 +511,13 @@ public class LogicalPlan {
 
             OpIterator j;
             j = JoinOptimizer.instantiateJoin(lj, plan1, plan2);
+            // 有一边由多个线程读时，两边按连接键重分区，各分区并行建表和探测
+            if (parallelism > 1 && j instanceof HashEquiJoin
+                    && (plan1 instanceof Gather || plan2 instanceof Gather)) {
+                ParallelHashJoin pj = new ParallelHashJoin(((HashEquiJoin) j).getJoinPredicate(), plan1, plan2);
+                pj.setParallelism(parallelism);
+                j = pj;
+            }
             subplanMap.put(t1name, j);
 
             if (!isSubqueryJoin) {
@@ -410,10 +546,12 @@ public class LogicalPlan {
         //walk the select list, to determine order in which to project output fields
         List<Integer> outFields = new ArrayList<>();
         List<Type> outTypes = new ArrayList<>();
+        // 聚合结果按加入的顺序排在分组字段之后
+        int aggColumn = groupByField!=null?1:0;
         for (int i = 0; i < selectList.size(); i++) {
             LogicalSelectListNode si = selectList.get(i);
             if (si.aggOp != null) {
-                outFields.add(groupByField!=null?1:0);
+                outFields.add(aggColumn++);
                 TupleDesc td = node.getTupleDesc();
 //                int  id;
                 try {
@@ -461,18 +599,44 @@ public class LogicalPlan {
             TupleDesc td = node.getTupleDesc();
             Aggregate aggNode;
             try {
-                aggNode = new Aggregate(node,
-                                        td.fieldNameToIndex(aggField),
-                                        groupByField == null?Aggregator.NO_GROUPING:td.fieldNameToIndex(groupByField),
-                                getAggOp(aggOp));
+                int[] afields = new int[aggFields.size()];
+                Aggregator.Op[] aops = new Aggregator.Op[aggOps.size()];
+                for (int k = 0; k < afields.length; k++) {
+                    afields[k] = td.fieldNameToIndex(aggFields.get(k));
+                    aops[k] = getAggOp(aggOps.get(k));
+                }
+                int gfield = groupByField == null?Aggregator.NO_GROUPING:td.fieldNameToIndex(groupByField);
+                // 扫描堆文件时按页范围多线程聚合
+                if (parallelism > 1 && ParallelAggregate.canScanInParallel(node)) {
+                    ParallelAggregate pa = new ParallelAggregate(node, afields, gfield, aops);
+                    pa.setParallelism(parallelism);
+                    aggNode = pa;
+                } else {
+                    aggNode = new Aggregate(node, afields, gfield, aops);
+                }
             } catch (NoSuchElementException | IllegalArgumentException e) {
                 throw new simpledb.ParsingException(e);
             }
             node = aggNode;
         }
 
-        if (hasOrderBy) {
-            node = new OrderBy(node.getTupleDesc().fieldNameToIndex(oByField), oByAsc, node);
+        if (hasOrderBy || limit >= 0) {
+            int[] oByIds = new int[oByFields.size()];
+            boolean[] asc = new boolean[oByFields.size()];
+            for (int k = 0; k < oByIds.length; k++) {
+                try {
+                    oByIds[k] = node.getTupleDesc().fieldNameToIndex(oByFields.get(k));
+                } catch (NoSuchElementException e) {
+                    throw new ParsingException("Unknown field " + oByFields.get(k) + " in ORDER BY statement");
+                }
+                asc[k] = oByAscs.get(k);
+            }
+            if (limit >= 0) {
+                // 只要前 limit 个，用有界堆代替全排序
+                node = new TopN(oByIds, asc, limit, node);
+            } else {
+                node = new OrderBy(oByIds, asc, node);
+            }
         }
 
         return new Project(outFields, outTypes, node);
@@ -45,7 +45,7 @@ public class BufferPool {
     // 页面的访问顺序
     private static class LinkedNode {
         PageId pageId;
-        Page page;
+        volatile Page page;
         LinkedNode prev;
         LinkedNode next;
 
@@ -59,6 +59,8 @@ public class BufferPool {
     LinkedNode head;
     // 尾节点
     LinkedNode tail;
+    // 保护访问顺序链表；pageStore 的增删也在它之下，读盘时不持有
+    private final Object lruLock = new Object();
 
     private void addToHead(LinkedNode node) {
         node.prev = this.head;
@@ -123,6 +125,12 @@ public class BufferPool {
      * be added to the buffer pool and returned.  If there is insufficient
      * space in the buffer pool, a page should be evicted and the new page
      * should be added in its place.
+     * <p>
+     * Pages may be requested by several threads of a parallel operator at
+     * once.  A missing page is read from disk without holding any lock of
+     * the pool; only the update of the page map and the LRU list is
+     * serialized.  Two threads missing the same page may both read it, and
+     * the one that comes second uses the copy the first one cached.
      *
      * @param tid the ID of the transaction requesting the page
      * @param pid the ID of the requested page
@@ -131,26 +139,40 @@ public class BufferPool {
     public Page getPage(TransactionId tid, PageId pid, Permissions perm)
             throws TransactionAbortedException, DbException {
         // some code goes here
-        // 如果缓存池中没有
-        if (!this.pageStore.containsKey(pid)) {
-            // 获取
-            DbFile dbFile = Database.getCatalog().getDatabaseFile(pid.getTableId());
-            Page page = dbFile.readPage(pid);
-            // 是否超过大小
-            if (this.pageStore.size() >= this.numPages) {
-                // 淘汰 (后面的 lab 书写)
-                eviction();
+        while (true) {
+            LinkedNode node = this.pageStore.get(pid);
+            Page page = null;
+            // 如果缓存池中没有
+            if (node == null) {
+                // 获取，读盘时不持有任何锁
+                DbFile dbFile = Database.getCatalog().getDatabaseFile(pid.getTableId());
+                page = dbFile.readPage(pid);
+            }
+            synchronized (this.lruLock) {
+                // 查找之后，这一页可能已被其他线程读入或者被淘汰
+                node = this.pageStore.get(pid);
+                if (node != null) {
+                    // 移动到头部
+                    moveToHead(node);
+                    // 从 缓存池 中获取
+                    return node.page;
+                }
+                if (page != null) {
+                    // 是否超过大小
+                    if (this.pageStore.size() >= this.numPages) {
+                        // 淘汰 (后面的 lab 书写)
+                        eviction();
+                    }
+                    node = new LinkedNode(pid, page);
+                    // 放入缓存
+                    this.pageStore.put(pid, node);
+                    // 插入头节点
+                    addToHead(node);
+                    return page;
+                }
             }
-            LinkedNode node = new LinkedNode(pid, page);
-            // 放入缓存
-            this.pageStore.put(pid, node);
-            // 插入头节点
-            addToHead(node);
+            // 查找时还在缓存中的页随后被淘汰了，重新读盘
         }
-        // 移动到头部
-        moveToHead(this.pageStore.get(pid));
-        // 从 缓存池 中获取
-        return this.pageStore.get(pid).page;
     }
 
     /**
@@ -255,24 +277,24 @@ public class BufferPool {
     private void updateBufferPoll(List<Page> pageList, TransactionId tid) {
         for (Page page : pageList) {
             page.markDirty(true, tid);
-            // 如果缓存池已满，执行淘汰策略
-            if (this.pageStore.size() > this.numPages) {
-                eviction();
-            }
-            // 获取节点，此时的页一定已经在缓存了，因为刚刚被修改的时候就已经放入缓存了
-            LinkedNode node = this.pageStore.get(page.getId());
-            if (node != null) {
-                // 更新新的页内容
-                node.page = page;
-                // 更新到缓存
-                this.pageStore.put(page.getId(), node);
+            synchronized (this.lruLock) {
+                // 如果缓存池已满，执行淘汰策略
+                if (this.pageStore.size() > this.numPages) {
+                    eviction();
+                }
+                // 获取节点，此时的页一定已经在缓存了，因为刚刚被修改的时候就已经放入缓存了
+                LinkedNode node = this.pageStore.get(page.getId());
+                if (node != null) {
+                    // 更新新的页内容
+                    node.page = page;
+                }
             }
         }
     }
 
     /**
      * 淘汰策略
-     * 使用 LRU 算法进行淘汰最近最久未使用
+     * 使用 LRU 算法进行淘汰最近最久未使用，调用时持有 lruLock
      */
     private void eviction() {
         // 淘汰尾部节点
@@ -306,10 +328,17 @@ public class BufferPool {
     public synchronized void discardPage(PageId pid) throws IOException {
         // some code goes here
         // not necessary for lab1
-        // 删除使用记录
-        remove(this.pageStore.get(pid));
-        // 删除缓存
-        this.pageStore.remove(pid);
+        synchronized (this.lruLock) {
+            LinkedNode node = this.pageStore.get(pid);
+            // 页面不在缓存中
+            if (node == null) {
+                return;
+            }
+            // 删除使用记录
+            remove(node);
+            // 删除缓存
+            this.pageStore.remove(pid);
+        }
     }
 
     /**
@@ -320,13 +349,20 @@ public class BufferPool {
     private synchronized void flushPage(PageId pid) throws IOException {
         // some code goes here
         // not necessary for lab1
-        Page page = this.pageStore.get(pid).page;
+        LinkedNode node = this.pageStore.get(pid);
+        // 页面可能已被其他线程淘汰
+        if (node == null) {
+            return;
+        }
+        Page page = node.page;
         // 如果是是脏页
         if (page.isDirty() != null) {
             // 写入脏页
             Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(page);
             // 移除脏页标签 和 事务标签
             page.markDirty(false, null);
+            // 从日志的 dirty page table 中移除
+            Database.getLogFile().pageFlushed(pid);
         }
     }
 
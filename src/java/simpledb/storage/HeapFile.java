@@ -3,11 +3,13 @@ package simpledb.storage;
 import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Permissions;
+import simpledb.execution.Predicate;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 import java.io.*;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.NoSuchElementException;
@@ -18,6 +20,13 @@ import java.util.NoSuchElementException;
  * size, and the file is simply a collection of those pages. HeapFile works
  * closely with HeapPage. The format of HeapPages is described in the HeapPage
  * constructor.
+ * <p>
+ * The iterators that take predicates return only the tuples that satisfy
+ * them.  They skip the pages whose {@link ZoneMap} shows that no tuple
+ * could, and check the predicates on the bytes of the other pages before
+ * building tuples, see {@link HeapPage#iterator(PagePredicate)}.  The
+ * iterators that also take fields return tuples with only those fields,
+ * and decode no others.
  *
  * @author Sam Madden
  * @see HeapPage#HeapPage
@@ -25,6 +34,8 @@ import java.util.NoSuchElementException;
 public class HeapFile implements DbFile {
     private final File file;
     private final TupleDesc tupleDesc;
+    // 每页各整数列的最小值、最大值
+    private final ZoneMap zoneMap;
 
     /**
      * Constructs a heap file backed by the specified file.
@@ -36,6 +47,7 @@ public class HeapFile implements DbFile {
         // some code goes here
         this.file = f;
         this.tupleDesc = td;
+        this.zoneMap = new ZoneMap(td);
     }
 
     /**
@@ -75,6 +87,13 @@ public class HeapFile implements DbFile {
         return this.tupleDesc;
     }
 
+    /**
+     * @return the per-page summaries of this file's integer columns
+     */
+    public ZoneMap getZoneMap() {
+        return this.zoneMap;
+    }
+
     // see DbFile.java for javadocs
     @Override
     public Page readPage(PageId pid) {
@@ -103,7 +122,10 @@ public class HeapFile implements DbFile {
             if (read != BufferPool.getPageSize()) {
                 throw new IllegalArgumentException(String.format("表 %d 页 %d 不存在", tableId, pgNo));
             }
-            return new HeapPage(new HeapPageId(pid.getTableId(), pid.getPageNumber()), bytes);
+            HeapPage page = new HeapPage(new HeapPageId(pid.getTableId(), pid.getPageNumber()), bytes);
+            // 读入的页加入摘要
+            this.zoneMap.addPage(page);
+            return page;
         } catch (IOException e) {
             e.printStackTrace();
         } finally {
@@ -137,6 +159,10 @@ public class HeapFile implements DbFile {
         f.write(page.getPageData());
         // 刷盘
         f.close();
+        // 直接写入的页也可能带来摘要之外的值
+        if (page instanceof HeapPage) {
+            this.zoneMap.addPage((HeapPage) page);
+        }
     }
 
     /**
@@ -165,6 +191,7 @@ public class HeapFile implements DbFile {
             // 看当前页是有 空闲空间
             if (page.getNumEmptySlots() != 0) {
                 page.insertTuple(t);
+                this.zoneMap.addTuple(pageNo, t);
                 list.add(page);
                 return list;
             }
@@ -182,6 +209,7 @@ public class HeapFile implements DbFile {
         HeapPageId pageId = new HeapPageId(getId(), numPages() - 1);
         HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pageId, Permissions.READ_WRITE);
         page.insertTuple(t);
+        this.zoneMap.addTuple(pageId.getPageNumber(), t);
         list.add(page);
         return list;
     }
@@ -196,6 +224,7 @@ public class HeapFile implements DbFile {
         PageId pageId = t.getRecordId().getPageId();
         // 找到相应的页
         HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pageId, Permissions.READ_WRITE);
+        // 删除不收窄摘要，它仍然覆盖页上剩下的元组
         page.deleteTuple(t);
         list.add(page);
         return list;
@@ -205,36 +234,125 @@ public class HeapFile implements DbFile {
     @Override
     public DbFileIterator iterator(TransactionId tid) {
         // some code goes here
-        return new HeapFileIterator(this, tid);
+        return new HeapFileIterator(this, tid, 0, -1, null, null);
+    }
+
+    /**
+     * Returns an iterator over the tuples of this file that satisfy all of
+     * the predicates.  Pages that the zone map rules out are not read.
+     *
+     * @param tid        the transaction the pages are read for
+     * @param predicates predicates on the tuples of this file, or null to
+     *                   return every tuple
+     */
+    public DbFileIterator iterator(TransactionId tid, List<Predicate> predicates) {
+        return iterator(tid, predicates, null);
+    }
+
+    /**
+     * Like {@link #iterator(TransactionId, List)}, but the tuples returned
+     * hold only the given fields, in that order, and have the schema
+     * {@code getTupleDesc().project(fields)}.  The predicates still refer
+     * to the fields of this file.
+     *
+     * @param fields fields of this file, or null to return whole tuples
+     */
+    public DbFileIterator iterator(TransactionId tid, List<Predicate> predicates, int[] fields) {
+        return new HeapFileIterator(this, tid, 0, -1, predicates, fields);
+    }
+
+    /**
+     * Returns an iterator over the tuples of pages fromPage (inclusive) to
+     * toPage (exclusive) only, so that disjoint ranges of the file can be
+     * scanned by different threads.
+     *
+     * @param tid      the transaction the pages are read for
+     * @param fromPage the first page to scan
+     * @param toPage   the page after the last one to scan
+     */
+    public DbFileIterator iterator(TransactionId tid, int fromPage, int toPage) {
+        return iterator(tid, fromPage, toPage, null);
+    }
+
+    /**
+     * Like {@link #iterator(TransactionId, int, int)}, but returns only the
+     * tuples of the range that satisfy all of the predicates.
+     *
+     * @see #iterator(TransactionId, List)
+     */
+    public DbFileIterator iterator(TransactionId tid, int fromPage, int toPage, List<Predicate> predicates) {
+        return iterator(tid, fromPage, toPage, predicates, null);
+    }
+
+    /**
+     * Like {@link #iterator(TransactionId, int, int, List)}, but returns
+     * only the given fields of the tuples.
+     *
+     * @see #iterator(TransactionId, List, int[])
+     */
+    public DbFileIterator iterator(TransactionId tid, int fromPage, int toPage, List<Predicate> predicates,
+                                   int[] fields) {
+        return new HeapFileIterator(this, tid, fromPage, Math.max(fromPage, toPage), predicates, fields);
     }
 
     private static final class HeapFileIterator implements DbFileIterator {
         private final HeapFile heapFile;
         private final TransactionId tid;
+        // 扫描的页范围，toPage 为 -1 时扫描到文件末尾
+        private final int fromPage;
+        private final int toPage;
+        // 元组要满足的谓词，null 表示返回所有元组
+        private final List<Predicate> predicates;
+        private final PagePredicate pagePredicate;
+        // 返回的字段及其模式，null 表示整个元组
+        private final int[] fields;
+        private final TupleDesc projected;
         // 元组迭代器
         private Iterator<Tuple> iterator;
         private int whichPage;
 
-        public HeapFileIterator(HeapFile heapFile, TransactionId tid) {
+        public HeapFileIterator(HeapFile heapFile, TransactionId tid, int fromPage, int toPage,
+                                List<Predicate> predicates, int[] fields) {
             this.heapFile = heapFile;
             this.tid = tid;
+            this.fromPage = fromPage;
+            this.toPage = toPage;
+            this.predicates = predicates == null || predicates.isEmpty() ? null : predicates;
+            this.pagePredicate = this.predicates == null ? null
+                    : new PagePredicate(heapFile.getTupleDesc(), this.predicates);
+            this.fields = fields;
+            this.projected = fields == null ? null : heapFile.getTupleDesc().project(fields);
+        }
+
+        // 扫描范围之后的第一页
+        private int endPage() {
+            return this.toPage < 0 ? this.heapFile.numPages() : Math.min(this.toPage, this.heapFile.numPages());
         }
 
         @Override
         public void open() throws DbException, TransactionAbortedException {
             // 获取第一页的全部元组
-            this.whichPage = 0;
-            this.iterator = getPageTuple(this.whichPage);
+            this.whichPage = this.fromPage;
+            this.iterator = this.whichPage < endPage() || this.toPage < 0
+                    ? getPageTuple(this.whichPage) : null;
         }
 
         // 获取当前页的所有行
         private Iterator<Tuple> getPageTuple(int pageNumber) throws TransactionAbortedException, DbException {
             // 在文件范围内
             if (pageNumber >= 0 && pageNumber < this.heapFile.numPages()) {
+                // 摘要表明没有元组满足谓词时不读这一页
+                if (this.predicates != null && !this.heapFile.zoneMap.mightMatch(pageNumber, this.predicates)) {
+                    return Collections.emptyIterator();
+                }
                 HeapPageId pid = new HeapPageId(this.heapFile.getId(), pageNumber);
                 // 从缓存池中查询相应的页面 读权限
                 HeapPage page = (HeapPage) Database.getBufferPool().getPage(this.tid, pid, Permissions.READ_ONLY);
-                return page.iterator();
+                // 有谓词时只生成满足谓词的元组，有投影时只解码需要的字段
+                if (this.fields != null) {
+                    return page.iterator(this.pagePredicate, this.fields, this.projected);
+                }
+                return this.pagePredicate == null ? page.iterator() : page.iterator(this.pagePredicate);
             }
             throw new DbException(String.format("heapFile %d not contain page %d", pageNumber, this.heapFile.getId()));
         }
@@ -248,7 +366,7 @@ public class HeapFile implements DbFile {
             // 如果已经遍历结束
             if (!this.iterator.hasNext()) {
                 // 是否还存在下一页，小于文件的最大页
-                while (this.whichPage < (this.heapFile.numPages() - 1)) {
+                while (this.whichPage < (endPage() - 1)) {
                     this.whichPage++;
                     // 获取下一页
                     this.iterator = getPageTuple(this.whichPage);
@@ -3,16 +3,25 @@ package simpledb.storage;
 import simpledb.common.Catalog;
 import simpledb.common.Database;
 import simpledb.common.DbException;
+import simpledb.common.Type;
 import simpledb.transaction.TransactionId;
 
 import java.io.*;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and
  * implements the Page interface that is used by BufferPool.
+ * <p>
+ * A page keeps the bytes it was read from and builds its tuples only when
+ * they are first needed.  {@link #iterator(PagePredicate)} checks
+ * predicates on those bytes, so a page that is only ever scanned with
+ * predicates builds just the tuples that satisfy them, and
+ * {@link #iterator(PagePredicate, int[], TupleDesc)} decodes just the
+ * fields a scan asks for.
  *
  * @see HeapFile
  * @see BufferPool
@@ -23,8 +32,10 @@ public class HeapPage implements Page {
     private final TupleDesc td;
     // 槽储存
     private final byte[] header;
-    // 元组数据
-    private final Tuple[] tuples;
+    // 读入时的字节
+    private final byte[] data;
+    // 元组数据，第一次用到时才从 data 解码
+    private volatile Tuple[] tuples;
     // 槽数
     private final int numSlots;
 
@@ -57,27 +68,73 @@ public class HeapPage implements Page {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        // 复制一份，不足一页的部分补零
+        this.data = Arrays.copyOf(data, Math.max(data.length, BufferPool.getPageSize()));
 
         // allocate and read the header slots of this page
         // 处理头部
         this.header = new byte[getHeaderSize()];
-        for (int i = 0; i < this.header.length; i++) {
-            this.header[i] = dis.readByte();
+        System.arraycopy(this.data, 0, this.header, 0, this.header.length);
+
+        setBeforeImage();
+    }
+
+    // 解码所有元组，只做一次
+    private Tuple[] tuples() {
+        Tuple[] ts = this.tuples;
+        if (ts != null) {
+            return ts;
         }
-        // 处理每行
-        this.tuples = new Tuple[this.numSlots];
-        try {
-            // allocate and read the actual records of this page
-            for (int i = 0; i < this.tuples.length; i++) {
-                this.tuples[i] = readNextTuple(dis, i);
+        synchronized (this) {
+            ts = this.tuples;
+            if (ts == null) {
+                ts = new Tuple[this.numSlots];
+                DataInputStream dis = new DataInputStream(new ByteArrayInputStream(this.data,
+                        this.header.length, this.numSlots * this.td.getSize()));
+                try {
+                    // allocate and read the actual records of this page
+                    for (int i = 0; i < ts.length; i++) {
+                        ts[i] = readNextTuple(dis, i);
+                    }
+                } catch (NoSuchElementException e) {
+                    e.printStackTrace();
+                }
+                this.tuples = ts;
             }
-        } catch (NoSuchElementException e) {
-            e.printStackTrace();
+            return ts;
         }
-        dis.close();
+    }
 
-        setBeforeImage();
+    // 槽在 data 中的偏移
+    private int slotOffset(int slot) {
+        return this.header.length + slot * this.td.getSize();
+    }
+
+    // 只解码一个槽中的元组
+    private Tuple readTuple(int slot) {
+        return readNextTuple(new DataInputStream(new ByteArrayInputStream(this.data, slotOffset(slot),
+                this.td.getSize())), slot);
+    }
+
+    /** @return the number of slots on this page */
+    int getNumSlots() {
+        return this.numSlots;
+    }
+
+    /**
+     * @return the value of an integer field of the tuple in a used slot,
+     * read from the bytes of the page if its tuples have not been built
+     */
+    int getIntField(int slot, int field) {
+        Tuple[] ts = this.tuples;
+        if (ts != null) {
+            return ((IntField) ts[slot].getField(field)).getValue();
+        }
+        int offset = slotOffset(slot);
+        for (int j = 0; j < field; j++) {
+            offset += this.td.getFieldType(j).getLen();
+        }
+        return PagePredicate.readInt(this.data, offset);
     }
 
     /**
@@ -187,6 +244,13 @@ public class HeapPage implements Page {
      */
     @Override
     public byte[] getPageData() {
+        Tuple[] tuples = this.tuples;
+        if (tuples == null) {
+            // 元组还没有解码，也就没有修改过，读入的字节就是页的内容
+            byte[] page = Arrays.copyOf(this.data, BufferPool.getPageSize());
+            System.arraycopy(this.header, 0, page, 0, this.header.length);
+            return page;
+        }
         int len = BufferPool.getPageSize();
         ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
         DataOutputStream dos = new DataOutputStream(baos);
@@ -202,7 +266,7 @@ public class HeapPage implements Page {
         }
 
         // create the tuples
-        for (int i = 0; i < this.tuples.length; i++) {
+        for (int i = 0; i < tuples.length; i++) {
 
             // empty slot
             if (!isSlotUsed(i)) {
@@ -219,7 +283,7 @@ public class HeapPage implements Page {
 
             // non-empty slot
             for (int j = 0; j < this.td.numFields(); j++) {
-                Field f = this.tuples[i].getField(j);
+                Field f = tuples[i].getField(j);
                 try {
                     f.serialize(dos);
 
@@ -230,7 +294,7 @@ public class HeapPage implements Page {
         }
 
         // padding
-        int zerolen = BufferPool.getPageSize() - (this.header.length + this.td.getSize() * this.tuples.length); //- numSlots * td.getSize();
+        int zerolen = BufferPool.getPageSize() - (this.header.length + this.td.getSize() * tuples.length); //- numSlots * td.getSize();
         byte[] zeroes = new byte[zerolen];
         try {
             dos.write(zeroes, 0, zerolen);
@@ -274,8 +338,9 @@ public class HeapPage implements Page {
         // not necessary for lab1
         // 查看属性是否匹配
         int tupleId = t.getRecordId().getTupleNumber();
+        Tuple[] tuples = tuples();
         // 页面已被删除， 类型不相同， 页面不相同
-        if (this.tuples[tupleId] == null || !t.getTupleDesc().equals(this.td) || !t.getRecordId().getPageId().equals(this.pid)) {
+        if (tuples[tupleId] == null || !t.getTupleDesc().equals(this.td) || !t.getRecordId().getPageId().equals(this.pid)) {
             throw new DbException("this tuple is not on this page");
         }
         if (!isSlotUsed(tupleId)) {
@@ -284,7 +349,7 @@ public class HeapPage implements Page {
         // 标记未被使用
         markSlotUsed(tupleId, false);
         // 删除插槽内容
-        this.tuples[tupleId] = null;
+        tuples[tupleId] = null;
     }
 
     /**
@@ -307,6 +372,7 @@ public class HeapPage implements Page {
             throw new DbException("类型不匹配");
         }
 
+        Tuple[] tuples = tuples();
         // 查询 tuple
         for (int i = 0; i < this.numSlots; i++) {
             // 查看未被使用的槽
@@ -316,7 +382,7 @@ public class HeapPage implements Page {
                 // 设置路径
                 t.setRecordId(new RecordId(this.pid, i));
                 // 放入槽位
-                this.tuples[i] = t;
+                tuples[i] = t;
                 return;
             }
         }
@@ -407,13 +473,119 @@ public class HeapPage implements Page {
     public Iterator<Tuple> iterator() {
         // some code goes here
         // 获取已使用的槽对应的数
+        Tuple[] tuples = tuples();
         ArrayList<Tuple> res = new ArrayList<>();
         for (int i = 0; i < this.numSlots; i++) {
             if (isSlotUsed(i)) {
-                res.add(this.tuples[i]);
+                res.add(tuples[i]);
+            }
+        }
+        return res.iterator();
+    }
+
+    /**
+     * @return an iterator over the tuples on this page that satisfy p.  If
+     * the tuples of the page have not been built yet, p is checked on the
+     * bytes of each slot and only the tuples that pass are built; the page
+     * itself still does not build its tuples.
+     */
+    public Iterator<Tuple> iterator(PagePredicate p) {
+        ArrayList<Tuple> res = new ArrayList<>();
+        Tuple[] tuples = this.tuples;
+        if (tuples != null) {
+            for (int i = 0; i < this.numSlots; i++) {
+                if (isSlotUsed(i) && p.test(tuples[i])) {
+                    res.add(tuples[i]);
+                }
+            }
+            return res.iterator();
+        }
+        for (int i = 0; i < this.numSlots; i++) {
+            if (isSlotUsed(i) && p.testBytes(this.data, slotOffset(i))) {
+                Tuple t = readTuple(i);
+                if (p.testResidual(t)) {
+                    res.add(t);
+                }
             }
         }
         return res.iterator();
     }
 
+    /**
+     * @return an iterator over the tuples on this page that satisfy p, each
+     * holding only the given fields.  If the tuples of the page have not
+     * been built yet, only those fields of the tuples that pass p are
+     * decoded, unless some predicates of p need the whole tuple.
+     *
+     * @param p      the predicates, or null to return every tuple
+     * @param fields the fields to keep, in the order to return them
+     * @param td     the schema of the returned tuples; see {@link TupleDesc#project}
+     */
+    public Iterator<Tuple> iterator(PagePredicate p, int[] fields, TupleDesc td) {
+        ArrayList<Tuple> res = new ArrayList<>();
+        Tuple[] tuples = this.tuples;
+        if (tuples != null) {
+            for (int i = 0; i < this.numSlots; i++) {
+                if (isSlotUsed(i) && (p == null || p.test(tuples[i]))) {
+                    res.add(project(tuples[i], fields, td));
+                }
+            }
+            return res.iterator();
+        }
+        // 各字段在槽内的偏移
+        int[] offsets = new int[fields.length];
+        for (int k = 0; k < fields.length; k++) {
+            for (int j = 0; j < fields[k]; j++) {
+                offsets[k] += this.td.getFieldType(j).getLen();
+            }
+        }
+        boolean whole = p != null && p.hasResidual();
+        for (int i = 0; i < this.numSlots; i++) {
+            if (!isSlotUsed(i) || (p != null && !p.testBytes(this.data, slotOffset(i)))) {
+                continue;
+            }
+            if (whole) {
+                // 其余谓词要在整个元组上检查
+                Tuple t = readTuple(i);
+                if (p.testResidual(t)) {
+                    res.add(project(t, fields, td));
+                }
+            } else {
+                res.add(readFields(i, fields, offsets, td));
+            }
+        }
+        return res.iterator();
+    }
+
+    private static Tuple project(Tuple t, int[] fields, TupleDesc td) {
+        Tuple p = new Tuple(td);
+        p.setRecordId(t.getRecordId());
+        for (int k = 0; k < fields.length; k++) {
+            p.setField(k, t.getField(fields[k]));
+        }
+        return p;
+    }
+
+    // 只解码一个槽中的部分字段
+    private Tuple readFields(int slot, int[] fields, int[] offsets, TupleDesc td) {
+        Tuple t = new Tuple(td);
+        t.setRecordId(new RecordId(this.pid, slot));
+        int base = slotOffset(slot);
+        for (int k = 0; k < fields.length; k++) {
+            Type type = this.td.getFieldType(fields[k]);
+            if (type == Type.INT_TYPE) {
+                t.setField(k, new IntField(PagePredicate.readInt(this.data, base + offsets[k])));
+                continue;
+            }
+            try {
+                t.setField(k, type.parse(new DataInputStream(new ByteArrayInputStream(this.data,
+                        base + offsets[k], type.getLen()))));
+            } catch (java.text.ParseException e) {
+                e.printStackTrace();
+                throw new NoSuchElementException("parsing error!");
+            }
+        }
+        return t;
+    }
+
 }
@@ -0,0 +1,353 @@
+package simpledb.storage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * LogBuffer is the in-memory tail of a {@link LogFile}.  Log records are
+ * copied into a ring of direct ByteBuffers, and a background log writer
+ * thread appends filled buffers to the {@link LogSegments} with large
+ * sequential writes, so appending a record never touches the file.
+ * <p>
+ * Positions in the log are log sequence numbers (LSNs): the number of
+ * bytes ever appended through this buffer.  LSNs only grow, even when the
+ * log is cleared or its tail is cut off, so a caller may wait for an LSN
+ * it obtained before that.  {@link #flush} waits until the log is written up
+ * to an LSN and {@link #force} until it is on stable storage.
+ * <p>
+ * The writer thread forces the log on behalf of every transaction waiting
+ * in {@link #force}, which gives group commit: one fsync covers all of
+ * the commit records appended before it started.  It may wait up to the
+ * group commit delay for the batch to fill before forcing.  The thread is
+ * started on demand and exits after it has been idle for a while.
+ * <p>
+ * If a write or force of the log fails, the buffer enters a failed state:
+ * the writer stops, and every append, flush and force throws until
+ * {@link #reset} discards the records that were not written.  Whether
+ * those records reached the file is unknown, so the caller has to recover
+ * the log from what is on disk before appending again.
+ *
+ * @Threadsafe
+ */
+class LogBuffer {
+
+    /** Size of one buffer in the ring. */
+    static final int BUFFER_SIZE = 64 * 1024;
+    /** Number of buffers in the ring; appends block while all are full. */
+    static final int NUM_BUFFERS = 8;
+
+    // 写线程空闲这么久后退出
+    private static final long IDLE_MILLIS = 1000;
+
+    private final Object lock = new Object();
+    private final ArrayDeque<ByteBuffer> free = new ArrayDeque<>();
+    private final ArrayDeque<ByteBuffer> filled = new ArrayDeque<>();
+    private final OutputStream sink = new Sink();
+    private int allocated = 0;
+    private ByteBuffer active; // 正在追加的缓冲区，可能为 null
+
+    private final LogSegments segments;
+    private long fileBase;    // LSN 减去 fileBase 就是在日志中的偏移量
+    private long appendLsn;   // 已追加
+    private long writtenLsn;  // 已写入文件
+    private long durableLsn;  // 已刷盘
+    private long flushRequest;
+    private long forceRequest;
+    private int forceWaiters = 0;
+    private int forceCount = 0;
+    private IOException failure;
+    private Thread writer;
+
+    private int groupCommitBatchSize = 1;
+    private long groupCommitDelayMicros = 0;
+
+    /**
+     * Create a buffer that appends to segments starting at the given
+     * offset.
+     */
+    LogBuffer(LogSegments segments, long offset) {
+        this.segments = segments;
+        reset(offset);
+    }
+
+    /**
+     * Continue appending at the given offset, e.g. after the tail of the
+     * log has been cut off.  Everything appended so far must already
+     * have been flushed, unless the writer has failed; then the records
+     * it did not write are discarded and the failure is cleared.
+     */
+    void reset(long offset) {
+        synchronized (lock) {
+            if (failure != null) {
+                discardUnwritten();
+                this.failure = null;
+            }
+            if (writtenLsn != appendLsn) {
+                throw new IllegalStateException("resetting a log buffer with unwritten records");
+            }
+            this.fileBase = appendLsn - offset;
+        }
+    }
+
+    // 调用者持有 lock，写线程已失败并停止
+    private void discardUnwritten() {
+        if (active != null) {
+            release(active);
+            active = null;
+        }
+        while (!filled.isEmpty()) {
+            release(filled.poll());
+        }
+        // LSN 只增不减，跳过丢弃的记录
+        writtenLsn = appendLsn;
+        durableLsn = appendLsn;
+        flushRequest = appendLsn;
+        forceRequest = appendLsn;
+    }
+
+    // 调用者持有 lock
+    private void release(ByteBuffer buf) {
+        buf.clear();
+        free.add(buf);
+    }
+
+    /**
+     * Append a serialized log record.
+     *
+     * @return the LSN just past the end of the record
+     */
+    long append(ByteArrayOutputStream record) throws IOException {
+        synchronized (lock) {
+            checkFailure();
+            record.writeTo(sink);
+            return appendLsn;
+        }
+    }
+
+    /** @return the LSN just past the last appended record */
+    long getAppendLsn() {
+        synchronized (lock) {
+            return appendLsn;
+        }
+    }
+
+    /** @return the log offset of the next appended record */
+    long getFileOffset() {
+        synchronized (lock) {
+            return appendLsn - fileBase;
+        }
+    }
+
+    /** @return the number of times the writer has forced the log */
+    int getForceCount() {
+        synchronized (lock) {
+            return forceCount;
+        }
+    }
+
+    void setGroupCommit(int batchSize, long delayMicros) {
+        synchronized (lock) {
+            this.groupCommitBatchSize = batchSize;
+            this.groupCommitDelayMicros = delayMicros;
+        }
+    }
+
+    /** Block until the log is written to the file up to lsn. */
+    void flush(long lsn) throws IOException {
+        synchronized (lock) {
+            if (writtenLsn >= lsn) {
+                return;
+            }
+            flushRequest = Math.max(flushRequest, lsn);
+            wakeWriter();
+            try {
+                while (writtenLsn < lsn) {
+                    checkFailure();
+                    lock.wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted waiting for log flush");
+            }
+        }
+    }
+
+    /** Block until the log is forced to stable storage up to lsn. */
+    void force(long lsn) throws IOException {
+        synchronized (lock) {
+            if (durableLsn >= lsn) {
+                return;
+            }
+            forceRequest = Math.max(forceRequest, lsn);
+            forceWaiters++;
+            wakeWriter();
+            try {
+                while (durableLsn < lsn) {
+                    checkFailure();
+                    lock.wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted waiting for log force");
+            } finally {
+                forceWaiters--;
+            }
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        if (failure != null) {
+            throw new IOException("log writer failed", failure);
+        }
+    }
+
+    // 调用者持有 lock
+    private void wakeWriter() {
+        if (writer == null) {
+            writer = new Thread(this::runWriter, "simpledb-log-writer");
+            writer.setDaemon(true);
+            writer.start();
+        }
+        lock.notifyAll();
+    }
+
+    // 调用者持有 lock
+    private boolean hasWork() {
+        if (failure != null) {
+            return false;
+        }
+        return !filled.isEmpty()
+                || Math.max(flushRequest, forceRequest) > writtenLsn
+                || forceRequest > durableLsn;
+    }
+
+    private void runWriter() {
+        while (true) {
+            List<ByteBuffer> batch;
+            long pos;
+            boolean doForce;
+            synchronized (lock) {
+                try {
+                    long idleSince = System.currentTimeMillis();
+                    while (!hasWork()) {
+                        long left = idleSince + IDLE_MILLIS - System.currentTimeMillis();
+                        if (left <= 0) {
+                            writer = null;
+                            return;
+                        }
+                        lock.wait(left);
+                    }
+                    // group commit：等待更多提交加入这一批
+                    if (forceRequest > durableLsn && groupCommitDelayMicros > 0) {
+                        long deadline = System.nanoTime() + groupCommitDelayMicros * 1000;
+                        while (forceWaiters < groupCommitBatchSize) {
+                            long left = deadline - System.nanoTime();
+                            if (left <= 0) {
+                                break;
+                            }
+                            lock.wait(left / 1000000, (int) (left % 1000000));
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    writer = null;
+                    return;
+                }
+                // 有人在等待时，连同没写满的缓冲区一起写出
+                if (Math.max(flushRequest, forceRequest) > writtenLsn && active != null && active.position() > 0) {
+                    filled.add(active);
+                    active = null;
+                }
+                batch = new ArrayList<>(filled);
+                filled.clear();
+                pos = writtenLsn - fileBase;
+                doForce = forceRequest > durableLsn;
+            }
+
+            // 不持有锁地写文件，期间可以继续追加日志
+            IOException error = null;
+            long written = 0;
+            try {
+                for (ByteBuffer buf : batch) {
+                    buf.flip();
+                    int n = buf.remaining();
+                    segments.write(buf, pos + written);
+                    written += n;
+                }
+                if (doForce) {
+                    segments.force();
+                }
+            } catch (IOException e) {
+                error = e;
+            }
+
+            synchronized (lock) {
+                for (ByteBuffer buf : batch) {
+                    release(buf);
+                }
+                if (error != null) {
+                    // 等待者会看到 failure，没写出的记录留到 reset 时丢弃
+                    failure = error;
+                } else {
+                    writtenLsn += written;
+                    if (doForce) {
+                        durableLsn = writtenLsn;
+                        forceCount++;
+                    }
+                }
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /** Copies appended bytes into the ring; called while holding lock. */
+    private class Sink extends OutputStream {
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (active == null) {
+                    active = takeBuffer();
+                }
+                int n = Math.min(len, active.remaining());
+                active.put(b, off, n);
+                off += n;
+                len -= n;
+                appendLsn += n;
+                if (!active.hasRemaining()) {
+                    filled.add(active);
+                    active = null;
+                    wakeWriter();
+                }
+            }
+        }
+
+        private ByteBuffer takeBuffer() throws IOException {
+            if (free.isEmpty() && allocated < NUM_BUFFERS) {
+                allocated++;
+                return ByteBuffer.allocateDirect(BUFFER_SIZE);
+            }
+            try {
+                // 所有缓冲区都在等待写出
+                while (free.isEmpty()) {
+                    checkFailure();
+                    wakeWriter();
+                    lock.wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted waiting for a log buffer");
+            }
+            return free.poll();
+        }
+    }
+}
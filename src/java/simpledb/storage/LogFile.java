@@ -7,6 +7,10 @@ import simpledb.common.Debug;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.lang.reflect.*;
 
 /*
@@ -39,44 +43,87 @@ must not be declared synchronized and must begin with a block like:
 */
 
 /**
-<p> The format of the log file is as follows:
+<p> The format of the log is as follows:
 
 <ul>
 
-<li> The first long integer of the file represents the offset of the
+<li> The log file itself holds a single long integer: the offset of the
 last written checkpoint, or -1 if there are no checkpoints
 
-<li> All additional data in the log consists of log records.  Log
-records are variable length.
+<li> The log records are stored in segment files next to the log file
+(see {@link LogSegments}).  Together they form one stream of bytes, and
+every offset below is a position in that stream.  Offsets never change:
+truncating the log deletes whole segments from its front.  Log records
+are variable length and may span segments.
 
 <li> Each log record begins with an integer type and a long integer
 transaction id.
 
-<li> Each log record ends with a long integer file offset representing
-the position in the log file where the record began.
+<li> Each log record ends with a long integer offset representing
+the position in the log where the record began.
 
-<li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
-CHECKPOINT
+<li> There are six record types: ABORT, COMMIT, UPDATE, BEGIN,
+CHECKPOINT and CLR (compensation log record)
 
 <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
-<li>UPDATE RECORDS consist of two entries, a before image and an
-after image.  These images are serialized Page objects, and can be
-accessed with the LogFile.readPageData() and LogFile.writePageData()
-methods.  See LogFile.print() for an example.
+<li>UPDATE RECORDS describe the change made to one page.  They contain
+the page class name and serialized PageId, followed by only the byte
+ranges of the page that changed: an integer count of ranges and, for
+each range, an integer offset, an integer length, and the bytes of the
+range before and after the change.  The before bytes are relative to
+the transaction's previous UPDATE record for the same page (or to the
+page's before image for the first one), so a transaction's updates are
+undone by applying before bytes in reverse log order and redone by
+applying after bytes in log order.  See LogFile.PageUpdate and
+LogFile.print() for an example.
+
+<li> CLR records are written when an UPDATE record is undone by
+rollback or recovery.  They contain the offset of the UPDATE record
+they compensate, followed by an UPDATE body whose after bytes are the
+restored contents.  Recovery redoes CLRs like any other update and
+never undoes an UPDATE record that has a CLR, so an undo interrupted by
+a crash is neither lost nor repeated.
 
 <li> CHECKPOINT records consist of active transactions at the time
-the checkpoint was taken and their first log record on disk.  The format
-of the record is an integer count of the number of transactions, as well
-as a long integer transaction id and a long integer first record offset
-for each active transaction.
+the checkpoint was taken and their first log record on disk, followed
+by the dirty page table.  The format of the record is an integer count
+of the number of transactions, as well as a long integer transaction id
+and a long integer first record offset for each active transaction; then
+an integer count of dirty pages, and for each one its serialized PageId
+and the offset of the first record that dirtied it since it was last
+written to disk (its recovery LSN).
+
+<li> Checkpoints are fuzzy: taking one does not flush the buffer pool.
+Recovery redoes the log from the smallest recovery LSN in the last
+checkpoint's dirty page table, skipping records for pages that were
+clean at the checkpoint.
 
 </ul>
+
+<p> Records are not written to the file directly.  They are serialized
+into a {@link LogBuffer}, whose writer thread appends them to the file in
+large sequential writes.  Anything that reads the log back (rollback,
+recovery, truncation) first flushes the buffer.
+
+<p> Commits use group commit: a committing transaction appends its
+COMMIT record while holding the LogFile monitor, then releases the
+monitor and waits until the log is forced past its record.  The log
+writer forces the log once for all waiting committers, so concurrent
+committers share one fsync.  It may wait up to
+{@link #setGroupCommitDelay} microseconds for
+{@link #setGroupCommitBatchSize} committers to join the batch.
 */
 public class LogFile {
 
     final File logFile;
-    private RandomAccessFile raf;
+    private RandomAccessFile raf; // 只保存检查点位置，protected by headerLock
+    // 保护 raf；持有 this 时可以再取它，反过来不行
+    private final Object headerLock = new Object();
+    // 最近一次写进 raf 的检查点位置，以及它还需要的最早的日志位置，protected by headerLock
+    private long checkpointOffset = NO_CHECKPOINT_ID;
+    private long checkpointMinRecord = NO_CHECKPOINT_ID;
+    private final LogSegments segments;
     Boolean recoveryUndecided; // no call to recover() and no append to log
 
     static final int ABORT_RECORD = 1;
@@ -84,6 +131,7 @@ public class LogFile {
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int COMPENSATION_RECORD = 6;
     static final long NO_CHECKPOINT_ID = -1;
 
     final static int INT_SIZE = 4;
@@ -95,6 +143,23 @@ public class LogFile {
 
     final Map<Long,Long> tidToFirstLogRecord = new HashMap<>();
 
+    // 每个活跃事务最近一次写入日志的页面内容，下一条 UPDATE 只记录相对它的变化
+    final Map<Long, Map<PageId, byte[]>> tidToLoggedImages = new HashMap<>();
+
+    // dirty page table：页面 -> recLSN，即页面上次写回磁盘后第一条修改它的记录的位置
+    final Map<PageId, Long> dirtyPages = new HashMap<>();
+
+    // 日志的内存尾部，记录先序列化到 out，再整条放进 logBuffer
+    private final LogBuffer logBuffer;
+    private final ByteArrayOutputStream recordBytes = new ByteArrayOutputStream();
+    private final DataOutputStream out = new DataOutputStream(recordBytes); //protected by this
+
+    private int groupCommitBatchSize = 1;
+    private long groupCommitDelayMicros = 0;
+
+    // recover() 中并行 redo 的线程数
+    private int recoveryThreads = Runtime.getRuntime().availableProcessors();
+
     /** Constructor.
         Initialize and back the log file with the specified file.
         We're not sure yet whether the caller is creating a brand new DB,
@@ -109,6 +174,8 @@ public class LogFile {
     public LogFile(File f) throws IOException {
 	this.logFile = f;
         raf = new RandomAccessFile(f, "rw");
+        segments = new LogSegments(f, LogSegments.DEFAULT_SEGMENT_SIZE);
+        logBuffer = new LogBuffer(segments, segments.getEnd());
         recoveryUndecided = true;
 
         // install shutdown hook to force cleanup on close
@@ -129,18 +196,131 @@ public class LogFile {
         totalRecords++;
         if(recoveryUndecided){
             recoveryUndecided = false;
+            writeCheckpointOffset(NO_CHECKPOINT_ID, NO_CHECKPOINT_ID, true);
+            segments.clear();
+            logBuffer.reset(0);
+            currentOffset = 0;
+        }
+    }
+
+    /** Append the record serialized into out to the log buffer.
+        @return the LSN just past the end of the record
+    */
+    private long appendRecord() throws IOException {
+        long lsn = logBuffer.append(recordBytes);
+        recordBytes.reset();
+        currentOffset = logBuffer.getFileOffset();
+        return lsn;
+    }
+
+    /** Record the location of the latest checkpoint at the beginning of
+        the log file and force it to disk.  Does nothing if a later
+        checkpoint has already been recorded, unless reset is set.
+        @param cpOffset the offset of the checkpoint record
+        @param minLogRecord the oldest record recovery from that
+        checkpoint reads, see {@link #logTruncate}
+        @param reset true to record cpOffset even if it is older, when
+        the log is being cleared; the header is then not forced
+    */
+    private void writeCheckpointOffset(long cpOffset, long minLogRecord, boolean reset) throws IOException {
+        synchronized (headerLock) {
+            if (!reset && cpOffset <= checkpointOffset) {
+                return;
+            }
+            if (reset) {
+                raf.setLength(0);
+            }
+            raf.seek(0);
+            raf.writeLong(cpOffset);
+            if (!reset) {
+                // 截断会删掉旧检查点需要的段，新的检查点位置必须先落盘
+                raf.getChannel().force(true);
+            }
+            checkpointOffset = cpOffset;
+            checkpointMinRecord = minLogRecord;
+        }
+    }
+
+    /** @return the location of the latest checkpoint recorded at the
+        beginning of the log file, or NO_CHECKPOINT_ID
+    */
+    private long readCheckpointOffset() throws IOException {
+        synchronized (headerLock) {
+            if (raf.length() < LONG_SIZE) {
+                return NO_CHECKPOINT_ID;
+            }
             raf.seek(0);
-            raf.setLength(0);
-            raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            return raf.readLong();
         }
     }
 
+    /** Write everything in the log buffer to the segments, so that the
+        log can be read back through a LogSegments.Reader. */
+    private void flushBuffer() throws IOException {
+        logBuffer.flush(logBuffer.getAppendLsn());
+    }
+
     public synchronized int getTotalRecords() {
         return totalRecords;
     }
+
+    /** @return the number of bytes in the log's segment files */
+    public synchronized long getLogSize() throws IOException {
+        return segments.getEnd() - segments.getStart();
+    }
+
+    /** Set the size at which the log starts a new segment file.  This
+        is also the granularity at which the log is truncated.
+        @param segmentSize the segment size in bytes
+    */
+    public synchronized void setSegmentSize(long segmentSize) {
+        if (segmentSize < 1) {
+            throw new IllegalArgumentException("log segment size must be positive");
+        }
+        segments.setSegmentSize(segmentSize);
+    }
+
+    /** @return the number of times the log has been forced to disk */
+    public int getForceCount() {
+        return logBuffer.getForceCount();
+    }
+
+    /** Set the number of committers a group commit leader waits for
+        before forcing the log.  A value of 1 forces as soon as the
+        leader is elected.
+        @param batchSize the target number of commits per force
+    */
+    public synchronized void setGroupCommitBatchSize(int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("group commit batch size must be positive");
+        }
+        this.groupCommitBatchSize = batchSize;
+        logBuffer.setGroupCommit(groupCommitBatchSize, groupCommitDelayMicros);
+    }
+
+    /** Set the longest time a group commit leader waits for the batch
+        to fill before forcing the log.
+        @param delayMicros the delay in microseconds, 0 to never wait
+    */
+    public synchronized void setGroupCommitDelay(long delayMicros) {
+        if (delayMicros < 0) {
+            throw new IllegalArgumentException("group commit delay must not be negative");
+        }
+        this.groupCommitDelayMicros = delayMicros;
+        logBuffer.setGroupCommit(groupCommitBatchSize, groupCommitDelayMicros);
+    }
     
+    /** Set the number of threads that redo the log during recovery.
+        Update records are partitioned among them by PageId.
+        @param threads the number of redo threads, 1 to redo serially
+    */
+    public synchronized void setRecoveryThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("number of recovery threads must be positive");
+        }
+        this.recoveryThreads = threads;
+    }
+
     /** Write an abort record to the log for the specified tid, force
         the log to disk, and perform a rollback
         @param tid The aborting transaction.
@@ -160,10 +340,10 @@ public class LogFile {
                 // live transactions (needs tidToFirstLogRecord)
                 rollback(tid);
 
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
+                out.writeInt(ABORT_RECORD);
+                out.writeLong(tid.getId());
+                out.writeLong(currentOffset);
+                appendRecord();
                 force();
                 tidToFirstLogRecord.remove(tid.getId());
             }
@@ -171,21 +351,29 @@ public class LogFile {
     }
 
     /** Write a commit record to disk for the specified tid,
-        and force the log to disk.
+        and force the log to disk.  The force is shared with any other
+        transactions committing at the same time (see group commit
+        above), so this must not be called while holding the LogFile
+        monitor.
 
         @param tid The committing transaction.
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
-        Debug.log("COMMIT " + tid.getId());
-        //should we verify that this is a live transaction?
-
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+    public void logCommit(TransactionId tid) throws IOException {
+        long lsn;
+        synchronized (this) {
+            preAppend();
+            Debug.log("COMMIT " + tid.getId());
+            //should we verify that this is a live transaction?
+
+            out.writeInt(COMMIT_RECORD);
+            out.writeLong(tid.getId());
+            out.writeLong(currentOffset);
+            lsn = appendRecord();
+            tidToFirstLogRecord.remove(tid.getId());
+            tidToLoggedImages.remove(tid.getId());
+        }
+        // 不持有 this 等待刷盘，期间其他事务可以继续追加日志
+        logBuffer.force(lsn);
     }
 
     /** Write an UPDATE record to disk for the specified tid and page
@@ -199,93 +387,340 @@ public class LogFile {
     public  synchronized void logWrite(TransactionId tid, Page before,
                                        Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
+        Debug.log("WRITE, offset = " + currentOffset);
         preAppend();
         /* update record conists of
 
            record type
            transaction id
-           before page data (see writePageData)
-           after page data
+           changed byte ranges of the page (see PageUpdate.write)
            start offset
         */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
+        // 以该事务上一次记录的页面内容为基准，只记录变化的字节
+        Map<PageId, byte[]> logged = tidToLoggedImages.computeIfAbsent(tid.getId(), k -> new HashMap<>());
+        byte[] beforeData = logged.get(after.getId());
+        if (beforeData == null) {
+            beforeData = before.getPageData();
+        }
+        byte[] afterData = after.getPageData();
+        PageUpdate update = PageUpdate.diff(after, beforeData, afterData);
+        logged.put(after.getId(), afterData);
+
+        dirtyPages.putIfAbsent(after.getId(), currentOffset);
 
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+        out.writeInt(UPDATE_RECORD);
+        out.writeLong(tid.getId());
+        update.write(out);
+        out.writeLong(currentOffset);
+        appendRecord();
 
         Debug.log("WRITE OFFSET = " + currentOffset);
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
-        PageId pid = p.getId();
+    /** Write a CLR for the specified tid recording that the UPDATE
+        record undone has been rolled back. */
+    private void logCompensation(long tid, LogRecord undone) throws IOException {
+        preAppend();
+        dirtyPages.putIfAbsent(undone.update.pid, currentOffset);
+        out.writeInt(COMPENSATION_RECORD);
+        out.writeLong(tid);
+        out.writeLong(undone.offset);
+        undone.update.inverse().write(out);
+        out.writeLong(currentOffset);
+        appendRecord();
+    }
+
+    /** Note that the current version of a page has been written to
+        disk, so recovery need not redo the records logged for it so far.
+        Called by the BufferPool whenever it writes a dirty page.
+        @param pid the page that was written
+    */
+    public synchronized void pageFlushed(PageId pid) {
+        dirtyPages.remove(pid);
+    }
+
+    static void writePageId(DataOutput out, PageId pid) throws IOException {
         int[] pageInfo = pid.serialize();
+        out.writeUTF(pid.getClass().getName());
+        out.writeInt(pageInfo.length);
+        for (int j : pageInfo) {
+            out.writeInt(j);
+        }
+    }
+
+    static PageId readPageId(DataInput in) throws IOException {
+        String idClassName = in.readUTF();
+        try {
+            Class<?> idClass = Class.forName(idClassName);
+            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
+            int numIdArgs = in.readInt();
+            Object[] idArgs = new Object[numIdArgs];
+            for (int i = 0; i < numIdArgs; i++) {
+                idArgs[i] = in.readInt();
+            }
+            return (PageId) idConsts[0].newInstance(idArgs);
+        } catch (ClassNotFoundException | InvocationTargetException | IllegalAccessException | InstantiationException e) {
+            e.printStackTrace();
+            throw new IOException();
+        }
+    }
+
+    /** The body of an UPDATE or CLR record: a page and the byte ranges of
+        it that changed, with their contents before and after the change.
+        Applying a PageUpdate overwrites whole ranges, so it can be
+        repeated any number of times with the same result.
+    */
+    static class PageUpdate {
+        // 两段修改相隔不超过这么多字节时合并，省下一组 offset/length
+        static final int MERGE_GAP = 2 * INT_SIZE;
+
+        final String pageClassName;
+        final PageId pid;
+        final int[] offsets;
+        final byte[][] before;
+        final byte[][] after;
+
+        PageUpdate(String pageClassName, PageId pid, int[] offsets,
+                   byte[][] before, byte[][] after) {
+            this.pageClassName = pageClassName;
+            this.pid = pid;
+            this.offsets = offsets;
+            this.before = before;
+            this.after = after;
+        }
+
+        /** Compute the byte ranges in which two images of page differ. */
+        static PageUpdate diff(Page page, byte[] beforeData, byte[] afterData) {
+            if (beforeData.length != afterData.length) {
+                throw new IllegalArgumentException("before and after images of page " + page.getId() + " differ in size");
+            }
+            List<int[]> ranges = new ArrayList<>();
+            int i = 0;
+            while (i < afterData.length) {
+                if (beforeData[i] == afterData[i]) {
+                    i++;
+                    continue;
+                }
+                // end 是最后一个不同字节之后的位置
+                int end = i + 1;
+                for (int j = end; j < afterData.length && j - end <= MERGE_GAP; j++) {
+                    if (beforeData[j] != afterData[j]) {
+                        end = j + 1;
+                    }
+                }
+                ranges.add(new int[]{i, end - i});
+                i = end;
+            }
 
-        //page data is:
-        // page class name
-        // id class name
-        // id class bytes
-        // id class data
-        // page class bytes
-        // page class data
+            int[] offsets = new int[ranges.size()];
+            byte[][] before = new byte[ranges.size()][];
+            byte[][] after = new byte[ranges.size()][];
+            for (int r = 0; r < ranges.size(); r++) {
+                int offset = ranges.get(r)[0];
+                int length = ranges.get(r)[1];
+                offsets[r] = offset;
+                before[r] = Arrays.copyOfRange(beforeData, offset, offset + length);
+                after[r] = Arrays.copyOfRange(afterData, offset, offset + length);
+            }
+            return new PageUpdate(page.getClass().getName(), page.getId(), offsets, before, after);
+        }
 
-        String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
+        /** @return an update that reverses this one */
+        PageUpdate inverse() {
+            return new PageUpdate(pageClassName, pid, offsets, after, before);
+        }
 
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
+        /** Overwrite the changed ranges of data with their after (redo)
+            or before (undo) contents. */
+        void apply(byte[] data, boolean redo) {
+            byte[][] images = redo ? after : before;
+            for (int i = 0; i < offsets.length; i++) {
+                System.arraycopy(images[i], 0, data, offsets[i], images[i].length);
+            }
+        }
 
-        raf.writeInt(pageInfo.length);
-        for (int j : pageInfo) {
-            raf.writeInt(j);
+        /** @return the number of changed bytes in this update */
+        int changedBytes() {
+            int n = 0;
+            for (byte[] range : after) {
+                n += range.length;
+            }
+            return n;
+        }
+
+        void write(DataOutput out) throws IOException {
+            out.writeUTF(pageClassName);
+            writePageId(out, pid);
+
+            out.writeInt(offsets.length);
+            for (int i = 0; i < offsets.length; i++) {
+                out.writeInt(offsets[i]);
+                out.writeInt(after[i].length);
+                out.write(before[i]);
+                out.write(after[i]);
+            }
+        }
+
+        static PageUpdate read(DataInput in) throws IOException {
+            String pageClassName = in.readUTF();
+            PageId pid = readPageId(in);
+
+            int numRanges = in.readInt();
+            int[] offsets = new int[numRanges];
+            byte[][] before = new byte[numRanges][];
+            byte[][] after = new byte[numRanges][];
+            for (int i = 0; i < numRanges; i++) {
+                offsets[i] = in.readInt();
+                int length = in.readInt();
+                before[i] = new byte[length];
+                after[i] = new byte[length];
+                in.readFully(before[i]);
+                in.readFully(after[i]);
+            }
+            return new PageUpdate(pageClassName, pid, offsets, before, after);
         }
-        byte[] pageData = p.getPageData();
-        raf.writeInt(pageData.length);
-        raf.write(pageData);
-        //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
     }
 
-    Page readPageData(RandomAccessFile raf) throws IOException {
-        PageId pid;
-        Page newPage = null;
+    /** A log record read back from the log by {@link #readRecord}. */
+    static class LogRecord {
+        int type;
+        long tid;
+        long offset;            // 记录在日志中的起始位置
+        long compensated = -1;  // CLR：被撤销的 UPDATE 记录的位置
+        PageUpdate update;      // UPDATE 和 CLR
+        Map<Long, Long> activeTxns; // CHECKPOINT：活跃事务 -> 第一条记录
+        Map<PageId, Long> dirtyPages; // CHECKPOINT：脏页 -> recLSN
+    }
 
-        String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
+    /** Read the complete log record starting at the current position of
+        in, leaving in positioned at the next record.
+        @throws EOFException if the log ends before the record does
+    */
+    LogRecord readRecord(LogSegments.Reader in) throws IOException {
+        LogRecord r = new LogRecord();
+        r.offset = in.getFilePointer();
+        r.type = in.readInt();
+        r.tid = in.readLong();
+        switch (r.type) {
+        case UPDATE_RECORD:
+            r.update = PageUpdate.read(in);
+            break;
+        case COMPENSATION_RECORD:
+            r.compensated = in.readLong();
+            r.update = PageUpdate.read(in);
+            break;
+        case CHECKPOINT_RECORD:
+            int numXactions = in.readInt();
+            r.activeTxns = new LinkedHashMap<>();
+            while (numXactions-- > 0) {
+                long xid = in.readLong();
+                r.activeTxns.put(xid, in.readLong());
+            }
+            int numDirty = in.readInt();
+            r.dirtyPages = new LinkedHashMap<>();
+            while (numDirty-- > 0) {
+                PageId pid = readPageId(in);
+                r.dirtyPages.put(pid, in.readLong());
+            }
+            break;
+        case ABORT_RECORD:
+        case COMMIT_RECORD:
+        case BEGIN_RECORD:
+            break;
+        default:
+            throw new IOException("unknown log record type " + r.type + " at offset " + r.offset);
+        }
+        //all xactions finish with a pointer
+        in.readLong();
+        return r;
+    }
 
-        try {
-            Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
+    /** Write the type specific part of a record, i.e. everything between
+        the transaction id and the trailing start offset. */
+    void writeRecordBody(DataOutput out, LogRecord r) throws IOException {
+        switch (r.type) {
+        case UPDATE_RECORD:
+            r.update.write(out);
+            break;
+        case COMPENSATION_RECORD:
+            out.writeLong(r.compensated);
+            r.update.write(out);
+            break;
+        case CHECKPOINT_RECORD:
+            out.writeInt(r.activeTxns.size());
+            for (Map.Entry<Long, Long> e : r.activeTxns.entrySet()) {
+                out.writeLong(e.getKey());
+                out.writeLong(e.getValue());
+            }
+            out.writeInt(r.dirtyPages.size());
+            for (Map.Entry<PageId, Long> e : r.dirtyPages.entrySet()) {
+                writePageId(out, e.getKey());
+                out.writeLong(e.getValue());
+            }
+            break;
+        }
+    }
 
-            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
-            Object[] idArgs = new Object[numIdArgs];
-            for (int i = 0; i<numIdArgs;i++) {
-                idArgs[i] = raf.readInt();
+    /** Pages being patched by rollback or recovery.  Each page is read
+        from its DbFile on first use and written back by {@link #flush}.
+    */
+    private class PatchedPages {
+        private final Map<PageId, byte[]> images = new HashMap<>();
+        private final Map<PageId, String> pageClasses = new HashMap<>();
+
+        void apply(PageUpdate u, boolean redo) {
+            byte[] data = images.get(u.pid);
+            if (data == null) {
+                try {
+                    data = Database.getCatalog().getDatabaseFile(u.pid.getTableId()).readPage(u.pid).getPageData();
+                } catch (IllegalArgumentException e) {
+                    // 页面还没有写到磁盘上
+                    data = new byte[BufferPool.getPageSize()];
+                }
+                images.put(u.pid, data);
+                pageClasses.put(u.pid, u.pageClassName);
             }
-            pid = (PageId)idConsts[0].newInstance(idArgs);
+            u.apply(data, redo);
+        }
 
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
+        /** Take over the pages patched by other, which must not overlap
+            with the pages patched here. */
+        void addAll(PatchedPages other) {
+            images.putAll(other.images);
+            pageClasses.putAll(other.pageClasses);
+        }
 
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
+        /** Write every patched page to disk and drop any cached copy of it
+            from the buffer pool. */
+        void flush() throws IOException {
+            // 按页号顺序写，文件只能逐页增长
+            List<PageId> pids = new ArrayList<>(images.keySet());
+            pids.sort(Comparator.comparingInt(PageId::getTableId).thenComparingInt(PageId::getPageNumber));
+            for (PageId pid : pids) {
+                Page page = newPage(pageClasses.get(pid), pid, images.get(pid));
+                Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(page);
+                Database.getBufferPool().discardPage(pid);
+                dirtyPages.remove(pid);
+            }
+            images.clear();
+            pageClasses.clear();
+        }
+    }
+
+    static Page newPage(String pageClassName, PageId pid, byte[] pageData) throws IOException {
+        try {
+            Class<?> pageClass = Class.forName(pageClassName);
+            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
 
             Object[] pageArgs = new Object[2];
             pageArgs[0] = pid;
             pageArgs[1] = pageData;
 
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
-
-            //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
+            return (Page)pageConsts[0].newInstance(pageArgs);
         } catch (ClassNotFoundException | InvocationTargetException | IllegalAccessException | InstantiationException e){
             e.printStackTrace();
             throw new IOException();
         }
-        return newPage;
-
     }
 
     /** Write a BEGIN record for the specified transaction
@@ -300,149 +735,85 @@ public class LogFile {
             throw new IOException("double logXactionBegin()");
         }
         preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
+        out.writeInt(BEGIN_RECORD);
+        out.writeLong(tid.getId());
+        out.writeLong(currentOffset);
         tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        appendRecord();
 
         Debug.log("BEGIN OFFSET = " + currentOffset);
     }
 
-    /** Checkpoint the log and write a checkpoint record. */
+    /** Checkpoint the log and write a checkpoint record.  The
+        checkpoint is fuzzy: it records the active transactions and the
+        dirty page table, but leaves dirty pages in the buffer pool.
+        Like logCommit, this waits for the record to reach the disk
+        without holding the LogFile monitor. */
     public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
-                preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
-
-                //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
-                }
+        long startCpOffset;
+        long minLogRecord;
+        long lsn;
+        synchronized (this) {
+            //Debug.log("CHECKPOINT, offset = " + currentOffset);
+            preAppend();
+            startCpOffset = currentOffset;
+            // 活跃事务的记录需要 undo，脏页 recLSN 之后的记录需要 redo
+            minLogRecord = startCpOffset;
+            out.writeInt(CHECKPOINT_RECORD);
+            out.writeLong(-1); //no tid , but leave space for convenience
+
+            //write list of outstanding transactions
+            out.writeInt(tidToFirstLogRecord.size());
+            for (Map.Entry<Long, Long> e : tidToFirstLogRecord.entrySet()) {
+                Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + e.getKey());
+                out.writeLong(e.getKey());
+                out.writeLong(e.getValue());
+                minLogRecord = Math.min(minLogRecord, e.getValue());
+            }
 
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
+            //write the dirty page table
+            out.writeInt(dirtyPages.size());
+            for (Map.Entry<PageId, Long> e : dirtyPages.entrySet()) {
+                writePageId(out, e.getKey());
+                out.writeLong(e.getValue());
+                minLogRecord = Math.min(minLogRecord, e.getValue());
             }
+            out.writeLong(currentOffset);
+            lsn = appendRecord();
         }
 
-        logTruncate();
+        //once the CP is on disk, make sure the CP location at the
+        // beginning of the log file is updated
+        logBuffer.force(lsn);
+        writeCheckpointOffset(startCpOffset, minLogRecord, false);
+        //Debug.log("CP OFFSET = " + startCpOffset);
+
+        truncateBefore(minLogRecord);
     }
 
     /** Truncate any unneeded portion of the log to reduce its space
-        consumption */
-    public synchronized void logTruncate() throws IOException {
-        preAppend();
-        raf.seek(0);
-        long cpLoc = raf.readLong();
-
-        long minLogRecord = cpLoc;
-
-        if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
-            @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
-
-            if (cpType != CHECKPOINT_RECORD) {
-                throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
-            }
-
-            int numOutstanding = raf.readInt();
-
-            for (int i = 0; i < numOutstanding; i++) {
-                @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
-                if (firstLogRecord < minLogRecord) {
-                    minLogRecord = firstLogRecord;
-                }
-            }
+        consumption.  Offsets in the log never change, so this only
+        deletes the segments before the oldest record recovery from the
+        latest checkpoint reads: the first record of each transaction
+        active at the checkpoint, and the recLSN of each page in its
+        dirty page table.  logCheckpoint computes that record from its
+        own tables, so nothing is read back from the log. */
+    public void logTruncate() throws IOException {
+        long minLogRecord;
+        synchronized (headerLock) {
+            minLogRecord = checkpointMinRecord;
         }
-
-        // we can truncate everything before minLogRecord
-        File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
-
-        raf.seek(minLogRecord);
-
-        //have to rewrite log records since offsets are different after truncation
-        while (true) {
-            try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
-
-                Debug.log("NEW START = " + newStart);
-
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
-
-                switch (type) {
-                case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
-
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
-                    break;
-                case CHECKPOINT_RECORD:
-                    int numXactions = raf.readInt();
-                    logNew.writeInt(numXactions);
-                    while (numXactions-- > 0) {
-                        long xid = raf.readLong();
-                        long xoffset = raf.readLong();
-                        logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                    }
-                    break;
-                case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid,newStart);
-                    break;
-                }
-
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
-
-            } catch (EOFException e) {
-                break;
-            }
+        if (minLogRecord == NO_CHECKPOINT_ID) {
+            return;
         }
+        truncateBefore(minLogRecord);
+    }
 
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
-
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
-
-        currentOffset = raf.getFilePointer();
+    // 删掉 minLogRecord 之前的段；检查点位置已经落盘，不需要持有 this
+    private void truncateBefore(long minLogRecord) throws IOException {
+        // we can truncate everything before minLogRecord
+        int deleted = segments.deleteBefore(minLogRecord);
+        Debug.log("TRUNCATING LOG; DELETED " + deleted + " SEGMENTS ; NEW START : " + segments.getStart() + " NEEDED FROM: " + minLogRecord);
         //print();
     }
 
@@ -460,6 +831,45 @@ public class LogFile {
             synchronized(this) {
                 preAppend();
                 // some code goes here
+                Long firstRecord = tidToFirstLogRecord.get(tid.getId());
+                if (firstRecord == null) {
+                    throw new NoSuchElementException("transaction " + tid.getId() + " is not live");
+                }
+
+                // 找出该事务还没有被补偿过的更新记录
+                flushBuffer();
+                List<Long> updates = new ArrayList<>();
+                Set<Long> compensated = new HashSet<>();
+                LogSegments.Reader in = segments.reader();
+                in.seek(firstRecord);
+                while (in.getFilePointer() < currentOffset) {
+                    LogRecord r = readRecord(in);
+                    if (r.tid != tid.getId()) {
+                        continue;
+                    }
+                    if (r.type == UPDATE_RECORD) {
+                        updates.add(r.offset);
+                    } else if (r.type == COMPENSATION_RECORD) {
+                        compensated.add(r.compensated);
+                    }
+                }
+
+                // 逆序撤销，每撤销一条就写一条 CLR
+                PatchedPages pages = new PatchedPages();
+                for (int i = updates.size() - 1; i >= 0; i--) {
+                    if (compensated.contains(updates.get(i))) {
+                        continue;
+                    }
+                    in.seek(updates.get(i));
+                    LogRecord r = readRecord(in);
+                    logCompensation(tid.getId(), r);
+                    pages.apply(r.update, false);
+                }
+
+                // WAL：CLR 先落盘，再写回页面
+                force();
+                pages.flush();
+                tidToLoggedImages.remove(tid.getId());
             }
         }
     }
@@ -468,10 +878,17 @@ public class LogFile {
         is necessary so that start up can happen quickly (without
         extensive recovery.)
     */
-    public synchronized void shutdown() {
+    public void shutdown() {
         try {
+            // 先写回脏页，使检查点的 dirty page table 为空，重启时不需要 redo
+            Database.getBufferPool().flushAllPages();
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
-            raf.close();
+            synchronized (this) {
+                synchronized (headerLock) {
+                    raf.close();
+                }
+                segments.close();
+            }
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
@@ -481,94 +898,254 @@ public class LogFile {
     /** Recover the database system by ensuring that the updates of
         committed transactions are installed and that the
         updates of uncommitted transactions are not installed.
+        An analysis pass reads the log once; the redo pass then runs on
+        {@link #setRecoveryThreads} threads, each replaying the updates of
+        its own set of pages, before the losers are undone.
     */
     public void recover() throws IOException {
         synchronized (Database.getBufferPool()) {
             synchronized (this) {
                 recoveryUndecided = false;
                 // some code goes here
+                tidToFirstLogRecord.clear();
+                tidToLoggedImages.clear();
+                dirtyPages.clear();
+                flushBuffer();
+                boolean noHeader;
+                synchronized (headerLock) {
+                    noHeader = raf.length() < LONG_SIZE;
+                }
+                if (noHeader || segments.getNumSegments() == 0) {
+                    // 空日志，没有需要恢复的内容
+                    writeCheckpointOffset(NO_CHECKPOINT_ID, NO_CHECKPOINT_ID, true);
+                    segments.clear();
+                    currentOffset = 0;
+                    logBuffer.reset(currentOffset);
+                    return;
+                }
+
+                // redo 从检查点 dirty page table 中最小的 recLSN 开始，
+                // 检查点时仍活跃的事务可能需要 undo，扫描要从它们的第一条记录开始
+                long cpLoc = readCheckpointOffset();
+                long cpStart = cpLoc == NO_CHECKPOINT_ID ? segments.getStart() : cpLoc;
+                long scanStart = cpStart;
+                Map<PageId, Long> dpt = new HashMap<>();
+                LogSegments.Reader in = segments.reader();
+                if (cpLoc != NO_CHECKPOINT_ID) {
+                    in.seek(cpLoc);
+                    LogRecord cp = readRecord(in);
+                    if (cp.type != CHECKPOINT_RECORD) {
+                        throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
+                    }
+                    for (Map.Entry<Long, Long> e : cp.activeTxns.entrySet()) {
+                        tidToFirstLogRecord.put(e.getKey(), e.getValue());
+                        scanStart = Math.min(scanStart, e.getValue());
+                    }
+                    dpt.putAll(cp.dirtyPages);
+                    for (long recLsn : cp.dirtyPages.values()) {
+                        scanStart = Math.min(scanStart, recLsn);
+                    }
+                    synchronized (headerLock) {
+                        checkpointOffset = cpLoc;
+                        checkpointMinRecord = scanStart;
+                    }
+                }
+
+                // analysis：顺序扫描日志，找出没有 COMMIT/ABORT 的 loser 事务，
+                // 并把需要 redo 的更新按页面分给各个 redo 线程
+                List<List<PageUpdate>> partitions = new ArrayList<>();
+                for (int i = 0; i < recoveryThreads; i++) {
+                    partitions.add(new ArrayList<>());
+                }
+                Map<Long, List<Long>> tidToUpdates = new HashMap<>();
+                Set<Long> compensated = new HashSet<>();
+                long end = scanStart;
+                in.seek(scanStart);
+                while (true) {
+                    LogRecord r;
+                    try {
+                        r = readRecord(in);
+                    } catch (EOFException e) {
+                        // 崩溃时没写完的最后一条记录
+                        break;
+                    }
+                    end = in.getFilePointer();
+                    switch (r.type) {
+                    case BEGIN_RECORD:
+                        tidToFirstLogRecord.put(r.tid, r.offset);
+                        break;
+                    case COMMIT_RECORD:
+                    case ABORT_RECORD:
+                        tidToFirstLogRecord.remove(r.tid);
+                        tidToUpdates.remove(r.tid);
+                        break;
+                    case UPDATE_RECORD:
+                        tidToUpdates.computeIfAbsent(r.tid, k -> new ArrayList<>()).add(r.offset);
+                        break;
+                    case COMPENSATION_RECORD:
+                        compensated.add(r.compensated);
+                        break;
+                    }
+                    if (r.update == null) {
+                        continue;
+                    }
+                    // 检查点之后才变脏的页面加入 dirty page table；
+                    // 检查点时干净的页面，它之前的记录都已经在磁盘上
+                    if (r.offset >= cpStart) {
+                        dpt.putIfAbsent(r.update.pid, r.offset);
+                    }
+                    Long recLsn = dpt.get(r.update.pid);
+                    if (recLsn != null && r.offset >= recLsn) {
+                        partitions.get(Math.floorMod(r.update.pid.hashCode(), recoveryThreads)).add(r.update);
+                    }
+                }
+                segments.truncate(end);
+                currentOffset = end;
+                logBuffer.reset(currentOffset);
+
+                // redo：按日志顺序重放所有更新（repeat history）
+                PatchedPages pages = redo(partitions);
+
+                // undo：按日志逆序撤销 loser 还没被补偿的更新
+                List<Long> undo = new ArrayList<>();
+                for (Long tid : tidToFirstLogRecord.keySet()) {
+                    for (Long offset : tidToUpdates.getOrDefault(tid, Collections.emptyList())) {
+                        if (!compensated.contains(offset)) {
+                            undo.add(offset);
+                        }
+                    }
+                }
+                undo.sort(Collections.reverseOrder());
+                for (long offset : undo) {
+                    in.seek(offset);
+                    LogRecord r = readRecord(in);
+                    logCompensation(r.tid, r);
+                    pages.apply(r.update, false);
+                }
+
+                for (Long tid : tidToFirstLogRecord.keySet()) {
+                    preAppend();
+                    out.writeInt(ABORT_RECORD);
+                    out.writeLong(tid);
+                    out.writeLong(currentOffset);
+                    appendRecord();
+                }
+                tidToFirstLogRecord.clear();
+
+                force();
+                pages.flush();
             }
          }
     }
 
+    /** Redo each partition of update records on its own thread.  The
+        partitions must not share pages, since only the order of the
+        updates to each page matters.
+        @return the redone pages of all partitions
+    */
+    private PatchedPages redo(List<List<PageUpdate>> partitions) throws IOException {
+        PatchedPages pages = new PatchedPages();
+        if (partitions.size() == 1) {
+            for (PageUpdate u : partitions.get(0)) {
+                pages.apply(u, true);
+            }
+            return pages;
+        }
+
+        ExecutorService workers = Executors.newFixedThreadPool(partitions.size());
+        try {
+            List<Future<PatchedPages>> results = new ArrayList<>();
+            for (List<PageUpdate> partition : partitions) {
+                results.add(workers.submit(() -> {
+                    PatchedPages redone = new PatchedPages();
+                    for (PageUpdate u : partition) {
+                        redone.apply(u, true);
+                    }
+                    return redone;
+                }));
+            }
+            for (Future<PatchedPages> result : results) {
+                pages.addAll(result.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted during redo");
+        } catch (ExecutionException e) {
+            throw new IOException("redo failed", e.getCause());
+        } finally {
+            workers.shutdownNow();
+        }
+        return pages;
+    }
+
     /** Print out a human readable represenation of the log */
     public void print() throws IOException {
-        long curOffset = raf.getFilePointer();
-
-        raf.seek(0);
+        flushBuffer();
+        System.out.println("checkpoint record at offset " + readCheckpointOffset());
 
-        System.out.println("0: checkpoint record at offset " + raf.readLong());
+        LogSegments.Reader in = segments.reader();
+        in.seek(segments.getStart());
 
         while (true) {
+            LogRecord r;
             try {
-                int cpType = raf.readInt();
-                long cpTid = raf.readLong();
-
-                System.out.println((raf.getFilePointer() - (INT_SIZE + LONG_SIZE)) + ": RECORD TYPE " + cpType);
-                System.out.println((raf.getFilePointer() - LONG_SIZE) + ": TID " + cpTid);
-
-                switch (cpType) {
-                case BEGIN_RECORD:
-                    System.out.println(" (BEGIN)");
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
-                    break;
-                case ABORT_RECORD:
-                    System.out.println(" (ABORT)");
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
-                    break;
-                case COMMIT_RECORD:
-                    System.out.println(" (COMMIT)");
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
-                    break;
-
-                case CHECKPOINT_RECORD:
-                    System.out.println(" (CHECKPOINT)");
-                    int numTransactions = raf.readInt();
-                    System.out.println((raf.getFilePointer() - INT_SIZE) + ": NUMBER OF OUTSTANDING RECORDS: " + numTransactions);
-
-                    while (numTransactions-- > 0) {
-                        long tid = raf.readLong();
-                        long firstRecord = raf.readLong();
-                        System.out.println((raf.getFilePointer() - (LONG_SIZE + LONG_SIZE)) + ": TID: " + tid);
-                        System.out.println((raf.getFilePointer() - LONG_SIZE) + ": FIRST LOG RECORD: " + firstRecord);
-                    }
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
-
-                    break;
-                case UPDATE_RECORD:
-                    System.out.println(" (UPDATE)");
-
-                    long start = raf.getFilePointer();
-                    Page before = readPageData(raf);
-
-                    long middle = raf.getFilePointer();
-                    Page after = readPageData(raf);
-
-                    System.out.println(start + ": before image table id " + before.getId().getTableId());
-                    System.out.println((start + INT_SIZE) + ": before image page number " + before.getId().getPageNumber());
-                    System.out.println((start + INT_SIZE) + " TO " + (middle - INT_SIZE) + ": page data");
-
-                    System.out.println(middle + ": after image table id " + after.getId().getTableId());
-                    System.out.println((middle + INT_SIZE) + ": after image page number " + after.getId().getPageNumber());
-                    System.out.println((middle + INT_SIZE) + " TO " + (raf.getFilePointer()) + ": page data");
+                r = readRecord(in);
+            } catch (EOFException e) {
+                //e.printStackTrace();
+                break;
+            }
 
-                    System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
+            System.out.println(r.offset + ": RECORD TYPE " + r.type);
+            System.out.println((r.offset + INT_SIZE) + ": TID " + r.tid);
 
-                    break;
+            switch (r.type) {
+            case BEGIN_RECORD:
+                System.out.println(" (BEGIN)");
+                break;
+            case ABORT_RECORD:
+                System.out.println(" (ABORT)");
+                break;
+            case COMMIT_RECORD:
+                System.out.println(" (COMMIT)");
+                break;
+            case CHECKPOINT_RECORD:
+                System.out.println(" (CHECKPOINT)");
+                System.out.println(" NUMBER OF OUTSTANDING RECORDS: " + r.activeTxns.size());
+                for (Map.Entry<Long, Long> e : r.activeTxns.entrySet()) {
+                    System.out.println(" TID: " + e.getKey());
+                    System.out.println(" FIRST LOG RECORD: " + e.getValue());
+                }
+                System.out.println(" NUMBER OF DIRTY PAGES: " + r.dirtyPages.size());
+                for (Map.Entry<PageId, Long> e : r.dirtyPages.entrySet()) {
+                    System.out.println(" PAGE: " + e.getKey().getTableId() + ":" + e.getKey().getPageNumber());
+                    System.out.println(" RECOVERY LSN: " + e.getValue());
                 }
-
-            } catch (EOFException e) {
-                //e.printStackTrace();
+                break;
+            case COMPENSATION_RECORD:
+                System.out.println(" (CLR)");
+                System.out.println(" COMPENSATES RECORD AT: " + r.compensated);
+                printUpdate(r.update);
+                break;
+            case UPDATE_RECORD:
+                System.out.println(" (UPDATE)");
+                printUpdate(r.update);
                 break;
             }
+            System.out.println((in.getFilePointer() - LONG_SIZE) + ": RECORD START OFFSET: " + r.offset);
         }
+    }
 
-        // Return the file pointer to its original position
-        raf.seek(curOffset);
+    private void printUpdate(PageUpdate u) {
+        System.out.println(" table id " + u.pid.getTableId());
+        System.out.println(" page number " + u.pid.getPageNumber());
+        System.out.println(" " + u.offsets.length + " changed ranges, " + u.changedBytes() + " bytes");
     }
 
-    public  synchronized void force() throws IOException {
-        raf.getChannel().force(true);
+    /** Force everything logged so far to disk.  LogBuffer has its own
+        lock, so like logCommit this does not take the LogFile monitor
+        while it waits. */
+    public void force() throws IOException {
+        logBuffer.force(logBuffer.getAppendLsn());
     }
 
 }
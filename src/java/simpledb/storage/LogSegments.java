@@ -0,0 +1,325 @@
+package simpledb.storage;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * LogSegments stores the body of a {@link LogFile} as a sequence of
+ * segment files.  The log is one stream of bytes addressed by offset, and
+ * each segment holds the bytes from its start offset up to the start of
+ * the next segment.  A segment file is named after the log file followed
+ * by its start offset in hex, e.g. <tt>log.0000000000100000</tt>.
+ * <p>
+ * New bytes are always appended to the last segment, and a new segment is
+ * started once the last one reaches the segment size.  Offsets never
+ * change, so the log is truncated by deleting the segments that lie
+ * entirely before the truncation point.
+ *
+ * @Threadsafe
+ */
+class LogSegments {
+
+    /** Default size at which a new segment is started. */
+    static final long DEFAULT_SEGMENT_SIZE = 1 << 20;
+
+    private static final int NAME_DIGITS = 16;
+
+    private static class Segment {
+        final long start;
+        final File file;
+        final RandomAccessFile raf;
+        final FileChannel channel;
+        boolean unforced = false;
+
+        Segment(long start, File file) throws IOException {
+            this.start = start;
+            this.file = file;
+            this.raf = new RandomAccessFile(file, "rw");
+            this.channel = raf.getChannel();
+        }
+
+        long end() throws IOException {
+            return start + channel.size();
+        }
+    }
+
+    private final File dir;
+    private final String prefix;
+    private long segmentSize;
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+
+    /**
+     * Open the segments of the log stored next to logFile.
+     *
+     * @param logFile the log file the segment names are derived from
+     * @param segmentSize the size at which a new segment is started
+     */
+    LogSegments(File logFile, long segmentSize) throws IOException {
+        File f = logFile.getAbsoluteFile();
+        this.dir = f.getParentFile();
+        this.prefix = f.getName() + ".";
+        this.segmentSize = segmentSize;
+
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                long start = parseStart(file.getName());
+                if (start >= 0) {
+                    segments.put(start, new Segment(start, file));
+                }
+            }
+        }
+    }
+
+    // 不是段文件时返回 -1
+    private long parseStart(String name) {
+        if (!name.startsWith(prefix) || name.length() != prefix.length() + NAME_DIGITS) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(name.substring(prefix.length()), 16);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private Segment create(long start) throws IOException {
+        String name = prefix + String.format("%0" + NAME_DIGITS + "x", start);
+        Segment s = new Segment(start, new File(dir, name));
+        s.channel.truncate(0);
+        segments.put(start, s);
+        return s;
+    }
+
+    private void delete(Segment s) throws IOException {
+        segments.remove(s.start);
+        s.raf.close();
+        s.file.delete();
+    }
+
+    /** @return the offset of the first byte in the log */
+    synchronized long getStart() {
+        return segments.isEmpty() ? 0 : segments.firstKey();
+    }
+
+    /** @return the offset just past the last byte in the log */
+    synchronized long getEnd() throws IOException {
+        return segments.isEmpty() ? 0 : segments.lastEntry().getValue().end();
+    }
+
+    synchronized void setSegmentSize(long segmentSize) {
+        this.segmentSize = segmentSize;
+    }
+
+    /** @return the number of segment files */
+    synchronized int getNumSegments() {
+        return segments.size();
+    }
+
+    /**
+     * Write the remaining bytes of buf to the log at pos, which must not
+     * be beyond the end of the log.
+     */
+    synchronized void write(ByteBuffer buf, long pos) throws IOException {
+        while (buf.hasRemaining()) {
+            Map.Entry<Long, Segment> e = segments.floorEntry(pos);
+            Segment s;
+            if (e != null) {
+                s = e.getValue();
+            } else if (segments.isEmpty()) {
+                s = create(pos);
+            } else {
+                throw new IOException("log offset " + pos + " is before the start of the log");
+            }
+
+            // 只有最后一段会增长，写满 segmentSize 后开始新的一段
+            Long next = segments.higherKey(s.start);
+            long limit;
+            if (next != null) {
+                limit = next;
+            } else if (pos - s.start < segmentSize) {
+                limit = s.start + segmentSize;
+            } else {
+                s = create(pos);
+                limit = pos + segmentSize;
+            }
+
+            ByteBuffer part = buf.duplicate();
+            part.limit(part.position() + (int) Math.min(buf.remaining(), limit - pos));
+            while (part.hasRemaining()) {
+                pos += s.channel.write(part, pos - s.start);
+            }
+            buf.position(part.position());
+            s.unforced = true;
+        }
+    }
+
+    /** Force every segment written since the last force to disk. */
+    synchronized void force() throws IOException {
+        for (Segment s : segments.values()) {
+            if (s.unforced) {
+                s.channel.force(true);
+                s.unforced = false;
+            }
+        }
+    }
+
+    /**
+     * Read up to len bytes of the log at pos.
+     *
+     * @return the number of bytes read, or -1 at the end of the log
+     */
+    synchronized int read(long pos, byte[] b, int off, int len) throws IOException {
+        Map.Entry<Long, Segment> e = segments.floorEntry(pos);
+        if (e == null) {
+            if (segments.isEmpty()) {
+                return -1;
+            }
+            throw new IOException("log offset " + pos + " is before the start of the log");
+        }
+        Segment s = e.getValue();
+        if (pos >= s.end()) {
+            Long next = segments.higherKey(s.start);
+            if (next == null || next != pos) {
+                return -1;
+            }
+            s = segments.get(next);
+        }
+        int n = (int) Math.min(len, s.end() - pos);
+        if (n <= 0) {
+            return -1;
+        }
+        return s.channel.read(ByteBuffer.wrap(b, off, n), pos - s.start);
+    }
+
+    /** Drop every byte of the log at or after end. */
+    synchronized void truncate(long end) throws IOException {
+        List<Segment> after = new ArrayList<>(segments.tailMap(end, true).values());
+        for (Segment s : after) {
+            delete(s);
+        }
+        Map.Entry<Long, Segment> e = segments.floorEntry(end);
+        if (e != null && e.getValue().end() > end) {
+            e.getValue().channel.truncate(end - e.getKey());
+        }
+    }
+
+    /**
+     * Delete the segments that lie entirely before offset.  The last
+     * segment is never deleted.
+     *
+     * @return the number of segments deleted
+     */
+    synchronized int deleteBefore(long offset) throws IOException {
+        List<Segment> before = new ArrayList<>();
+        for (Segment s : segments.values()) {
+            Long next = segments.higherKey(s.start);
+            if (next == null || next > offset) {
+                break;
+            }
+            before.add(s);
+        }
+        for (Segment s : before) {
+            delete(s);
+        }
+        return before.size();
+    }
+
+    /** Delete every segment, leaving an empty log that starts at offset 0. */
+    synchronized void clear() throws IOException {
+        for (Segment s : new ArrayList<>(segments.values())) {
+            delete(s);
+        }
+    }
+
+    synchronized void close() throws IOException {
+        for (Segment s : segments.values()) {
+            s.raf.close();
+        }
+    }
+
+    /** @return a new reader over the log.  A reader caches what it has
+        read, so use a fresh one after truncating or clearing the log. */
+    Reader reader() {
+        return new Reader(new Input());
+    }
+
+    /**
+     * A DataInput over the log that can be positioned with
+     * {@link #seek}.  Reading past the end of the log throws
+     * EOFException.
+     */
+    class Reader extends DataInputStream {
+        private final Input input;
+
+        private Reader(Input input) {
+            super(input);
+            this.input = input;
+        }
+
+        void seek(long pos) {
+            input.seek(pos);
+        }
+
+        long getFilePointer() {
+            return input.pos;
+        }
+    }
+
+    // 带缓冲的顺序读，seek 时丢弃缓冲
+    private class Input extends InputStream {
+        private final byte[] buf = new byte[8192];
+        private long bufStart = 0;
+        private int bufLen = 0;
+        private long pos = 0;
+
+        void seek(long pos) {
+            this.pos = pos;
+        }
+
+        private boolean fill() throws IOException {
+            if (pos >= bufStart && pos < bufStart + bufLen) {
+                return true;
+            }
+            int n = LogSegments.this.read(pos, buf, 0, buf.length);
+            if (n <= 0) {
+                bufLen = 0;
+                return false;
+            }
+            bufStart = pos;
+            bufLen = n;
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!fill()) {
+                return -1;
+            }
+            return buf[(int) (pos++ - bufStart)] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!fill()) {
+                return -1;
+            }
+            int n = (int) Math.min(len, bufStart + bufLen - pos);
+            System.arraycopy(buf, (int) (pos - bufStart), b, off, n);
+            pos += n;
+            return n;
+        }
+    }
+}
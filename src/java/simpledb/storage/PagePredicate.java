@@ -0,0 +1,134 @@
+package simpledb.storage;
+
+import simpledb.common.Type;
+import simpledb.execution.Predicate;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * PagePredicate is a conjunction of {@link Predicate}s that a HeapPage
+ * checks on the bytes of its slots, before it builds a Tuple.  Comparisons
+ * of an integer column against an integer constant read the int stored in
+ * the slot; the others are checked on the tuples that pass those, after
+ * they are built.  Either way, only the tuples that satisfy every predicate
+ * are built.
+ *
+ * @see HeapPage#iterator(PagePredicate)
+ */
+public final class PagePredicate {
+
+    private final List<Predicate> predicates;
+    // 按字节比较的整数谓词：字段在槽内的偏移、比较符号、常量
+    private final int[] offsets;
+    private final Predicate.Op[] ops;
+    private final int[] values;
+    // 其余谓词在元组生成后检查
+    private final List<Predicate> residual = new ArrayList<>();
+
+    /**
+     * @param td         the schema of the pages
+     * @param predicates the predicates that must all be true
+     */
+    public PagePredicate(TupleDesc td, List<Predicate> predicates) {
+        this.predicates = predicates;
+        List<Predicate> raw = new ArrayList<>();
+        for (Predicate p : predicates) {
+            if (td.getFieldType(p.getFieldNo()) == Type.INT_TYPE && p.getOperand() instanceof IntField) {
+                raw.add(p);
+            } else {
+                this.residual.add(p);
+            }
+        }
+        this.offsets = new int[raw.size()];
+        this.ops = new Predicate.Op[raw.size()];
+        this.values = new int[raw.size()];
+        for (int i = 0; i < raw.size(); i++) {
+            Predicate p = raw.get(i);
+            int offset = 0;
+            for (int j = 0; j < p.getFieldNo(); j++) {
+                offset += td.getFieldType(j).getLen();
+            }
+            this.offsets[i] = offset;
+            this.ops[i] = p.getOp();
+            this.values[i] = ((IntField) p.getOperand()).getValue();
+        }
+    }
+
+    /** @return the predicates this was built from */
+    public List<Predicate> getPredicates() {
+        return this.predicates;
+    }
+
+    // 按 DataOutputStream 的大端序读出整数
+    static int readInt(byte[] data, int offset) {
+        return (data[offset] & 0xff) << 24 | (data[offset + 1] & 0xff) << 16
+                | (data[offset + 2] & 0xff) << 8 | (data[offset + 3] & 0xff);
+    }
+
+    /**
+     * @param data the bytes of a page
+     * @param slot the offset of a slot in data
+     * @return false if the tuple stored in the slot fails one of the integer
+     * predicates
+     */
+    boolean testBytes(byte[] data, int slot) {
+        for (int i = 0; i < this.offsets.length; i++) {
+            int v = readInt(data, slot + this.offsets[i]);
+            int c = this.values[i];
+            boolean pass;
+            switch (this.ops[i]) {
+                case EQUALS:
+                case LIKE:
+                    pass = v == c;
+                    break;
+                case NOT_EQUALS:
+                    pass = v != c;
+                    break;
+                case GREATER_THAN:
+                    pass = v > c;
+                    break;
+                case GREATER_THAN_OR_EQ:
+                    pass = v >= c;
+                    break;
+                case LESS_THAN:
+                    pass = v < c;
+                    break;
+                case LESS_THAN_OR_EQ:
+                    pass = v <= c;
+                    break;
+                default:
+                    throw new IllegalStateException("unknown operator " + this.ops[i]);
+            }
+            if (!pass) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** @return true if some predicates can only be checked on a whole tuple */
+    boolean hasResidual() {
+        return !this.residual.isEmpty();
+    }
+
+    /** @return true if t satisfies the predicates not checked by {@link #testBytes} */
+    boolean testResidual(Tuple t) {
+        for (Predicate p : this.residual) {
+            if (!p.filter(t)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** @return true if t satisfies every predicate */
+    public boolean test(Tuple t) {
+        for (Predicate p : this.predicates) {
+            if (!p.filter(t)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
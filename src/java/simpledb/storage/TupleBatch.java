@@ -0,0 +1,275 @@
+package simpledb.storage;
+
+import simpledb.common.Type;
+
+import java.util.List;
+
+/**
+ * TupleBatch holds up to a fixed number of tuples in column-oriented form,
+ * so that operators can process many tuples per call instead of one.
+ * Integer columns are stored as primitive int arrays; columns of other
+ * types hold their Field objects.
+ * <p>
+ * A batch has a selection vector: only the rows listed in it are part of
+ * the batch.  Row i of the batch is physical row {@link #row(int)} of the
+ * columns.  A Filter removes rows by narrowing the selection instead of
+ * copying the remaining rows.
+ * <p>
+ * Operators reuse their batches, so a batch returned by
+ * {@link simpledb.execution.OpIterator#nextBatch()} is only valid until
+ * the next call to nextBatch() on the same iterator.
+ */
+public class TupleBatch {
+
+    /** The default number of rows in a batch. */
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private final TupleDesc td;
+    private final int capacity;
+    // 每一列只有一种表示：int 列用 ints，其他列用 fields
+    private int[][] ints;
+    private Field[][] fields;
+    private RecordId[] recordIds;
+    private int size = 0;            // 列中存放的行数
+    private int[] selection;
+    private boolean selected = false; // false 表示所有行都被选中
+    private int numSelected = 0;
+
+    /**
+     * Create an empty batch of {@link #DEFAULT_CAPACITY} rows.
+     *
+     * @param td the schema of the tuples in this batch
+     */
+    public TupleBatch(TupleDesc td) {
+        this(td, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Create an empty batch.
+     *
+     * @param td       the schema of the tuples in this batch
+     * @param capacity the maximum number of rows in the batch
+     */
+    public TupleBatch(TupleDesc td, int capacity) {
+        this.td = td;
+        this.capacity = capacity;
+        this.ints = new int[td.numFields()][];
+        this.fields = new Field[td.numFields()][];
+        for (int i = 0; i < td.numFields(); i++) {
+            if (td.getFieldType(i) == Type.INT_TYPE) {
+                this.ints[i] = new int[capacity];
+            } else {
+                this.fields[i] = new Field[capacity];
+            }
+        }
+        this.recordIds = new RecordId[capacity];
+        this.selection = new int[capacity];
+    }
+
+    /**
+     * @return The TupleDesc representing the schema of the tuples in this
+     * batch.
+     */
+    public TupleDesc getTupleDesc() {
+        return this.td;
+    }
+
+    /**
+     * @return the number of rows in this batch, i.e. the number of
+     * selected rows
+     */
+    public int numRows() {
+        return this.selected ? this.numSelected : this.size;
+    }
+
+    /**
+     * @return true if no more rows can be added to this batch
+     */
+    public boolean isFull() {
+        return this.size == this.capacity;
+    }
+
+    /**
+     * @param i the index of a row of this batch, 0 <= i < numRows()
+     * @return the physical row of the columns that holds row i
+     */
+    public int row(int i) {
+        return this.selected ? this.selection[i] : i;
+    }
+
+    /**
+     * Remove all rows from this batch.
+     */
+    public void clear() {
+        this.size = 0;
+        this.selected = false;
+        this.numSelected = 0;
+    }
+
+    /**
+     * @return true if column i is stored as primitive ints
+     */
+    public boolean isIntColumn(int i) {
+        return this.ints[i] != null;
+    }
+
+    /**
+     * @param i an integer column
+     * @return the values of column i, indexed by physical row
+     */
+    public int[] intColumn(int i) {
+        return this.ints[i];
+    }
+
+    /**
+     * @return the int value of column col in physical row row
+     */
+    public int getInt(int col, int row) {
+        return this.ints[col][row];
+    }
+
+    /**
+     * @return the value of column col in physical row row
+     */
+    public Field getField(int col, int row) {
+        if (this.ints[col] != null) {
+            return new IntField(this.ints[col][row]);
+        }
+        return this.fields[col][row];
+    }
+
+    /**
+     * @return the RecordId of physical row row, which may be null
+     */
+    public RecordId getRecordId(int row) {
+        return this.recordIds[row];
+    }
+
+    /**
+     * @return physical row row as a Tuple
+     */
+    public Tuple getTuple(int row) {
+        Tuple t = new Tuple(this.td);
+        t.setRecordId(this.recordIds[row]);
+        for (int i = 0; i < this.td.numFields(); i++) {
+            t.setField(i, getField(i, row));
+        }
+        return t;
+    }
+
+    /**
+     * Append a tuple to this batch, which must not be full and must not
+     * have a selection.
+     */
+    public void addTuple(Tuple t) {
+        int row = startRow();
+        for (int i = 0; i < this.td.numFields(); i++) {
+            if (this.ints[i] != null) {
+                this.ints[i][row] = ((IntField) t.getField(i)).getValue();
+            } else {
+                this.fields[i][row] = t.getField(i);
+            }
+        }
+        this.recordIds[row] = t.getRecordId();
+    }
+
+    /**
+     * Append the concatenation of left and physical row row of right, as
+     * produced by a join.
+     */
+    public void addJoined(Tuple left, TupleBatch right, int row) {
+        int out = startRow();
+        int n1 = left.getTupleDesc().numFields();
+        for (int i = 0; i < n1; i++) {
+            if (this.ints[i] != null) {
+                this.ints[i][out] = ((IntField) left.getField(i)).getValue();
+            } else {
+                this.fields[i][out] = left.getField(i);
+            }
+        }
+        for (int i = 0; i < right.td.numFields(); i++) {
+            if (this.ints[n1 + i] != null) {
+                this.ints[n1 + i][out] = right.ints[i][row];
+            } else {
+                this.fields[n1 + i][out] = right.getField(i, row);
+            }
+        }
+    }
+
+    /**
+     * Append physical row row of source, which has the same schema.
+     */
+    public void addRow(TupleBatch source, int row) {
+        int out = startRow();
+        for (int i = 0; i < this.td.numFields(); i++) {
+            if (this.ints[i] != null) {
+                this.ints[i][out] = source.ints[i][row];
+            } else {
+                this.fields[i][out] = source.fields[i][row];
+            }
+        }
+        this.recordIds[out] = source.recordIds[row];
+    }
+
+    /**
+     * @return a new batch holding the rows of this batch, without a
+     * selection, that stays valid when this batch is reused
+     */
+    public TupleBatch copy() {
+        TupleBatch b = new TupleBatch(this.td, Math.max(1, numRows()));
+        for (int i = 0; i < numRows(); i++) {
+            b.addRow(this, row(i));
+        }
+        return b;
+    }
+
+    // 新增一行，返回它的物理行号
+    private int startRow() {
+        if (this.selected) {
+            throw new IllegalStateException("cannot add rows to a batch with a selection");
+        }
+        if (isFull()) {
+            throw new IllegalStateException("batch is full");
+        }
+        this.recordIds[this.size] = null;
+        return this.size++;
+    }
+
+    /**
+     * @return the selection vector of this batch, with room for every
+     * row.  Write the physical rows to keep into it and call
+     * {@link #setSelection}; it is safe to overwrite entry j while reading
+     * {@link #row(int)} for rows i >= j.
+     */
+    public int[] selectionVector() {
+        return this.selection;
+    }
+
+    /**
+     * Keep only the first n physical rows listed in the selection vector.
+     */
+    public void setSelection(int n) {
+        this.selected = true;
+        this.numSelected = n;
+    }
+
+    /**
+     * Make this batch a view of some of the columns of source, sharing
+     * its column arrays and selection.  The view stays valid until source
+     * is changed.
+     *
+     * @param source  the batch to project
+     * @param columns the columns of source that form this batch's columns
+     */
+    public void project(TupleBatch source, List<Integer> columns) {
+        for (int i = 0; i < columns.size(); i++) {
+            this.ints[i] = source.ints[columns.get(i)];
+            this.fields[i] = source.fields[columns.get(i)];
+        }
+        this.recordIds = source.recordIds;
+        this.size = source.size;
+        this.selection = source.selection;
+        this.selected = source.selected;
+        this.numSelected = source.numSelected;
+    }
+}
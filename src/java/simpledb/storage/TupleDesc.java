@@ -203,6 +203,20 @@ public class TupleDesc implements Serializable {
         return new TupleDesc(typeArr, fieldArr);
     }
 
+    /**
+     * @param fields indices of fields of this TupleDesc
+     * @return a TupleDesc with just those fields, in that order
+     */
+    public TupleDesc project(int[] fields) {
+        Type[] typeArr = new Type[fields.length];
+        String[] fieldArr = new String[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            typeArr[i] = this.tdItems.get(fields[i]).fieldType;
+            fieldArr[i] = this.tdItems.get(fields[i]).fieldName;
+        }
+        return new TupleDesc(typeArr, fieldArr);
+    }
+
     /**
      * Compares the specified object with this TupleDesc for equality. Two
      * TupleDescs are considered equal if they have the same number of items
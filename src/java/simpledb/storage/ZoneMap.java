@@ -0,0 +1,149 @@
+package simpledb.storage;
+
+import simpledb.common.Type;
+import simpledb.execution.Predicate;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * ZoneMap keeps the smallest and largest value of each integer column of
+ * every page of a HeapFile, so that a scan can skip the pages on which no
+ * tuple can satisfy its predicates.  For a table that is appended in order,
+ * e.g. by id or timestamp, a range predicate then reads only the pages
+ * holding the range.
+ * <p>
+ * The summaries live in memory next to the HeapFile.  A page gets one the
+ * first time the HeapFile reads it from disk; until then it is always read.
+ * Inserting a tuple widens the summary of its page.  Deleting one leaves the
+ * summary as it is, so summaries are never narrower than their pages, only
+ * sometimes wider, and skipping a page never loses a tuple.
+ */
+public final class ZoneMap {
+
+    private final boolean[] intColumns;
+    // bounds[page] 依次是每列的最小值和最大值，null 表示该页还没有摘要
+    private int[][] bounds = new int[16][];
+
+    /**
+     * @param td the schema of the pages summarized; only integer columns
+     *           are tracked
+     */
+    public ZoneMap(TupleDesc td) {
+        this.intColumns = new boolean[td.numFields()];
+        for (int i = 0; i < td.numFields(); i++) {
+            this.intColumns[i] = td.getFieldType(i) == Type.INT_TYPE;
+        }
+    }
+
+    // 没有元组的页：最小值大于最大值
+    private int[] emptyBounds() {
+        int[] b = new int[2 * this.intColumns.length];
+        for (int i = 0; i < this.intColumns.length; i++) {
+            b[2 * i] = Integer.MAX_VALUE;
+            b[2 * i + 1] = Integer.MIN_VALUE;
+        }
+        return b;
+    }
+
+    private void widen(int[] b, Tuple t) {
+        for (int i = 0; i < this.intColumns.length; i++) {
+            if (this.intColumns[i]) {
+                int v = ((IntField) t.getField(i)).getValue();
+                b[2 * i] = Math.min(b[2 * i], v);
+                b[2 * i + 1] = Math.max(b[2 * i + 1], v);
+            }
+        }
+    }
+
+    /**
+     * Add every tuple of page to the summary of its page, starting one if the
+     * page has none.  Called with each page the HeapFile reads or writes.
+     */
+    public synchronized void addPage(HeapPage page) {
+        int pgNo = page.getId().getPageNumber();
+        if (pgNo >= this.bounds.length) {
+            this.bounds = Arrays.copyOf(this.bounds, Math.max(pgNo + 1, this.bounds.length * 2));
+        }
+        if (this.bounds[pgNo] == null) {
+            this.bounds[pgNo] = emptyBounds();
+        }
+        int[] b = this.bounds[pgNo];
+        // 直接读页上的整数，不生成元组
+        for (int slot = 0; slot < page.getNumSlots(); slot++) {
+            if (!page.isSlotUsed(slot)) {
+                continue;
+            }
+            for (int i = 0; i < this.intColumns.length; i++) {
+                if (this.intColumns[i]) {
+                    int v = page.getIntField(slot, i);
+                    b[2 * i] = Math.min(b[2 * i], v);
+                    b[2 * i + 1] = Math.max(b[2 * i + 1], v);
+                }
+            }
+        }
+    }
+
+    /**
+     * Widen the summary of a page to cover a tuple inserted into it.  A page
+     * without a summary keeps none.
+     */
+    public synchronized void addTuple(int pgNo, Tuple t) {
+        if (pgNo < this.bounds.length && this.bounds[pgNo] != null) {
+            widen(this.bounds[pgNo], t);
+        }
+    }
+
+    /**
+     * @param pgNo       a page of the file
+     * @param predicates predicates on the tuples of the file
+     * @return false if no tuple of the page can satisfy all of the
+     * predicates; true if some might, or the page has no summary yet
+     */
+    public synchronized boolean mightMatch(int pgNo, List<Predicate> predicates) {
+        if (pgNo >= this.bounds.length || this.bounds[pgNo] == null) {
+            return true;
+        }
+        int[] b = this.bounds[pgNo];
+        for (Predicate p : predicates) {
+            int f = p.getFieldNo();
+            if (!this.intColumns[f] || !(p.getOperand() instanceof IntField)) {
+                continue;
+            }
+            int min = b[2 * f], max = b[2 * f + 1];
+            if (min > max) {
+                // 空页
+                return false;
+            }
+            int v = ((IntField) p.getOperand()).getValue();
+            boolean possible;
+            switch (p.getOp()) {
+                case EQUALS:
+                case LIKE:
+                    possible = min <= v && v <= max;
+                    break;
+                case NOT_EQUALS:
+                    possible = min != v || max != v;
+                    break;
+                case GREATER_THAN:
+                    possible = max > v;
+                    break;
+                case GREATER_THAN_OR_EQ:
+                    possible = max >= v;
+                    break;
+                case LESS_THAN:
+                    possible = min < v;
+                    break;
+                case LESS_THAN_OR_EQ:
+                    possible = min <= v;
+                    break;
+                default:
+                    possible = true;
+            }
+            if (!possible) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
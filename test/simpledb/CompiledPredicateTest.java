@@ -0,0 +1,129 @@
+package simpledb;
+
+import org.junit.Test;
+
+import simpledb.common.Type;
+import simpledb.common.Utility;
+import simpledb.execution.CompiledPredicate;
+import simpledb.execution.JoinPredicate;
+import simpledb.execution.Predicate;
+import simpledb.storage.IntField;
+import simpledb.storage.StringField;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
+import simpledb.storage.TupleDesc;
+import simpledb.systemtest.SimpleDbTestBase;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+public class CompiledPredicateTest extends SimpleDbTestBase {
+
+  /**
+   * Unit test for CompiledPredicate.test(): agrees with Predicate.filter()
+   * for every operator.
+   */
+  @Test public void test() {
+    for (Predicate.Op op : Predicate.Op.values()) {
+      Predicate p = new Predicate(0, op, TestUtil.getField(0));
+      CompiledPredicate c = CompiledPredicate.compile(Collections.singletonList(p));
+      for (int i = -1; i <= 1; i++) {
+        Tuple t = Utility.getHeapTuple(i);
+        assertEquals(op + " " + i, p.filter(t), c.test(t));
+      }
+    }
+  }
+
+  /**
+   * Unit test for every operator against the smallest and largest int,
+   * over tuples and over a batch.
+   */
+  @Test public void extremes() {
+    int[] values = {Integer.MIN_VALUE, Integer.MIN_VALUE + 1, 0, Integer.MAX_VALUE - 1, Integer.MAX_VALUE};
+    for (Predicate.Op op : Predicate.Op.values()) {
+      for (int v : new int[]{Integer.MIN_VALUE, Integer.MAX_VALUE}) {
+        Predicate p = new Predicate(0, op, new IntField(v));
+        CompiledPredicate c = CompiledPredicate.compile(Collections.singletonList(p));
+        TupleBatch batch = new TupleBatch(Utility.getTupleDesc(1));
+        int expected = 0;
+        for (int x : values) {
+          Tuple t = Utility.getHeapTuple(x);
+          assertEquals(op + " " + v + " " + x, p.filter(t), c.test(t));
+          if (p.filter(t)) {
+            expected++;
+          }
+          batch.addTuple(t);
+        }
+        c.filter(batch);
+        assertEquals(op + " " + v, expected, batch.numRows());
+      }
+    }
+  }
+
+  /**
+   * Unit test for predicates over string fields.
+   */
+  @Test public void testString() {
+    TupleDesc td = new TupleDesc(new Type[]{Type.STRING_TYPE});
+    Tuple t = new Tuple(td);
+    t.setField(0, new StringField("hello", Type.STRING_LEN));
+    Predicate like = new Predicate(0, Predicate.Op.LIKE, new StringField("ell", Type.STRING_LEN));
+    Predicate eq = new Predicate(0, Predicate.Op.EQUALS, new StringField("ell", Type.STRING_LEN));
+    assertTrue(CompiledPredicate.compile(Collections.singletonList(like)).test(t));
+    assertFalse(CompiledPredicate.compile(Collections.singletonList(eq)).test(t));
+  }
+
+  /**
+   * Unit test for a conjunction over tuples and over a batch.
+   */
+  @Test public void conjunction() {
+    CompiledPredicate c = CompiledPredicate.compile(Arrays.asList(
+        new Predicate(0, Predicate.Op.GREATER_THAN, TestUtil.getField(2)),
+        new Predicate(1, Predicate.Op.LESS_THAN_OR_EQ, TestUtil.getField(5))));
+
+    TupleBatch batch = new TupleBatch(Utility.getTupleDesc(2));
+    int expected = 0;
+    for (int i = 0; i < 10; i++) {
+      Tuple t = Utility.getHeapTuple(new int[]{i, 9 - i});
+      boolean pass = i > 2 && 9 - i <= 5;
+      assertEquals(pass, c.test(t));
+      if (pass) {
+        expected++;
+      }
+      batch.addTuple(t);
+    }
+
+    c.filter(batch);
+    assertEquals(expected, batch.numRows());
+    for (int i = 0; i < batch.numRows(); i++) {
+      assertTrue(c.test(batch.getTuple(batch.row(i))));
+    }
+  }
+
+  /**
+   * Unit test for CompiledPredicate.compileJoin().
+   */
+  @Test public void join() {
+    TupleDesc td = Utility.getTupleDesc(1);
+    for (Predicate.Op op : Predicate.Op.values()) {
+      JoinPredicate p = new JoinPredicate(0, op, 0);
+      CompiledPredicate.JoinTest c = CompiledPredicate.compileJoin(p, td, td);
+      for (int i = -1; i <= 1; i++) {
+        Tuple t1 = Utility.getHeapTuple(0);
+        Tuple t2 = Utility.getHeapTuple(i);
+        assertEquals(op + " " + i, p.filter(t1, t2), c.test(t1, t2));
+      }
+    }
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(CompiledPredicateTest.class);
+  }
+}
@@ -3,6 +3,7 @@ package simpledb;
 import simpledb.TestUtil.SkeletonFile;
 import simpledb.common.Database;
 import simpledb.common.Utility;
+import simpledb.execution.Predicate;
 import simpledb.storage.*;
 import simpledb.systemtest.SimpleDbTestBase;
 import simpledb.systemtest.SystemTestUtil;
@@ -102,6 +103,63 @@ public class HeapPageReadTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * Unit test for HeapPage.iterator(PagePredicate)
+     */
+    @Test public void testPredicateIterator() throws Exception {
+        HeapPage page = new HeapPage(pid, EXAMPLE_DATA);
+        List<Predicate> ps = Arrays.asList(
+                new Predicate(0, Predicate.Op.GREATER_THAN, new IntField(20000)),
+                new Predicate(1, Predicate.Op.LESS_THAN, new IntField(50000)));
+        PagePredicate p = new PagePredicate(Utility.getTupleDesc(2), ps);
+        List<int[]> expected = new ArrayList<>();
+        for (int[] values : EXAMPLE_VALUES) {
+            if (values[0] > 20000 && values[1] < 50000) {
+                expected.add(values);
+            }
+        }
+
+        // 先在页的字节上检查，再在生成的元组上检查
+        for (int pass = 0; pass < 2; pass++) {
+            Iterator<Tuple> it = page.iterator(p);
+            for (int[] values : expected) {
+                assertTrue(it.hasNext());
+                Tuple tup = it.next();
+                assertEquals(values[0], ((IntField) tup.getField(0)).getValue());
+                assertEquals(values[1], ((IntField) tup.getField(1)).getValue());
+            }
+            assertFalse(it.hasNext());
+            assertTrue(Arrays.equals(EXAMPLE_DATA, page.getPageData()));
+            page.iterator();
+        }
+    }
+
+    /**
+     * Unit test for HeapPage.iterator() with predicates and a projection
+     */
+    @Test public void testProjectedIterator() throws Exception {
+        HeapPage page = new HeapPage(pid, EXAMPLE_DATA);
+        PagePredicate p = new PagePredicate(Utility.getTupleDesc(2), Arrays.asList(
+                new Predicate(0, Predicate.Op.GREATER_THAN, new IntField(20000))));
+        int[] fields = {1};
+        TupleDesc td = Utility.getTupleDesc(2).project(fields);
+
+        // 先只解码第二个字段，再从生成的元组中取
+        for (int pass = 0; pass < 2; pass++) {
+            Iterator<Tuple> it = page.iterator(p, fields, td);
+            for (int[] values : EXAMPLE_VALUES) {
+                if (values[0] > 20000) {
+                    assertTrue(it.hasNext());
+                    Tuple tup = it.next();
+                    assertEquals(1, tup.getTupleDesc().numFields());
+                    assertEquals(values[1], ((IntField) tup.getField(0)).getValue());
+                }
+            }
+            assertFalse(it.hasNext());
+            page.iterator();
+        }
+    }
+
     /**
      * Unit test for HeapPage.getNumEmptySlots()
      */
@@ -13,6 +13,8 @@ import simpledb.common.Type;
 import simpledb.execution.Aggregator;
 import simpledb.execution.IntegerAggregator;
 import simpledb.execution.OpIterator;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
 import simpledb.systemtest.SimpleDbTestBase;
 
 public class IntegerAggregatorTest extends SimpleDbTestBase {
@@ -182,6 +184,36 @@ public class IntegerAggregatorTest extends SimpleDbTestBase {
     }
   }
 
+  /**
+   * Test IntegerAggregator with enough groups, including negative keys, to
+   * grow its hash table several times
+   */
+  @Test public void manyGroups() throws Exception {
+    int groups = 10000;
+    int[] data = new int[groups * 2 * 2];
+    for (int i = 0; i < groups * 2; i++) {
+      data[2 * i] = (i % groups) - groups / 2;
+      data[2 * i + 1] = i;
+    }
+    OpIterator scan = TestUtil.createTupleList(width1, data);
+    IntegerAggregator agg = new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.SUM);
+    scan.open();
+    while (scan.hasNext()) {
+      agg.mergeTupleIntoGroup(scan.next());
+    }
+
+    OpIterator it = agg.iterator();
+    it.open();
+    int count = 0;
+    while (it.hasNext()) {
+      Tuple t = it.next();
+      int g = ((IntField) t.getField(0)).getValue() + groups / 2;
+      assertEquals(g + (g + groups), ((IntField) t.getField(1)).getValue());
+      count++;
+    }
+    assertEquals(groups, count);
+  }
+
   /**
    * JUnit suite target
    */
@@ -0,0 +1,114 @@
+package simpledb.storage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import junit.framework.JUnit4TestAdapter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.concurrent.CountDownLatch;
+
+public class LogBufferTest extends SimpleDbTestBase {
+
+  /** LogSegments whose next write blocks until released and then fails. */
+  private static class FailingSegments extends LogSegments {
+    volatile boolean failNext = false;
+    final CountDownLatch entered = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+
+    FailingSegments(File logFile) throws IOException {
+      super(logFile, DEFAULT_SEGMENT_SIZE);
+    }
+
+    @Override
+    void write(ByteBuffer buf, long pos) throws IOException {
+      if (failNext) {
+        failNext = false;
+        entered.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          throw new IOException(e);
+        }
+        throw new IOException("injected write failure");
+      }
+      super.write(buf, pos);
+    }
+  }
+
+  private File dir;
+  private FailingSegments segments;
+
+  @Before public void setUp() throws IOException {
+    dir = Files.createTempDirectory("logbuffer").toFile();
+    segments = new FailingSegments(new File(dir, "log"));
+  }
+
+  @After public void tearDown() throws IOException {
+    segments.close();
+    File[] files = dir.listFiles();
+    if (files != null) {
+      for (File f : files) {
+        f.delete();
+      }
+    }
+    dir.delete();
+  }
+
+  private static ByteArrayOutputStream record(int size) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    out.write(new byte[size], 0, size);
+    return out;
+  }
+
+  /**
+   * A failed write puts the buffer in a failed state that reset() clears,
+   * and the buffers filled behind the failed write are not lost.
+   */
+  @Test(timeout = 20000) public void writeFailure() throws Exception {
+    LogBuffer buf = new LogBuffer(segments, 0);
+
+    // the writer blocks in the failing write while more buffers fill up
+    segments.failNext = true;
+    buf.append(record(LogBuffer.BUFFER_SIZE));
+    segments.entered.await();
+    for (int i = 0; i < LogBuffer.NUM_BUFFERS - 1; i++) {
+      buf.append(record(LogBuffer.BUFFER_SIZE));
+    }
+    segments.release.countDown();
+
+    try {
+      buf.force(buf.getAppendLsn());
+      fail("force should fail after a failed write");
+    } catch (IOException expected) {
+    }
+    try {
+      buf.append(record(10));
+      fail("append should fail after a failed write");
+    } catch (IOException expected) {
+    }
+
+    // every buffer is usable again after reset
+    buf.reset(segments.getEnd());
+    int size = (LogBuffer.NUM_BUFFERS + 1) * LogBuffer.BUFFER_SIZE;
+    long lsn = buf.append(record(size));
+    buf.force(lsn);
+    assertEquals(size, segments.getEnd());
+    assertEquals(size, buf.getFileOffset());
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(LogBufferTest.class);
+  }
+}
@@ -0,0 +1,160 @@
+package simpledb.systemtest;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.execution.Aggregate;
+import simpledb.execution.Aggregator;
+import simpledb.execution.Filter;
+import simpledb.execution.HashEquiJoin;
+import simpledb.execution.JoinPredicate;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Predicate;
+import simpledb.execution.Project;
+import simpledb.execution.SeqScan;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.storage.TupleBatch;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+/**
+ * Checks that the batch-at-a-time path of the operators produces the same
+ * rows as the tuple-at-a-time path.
+ */
+public class BatchTest extends SimpleDbTestBase {
+    private static final int COLUMNS = 3;
+    private static final int ROWS = 3 * TupleBatch.DEFAULT_CAPACITY + 17;
+
+    /** Drains an iterator with nextBatch(). */
+    private static List<List<Integer>> drainBatches(OpIterator it)
+            throws DbException, TransactionAbortedException {
+        List<List<Integer>> rows = new ArrayList<>();
+        it.open();
+        TupleBatch batch;
+        while ((batch = it.nextBatch()) != null) {
+            assertTrue(batch.numRows() > 0);
+            for (int i = 0; i < batch.numRows(); i++) {
+                rows.add(SystemTestUtil.tupleToList(batch.getTuple(batch.row(i))));
+            }
+        }
+        it.close();
+        return rows;
+    }
+
+    private static List<List<Integer>> drainTuples(OpIterator it)
+            throws DbException, TransactionAbortedException {
+        List<List<Integer>> rows = new ArrayList<>();
+        it.open();
+        while (it.hasNext()) {
+            rows.add(SystemTestUtil.tupleToList(it.next()));
+        }
+        it.close();
+        return rows;
+    }
+
+    private static final Comparator<List<Integer>> ROW_ORDER = (a, b) -> {
+        for (int i = 0; i < Math.min(a.size(), b.size()); i++) {
+            int c = Integer.compare(a.get(i), b.get(i));
+            if (c != 0) {
+                return c;
+            }
+        }
+        return Integer.compare(a.size(), b.size());
+    };
+
+    private static void assertSameRows(List<List<Integer>> expected, List<List<Integer>> actual) {
+        expected.sort(ROW_ORDER);
+        actual.sort(ROW_ORDER);
+        assertEquals(expected, actual);
+    }
+
+    @Test public void scan() throws IOException, DbException, TransactionAbortedException {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(COLUMNS, ROWS, null, tuples);
+        TransactionId tid = new TransactionId();
+        assertSameRows(tuples, drainBatches(new SeqScan(tid, f.getId(), "")));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void filter() throws IOException, DbException, TransactionAbortedException {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(COLUMNS, ROWS, 100, null, null);
+        TransactionId tid = new TransactionId();
+        for (Predicate.Op op : Predicate.Op.values()) {
+            Predicate p = new Predicate(1, op, new IntField(50));
+            List<List<Integer>> expected = drainTuples(new Filter(p, new SeqScan(tid, f.getId(), "")));
+            List<List<Integer>> actual = drainBatches(new Filter(p, new SeqScan(tid, f.getId(), "")));
+            assertSameRows(expected, actual);
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void project() throws IOException, DbException, TransactionAbortedException {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(COLUMNS, ROWS, null, null);
+        TransactionId tid = new TransactionId();
+        List<Integer> fields = Arrays.asList(2, 0);
+        Type[] types = {Type.INT_TYPE, Type.INT_TYPE};
+        Predicate p = new Predicate(0, Predicate.Op.GREATER_THAN, new IntField(0));
+        List<List<Integer>> expected = drainTuples(new Project(fields, types,
+                new Filter(p, new SeqScan(tid, f.getId(), ""))));
+        List<List<Integer>> actual = drainBatches(new Project(fields, types,
+                new Filter(p, new SeqScan(tid, f.getId(), ""))));
+        assertSameRows(expected, actual);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void scanFilterAggregate() throws IOException, DbException, TransactionAbortedException {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(COLUMNS, ROWS, 1000, null, tuples);
+
+        // SELECT c0, SUM(c2) WHERE c1 < 500 GROUP BY c0
+        Map<Integer, Integer> sums = new HashMap<>();
+        for (List<Integer> t : tuples) {
+            if (t.get(1) < 500) {
+                sums.merge(t.get(0), t.get(2), Integer::sum);
+            }
+        }
+        List<List<Integer>> expected = new ArrayList<>();
+        for (Map.Entry<Integer, Integer> e : sums.entrySet()) {
+            expected.add(Arrays.asList(e.getKey(), e.getValue()));
+        }
+
+        TransactionId tid = new TransactionId();
+        Predicate p = new Predicate(1, Predicate.Op.LESS_THAN, new IntField(500));
+        Aggregate agg = new Aggregate(new Filter(p, new SeqScan(tid, f.getId(), "")),
+                2, 0, Aggregator.Op.SUM);
+        assertSameRows(expected, drainTuples(agg));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void hashJoin() throws IOException, DbException, TransactionAbortedException {
+        HeapFile f1 = SystemTestUtil.createRandomHeapFile(2, ROWS, 50, null, null);
+        HeapFile f2 = SystemTestUtil.createRandomHeapFile(2, 200, 50, null, null);
+        TransactionId tid = new TransactionId();
+        JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+        List<List<Integer>> expected = drainTuples(new HashEquiJoin(p,
+                new SeqScan(tid, f1.getId(), "t1"), new SeqScan(tid, f2.getId(), "t2")));
+        List<List<Integer>> actual = drainBatches(new HashEquiJoin(p,
+                new SeqScan(tid, f1.getId(), "t1"), new SeqScan(tid, f2.getId(), "t2")));
+        assertFalse(expected.isEmpty());
+        assertSameRows(expected, actual);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(BatchTest.class);
+    }
+}
@@ -0,0 +1,173 @@
+package simpledb.systemtest;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+import simpledb.Parser;
+import simpledb.ParsingException;
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.execution.Broadcast;
+import simpledb.execution.Exchange;
+import simpledb.execution.Gather;
+import simpledb.execution.HashRepartition;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Operator;
+import simpledb.execution.ParallelSeqScan;
+import simpledb.execution.SeqScan;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.storage.TupleBatch;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the Exchange operators deliver every tuple of their children
+ * to the right outputs, can be rewound, and pass a failed child's
+ * exception to their readers.
+ */
+public class ExchangeTest extends SimpleDbTestBase {
+    private static final int COLUMNS = 3;
+    private static final int ROWS = 3000;
+    private static final int THREADS = 4;
+
+    private final List<List<Integer>> tuples = new ArrayList<>();
+
+    private List<SeqScan> scans(TransactionId tid, HeapFile table) {
+        return ParallelSeqScan.partitionScans(tid, table.getId(), "t", THREADS);
+    }
+
+    // 每个输出由一个线程读，返回各个输出的元组
+    private static List<List<List<Integer>>> readConcurrently(List<? extends OpIterator> outputs)
+            throws InterruptedException, ExecutionException {
+        ExecutorService readers = Executors.newFixedThreadPool(outputs.size());
+        try {
+            List<Future<List<List<Integer>>>> futures = new ArrayList<>();
+            for (OpIterator out : outputs) {
+                futures.add(readers.submit(() -> {
+                    List<List<Integer>> result = new ArrayList<>();
+                    out.open();
+                    while (out.hasNext()) {
+                        result.add(SystemTestUtil.tupleToList(out.next()));
+                    }
+                    out.close();
+                    return result;
+                }));
+            }
+            List<List<List<Integer>>> results = new ArrayList<>();
+            for (Future<List<List<Integer>>> f : futures) {
+                results.add(f.get());
+            }
+            return results;
+        } finally {
+            readers.shutdown();
+        }
+    }
+
+    @Test public void testGather() throws IOException, DbException, TransactionAbortedException {
+        HeapFile table = SystemTestUtil.createRandomHeapFile(COLUMNS, ROWS, null, tuples);
+        TransactionId tid = new TransactionId();
+        Gather gather = new Gather(scans(tid, table));
+        SystemTestUtil.matchTuples(gather, tuples);
+        // 重新打开后每个分区扫描重新领取所有页
+        SystemTestUtil.matchTuples(gather, tuples);
+
+        // 读到一半关闭，工作线程不能阻塞在已满的队列上
+        gather.open();
+        TupleBatch b = gather.nextBatch();
+        assertNotNull(b);
+        gather.close();
+        gather.open();
+        int n = 0;
+        while ((b = gather.nextBatch()) != null) {
+            n += b.numRows();
+        }
+        gather.close();
+        assertEquals(ROWS, n);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void testHashRepartition() throws Exception {
+        HeapFile table = SystemTestUtil.createRandomHeapFile(COLUMNS, ROWS, 1000, null, tuples);
+        TransactionId tid = new TransactionId();
+        List<HashRepartition> outputs = HashRepartition.create(scans(tid, table), 1, 3);
+        List<List<List<Integer>>> results = readConcurrently(outputs);
+        List<List<Integer>> all = new ArrayList<>();
+        for (int i = 0; i < results.size(); i++) {
+            for (List<Integer> t : results.get(i)) {
+                // 同一个值总是在同一个输出
+                assertEquals(i, HashRepartition.partition(new IntField(t.get(1)), 3));
+            }
+            all.addAll(results.get(i));
+        }
+        SystemTestUtil.matchTuples(new Gather(outputs), tuples);
+        assertEquals(ROWS, all.size());
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void testBroadcast() throws Exception {
+        HeapFile table = SystemTestUtil.createRandomHeapFile(COLUMNS, ROWS, null, tuples);
+        TransactionId tid = new TransactionId();
+        List<Broadcast> outputs = Broadcast.create(scans(tid, table), 3);
+        for (List<List<Integer>> result : readConcurrently(outputs)) {
+            assertEquals(ROWS, result.size());
+        }
+        SystemTestUtil.matchTuples(outputs.get(0), tuples);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void testAbortPropagates() throws IOException, DbException, TransactionAbortedException {
+        HeapFile table = SystemTestUtil.createRandomHeapFile(COLUMNS, ROWS, null, tuples);
+        TransactionId tid = new TransactionId();
+        List<OpIterator> children = new ArrayList<>(scans(tid, table));
+        children.add(new SeqScan(tid, table.getId(), "t") {
+            @Override
+            public TupleBatch nextBatch() throws TransactionAbortedException {
+                throw new TransactionAbortedException();
+            }
+        });
+        Gather gather = new Gather(children);
+        gather.open();
+        try {
+            while (gather.hasNext()) {
+                gather.next();
+            }
+            fail("expected TransactionAbortedException");
+        } catch (TransactionAbortedException expected) {
+            // 工作线程的异常传给了读者
+        }
+        gather.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void testParallelPlan() throws IOException, DbException,
+            TransactionAbortedException, ParsingException {
+        HeapFile table = SystemTestUtil.createRandomHeapFile(COLUMNS, ROWS, null, tuples, "field");
+        Database.getCatalog().addTable(table, "exchange");
+        TransactionId tid = new TransactionId();
+        LogicalPlan lp = new Parser().generateLogicalPlan(tid, "SELECT * FROM exchange t;");
+        lp.setParallelism(THREADS);
+        OpIterator plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+        OpIterator child = ((Operator) plan).getChildren()[0];
+        assertTrue(child instanceof Exchange);
+        assertEquals(THREADS, ((Exchange) child).getChildren().length);
+        SystemTestUtil.matchTuples(plan, tuples);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(ExchangeTest.class);
+    }
+}
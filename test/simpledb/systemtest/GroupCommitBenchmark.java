@@ -0,0 +1,81 @@
+package simpledb.systemtest;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import simpledb.common.Database;
+import simpledb.storage.LogFile;
+import simpledb.transaction.Transaction;
+
+/**
+ * Measures commit throughput with and without group commit delay.  This
+ * is not run by the test targets; run it by hand with the test classpath:
+ * <pre>
+ * java -cp bin/src:bin/test:lib/* simpledb.systemtest.GroupCommitBenchmark [seconds]
+ * </pre>
+ * As in {@link LogTest#TestGroupCommit}, each client thread runs empty
+ * transactions (BEGIN and COMMIT records) back to back.  Every thread
+ * count is run once with the default settings, where committers only
+ * share a force that is already in flight, and once with the batch size
+ * set to the thread count and a 1 ms delay.  It prints transactions per
+ * second and log forces per commit.
+ */
+public class GroupCommitBenchmark {
+
+    private static final int[] THREADS = {1, 4, 16, 64};
+    private static final long DELAY_MICROS = 1000;
+
+    private static void run(int threads, boolean delayed, long millis) throws InterruptedException {
+        Database.reset();
+        LogFile log = Database.getLogFile();
+        if (delayed) {
+            log.setGroupCommitBatchSize(threads);
+            log.setGroupCommitDelay(DELAY_MICROS);
+        }
+        int forcesBefore = log.getForceCount();
+
+        final AtomicLong commits = new AtomicLong();
+        final List<Throwable> failures = Collections.synchronizedList(new ArrayList<>());
+        final long deadline = System.currentTimeMillis() + millis;
+        Thread[] committers = new Thread[threads];
+        long start = System.nanoTime();
+        for (int i = 0; i < threads; i++) {
+            committers[i] = new Thread(() -> {
+                try {
+                    while (System.currentTimeMillis() < deadline) {
+                        Transaction t = new Transaction();
+                        t.start();
+                        t.commit();
+                        commits.incrementAndGet();
+                    }
+                } catch (Throwable e) {
+                    failures.add(e);
+                }
+            });
+            committers[i].start();
+        }
+        for (Thread committer : committers) {
+            committer.join();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        if (!failures.isEmpty()) {
+            throw new IllegalStateException("commit failed", failures.get(0));
+        }
+
+        int forces = log.getForceCount() - forcesBefore;
+        System.out.printf("%8d %10s %10.0f %12.3f%n", threads,
+                delayed ? threads + "/" + DELAY_MICROS + "us" : "default",
+                commits.get() / seconds, (double) forces / commits.get());
+    }
+
+    public static void main(String[] args) throws Exception {
+        long millis = args.length > 0 ? Long.parseLong(args[0]) * 1000 : 2000;
+        System.out.printf("%8s %10s %10s %12s%n", "threads", "batch", "txn/s", "forces/txn");
+        for (int threads : THREADS) {
+            run(threads, false, millis);
+            run(threads, true, millis);
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package simpledb.systemtest;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import simpledb.Parser;
+import simpledb.ParsingException;
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.execution.Aggregate;
+import simpledb.execution.Aggregator;
+import simpledb.execution.HashAggregator;
+import simpledb.execution.OpIterator;
+import simpledb.execution.SeqScan;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.HeapFile;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that Aggregate and HashAggregator give the same groups when they
+ * have to spill them to disk as when everything fits in memory.
+ */
+public class HashAggregateTest extends SimpleDbTestBase {
+    private static final int COLUMNS = 3;
+    private static final int ROWS = 3000;
+    // 分组数远多于内存预算
+    private static final int MAX_VALUE = 1000;
+
+    private final List<List<Integer>> tuples = new ArrayList<>();
+
+    // 每个分组的 min, max, sum, count
+    private Map<Integer, long[]> groups(int groupColumn, int aggregateColumn) {
+        Map<Integer, long[]> groups = new LinkedHashMap<>();
+        for (List<Integer> t : tuples) {
+            int v = t.get(aggregateColumn);
+            long[] g = groups.computeIfAbsent(groupColumn == Aggregator.NO_GROUPING ? 0 : t.get(groupColumn),
+                    k -> new long[]{Integer.MAX_VALUE, Integer.MIN_VALUE, 0, 0});
+            g[0] = Math.min(g[0], v);
+            g[1] = Math.max(g[1], v);
+            g[2] += v;
+            g[3]++;
+        }
+        return groups;
+    }
+
+    private static int value(long[] g, Aggregator.Op op) {
+        switch (op) {
+            case MIN:
+                return (int) g[0];
+            case MAX:
+                return (int) g[1];
+            case SUM:
+                return (int) g[2];
+            case AVG:
+                return (int) (g[2] / g[3]);
+            default:
+                return (int) g[3];
+        }
+    }
+
+    private void validateAggregate(Aggregator.Op op, int groupColumn, int budget)
+            throws IOException, DbException, TransactionAbortedException {
+        HeapFile table = SystemTestUtil.createRandomHeapFile(COLUMNS, ROWS, MAX_VALUE, null, tuples);
+        List<List<Integer>> expected = new ArrayList<>();
+        for (Map.Entry<Integer, long[]> e : groups(groupColumn, 1).entrySet()) {
+            List<Integer> row = new ArrayList<>();
+            if (groupColumn != Aggregator.NO_GROUPING) {
+                row.add(e.getKey());
+            }
+            row.add(value(e.getValue(), op));
+            expected.add(row);
+        }
+        TransactionId tid = new TransactionId();
+        Aggregate ag = new Aggregate(new SeqScan(tid, table.getId(), "t"), 1, groupColumn, op);
+        ag.setMemoryBudget(budget);
+        SystemTestUtil.matchTuples(ag, expected);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void testSpilledAggregate() throws IOException, DbException, TransactionAbortedException {
+        for (Aggregator.Op op : new Aggregator.Op[]{Aggregator.Op.MIN, Aggregator.Op.MAX,
+                Aggregator.Op.SUM, Aggregator.Op.AVG, Aggregator.Op.COUNT}) {
+            validateAggregate(op, 0, 50);
+        }
+        validateAggregate(Aggregator.Op.SUM, Aggregator.NO_GROUPING, 1);
+    }
+
+    @Test public void testRepartitioned() throws IOException, DbException, TransactionAbortedException {
+        // 每层分区都放不下，一直分到最后一层
+        validateAggregate(Aggregator.Op.COUNT, 0, 1);
+    }
+
+    @Test public void testSharedTable() throws IOException, DbException, TransactionAbortedException {
+        HeapFile table = SystemTestUtil.createRandomHeapFile(COLUMNS, ROWS, MAX_VALUE, null, tuples);
+        Aggregator.Op[] ops = {Aggregator.Op.COUNT, Aggregator.Op.MIN, Aggregator.Op.AVG,
+                Aggregator.Op.SUM_COUNT};
+        List<List<Integer>> expected = new ArrayList<>();
+        Map<Integer, long[]> g1 = groups(0, 1);
+        Map<Integer, long[]> g2 = groups(0, 2);
+        for (Map.Entry<Integer, long[]> e : g1.entrySet()) {
+            long[] c2 = g2.get(e.getKey());
+            List<Integer> row = new ArrayList<>();
+            row.add(e.getKey());
+            row.add(value(e.getValue(), Aggregator.Op.COUNT));
+            row.add(value(e.getValue(), Aggregator.Op.MIN));
+            row.add(value(c2, Aggregator.Op.AVG));
+            row.add(value(c2, Aggregator.Op.SUM));
+            row.add(value(c2, Aggregator.Op.COUNT));
+            expected.add(row);
+        }
+
+        TransactionId tid = new TransactionId();
+        SeqScan scan = new SeqScan(tid, table.getId(), "t");
+        HashAggregator agg = new HashAggregator(scan.getTupleDesc(), 0, new int[]{1, 1, 2, 2}, ops);
+        agg.setMemoryBudget(100);
+        scan.open();
+        while (scan.hasNext()) {
+            agg.mergeTupleIntoGroup(scan.next());
+        }
+        scan.close();
+        assertTrue(agg.hasSpilled());
+        SystemTestUtil.matchTuples(agg.iterator(), expected);
+        agg.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    // 每个分组：分组值，count(field1), min(field1), max(field1), avg(field2)
+    private List<List<Integer>> multiAggregateResults() {
+        List<List<Integer>> expected = new ArrayList<>();
+        Map<Integer, long[]> g1 = groups(0, 1);
+        Map<Integer, long[]> g2 = groups(0, 2);
+        for (Map.Entry<Integer, long[]> e : g1.entrySet()) {
+            List<Integer> row = new ArrayList<>();
+            row.add(e.getKey());
+            row.add(value(e.getValue(), Aggregator.Op.COUNT));
+            row.add(value(e.getValue(), Aggregator.Op.MIN));
+            row.add(value(e.getValue(), Aggregator.Op.MAX));
+            row.add(value(g2.get(e.getKey()), Aggregator.Op.AVG));
+            expected.add(row);
+        }
+        return expected;
+    }
+
+    @Test public void testMultipleAggregates() throws IOException, DbException, TransactionAbortedException {
+        HeapFile table = SystemTestUtil.createRandomHeapFile(COLUMNS, ROWS, MAX_VALUE, null, tuples);
+        TransactionId tid = new TransactionId();
+        Aggregate ag = new Aggregate(new SeqScan(tid, table.getId(), "t"), new int[]{1, 1, 1, 2}, 0,
+                new Aggregator.Op[]{Aggregator.Op.COUNT, Aggregator.Op.MIN, Aggregator.Op.MAX, Aggregator.Op.AVG});
+        assertEquals(5, ag.getTupleDesc().numFields());
+        assertEquals(Aggregator.Op.AVG, ag.aggregateOp(3));
+        ag.setMemoryBudget(64);
+        SystemTestUtil.matchTuples(ag, multiAggregateResults());
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void testParseMultipleAggregates() throws IOException, DbException,
+            TransactionAbortedException, ParsingException {
+        HeapFile table = SystemTestUtil.createRandomHeapFile(COLUMNS, ROWS, MAX_VALUE, null, tuples, "field");
+        Database.getCatalog().addTable(table, "aggs");
+        TransactionId tid = new TransactionId();
+        LogicalPlan lp = new Parser().generateLogicalPlan(tid,
+                "SELECT t.field0, COUNT(t.field1), MIN(t.field1), MAX(t.field1), AVG(t.field2) "
+                        + "FROM aggs t GROUP BY t.field0;");
+        OpIterator plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+        SystemTestUtil.matchTuples(plan, multiAggregateResults());
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(HashAggregateTest.class);
+    }
+}
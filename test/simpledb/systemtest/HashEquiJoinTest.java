@@ -0,0 +1,166 @@
+package simpledb.systemtest;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.execution.Filter;
+import simpledb.execution.HashEquiJoin;
+import simpledb.execution.JoinKeyFilter;
+import simpledb.execution.JoinPredicate;
+import simpledb.execution.Predicate;
+import simpledb.execution.SeqScan;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.storage.TupleBatch;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks HashEquiJoin with a memory budget small enough to make it spill
+ * partitions to disk.
+ */
+public class HashEquiJoinTest extends SimpleDbTestBase {
+    private static final int COLUMNS = 2;
+
+    private List<List<Integer>> t1Tuples;
+    private List<List<Integer>> t2Tuples;
+    private HeapFile table1;
+    private HeapFile table2;
+
+    private void createTables(int rows1, int rows2, int maxValue,
+                              Map<Integer, Integer> columnSpecification) throws IOException {
+        t1Tuples = new ArrayList<>();
+        t2Tuples = new ArrayList<>();
+        table1 = SystemTestUtil.createRandomHeapFile(COLUMNS, rows1, maxValue, columnSpecification, t1Tuples);
+        table2 = SystemTestUtil.createRandomHeapFile(COLUMNS, rows2, maxValue, columnSpecification, t2Tuples);
+    }
+
+    private List<List<Integer>> expectedResults() {
+        Map<Integer, List<List<Integer>>> byKey = new HashMap<>();
+        for (List<Integer> t1 : t1Tuples) {
+            byKey.computeIfAbsent(t1.get(0), k -> new ArrayList<>()).add(t1);
+        }
+        List<List<Integer>> expected = new ArrayList<>();
+        for (List<Integer> t2 : t2Tuples) {
+            for (List<Integer> t1 : byKey.getOrDefault(t2.get(0), new ArrayList<>())) {
+                List<Integer> out = new ArrayList<>(t1);
+                out.addAll(t2);
+                expected.add(out);
+            }
+        }
+        return expected;
+    }
+
+    private HashEquiJoin join(TransactionId tid, int memoryBudget) {
+        JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+        HashEquiJoin join = new HashEquiJoin(p, new SeqScan(tid, table1.getId(), "t1"),
+                new SeqScan(tid, table2.getId(), "t2"));
+        join.setMemoryBudget(memoryBudget);
+        return join;
+    }
+
+    private void validate(int memoryBudget) throws DbException, TransactionAbortedException {
+        List<List<Integer>> expected = expectedResults();
+        TransactionId tid = new TransactionId();
+        HashEquiJoin join = join(tid, memoryBudget);
+        SystemTestUtil.matchTuples(join, expected);
+
+        // rewinding starts the join again
+        join = join(tid, memoryBudget);
+        join.open();
+        while (join.hasNext()) {
+            join.next();
+        }
+        join.rewind();
+        int count = 0;
+        while (join.hasNext()) {
+            join.next();
+            count++;
+        }
+        assertEquals(expected.size(), count);
+        join.close();
+
+        // the batch path spills the same way
+        join = join(tid, memoryBudget);
+        join.open();
+        count = 0;
+        TupleBatch batch;
+        while ((batch = join.nextBatch()) != null) {
+            count += batch.numRows();
+        }
+        join.close();
+        assertEquals(expected.size(), count);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void testInMemory() throws IOException, DbException, TransactionAbortedException {
+        createTables(1000, 1000, 500, null);
+        validate(HashEquiJoin.MAP_SIZE);
+    }
+
+    @Test public void testSpill() throws IOException, DbException, TransactionAbortedException {
+        createTables(5000, 2000, 2000, null);
+        validate(200);
+    }
+
+    @Test public void testRecursivePartitioning() throws IOException, DbException, TransactionAbortedException {
+        createTables(5000, 2000, 2000, null);
+        validate(10);
+    }
+
+    @Test public void testSkew() throws IOException, DbException, TransactionAbortedException {
+        // every tuple has the same key, so partitioning cannot split it
+        Map<Integer, Integer> sameKey = new HashMap<>();
+        sameKey.put(0, 7);
+        createTables(300, 40, 100, sameKey);
+        validate(50);
+    }
+
+    @Test public void testKeyFilter() throws IOException, DbException, TransactionAbortedException {
+        // 建表一侧很小，大部分探测元组没有匹配
+        createTables(50, 3000, 10000, null);
+        List<List<Integer>> expected = expectedResults();
+        TransactionId tid = new TransactionId();
+        JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+        SeqScan probe = new SeqScan(tid, table2.getId(), "t2");
+        HashEquiJoin join = new HashEquiJoin(p, new SeqScan(tid, table1.getId(), "t1"), probe);
+        join.open();
+        JoinKeyFilter keys = probe.getKeyFilter();
+        assertNotNull(keys);
+        for (List<Integer> t1 : t1Tuples) {
+            assertTrue(keys.mightMatch(new IntField(t1.get(0))));
+        }
+        // 探测扫描本身已经丢掉了大部分元组
+        int passed = 0;
+        for (List<Integer> t2 : t2Tuples) {
+            if (keys.mightMatch(t2.get(0))) {
+                passed++;
+            }
+        }
+        assertTrue(passed < t2Tuples.size() / 4);
+        join.close();
+        assertNull(probe.getKeyFilter());
+        SystemTestUtil.matchTuples(join, expected);
+
+        // 探测一侧是 Filter 时交给它下面的扫描丢弃
+        join = new HashEquiJoin(p, new SeqScan(tid, table1.getId(), "t1"),
+                new Filter(new Predicate(1, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(0)),
+                        new SeqScan(tid, table2.getId(), "t2")));
+        SystemTestUtil.matchTuples(join, expected);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(HashEquiJoinTest.class);
+    }
+}
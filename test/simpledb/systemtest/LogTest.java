@@ -436,6 +436,236 @@ public class LogTest extends SimpleDbTestBase {
     }
 
 
+    Tuple twoIntTuple(int v1) {
+        Tuple value = new Tuple(Utility.getTupleDesc(2));
+        value.setField(0, new IntField(v1));
+        value.setField(1, new IntField(0));
+        return value;
+    }
+
+    @Test public void TestCompactUpdateRecords()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        HeapPageId pid = new HeapPageId(hf1.getId(), 0);
+        LogFile log = Database.getLogFile();
+
+        // *** Test:
+        // a one-tuple update logs only the changed bytes, not two pages
+        Transaction t1 = new Transaction();
+        t1.start();
+        HeapPage page = (HeapPage) hf1.readPage(pid);
+        HeapPage before = page.getBeforeImage();
+        page.insertTuple(twoIntTuple(1));
+        log.force();
+        long start = log.getLogSize();
+        log.logWrite(t1.getId(), before, page);
+        log.force();
+        assertTrue(log.getLogSize() - start < BufferPool.getPageSize() / 10);
+        t1.commit(); // committed, but the page never reaches the heap file
+
+        // *** Test:
+        // crash: the committed update is redone from the log
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        t.commit();
+
+        // *** Test:
+        // abort undoes an update whose page was stolen to disk
+        page = (HeapPage) hf1.readPage(pid);
+        Transaction t2 = new Transaction();
+        t2.start();
+        HeapPage page2 = new HeapPage(pid, page.getPageData());
+        page2.insertTuple(twoIntTuple(2));
+        Database.getLogFile().logWrite(t2.getId(), page, page2);
+        hf1.writePage(page2);
+        Database.getLogFile().logAbort(t2.getId());
+        assertEquals(page.getNumEmptySlots(),
+                     ((HeapPage) hf1.readPage(pid)).getNumEmptySlots());
+
+        // *** Test:
+        // crash: the uncommitted update is undone, the aborted one stays undone
+        Transaction t3 = new Transaction();
+        t3.start();
+        HeapPage page3 = new HeapPage(pid, page.getPageData());
+        page3.insertTuple(twoIntTuple(3));
+        Database.getLogFile().logWrite(t3.getId(), page, page3);
+        Database.getLogFile().force();
+        hf1.writePage(page3);
+
+        crash();
+
+        t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, false);
+        look(hf1, t, 3, false);
+        t.commit();
+    }
+
+    @Test public void TestParallelRedo()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        final int numPages = 16;
+        final int txnsPerPage = 4;
+        final int tuplesPerTxn = 10;
+        LogFile log = Database.getLogFile();
+        log.setSegmentSize(4096); // records span many small segments
+
+        // *** Test:
+        // committed updates spread over many pages, none of them flushed,
+        // plus one loser whose pages were stolen to disk
+        HeapPage[] pages = new HeapPage[numPages];
+        for (int p = 0; p < numPages; p++) {
+            pages[p] = new HeapPage(new HeapPageId(hf1.getId(), p), HeapPage.createEmptyPageData());
+        }
+        int v = 0;
+        for (int i = 0; i < txnsPerPage; i++) {
+            for (int p = 0; p < numPages; p++) {
+                Transaction t = new Transaction();
+                t.start();
+                HeapPage before = new HeapPage(pages[p].getId(), pages[p].getPageData());
+                for (int j = 0; j < tuplesPerTxn; j++) {
+                    pages[p].insertTuple(twoIntTuple(v++));
+                }
+                log.logWrite(t.getId(), before, pages[p]);
+                t.commit();
+            }
+        }
+        Transaction loser = new Transaction();
+        loser.start();
+        for (int p = 0; p < numPages; p++) {
+            HeapPage stolen = new HeapPage(pages[p].getId(), pages[p].getPageData());
+            stolen.insertTuple(twoIntTuple(-p - 1));
+            log.logWrite(loser.getId(), pages[p], stolen);
+            log.force();
+            hf1.writePage(stolen);
+        }
+
+        // crash and redo on several threads
+        Database.reset();
+        hf1 = Utility.openHeapFile(2, file1);
+        hf2 = Utility.openHeapFile(2, file2);
+        Database.getLogFile().setRecoveryThreads(4);
+        Database.getLogFile().recover();
+
+        assertEquals(numPages, hf1.numPages());
+        Transaction t = new Transaction();
+        t.start();
+        for (int i = 0; i < v; i += tuplesPerTxn / 2) {
+            look(hf1, t, i, true);
+        }
+        look(hf1, t, -1, false);
+        look(hf1, t, -numPages, false);
+        t.commit();
+    }
+
+    @Test public void TestFuzzyCheckpoint()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        HeapPageId pid = new HeapPageId(hf1.getId(), 0);
+        final long segmentSize = 128;
+        Database.getLogFile().setSegmentSize(segmentSize);
+
+        // *** Test:
+        // a checkpoint does not write dirty pages, and recovery redoes
+        // them from before the checkpoint
+        Transaction t1 = new Transaction();
+        t1.start();
+        HeapPage page = (HeapPage) hf1.readPage(pid);
+        HeapPage before = page.getBeforeImage();
+        page.insertTuple(twoIntTuple(1));
+        Database.getLogFile().logWrite(t1.getId(), before, page);
+        t1.commit();
+
+        Database.getLogFile().logCheckpoint();
+        assertEquals(before.getNumEmptySlots(), ((HeapPage) hf1.readPage(pid)).getNumEmptySlots());
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        before = new HeapPage(pid, page.getPageData());
+        page.insertTuple(twoIntTuple(2));
+        Database.getLogFile().logWrite(t2.getId(), before, page);
+        t2.commit();
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        t.commit();
+
+        // *** Test:
+        // once a page is written, the checkpoint no longer needs its
+        // records and the segments holding them are deleted
+        Database.getLogFile().setSegmentSize(segmentSize);
+        Transaction t3 = new Transaction();
+        t3.start();
+        page = (HeapPage) hf1.readPage(pid);
+        before = new HeapPage(pid, page.getPageData());
+        page.insertTuple(twoIntTuple(3));
+        Database.getLogFile().logWrite(t3.getId(), before, page);
+        t3.commit();
+        hf1.writePage(page);
+        Database.getLogFile().pageFlushed(pid);
+
+        Database.getLogFile().force();
+        assertTrue(Database.getLogFile().getLogSize() > 2 * segmentSize);
+        Database.getLogFile().logCheckpoint();
+        assertTrue(Database.getLogFile().getLogSize() < 2 * segmentSize);
+
+        crash();
+
+        t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 2, true);
+        look(hf1, t, 3, true);
+        t.commit();
+    }
+
+    @Test public void TestGroupCommit()
+            throws IOException, InterruptedException {
+        setup();
+
+        // *** Test:
+        // concurrent committers share forces of the log
+        final int threads = 8;
+        final int commitsPerThread = 20;
+        LogFile log = Database.getLogFile();
+        log.setGroupCommitBatchSize(threads);
+        log.setGroupCommitDelay(2000);
+        int forcesBefore = log.getForceCount();
+
+        final List<Throwable> failures = Collections.synchronizedList(new ArrayList<>());
+        Thread[] committers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            committers[i] = new Thread(() -> {
+                try {
+                    for (int j = 0; j < commitsPerThread; j++) {
+                        Transaction t = new Transaction();
+                        t.start();
+                        t.commit();
+                    }
+                } catch (Throwable e) {
+                    failures.add(e);
+                }
+            });
+            committers[i].start();
+        }
+        for (Thread committer : committers) {
+            committer.join();
+        }
+
+        assertTrue(failures.toString(), failures.isEmpty());
+        // one BEGIN and one COMMIT record per transaction
+        assertEquals(2 * threads * commitsPerThread, log.getTotalRecords());
+        assertTrue(log.getForceCount() - forcesBefore < threads * commitsPerThread);
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(LogTest.class);
@@ -0,0 +1,161 @@
+package simpledb.systemtest;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import simpledb.Parser;
+import simpledb.ParsingException;
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Utility;
+import simpledb.execution.Filter;
+import simpledb.execution.IndexNestedLoopJoin;
+import simpledb.execution.Join;
+import simpledb.execution.JoinPredicate;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Operator;
+import simpledb.execution.Predicate;
+import simpledb.execution.SeqScan;
+import simpledb.execution.SortMergeJoin;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeUtility;
+import simpledb.optimizer.JoinOptimizer;
+import simpledb.optimizer.LogicalJoinNode;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the block nested-loop Join and IndexNestedLoopJoin against the
+ * results of a plain nested loop over the generated tuples.
+ */
+public class NestedLoopJoinTest extends SimpleDbTestBase {
+    private static final int COLUMNS = 2;
+
+    private final List<List<Integer>> t1Tuples = new ArrayList<>();
+    private final List<List<Integer>> t2Tuples = new ArrayList<>();
+
+    private static boolean matches(int v1, Predicate.Op op, int v2) {
+        return new IntField(v1).compare(op, new IntField(v2));
+    }
+
+    private List<List<Integer>> expectedResults(Predicate.Op op, int minInner) {
+        List<List<Integer>> expected = new ArrayList<>();
+        for (List<Integer> t1 : t1Tuples) {
+            for (List<Integer> t2 : t2Tuples) {
+                if (matches(t1.get(0), op, t2.get(0)) && t2.get(1) >= minInner) {
+                    List<Integer> out = new ArrayList<>(t1);
+                    out.addAll(t2);
+                    expected.add(out);
+                }
+            }
+        }
+        return expected;
+    }
+
+    private void validateBlockJoin(Predicate.Op op, int blockSize)
+            throws IOException, DbException, TransactionAbortedException {
+        HeapFile table1 = SystemTestUtil.createRandomHeapFile(COLUMNS, 300, 100, null, t1Tuples);
+        HeapFile table2 = SystemTestUtil.createRandomHeapFile(COLUMNS, 200, 100, null, t2Tuples);
+        TransactionId tid = new TransactionId();
+        Join join = new Join(new JoinPredicate(0, op, 0),
+                new SeqScan(tid, table1.getId(), "t1"), new SeqScan(tid, table2.getId(), "t2"));
+        join.setBlockSize(blockSize);
+        SystemTestUtil.matchTuples(join, expectedResults(op, 0));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void testBlockJoin() throws IOException, DbException, TransactionAbortedException {
+        validateBlockJoin(Predicate.Op.EQUALS, 0);
+        validateBlockJoin(Predicate.Op.EQUALS, 7);
+        validateBlockJoin(Predicate.Op.LESS_THAN, 64);
+        validateBlockJoin(Predicate.Op.NOT_EQUALS, 1);
+    }
+
+    private void validateIndexJoin(Predicate.Op op, boolean filterInner)
+            throws IOException, DbException, TransactionAbortedException {
+        HeapFile table1 = SystemTestUtil.createRandomHeapFile(COLUMNS, 200, 500, null, t1Tuples);
+        BTreeFile table2 = BTreeUtility.createRandomBTreeFile(COLUMNS, 2000, 500, null, t2Tuples, 0);
+        TransactionId tid = new TransactionId();
+        OpIterator inner = new SeqScan(tid, table2.getId(), "t2");
+        int minInner = 0;
+        if (filterInner) {
+            minInner = 250;
+            inner = new Filter(new Predicate(1, Predicate.Op.GREATER_THAN_OR_EQ,
+                    new IntField(minInner)), inner);
+        }
+        JoinPredicate p = new JoinPredicate(0, op, 0);
+        assertTrue(IndexNestedLoopJoin.canUseIndex(p, inner));
+        IndexNestedLoopJoin join = new IndexNestedLoopJoin(p,
+                new SeqScan(tid, table1.getId(), "t1"), inner);
+        SystemTestUtil.matchTuples(join, expectedResults(op, minInner));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void testIndexJoin() throws IOException, DbException, TransactionAbortedException {
+        validateIndexJoin(Predicate.Op.EQUALS, false);
+        validateIndexJoin(Predicate.Op.LESS_THAN, false);
+        validateIndexJoin(Predicate.Op.GREATER_THAN_OR_EQ, false);
+        validateIndexJoin(Predicate.Op.EQUALS, true);
+    }
+
+    @Test public void testCanUseIndex() throws IOException, DbException, TransactionAbortedException {
+        HeapFile heap = SystemTestUtil.createRandomHeapFile(COLUMNS, 10, null, null);
+        BTreeFile btree = BTreeUtility.createRandomBTreeFile(COLUMNS, 10, null, null, 0);
+        TransactionId tid = new TransactionId();
+        SeqScan indexed = new SeqScan(tid, btree.getId(), "t2");
+        assertTrue(IndexNestedLoopJoin.canUseIndex(new JoinPredicate(1, Predicate.Op.EQUALS, 0), indexed));
+        // 不是索引字段
+        assertFalse(IndexNestedLoopJoin.canUseIndex(new JoinPredicate(0, Predicate.Op.EQUALS, 1), indexed));
+        // 索引回答不了不等于
+        assertFalse(IndexNestedLoopJoin.canUseIndex(new JoinPredicate(0, Predicate.Op.NOT_EQUALS, 0), indexed));
+        // 堆文件没有索引
+        assertFalse(IndexNestedLoopJoin.canUseIndex(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+                new SeqScan(tid, heap.getId(), "t3")));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void testPlanIndexJoin() throws IOException, DbException,
+            TransactionAbortedException, ParsingException {
+        HeapFile table1 = SystemTestUtil.createRandomHeapFile(COLUMNS, 200, 500, null, t1Tuples, "field");
+        BTreeFile random = BTreeUtility.createRandomBTreeFile(COLUMNS, 2000, 500, null, t2Tuples, 0);
+        BTreeFile table2 = new BTreeFile(random.getFile(), 0, Utility.getTupleDesc(COLUMNS, "field"));
+        Database.getCatalog().addTable(table1, "nlouter");
+        Database.getCatalog().addTable(table2, "nlinner");
+        TableStats.setTableStats("nlouter", new TableStats(table1.getId(), 10));
+        TableStats.setTableStats("nlinner", new TableStats(table2.getId(), 10));
+        TransactionId tid = new TransactionId();
+
+        // 等值连接查内层的索引
+        LogicalPlan lp = new Parser().generateLogicalPlan(tid,
+                "SELECT * FROM nlouter t1, nlinner t2 WHERE t1.field0 = t2.field0;");
+        OpIterator plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+        assertTrue(((Operator) plan).getChildren()[0] instanceof IndexNestedLoopJoin);
+        SystemTestUtil.matchTuples(plan, expectedResults(Predicate.Op.EQUALS, 0));
+
+        // 每个外层元组只读从根到叶子的几页，比扫描整个内层便宜
+        LogicalJoinNode j = new LogicalJoinNode("t1", "t2", "field0", "field0", Predicate.Op.EQUALS);
+        double cost = new JoinOptimizer(lp, new ArrayList<>()).estimateJoinCost(j, 200, 2000, 1000, 10000);
+        assertTrue(cost < 200 * 10000);
+
+        // 范围连接不查索引，排序归并
+        lp = new Parser().generateLogicalPlan(tid,
+                "SELECT * FROM nlouter t1, nlinner t2 WHERE t1.field0 < t2.field0;");
+        plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+        assertTrue(((Operator) plan).getChildren()[0] instanceof SortMergeJoin);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(NestedLoopJoinTest.class);
+    }
+}
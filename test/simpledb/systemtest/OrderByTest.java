@@ -0,0 +1,80 @@
+package simpledb.systemtest;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.execution.OrderBy;
+import simpledb.execution.SeqScan;
+import simpledb.storage.HeapFile;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that OrderBy returns its input in the requested order, both when
+ * it fits in the memory budget and when it is sorted externally.
+ */
+public class OrderByTest extends SimpleDbTestBase {
+    private static final int COLUMNS = 3;
+
+    private void validate(int rows, int maxValue, int[] fields, boolean[] asc, int memoryBudget)
+            throws IOException, DbException, TransactionAbortedException {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(COLUMNS, rows, maxValue, null, tuples);
+
+        // the sort is stable, so ties keep the order of the scan
+        Comparator<List<Integer>> cmp = (a, b) -> {
+            for (int i = 0; i < fields.length; i++) {
+                int c = Integer.compare(a.get(fields[i]), b.get(fields[i]));
+                if (c != 0) {
+                    return asc[i] ? c : -c;
+                }
+            }
+            return 0;
+        };
+        List<List<Integer>> expected = new ArrayList<>(tuples);
+        expected.sort(cmp);
+
+        TransactionId tid = new TransactionId();
+        OrderBy orderBy = new OrderBy(fields, asc, new SeqScan(tid, table.getId(), "t"));
+        orderBy.setMemoryBudget(memoryBudget);
+        orderBy.open();
+        for (int pass = 0; pass < 2; pass++) {
+            List<List<Integer>> actual = new ArrayList<>();
+            while (orderBy.hasNext()) {
+                actual.add(SystemTestUtil.tupleToList(orderBy.next()));
+            }
+            assertEquals(expected, actual);
+            orderBy.rewind();
+        }
+        orderBy.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void testInMemory() throws IOException, DbException, TransactionAbortedException {
+        validate(2000, 50, new int[]{0}, new boolean[]{true}, OrderBy.MEMORY_BUDGET);
+        validate(2000, 50, new int[]{1, 0}, new boolean[]{false, true}, OrderBy.MEMORY_BUDGET);
+    }
+
+    @Test public void testExternal() throws IOException, DbException, TransactionAbortedException {
+        validate(5000, 50, new int[]{0}, new boolean[]{false}, 100);
+        validate(5000, 20, new int[]{2, 1, 0}, new boolean[]{true, false, true}, 333);
+    }
+
+    @Test public void testMultiPassMerge() throws IOException, DbException, TransactionAbortedException {
+        // a budget of 10 makes far more runs than one merge pass takes
+        validate(5000, 1000, new int[]{1}, new boolean[]{true}, 10);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(OrderByTest.class);
+    }
+}
@@ -0,0 +1,108 @@
+package simpledb.systemtest;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.execution.Aggregate;
+import simpledb.execution.Aggregator;
+import simpledb.execution.Filter;
+import simpledb.execution.OpIterator;
+import simpledb.execution.ParallelAggregate;
+import simpledb.execution.Predicate;
+import simpledb.execution.SeqScan;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that ParallelAggregate gives the same groups as a serial
+ * Aggregate, with and without a filter and a tight memory budget.
+ */
+public class ParallelAggregateTest extends SimpleDbTestBase {
+    private static final int COLUMNS = 3;
+    // 足够多的页，每个线程都能分到几页
+    private static final int ROWS = 20000;
+
+    private static final Aggregator.Op[] OPS = {Aggregator.Op.COUNT, Aggregator.Op.SUM,
+            Aggregator.Op.MIN, Aggregator.Op.MAX, Aggregator.Op.AVG};
+
+    private static List<List<Integer>> collect(OpIterator it) throws DbException, TransactionAbortedException {
+        List<List<Integer>> rows = new ArrayList<>();
+        it.open();
+        while (it.hasNext()) {
+            rows.add(SystemTestUtil.tupleToList(it.next()));
+        }
+        it.close();
+        return rows;
+    }
+
+    private static OpIterator input(TransactionId tid, HeapFile table, boolean filtered) {
+        OpIterator scan = new SeqScan(tid, table.getId(), "t");
+        if (filtered) {
+            scan = new Filter(new Predicate(2, Predicate.Op.LESS_THAN, new IntField(300)), scan);
+        }
+        return scan;
+    }
+
+    private void validate(int maxGroup, int gfield, boolean filtered, int budget)
+            throws IOException, DbException, TransactionAbortedException {
+        Map<Integer, Integer> spec = new HashMap<>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(COLUMNS, ROWS, maxGroup, spec, null);
+        TransactionId tid = new TransactionId();
+        int[] afields = {1, 1, 1, 2, 2};
+        List<List<Integer>> expected = collect(new Aggregate(input(tid, table, filtered), afields, gfield, OPS));
+
+        assertTrue(ParallelAggregate.canScanInParallel(input(tid, table, filtered)));
+        ParallelAggregate pa = new ParallelAggregate(input(tid, table, filtered), afields, gfield, OPS);
+        pa.setParallelism(4);
+        pa.setMemoryBudget(budget);
+        SystemTestUtil.matchTuples(pa, expected);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void testGroupBy() throws IOException, DbException, TransactionAbortedException {
+        validate(50, 0, false, 1000);
+        validate(50, 0, true, 1000);
+        validate(50, Aggregator.NO_GROUPING, false, 1000);
+    }
+
+    @Test public void testSpilledPartials() throws IOException, DbException, TransactionAbortedException {
+        // 每个线程只能放 10 个分组
+        validate(2000, 0, false, 40);
+    }
+
+    @Test public void testPageRanges() throws IOException, DbException, TransactionAbortedException {
+        HeapFile table = SystemTestUtil.createRandomHeapFile(COLUMNS, ROWS, null, null);
+        TransactionId tid = new TransactionId();
+        int pages = table.numPages();
+        assertTrue(pages > 3);
+        int total = 0;
+        for (int from = 0; from < pages; from += 3) {
+            DbFileIterator it = table.iterator(tid, from, Math.min(from + 3, pages));
+            it.open();
+            while (it.hasNext()) {
+                it.next();
+                total++;
+            }
+            it.close();
+        }
+        assertEquals(ROWS, total);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(ParallelAggregateTest.class);
+    }
+}
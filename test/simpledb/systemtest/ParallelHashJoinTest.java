@@ -0,0 +1,128 @@
+package simpledb.systemtest;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import simpledb.Parser;
+import simpledb.ParsingException;
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.execution.Gather;
+import simpledb.execution.JoinPredicate;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Operator;
+import simpledb.execution.ParallelHashJoin;
+import simpledb.execution.ParallelSeqScan;
+import simpledb.execution.Predicate;
+import simpledb.execution.SeqScan;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.HeapFile;
+import simpledb.storage.TupleBatch;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that ParallelHashJoin returns the same tuples as a nested loops
+ * join, with and without spilling, and that the planner uses it to join
+ * tables read by several threads.
+ */
+public class ParallelHashJoinTest extends SimpleDbTestBase {
+    private static final int COLUMNS = 2;
+    private static final int BUILD_ROWS = 3000;
+    private static final int PROBE_ROWS = 1000;
+    private static final int MAX_VALUE = 5000;
+    private static final int THREADS = 4;
+
+    private final List<List<Integer>> build = new ArrayList<>();
+    private final List<List<Integer>> probe = new ArrayList<>();
+
+    // 按第一列相等连接的结果
+    private List<List<Integer>> expected() {
+        List<List<Integer>> result = new ArrayList<>();
+        for (List<Integer> t1 : build) {
+            for (List<Integer> t2 : probe) {
+                if (t1.get(0).equals(t2.get(0))) {
+                    List<Integer> row = new ArrayList<>(t1);
+                    row.addAll(t2);
+                    result.add(row);
+                }
+            }
+        }
+        return result;
+    }
+
+    private ParallelHashJoin join(TransactionId tid, HeapFile t1, HeapFile t2) {
+        Gather scans = new Gather(ParallelSeqScan.partitionScans(tid, t1.getId(), "t1", THREADS));
+        ParallelHashJoin j = new ParallelHashJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+                scans, new SeqScan(tid, t2.getId(), "t2"));
+        j.setParallelism(THREADS);
+        return j;
+    }
+
+    @Test public void testJoin() throws IOException, DbException, TransactionAbortedException {
+        HeapFile t1 = SystemTestUtil.createRandomHeapFile(COLUMNS, BUILD_ROWS, MAX_VALUE, null, build);
+        HeapFile t2 = SystemTestUtil.createRandomHeapFile(COLUMNS, PROBE_ROWS, MAX_VALUE, null, probe);
+        List<List<Integer>> expected = expected();
+        TransactionId tid = new TransactionId();
+        ParallelHashJoin j = join(tid, t1, t2);
+        SystemTestUtil.matchTuples(j, expected);
+
+        // 按批读取，重绕后结果不变
+        j.open();
+        for (int pass = 0; pass < 2; pass++) {
+            int n = 0;
+            TupleBatch b;
+            while ((b = j.nextBatch()) != null) {
+                n += b.numRows();
+            }
+            assertEquals(expected.size(), n);
+            j.rewind();
+        }
+        j.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void testSpilledPartitions() throws IOException, DbException, TransactionAbortedException {
+        HeapFile t1 = SystemTestUtil.createRandomHeapFile(COLUMNS, BUILD_ROWS, MAX_VALUE, null, build);
+        HeapFile t2 = SystemTestUtil.createRandomHeapFile(COLUMNS, PROBE_ROWS, MAX_VALUE, null, probe);
+        TransactionId tid = new TransactionId();
+        ParallelHashJoin j = join(tid, t1, t2);
+        // 每个分区的哈希表都放不下它的构建输入
+        j.setMemoryBudget(THREADS * 50);
+        SystemTestUtil.matchTuples(j, expected());
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void testParallelPlan() throws IOException, DbException,
+            TransactionAbortedException, ParsingException {
+        HeapFile t1 = SystemTestUtil.createRandomHeapFile(COLUMNS, BUILD_ROWS, MAX_VALUE, null, build, "field");
+        HeapFile t2 = SystemTestUtil.createRandomHeapFile(COLUMNS, PROBE_ROWS, MAX_VALUE, null, probe, "field");
+        Database.getCatalog().addTable(t1, "pjbuild");
+        Database.getCatalog().addTable(t2, "pjprobe");
+        TransactionId tid = new TransactionId();
+        LogicalPlan lp = new Parser().generateLogicalPlan(tid,
+                "SELECT * FROM pjbuild t1, pjprobe t2 WHERE t1.field0 = t2.field0;");
+        // 默认只用一个线程
+        assertEquals(1, lp.getParallelism());
+        OpIterator plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+        assertFalse(((Operator) plan).getChildren()[0] instanceof ParallelHashJoin);
+        SystemTestUtil.matchTuples(plan, expected());
+
+        lp.setParallelism(THREADS);
+        plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+        assertTrue(((Operator) plan).getChildren()[0] instanceof ParallelHashJoin);
+        SystemTestUtil.matchTuples(plan, expected());
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(ParallelHashJoinTest.class);
+    }
+}
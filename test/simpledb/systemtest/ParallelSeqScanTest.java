@@ -0,0 +1,100 @@
+package simpledb.systemtest;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.execution.Aggregate;
+import simpledb.execution.Aggregator;
+import simpledb.execution.Filter;
+import simpledb.execution.ParallelSeqScan;
+import simpledb.execution.Predicate;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that a ParallelSeqScan returns every tuple of the table once,
+ * tuple by tuple and in batches, with predicates pushed down by a Filter.
+ */
+public class ParallelSeqScanTest extends SimpleDbTestBase {
+    private static final int COLUMNS = 3;
+    private static final int ROWS = 3000;
+
+    private final List<List<Integer>> tuples = new ArrayList<>();
+
+    private ParallelSeqScan scan(TransactionId tid, HeapFile table) {
+        ParallelSeqScan scan = new ParallelSeqScan(tid, table.getId(), "t");
+        scan.setParallelism(4);
+        // 每段一页，让工作线程多次领取
+        scan.setMorselPages(1);
+        return scan;
+    }
+
+    @Test public void testScan() throws IOException, DbException, TransactionAbortedException {
+        HeapFile table = SystemTestUtil.createRandomHeapFile(COLUMNS, ROWS, null, tuples);
+        assertTrue(ParallelSeqScan.canScanInParallel(table.getId()));
+        TransactionId tid = new TransactionId();
+        ParallelSeqScan scan = scan(tid, table);
+        SystemTestUtil.matchTuples(scan, tuples);
+        // 重新打开后仍然返回全部元组
+        SystemTestUtil.matchTuples(scan, tuples);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void testPushedFilter() throws IOException, DbException, TransactionAbortedException {
+        HeapFile table = SystemTestUtil.createRandomHeapFile(COLUMNS, ROWS, 1000, null, tuples);
+        List<List<Integer>> expected = new ArrayList<>();
+        for (List<Integer> t : tuples) {
+            if (t.get(1) < 250) {
+                expected.add(t);
+            }
+        }
+        TransactionId tid = new TransactionId();
+        Filter filter = new Filter(new Predicate(1, Predicate.Op.LESS_THAN, new IntField(250)),
+                scan(tid, table));
+        SystemTestUtil.matchTuples(filter, expected);
+
+        // 按批读取：Aggregate 逐批消费过滤后的扫描
+        Aggregate count = new Aggregate(new Filter(new Predicate(1, Predicate.Op.LESS_THAN,
+                new IntField(250)), scan(tid, table)), 0, Aggregator.NO_GROUPING, Aggregator.Op.COUNT);
+        count.open();
+        assertEquals(expected.size(), ((IntField) count.next().getField(0)).getValue());
+        count.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void testCloseEarly() throws IOException, DbException, TransactionAbortedException {
+        HeapFile table = SystemTestUtil.createRandomHeapFile(COLUMNS, ROWS, null, tuples);
+        TransactionId tid = new TransactionId();
+        ParallelSeqScan scan = scan(tid, table);
+        scan.open();
+        for (int i = 0; i < 10; i++) {
+            assertTrue(scan.hasNext());
+            scan.next();
+        }
+        // 关闭时工作线程不能阻塞在已满的队列上
+        scan.close();
+        scan.open();
+        int n = 0;
+        while (scan.hasNext()) {
+            scan.next();
+            n++;
+        }
+        scan.close();
+        assertEquals(ROWS, n);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(ParallelSeqScanTest.class);
+    }
+}
@@ -0,0 +1,148 @@
+package simpledb.systemtest;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import simpledb.Parser;
+import simpledb.ParsingException;
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.execution.Filter;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Operator;
+import simpledb.execution.ParallelSeqScan;
+import simpledb.execution.Predicate;
+import simpledb.execution.SeqScan;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that scans return only the fields they are asked for, and that
+ * the planner asks each scan for just the fields the query uses.
+ */
+public class ProjectionTest extends SimpleDbTestBase {
+    private static final int COLUMNS = 4;
+    private static final int ROWS = 3000;
+    private static final int MAX_VALUE = 1000;
+
+    private final List<List<Integer>> tuples1 = new ArrayList<>();
+    private final List<List<Integer>> tuples2 = new ArrayList<>();
+
+    // 计划中所有的 SeqScan
+    private static void findScans(OpIterator plan, List<SeqScan> scans) {
+        if (plan instanceof SeqScan) {
+            scans.add((SeqScan) plan);
+        } else if (plan instanceof Operator) {
+            for (OpIterator child : ((Operator) plan).getChildren()) {
+                findScans(child, scans);
+            }
+        }
+    }
+
+    private static SeqScan findScan(OpIterator plan, String alias) {
+        List<SeqScan> scans = new ArrayList<>();
+        findScans(plan, scans);
+        for (SeqScan s : scans) {
+            if (s.getAlias().equals(alias)) {
+                return s;
+            }
+        }
+        throw new AssertionError("no scan of " + alias);
+    }
+
+    private OpIterator plan(TransactionId tid, String sql, int threads) throws ParsingException, IOException {
+        LogicalPlan lp = new Parser().generateLogicalPlan(tid, sql);
+        lp.setParallelism(threads);
+        return lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+    }
+
+    private void createTables() throws IOException {
+        HeapFile t1 = SystemTestUtil.createRandomHeapFile(COLUMNS, ROWS, MAX_VALUE, null, tuples1, "field");
+        HeapFile t2 = SystemTestUtil.createRandomHeapFile(COLUMNS, ROWS, MAX_VALUE, null, tuples2, "field");
+        Database.getCatalog().addTable(t1, "prleft");
+        Database.getCatalog().addTable(t2, "prright");
+        TableStats.setTableStats("prleft", new TableStats(t1.getId(), 10));
+        TableStats.setTableStats("prright", new TableStats(t2.getId(), 10));
+    }
+
+    @Test public void testScan() throws IOException, DbException, TransactionAbortedException {
+        HeapFile table = SystemTestUtil.createRandomHeapFile(COLUMNS, ROWS, MAX_VALUE, null, tuples1, "field");
+        List<List<Integer>> expected = new ArrayList<>();
+        for (List<Integer> t : tuples1) {
+            if (t.get(3) < 500) {
+                expected.add(Arrays.asList(t.get(3), t.get(1)));
+            }
+        }
+        int[] fields = {3, 1};
+        // 谓词的字段编号是投影之后的
+        Predicate p = new Predicate(0, Predicate.Op.LESS_THAN, new IntField(500));
+        TransactionId tid = new TransactionId();
+        SeqScan scan = new SeqScan(tid, table.getId(), "t");
+        scan.setProjection(fields);
+        assertEquals(2, scan.getTupleDesc().numFields());
+        assertEquals("t.field3", scan.getTupleDesc().getFieldName(0));
+        SystemTestUtil.matchTuples(new Filter(p, scan), expected);
+
+        // 多线程扫描也只返回投影的字段
+        ParallelSeqScan parallel = new ParallelSeqScan(tid, table.getId(), "t");
+        parallel.setProjection(fields);
+        parallel.setParallelism(4);
+        parallel.setMorselPages(1);
+        SystemTestUtil.matchTuples(new Filter(p, parallel), expected);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void testPlan() throws IOException, DbException, TransactionAbortedException, ParsingException {
+        createTables();
+        List<List<Integer>> expected = new ArrayList<>();
+        for (List<Integer> t1 : tuples1) {
+            for (List<Integer> t2 : tuples2) {
+                if (t1.get(0).equals(t2.get(0)) && t2.get(1) < 500) {
+                    expected.add(Arrays.asList(t1.get(2), t2.get(3)));
+                }
+            }
+        }
+        TransactionId tid = new TransactionId();
+        OpIterator plan = plan(tid, "SELECT t1.field2, t2.field3 FROM prleft t1, prright t2 "
+                + "WHERE t1.field0 = t2.field0 AND t2.field1 < 500;", 1);
+        assertArrayEquals(new int[]{0, 2}, findScan(plan, "t1").getProjection());
+        assertArrayEquals(new int[]{0, 1, 3}, findScan(plan, "t2").getProjection());
+        SystemTestUtil.matchTuples(plan, expected);
+
+        // 返回整个元组时不投影
+        plan = plan(tid, "SELECT * FROM prleft t1 WHERE t1.field1 < 500;", 1);
+        assertNull(findScan(plan, "t1").getProjection());
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void testParallelAggregate() throws IOException, DbException,
+            TransactionAbortedException, ParsingException {
+        createTables();
+        int sum = 0;
+        for (List<Integer> t : tuples2) {
+            if (t.get(1) < 500) {
+                sum += t.get(3);
+            }
+        }
+        TransactionId tid = new TransactionId();
+        OpIterator plan = plan(tid, "SELECT SUM(t2.field3) FROM prright t2 WHERE t2.field1 < 500;", 4);
+        assertArrayEquals(new int[]{1, 3}, findScan(plan, "t2").getProjection());
+        SystemTestUtil.matchTuples(plan, Arrays.asList(Arrays.asList(sum)));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(ProjectionTest.class);
+    }
+}
@@ -0,0 +1,133 @@
+package simpledb.systemtest;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Utility;
+import simpledb.execution.Query;
+import simpledb.execution.QueryCursor;
+import simpledb.execution.SeqScan;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.storage.Page;
+import simpledb.storage.PageId;
+import simpledb.storage.TupleBatch;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that a QueryCursor returns the whole result, that a cursor run on
+ * a worker thread stays only a few batches ahead of its reader, and that
+ * cancelling it stops the plan.
+ */
+public class QueryCursorTest extends SimpleDbTestBase {
+    private static final int COLUMNS = 2;
+    // 几十页，一批约跨三页
+    private static final int ROWS = 20000;
+
+    private final List<List<Integer>> tuples = new ArrayList<>();
+    // 从磁盘读入的页数
+    private final AtomicInteger reads = new AtomicInteger();
+
+    private HeapFile createTable() throws IOException {
+        File f = SystemTestUtil.createRandomHeapFileUnopened(COLUMNS, ROWS, 10000, null, tuples);
+        HeapFile table = new HeapFile(f, Utility.getTupleDesc(COLUMNS)) {
+            @Override
+            public Page readPage(PageId pid) {
+                reads.incrementAndGet();
+                return super.readPage(pid);
+            }
+        };
+        Database.getCatalog().addTable(table, SystemTestUtil.getUUID());
+        return table;
+    }
+
+    private static List<List<Integer>> sorted(List<List<Integer>> rows) {
+        List<List<Integer>> copy = new ArrayList<>(rows);
+        copy.sort(Comparator.comparing(Object::toString));
+        return copy;
+    }
+
+    @Test public void testResult() throws IOException, DbException, TransactionAbortedException {
+        HeapFile table = createTable();
+        TransactionId tid = new TransactionId();
+
+        // 在读者的线程上逐行读
+        List<List<Integer>> rows = new ArrayList<>();
+        try (QueryCursor cursor = new Query(new SeqScan(tid, table.getId()), tid).cursor()) {
+            assertEquals(COLUMNS, cursor.getTupleDesc().numFields());
+            while (cursor.hasNext()) {
+                rows.add(SystemTestUtil.tupleToList(cursor.next()));
+            }
+        }
+        assertEquals(sorted(tuples), sorted(rows));
+
+        // 在工作线程上执行，先逐行读一行，再按批读
+        rows.clear();
+        try (QueryCursor cursor = new Query(new SeqScan(tid, table.getId()), tid).cursor(2)) {
+            rows.add(SystemTestUtil.tupleToList(cursor.next()));
+            TupleBatch b;
+            while ((b = cursor.nextBatch()) != null) {
+                for (int i = 0; i < b.numRows(); i++) {
+                    rows.add(SystemTestUtil.tupleToList(b.getTuple(b.row(i))));
+                }
+            }
+            assertNull(cursor.nextBatch());
+        }
+        assertEquals(sorted(tuples), sorted(rows));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void testBoundedBuffer() throws IOException, DbException,
+            TransactionAbortedException, InterruptedException {
+        HeapFile table = createTable();
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        TransactionId tid = new TransactionId();
+        try (QueryCursor cursor = new Query(new SeqScan(tid, table.getId()), tid).cursor(1)) {
+            assertNotNull(cursor.nextBatch());
+            // 读者不读时，执行计划的线程最多多做两批就要等待
+            Thread.sleep(200);
+            assertTrue(reads.get() < table.numPages() / 2);
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void testCancel() throws IOException, DbException,
+            TransactionAbortedException, InterruptedException {
+        HeapFile table = createTable();
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        TransactionId tid = new TransactionId();
+        QueryCursor cursor = new Query(new SeqScan(tid, table.getId()), tid).cursor(1);
+        assertNotNull(cursor.nextBatch());
+
+        // 从另一个线程取消，读者随后读到结果的结尾
+        Thread t = new Thread(cursor::cancel);
+        t.start();
+        t.join();
+        assertTrue(cursor.isCancelled());
+        assertNull(cursor.nextBatch());
+        cursor.close();
+
+        // 计划已经关闭，不再读页
+        int n = reads.get();
+        Thread.sleep(100);
+        assertEquals(n, reads.get());
+        assertTrue(n < table.numPages());
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(QueryCursorTest.class);
+    }
+}
@@ -0,0 +1,102 @@
+package simpledb.systemtest;
+
+import java.io.File;
+import java.io.IOException;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Utility;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPage;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.IntField;
+import simpledb.storage.LogFile;
+import simpledb.storage.Tuple;
+import simpledb.transaction.Transaction;
+
+/**
+ * Measures how long recovery takes as the log grows.  This is not run by
+ * the test targets; run it by hand with the test classpath:
+ * <pre>
+ * java -cp bin/src:bin/test:lib/* simpledb.systemtest.RecoveryBenchmark [pages ...]
+ * </pre>
+ * The workload is the one in {@link LogTest#TestParallelRedo}: every page
+ * of a two-int heap file gets 100 committed single-tuple transactions, and
+ * none of the pages reaches the heap file before the crash, so recovery
+ * redoes every update.  Each size is timed with 1 and 4 redo threads,
+ * taking the best of 3 runs.  Every commit forces the log, so building
+ * the log for 2048 pages takes several minutes.
+ */
+public class RecoveryBenchmark {
+
+    private static final int TXNS_PER_PAGE = 100;
+    private static final int RUNS = 3;
+
+    private static Tuple twoIntTuple(int v) {
+        Tuple t = new Tuple(Utility.getTupleDesc(2));
+        t.setField(0, new IntField(v));
+        t.setField(1, new IntField(v));
+        return t;
+    }
+
+    // 构造日志后模拟崩溃，返回 recover() 的耗时（纳秒）
+    private static long run(File file, int numPages, int threads, long[] logSize)
+            throws IOException, DbException {
+        Database.reset();
+        file.delete();
+        HeapFile hf = Utility.createEmptyHeapFile(file.getAbsolutePath(), 2);
+        LogFile log = Database.getLogFile();
+        HeapPage[] pages = new HeapPage[numPages];
+        for (int p = 0; p < numPages; p++) {
+            pages[p] = new HeapPage(new HeapPageId(hf.getId(), p), HeapPage.createEmptyPageData());
+        }
+        int v = 0;
+        for (int i = 0; i < TXNS_PER_PAGE; i++) {
+            for (int p = 0; p < numPages; p++) {
+                Transaction t = new Transaction();
+                t.start();
+                HeapPage before = new HeapPage(pages[p].getId(), pages[p].getPageData());
+                pages[p].insertTuple(twoIntTuple(v++));
+                log.logWrite(t.getId(), before, pages[p]);
+                t.commit();
+            }
+        }
+        log.force();
+        logSize[0] = log.getLogSize();
+
+        // crash: nothing was written to the heap file
+        Database.reset();
+        hf = Utility.openHeapFile(2, file);
+        Database.getLogFile().setRecoveryThreads(threads);
+        long start = System.nanoTime();
+        Database.getLogFile().recover();
+        long elapsed = System.nanoTime() - start;
+        if (hf.numPages() != numPages) {
+            throw new IllegalStateException("recovered " + hf.numPages() + " pages, expected " + numPages);
+        }
+        return elapsed;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int[] pageCounts = {128, 512};
+        if (args.length > 0) {
+            pageCounts = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                pageCounts[i] = Integer.parseInt(args[i]);
+            }
+        }
+        File file = new File("simple1.db");
+        System.out.printf("%8s %10s %8s %12s%n", "updates", "log (KB)", "threads", "recover (ms)");
+        for (int numPages : pageCounts) {
+            for (int threads : new int[]{1, 4}) {
+                long best = Long.MAX_VALUE;
+                long[] logSize = new long[1];
+                for (int i = 0; i < RUNS; i++) {
+                    best = Math.min(best, run(file, numPages, threads, logSize));
+                }
+                System.out.printf("%8d %10d %8d %12.1f%n",
+                        numPages * TXNS_PER_PAGE, logSize[0] / 1024, threads, best / 1e6);
+            }
+        }
+    }
+}
@@ -3,6 +3,7 @@ package simpledb.systemtest;
 import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Utility;
+import simpledb.execution.Predicate;
 import simpledb.execution.SeqScan;
 import simpledb.storage.*;
 
@@ -11,6 +12,7 @@ import static org.junit.Assert.*;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.Random;
@@ -110,6 +112,45 @@ public class ScanTest extends SimpleDbTestBase {
         assertEquals(0, table.readCount);
     }
 
+    /** Test that a scan with pushed-down predicates returns only the tuples
+     * satisfying them, before and after the pages are modified. */
+    @Test public void testPredicates() throws IOException, DbException, TransactionAbortedException {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(3, 3000, 1000, null, tuples);
+        List<Predicate> ps = Arrays.asList(
+                new Predicate(0, Predicate.Op.GREATER_THAN, new IntField(500)),
+                new Predicate(2, Predicate.Op.LESS_THAN_OR_EQ, new IntField(200)));
+
+        TransactionId tid = new TransactionId();
+        SeqScan scan = new SeqScan(tid, f.getId(), "table");
+        scan.setPredicates(ps);
+        SystemTestUtil.matchTuples(scan, select(tuples, ps));
+
+        // 修改过的页已经生成了元组，谓词在元组上检查
+        Tuple t = new Tuple(f.getTupleDesc());
+        for (int i = 0; i < 3; i++) {
+            t.setField(i, new IntField(i == 0 ? 999 : 0));
+        }
+        Database.getBufferPool().insertTuple(tid, f.getId(), t);
+        tuples.add(Arrays.asList(999, 0, 0));
+        SystemTestUtil.matchTuples(scan, select(tuples, ps));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private static List<List<Integer>> select(List<List<Integer>> tuples, List<Predicate> ps) {
+        List<List<Integer>> result = new ArrayList<>();
+        for (List<Integer> t : tuples) {
+            boolean pass = true;
+            for (Predicate p : ps) {
+                pass &= new IntField(t.get(p.getFieldNo())).compare(p.getOp(), p.getOperand());
+            }
+            if (pass) {
+                result.add(t);
+            }
+        }
+        return result;
+    }
+
     /** Verifies SeqScan's getTupleDesc prefixes the table name + "." to the field names
      * @throws IOException
      */
@@ -0,0 +1,139 @@
+package simpledb.systemtest;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.execution.JoinPredicate;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Predicate;
+import simpledb.execution.SeqScan;
+import simpledb.execution.SortMergeJoin;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeScan;
+import simpledb.index.BTreeUtility;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks SortMergeJoin against the results of a plain nested loop, with
+ * memory budgets small enough to make the sorts and the window spill.
+ */
+public class SortMergeJoinTest extends SimpleDbTestBase {
+    private static final int COLUMNS = 2;
+
+    private final List<List<Integer>> t1Tuples = new ArrayList<>();
+    private final List<List<Integer>> t2Tuples = new ArrayList<>();
+
+    private interface Match {
+        boolean test(int v1, int v2);
+    }
+
+    private List<List<Integer>> expectedResults(Match m) {
+        List<List<Integer>> expected = new ArrayList<>();
+        for (List<Integer> t1 : t1Tuples) {
+            for (List<Integer> t2 : t2Tuples) {
+                if (m.test(t1.get(0), t2.get(0))) {
+                    List<Integer> out = new ArrayList<>(t1);
+                    out.addAll(t2);
+                    expected.add(out);
+                }
+            }
+        }
+        return expected;
+    }
+
+    private static Match matchOp(Predicate.Op op) {
+        return (v1, v2) -> new IntField(v1).compare(op, new IntField(v2));
+    }
+
+    private void validate(SortMergeJoin join, Match m, TransactionId tid)
+            throws DbException, TransactionAbortedException {
+        List<List<Integer>> expected = expectedResults(m);
+        SystemTestUtil.matchTuples(join, expected);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private void validateOp(Predicate.Op op, int memoryBudget)
+            throws IOException, DbException, TransactionAbortedException {
+        HeapFile table1 = SystemTestUtil.createRandomHeapFile(COLUMNS, 120, 100, null, t1Tuples);
+        HeapFile table2 = SystemTestUtil.createRandomHeapFile(COLUMNS, 100, 100, null, t2Tuples);
+        TransactionId tid = new TransactionId();
+        SortMergeJoin join = new SortMergeJoin(new JoinPredicate(0, op, 0),
+                new SeqScan(tid, table1.getId(), "t1"), new SeqScan(tid, table2.getId(), "t2"));
+        join.setMemoryBudget(memoryBudget);
+        validate(join, matchOp(op), tid);
+    }
+
+    @Test public void testInMemory() throws IOException, DbException, TransactionAbortedException {
+        for (Predicate.Op op : new Predicate.Op[]{Predicate.Op.EQUALS, Predicate.Op.LESS_THAN,
+                Predicate.Op.LESS_THAN_OR_EQ, Predicate.Op.GREATER_THAN, Predicate.Op.GREATER_THAN_OR_EQ}) {
+            validateOp(op, SortMergeJoin.MEMORY_BUDGET);
+        }
+    }
+
+    @Test public void testSpill() throws IOException, DbException, TransactionAbortedException {
+        for (Predicate.Op op : new Predicate.Op[]{Predicate.Op.EQUALS, Predicate.Op.LESS_THAN,
+                Predicate.Op.GREATER_THAN_OR_EQ}) {
+            validateOp(op, 16);
+        }
+    }
+
+    @Test public void testBand() throws IOException, DbException, TransactionAbortedException {
+        for (int budget : new int[]{SortMergeJoin.MEMORY_BUDGET, 4}) {
+            HeapFile table1 = SystemTestUtil.createRandomHeapFile(COLUMNS, 400, 1000, null, t1Tuples);
+            HeapFile table2 = SystemTestUtil.createRandomHeapFile(COLUMNS, 300, 1000, null, t2Tuples);
+            TransactionId tid = new TransactionId();
+            SortMergeJoin join = new SortMergeJoin(0, 0, 10,
+                    new SeqScan(tid, table1.getId(), "t1"), new SeqScan(tid, table2.getId(), "t2"));
+            join.setMemoryBudget(budget);
+            assertEquals(10, join.getBandWidth());
+            validate(join, (v1, v2) -> Math.abs(v1 - v2) <= 10, tid);
+        }
+    }
+
+    @Test public void testSortedInputs() throws IOException, DbException, TransactionAbortedException {
+        HeapFile table1 = SystemTestUtil.createRandomHeapFile(COLUMNS, 400, 300, null, t1Tuples);
+        BTreeFile table2 = BTreeUtility.createRandomBTreeFile(COLUMNS, 2000, 300, null, t2Tuples, 0);
+        TransactionId tid = new TransactionId();
+        OpIterator sorted = new BTreeScan(tid, table2.getId(), "t2", null);
+        SortMergeJoin join = new SortMergeJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+                new SeqScan(tid, table1.getId(), "t1"), sorted);
+        validate(join, matchOp(Predicate.Op.EQUALS), tid);
+    }
+
+    @Test public void testRewind() throws IOException, DbException, TransactionAbortedException {
+        HeapFile table1 = SystemTestUtil.createRandomHeapFile(COLUMNS, 400, 300, null, t1Tuples);
+        HeapFile table2 = SystemTestUtil.createRandomHeapFile(COLUMNS, 300, 300, null, t2Tuples);
+        TransactionId tid = new TransactionId();
+        SortMergeJoin join = new SortMergeJoin(new JoinPredicate(0, Predicate.Op.LESS_THAN, 0),
+                new SeqScan(tid, table1.getId(), "t1"), new SeqScan(tid, table2.getId(), "t2"));
+        join.setMemoryBudget(16);
+        int expected = expectedResults(matchOp(Predicate.Op.LESS_THAN)).size();
+        join.open();
+        for (int pass = 0; pass < 2; pass++) {
+            int count = 0;
+            while (join.hasNext()) {
+                join.next();
+                count++;
+            }
+            assertEquals(expected, count);
+            join.rewind();
+        }
+        join.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(SortMergeJoinTest.class);
+    }
+}
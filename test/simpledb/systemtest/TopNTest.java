@@ -0,0 +1,152 @@
+package simpledb.systemtest;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import org.junit.Test;
+
+import simpledb.Parser;
+import simpledb.ParsingException;
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.execution.OpIterator;
+import simpledb.execution.SeqScan;
+import simpledb.execution.TopN;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeUtility;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.storage.DbFile;
+import simpledb.storage.HeapFile;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that TopN returns the same tuples as a full sort followed by a
+ * limit, and that LIMIT reaches the logical plan.
+ */
+public class TopNTest extends SimpleDbTestBase {
+    private static final int COLUMNS = 3;
+
+    private List<List<Integer>> run(DbFile table, int[] fields, boolean[] asc, int limit)
+            throws DbException, TransactionAbortedException {
+        TransactionId tid = new TransactionId();
+        TopN topN = new TopN(fields, asc, limit, new SeqScan(tid, table.getId(), "t"));
+        topN.open();
+        List<List<Integer>> actual = new ArrayList<>();
+        while (topN.hasNext()) {
+            actual.add(SystemTestUtil.tupleToList(topN.next()));
+        }
+        topN.close();
+        Database.getBufferPool().transactionComplete(tid);
+        return actual;
+    }
+
+    private static List<List<Integer>> expected(List<List<Integer>> tuples, int[] fields, boolean[] asc, int limit) {
+        // 稳定排序后取前 limit 个
+        Comparator<List<Integer>> cmp = (a, b) -> {
+            for (int i = 0; i < fields.length; i++) {
+                int c = Integer.compare(a.get(fields[i]), b.get(fields[i]));
+                if (c != 0) {
+                    return asc[i] ? c : -c;
+                }
+            }
+            return 0;
+        };
+        List<List<Integer>> sorted = new ArrayList<>(tuples);
+        sorted.sort(cmp);
+        return sorted.subList(0, Math.min(limit, sorted.size()));
+    }
+
+    private void validate(int[] fields, boolean[] asc, int limit)
+            throws IOException, DbException, TransactionAbortedException {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile table = SystemTestUtil.createRandomHeapFile(COLUMNS, 3000, 100, null, tuples);
+        assertEquals(expected(tuples, fields, asc, limit), run(table, fields, asc, limit));
+    }
+
+    @Test public void testTopN() throws IOException, DbException, TransactionAbortedException {
+        validate(new int[]{0}, new boolean[]{true}, 100);
+        validate(new int[]{1}, new boolean[]{false}, 7);
+        validate(new int[]{2, 0}, new boolean[]{true, false}, 250);
+        validate(new int[]{0}, new boolean[]{true}, 5000);
+        validate(new int[]{0}, new boolean[]{true}, 0);
+    }
+
+    @Test public void testLimitOnly() throws IOException, DbException, TransactionAbortedException {
+        validate(new int[0], new boolean[0], 10);
+    }
+
+    @Test public void testSortedInputStopsEarly() throws IOException, DbException, TransactionAbortedException {
+        List<List<Integer>> tuples = new ArrayList<>();
+        BTreeFile table = BTreeUtility.createRandomBTreeFile(COLUMNS, 5000, 1000, null, tuples, 0);
+        int[] fields = {0, 1};
+        boolean[] asc = {true, true};
+        assertEquals(expected(tuples, fields, asc, 20), run(table, fields, asc, 20));
+
+        TransactionId tid = new TransactionId();
+        TopN topN = new TopN(fields, asc, 20, new SeqScan(tid, table.getId(), "t"));
+        topN.open();
+        // 读到第一个排在结果之后的元组就停止，输入没有读完
+        OpIterator scan = topN.getChildren()[0];
+        assertTrue(scan.hasNext());
+        topN.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void testParseLimit() throws IOException, ParsingException {
+        HeapFile table = SystemTestUtil.createRandomHeapFile(COLUMNS, 10, null, null);
+        Database.getCatalog().addTable(table, "topn");
+        Parser p = new Parser();
+        TransactionId tid = new TransactionId();
+        LogicalPlan lp = p.generateLogicalPlan(tid,
+                "SELECT * FROM topn t ORDER BY t.field0 DESC LIMIT 5;");
+        assertEquals(5, lp.getLimit());
+        lp = p.generateLogicalPlan(tid, "select * from topn t\n  limit   12 ;");
+        assertEquals(12, lp.getLimit());
+        lp = p.generateLogicalPlan(tid, "SELECT * FROM topn t;");
+        assertEquals(-1, lp.getLimit());
+
+        // 只看第一条语句结尾的 LIMIT
+        lp = p.generateLogicalPlan(tid,
+                "SELECT * FROM topn t;\nSELECT * FROM topn t ORDER BY t.field0 LIMIT 5;");
+        assertEquals(-1, lp.getLimit());
+        lp = p.generateLogicalPlan(tid,
+                "SELECT * FROM topn t LIMIT 3;\nSELECT * FROM topn t LIMIT 5;");
+        assertEquals(3, lp.getLimit());
+    }
+
+    @Test public void testLimitOnlyOnSelect() throws IOException, DbException, TransactionAbortedException {
+        HeapFile table = SystemTestUtil.createRandomHeapFile(COLUMNS, 10, null, null);
+        Database.getCatalog().addTable(table, "topndel");
+        Parser p = new Parser();
+        TransactionId tid = new TransactionId();
+        try {
+            p.generateLogicalPlan(tid, "DELETE FROM topndel t WHERE t.field0 >= 0 LIMIT 2;");
+            fail("LIMIT accepted on DELETE");
+        } catch (ParsingException e) {
+            assertEquals("LIMIT is only supported on SELECT", e.getMessage());
+        }
+
+        // 语句被拒绝，一行也没有删除
+        p.processNextStatement("delete from topndel t where t.field0 >= 0 limit 2;");
+        SeqScan scan = new SeqScan(tid, table.getId());
+        scan.open();
+        int rows = 0;
+        while (scan.hasNext()) {
+            scan.next();
+            rows++;
+        }
+        scan.close();
+        assertEquals(10, rows);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(TopNTest.class);
+    }
+}
@@ -0,0 +1,165 @@
+package simpledb.systemtest;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Utility;
+import simpledb.execution.Filter;
+import simpledb.execution.HashEquiJoin;
+import simpledb.execution.JoinPredicate;
+import simpledb.execution.Predicate;
+import simpledb.execution.SeqScan;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapFileEncoder;
+import simpledb.storage.IntField;
+import simpledb.storage.Page;
+import simpledb.storage.PageId;
+import simpledb.storage.Tuple;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that scans skip the pages their zone map rules out, and that the
+ * zone map follows inserts and deletes.
+ */
+public class ZoneMapTest extends SimpleDbTestBase {
+    private static final int COLUMNS = 2;
+    private static final int ROWS = 5000;
+
+    private final List<List<Integer>> tuples = new ArrayList<>();
+    // 从磁盘读入的页数
+    private final AtomicInteger reads = new AtomicInteger();
+
+    // 第一列按插入顺序递增的表，记录读页的次数
+    private HeapFile createOrderedTable() throws IOException {
+        Random r = new Random();
+        for (int i = 0; i < ROWS; i++) {
+            tuples.add(Arrays.asList(i, r.nextInt(1000)));
+        }
+        File temp = File.createTempFile("table", ".dat");
+        temp.deleteOnExit();
+        HeapFileEncoder.convert(tuples, temp, BufferPool.getPageSize(), COLUMNS);
+        HeapFile table = new HeapFile(temp, Utility.getTupleDesc(COLUMNS)) {
+            @Override
+            public Page readPage(PageId pid) {
+                reads.incrementAndGet();
+                return super.readPage(pid);
+            }
+        };
+        Database.getCatalog().addTable(table, SystemTestUtil.getUUID());
+        return table;
+    }
+
+    // 扫描一遍建立摘要，然后清空缓存池
+    private void summarize(HeapFile table) throws DbException, TransactionAbortedException {
+        TransactionId tid = new TransactionId();
+        SystemTestUtil.matchTuples(new SeqScan(tid, table.getId(), "t"), tuples);
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(table.numPages(), reads.get());
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        reads.set(0);
+    }
+
+    private List<List<Integer>> select(Predicate p) {
+        List<List<Integer>> result = new ArrayList<>();
+        for (List<Integer> t : tuples) {
+            if (new IntField(t.get(p.getFieldNo())).compare(p.getOp(), p.getOperand())) {
+                result.add(t);
+            }
+        }
+        return result;
+    }
+
+    @Test public void testSkipPages() throws IOException, DbException, TransactionAbortedException {
+        HeapFile table = createOrderedTable();
+        TransactionId tid = new TransactionId();
+        // 还没有摘要时每一页都要读
+        Predicate p = new Predicate(0, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(ROWS - 100));
+        SystemTestUtil.matchTuples(new Filter(p, new SeqScan(tid, table.getId(), "t")), select(p));
+        assertEquals(table.numPages(), reads.get());
+        Database.getBufferPool().transactionComplete(tid);
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        reads.set(0);
+
+        // 最后 100 行至多在两页上
+        tid = new TransactionId();
+        SystemTestUtil.matchTuples(new Filter(p, new SeqScan(tid, table.getId(), "t")), select(p));
+        assertTrue(reads.get() <= 2);
+        // 第二列没有顺序，不能跳过页
+        Predicate q = new Predicate(1, Predicate.Op.LESS_THAN, new IntField(500));
+        SystemTestUtil.matchTuples(new Filter(q, new SeqScan(tid, table.getId(), "t")), select(q));
+        assertEquals(table.numPages(), reads.get());
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void testInsertAndDelete() throws IOException, DbException, TransactionAbortedException {
+        HeapFile table = createOrderedTable();
+        summarize(table);
+        Predicate p = new Predicate(0, Predicate.Op.LESS_THAN, new IntField(0));
+        TransactionId tid = new TransactionId();
+        SystemTestUtil.matchTuples(new Filter(p, new SeqScan(tid, table.getId(), "t")), select(p));
+        assertEquals(0, reads.get());
+
+        // 删除第一页的一个元组，空出的位置由新元组填上
+        SeqScan scan = new SeqScan(tid, table.getId(), "t");
+        scan.open();
+        Tuple first = scan.next();
+        scan.close();
+        Database.getBufferPool().deleteTuple(tid, first);
+        tuples.remove(SystemTestUtil.tupleToList(first));
+        Tuple t = new Tuple(table.getTupleDesc());
+        t.setField(0, new IntField(-7));
+        t.setField(1, new IntField(3));
+        Database.getBufferPool().insertTuple(tid, table.getId(), t);
+        assertEquals(0, t.getRecordId().getPageId().getPageNumber());
+        tuples.add(Arrays.asList(-7, 3));
+
+        // 摘要变宽，新元组仍然能查到；删掉的值不再出现
+        SystemTestUtil.matchTuples(new Filter(p, new SeqScan(tid, table.getId(), "t")), select(p));
+        Predicate q = new Predicate(0, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(0));
+        SystemTestUtil.matchTuples(new Filter(q, new SeqScan(tid, table.getId(), "t")), select(q));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    @Test public void testJoinKeyRange() throws IOException, DbException, TransactionAbortedException {
+        HeapFile table = createOrderedTable();
+        List<List<Integer>> build = new ArrayList<>();
+        HeapFile keys = SystemTestUtil.createRandomHeapFile(COLUMNS, 20, 100, null, build);
+        summarize(table);
+
+        List<List<Integer>> expected = new ArrayList<>();
+        for (List<Integer> t1 : build) {
+            for (List<Integer> t2 : tuples) {
+                if (t1.get(0).equals(t2.get(0))) {
+                    List<Integer> row = new ArrayList<>(t1);
+                    row.addAll(t2);
+                    expected.add(row);
+                }
+            }
+        }
+        // 建表一侧的键都小于 100，探测一侧只需要读第一页
+        TransactionId tid = new TransactionId();
+        HashEquiJoin join = new HashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+                new SeqScan(tid, keys.getId(), "k"), new SeqScan(tid, table.getId(), "t"));
+        SystemTestUtil.matchTuples(join, expected);
+        assertEquals(1, reads.get());
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(ZoneMapTest.class);
+    }
+}